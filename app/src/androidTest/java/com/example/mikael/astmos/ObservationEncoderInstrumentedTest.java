@@ -0,0 +1,74 @@
+package com.example.mikael.astmos;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test comparing the ObservationEncoder with JSonMessage, which needs the org.json
+ * implementation of the device. Checks that both produce the same bytes and logs the throughput
+ * of both.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ObservationEncoderInstrumentedTest {
+
+    private static final String TAG = "ObservationEncoderTest";
+    private static final int ITERATIONS = 20000;
+
+    @Test
+    public void producesTheSameBytesAsJSonMessage() throws Exception {
+        ObservationEncoder encoder = new ObservationEncoder();
+        Random random = new Random(1);
+        String[] serialNrs = {"AB12", "CD34", "x/y\"z"};
+        for (int i = 0; i < 1000; i++) {
+            double value = i % 10 == 0 ? random.nextInt(100) : random.nextDouble() * 500;
+            Coordinate coord = new Coordinate(random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180);
+            long phenomenonStart = 1523880000000L + random.nextInt(1000000000);
+            long phenomenonEnd = phenomenonStart + random.nextInt(10000);
+            long resultTime = phenomenonEnd + random.nextInt(60000);
+            String serialNr = serialNrs[i % serialNrs.length];
+
+            byte[] expected = new JSonMessage(value, coord, phenomenonStart, phenomenonEnd, resultTime, serialNr)
+                    .msg.toString().getBytes("UTF-8");
+            int length = encoder.encode(value, coord, phenomenonStart, phenomenonEnd, resultTime, serialNr);
+            assertArrayEquals(expected, Arrays.copyOf(encoder.getBuffer(), length));
+        }
+    }
+
+    @Test
+    public void comparesThroughputWithJSonMessage() throws Exception {
+        Coordinate coord = new Coordinate(65.584816, 22.154751);
+        long time = System.currentTimeMillis();
+        ObservationEncoder encoder = new ObservationEncoder();
+        long bytes = 0;
+
+        /* warm up both paths before measuring */
+        for (int i = 0; i < ITERATIONS / 10; i++) {
+            bytes += new JSonMessage(i * 0.01, coord, time, time, time, "AB12").msg.toString().getBytes("UTF-8").length;
+            bytes += encoder.encode(i * 0.01, coord, time, time, time, "AB12");
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            bytes += new JSonMessage(i * 0.01, coord, time, time, time, "AB12").msg.toString().getBytes("UTF-8").length;
+        }
+        long jsonMessageNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            bytes += encoder.encode(i * 0.01, coord, time, time, time, "AB12");
+        }
+        long encoderNanos = System.nanoTime() - start;
+
+        Log.i(TAG, "JSonMessage: " + (ITERATIONS * 1e9 / jsonMessageNanos) + " msg/s, ObservationEncoder: "
+                + (ITERATIONS * 1e9 / encoderNanos) + " msg/s (" + bytes + " bytes)");
+        assertTrue(bytes > 0);
+    }
+}
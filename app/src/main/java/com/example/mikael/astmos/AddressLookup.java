@@ -0,0 +1,26 @@
+package com.example.mikael.astmos;
+
+import java.io.IOException;
+
+/**
+ * AddressLookup
+ * Finds the street address of a coordinate. On the device this is the geocoder of the platform,
+ * which usually asks a server, so a lookup may block for a long time and is never made on the
+ * ui thread.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public interface AddressLookup {
+
+    /**
+     * lookup
+     *
+     * @param latitude  The latitude in degrees
+     * @param longitude The longitude in degrees
+     * @return String The address, or null if there is none
+     * @throws IOException If the lookup failed, e.g. because the network is not available
+     */
+    String lookup(double latitude, double longitude) throws IOException;
+}
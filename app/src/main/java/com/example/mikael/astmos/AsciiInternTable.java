@@ -0,0 +1,108 @@
+package com.example.mikael.astmos;
+
+/**
+ * AsciiInternTable
+ * A small lookup table mapping ascii byte ranges to String instances. The same bytes always give
+ * back the same String, so values which are repeated in every frame (gas name, serial number) are
+ * only converted once. The table has a fixed number of entries, when it is full new values are
+ * still converted but no longer remembered.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public class AsciiInternTable {
+
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private final byte[][] keys;
+    private final String[] values;
+    private final int mask;
+    private final int capacity;
+    private int size = 0;
+
+    /**
+     * AsciiInternTable
+     * Constructor creating a table with the default capacity.
+     */
+    public AsciiInternTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * AsciiInternTable
+     * Constructor creating a table able to remember the given number of values.
+     *
+     * @param capacity The maximum number of values to remember
+     */
+    public AsciiInternTable(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        int slots = Integer.highestOneBit(capacity * 2 - 1) << 1;   // keep the load factor below one half
+        keys = new byte[slots][];
+        values = new String[slots];
+        mask = slots - 1;
+        this.capacity = capacity;
+    }
+
+    /**
+     * intern
+     * Returns the String for the given bytes, creating and remembering it the first time.
+     *
+     * @param buffer The buffer holding the bytes
+     * @param offset The index of the first byte
+     * @param length The number of bytes
+     * @return String The String with the same characters as the bytes
+     */
+    public String intern(byte[] buffer, int offset, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + buffer[offset + i];
+        }
+        hash ^= hash >>> 16;
+
+        int slot = hash & mask;
+        while (keys[slot] != null) {
+            if (matches(keys[slot], buffer, offset, length)) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) (buffer[offset + i] & 0x7f);
+        }
+        String value = new String(chars);
+        if (size < capacity) {
+            byte[] key = new byte[length];
+            System.arraycopy(buffer, offset, key, 0, length);
+            keys[slot] = key;
+            values[slot] = value;
+            size++;
+        }
+        return value;
+    }
+
+    /**
+     * size
+     *
+     * @return int The number of values remembered by the table
+     */
+    public int size() {
+        return size;
+    }
+
+    private static boolean matches(byte[] key, byte[] buffer, int offset, int length) {
+        if (key.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (key[i] != buffer[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.mikael.astmos;
+
+import java.util.Random;
+
+/**
+ * Backoff
+ * The delays between attempts to connect to a sensor unit which is not there, e.g. while it
+ * reboots. The delay doubles with every failed attempt up to a maximum, and half of it is
+ * random, so that units which went away together, e.g. when the power of the vehicle was cut,
+ * are not all retried at the same moment.
+ *
+ * Not thread safe, every connection has its own.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public class Backoff {
+
+    public static final long DEFAULT_INITIAL_DELAY = 500;      // milliseconds
+    public static final long DEFAULT_MAX_DELAY = 8000;         // milliseconds
+
+    private final long initialDelay;
+    private final long maxDelay;
+    private final Random random;
+    private int attempt = 0;
+
+    /**
+     * Backoff
+     * Constructor creating a backoff with the given limits.
+     *
+     * @param initialDelay The delay in milliseconds after the first failed attempt, at most
+     * @param maxDelay     The longest delay in milliseconds
+     * @param random       The source of the random part of the delays
+     */
+    public Backoff(long initialDelay, long maxDelay, Random random) {
+        if (initialDelay < 1 || maxDelay < initialDelay) {
+            throw new IllegalArgumentException("invalid backoff delays " + initialDelay + ", " + maxDelay);
+        }
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.random = random;
+    }
+
+    /**
+     * next
+     * The delay before the next attempt, between half of and the whole of the current ceiling,
+     * which then doubles.
+     *
+     * @return long The delay in milliseconds
+     */
+    public long next() {
+        long ceiling = maxDelay;
+        if (attempt < 62 && initialDelay <= maxDelay >> attempt) {
+            ceiling = initialDelay << attempt;
+        }
+        attempt++;
+        long half = ceiling / 2;
+        return ceiling - half + (long) (random.nextDouble() * (half + 1));
+    }
+
+    /**
+     * reset
+     * Starts over from the initial delay, after a successful attempt.
+     */
+    public void reset() {
+        attempt = 0;
+    }
+
+    /**
+     * getAttempt
+     *
+     * @return int The number of delays given since the last reset
+     */
+    public int getAttempt() {
+        return attempt;
+    }
+}
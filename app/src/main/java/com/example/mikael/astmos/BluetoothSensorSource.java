@@ -0,0 +1,100 @@
+package com.example.mikael.astmos;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * BluetoothSensorSource
+ * Connects to one paired sensor unit (raspberry pi) over a rfcomm-socket with the serial port
+ * service uuid, which is the same on both devices. Every open creates a new socket, which is
+ * owned by the reader it is returned to and closed with its stream, so the source can be opened
+ * again after a failure until it is closed for good.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public class BluetoothSensorSource implements SensorSource {
+
+    /* serial port service id of the sensor units */
+    static final UUID SERVICE_UUID = UUID.fromString("94f39d29-7d6d-437d-973b-fba39e49d4ee");
+
+    private final BluetoothDevice device;
+    private volatile BluetoothSocket socket;
+    private volatile boolean closed = false;
+
+    /* tag used for logging */
+    private static final String TAG = "BluetoothSensorSource";
+
+    /**
+     * BluetoothSensorSource
+     * Constructor creating a connector for a paired device.
+     *
+     * @param device The paired sensor unit
+     */
+    public BluetoothSensorSource(BluetoothDevice device) {
+        this.device = device;
+    }
+
+    @Override
+    public String getName() {
+        return device.getName();
+    }
+
+    @Override
+    public InputStream open() throws IOException {
+        BluetoothSocket previous = socket;
+        if (previous != null) {
+            try {
+                previous.close();   // normally closed with its stream already
+            } catch (IOException e) {
+                Log.d(TAG, "open: " + e.getMessage());
+            }
+        }
+        BluetoothSocket created = device.createRfcommSocketToServiceRecord(SERVICE_UUID);
+        socket = created;
+        if (closed) {
+            created.close();    // closed while the socket was being created
+            throw new IOException(getName() + " is closed");
+        }
+        if (!created.isConnected()) {
+            created.connect();
+        }
+        return created.getInputStream();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        BluetoothSocket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                Log.d(TAG, "close: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * sendCommand
+     * Sends a command, e.g. "shutdown", to the sensor unit.
+     *
+     * @param command The command to send
+     * @throws IOException If the unit is not connected or the command could not be sent
+     */
+    public void sendCommand(String command) throws IOException {
+        BluetoothSocket current = socket;
+        if (current == null) {
+            throw new IOException(getName() + " is not connected");
+        }
+        OutputStream outputStream = current.getOutputStream();
+        outputStream.write(command.getBytes());
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.mikael.astmos;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * CalibrationProfile
+ * The calibration of one sensor head, applied to the raw level before it is converted:
+ *  calibrated = gain * (ppb - offset - crossSensitivity * (temperature - 20 C))
+ * The cross-sensitivity is the response of the sensor to temperature in ppb/kelvin, which is the
+ * only other quantity the sensor units report alongside the gas level.
+ *
+ * Profiles are loaded from a text file with one line per sensor head,
+ *  serialNr,offset,gain,crossSensitivity
+ * where empty lines and lines starting with '#' are ignored.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public final class CalibrationProfile {
+
+    /* temperature at which the cross-sensitivity has no effect */
+    public static final double REFERENCE_TEMPERATURE = 293.15;     // kelvin
+
+    /* the profile of sensor heads which have not been calibrated */
+    public static final CalibrationProfile IDENTITY = new CalibrationProfile(0, 1, 0);
+
+    final double offset;            // ppb
+    final double gain;
+    final double crossSensitivity;  // ppb/kelvin
+
+    /**
+     * CalibrationProfile
+     * Constructor creating a profile from its coefficients.
+     *
+     * @param offset           The level in ppb reported when the gas is absent
+     * @param gain             The factor correcting the sensitivity of the sensor
+     * @param crossSensitivity The change of the reported level with temperature in ppb/kelvin
+     */
+    public CalibrationProfile(double offset, double gain, double crossSensitivity) {
+        this.offset = offset;
+        this.gain = gain;
+        this.crossSensitivity = crossSensitivity;
+    }
+
+    /**
+     * apply
+     *
+     * @param ppb         The raw gas level in parts per billion
+     * @param temperature The temperature in kelvin
+     * @return double The calibrated gas level in parts per billion
+     */
+    public double apply(double ppb, double temperature) {
+        return gain * (ppb - offset - crossSensitivity * (temperature - REFERENCE_TEMPERATURE));
+    }
+
+    /**
+     * load
+     * Reads the profiles of a calibration file.
+     *
+     * @param reader The reader of the file, not closed
+     * @return Map The profiles by serial number
+     * @throws IOException If the file could not be read or a line is malformed
+     */
+    public static Map<String, CalibrationProfile> load(Reader reader) throws IOException {
+        Map<String, CalibrationProfile> profiles = new HashMap<>();
+        BufferedReader lines = new BufferedReader(reader);
+        int lineNr = 0;
+        String line;
+        while ((line = lines.readLine()) != null) {
+            lineNr++;
+            line = line.trim();
+            if (line.isEmpty() || line.charAt(0) == '#') {
+                continue;
+            }
+            String[] fields = line.split(",");
+            if (fields.length != 4) {
+                throw new IOException("line " + lineNr + ": expected 4 fields but found " + fields.length);
+            }
+            try {
+                profiles.put(fields[0].trim(), new CalibrationProfile(Double.parseDouble(fields[1].trim()),
+                        Double.parseDouble(fields[2].trim()), Double.parseDouble(fields[3].trim())));
+            } catch (NumberFormatException e) {
+                throw new IOException("line " + lineNr + ": " + e.getMessage());
+            }
+        }
+        return profiles;
+    }
+
+    @Override
+    public String toString() {
+        return "offset " + offset + ", gain " + gain + ", cross-sensitivity " + crossSensitivity;
+    }
+}
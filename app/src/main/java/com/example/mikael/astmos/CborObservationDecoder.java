@@ -0,0 +1,243 @@
+package com.example.mikael.astmos;
+
+import java.nio.charset.Charset;
+
+import static com.example.mikael.astmos.CborObservationEncoder.*;
+
+/**
+ * CborObservationDecoder
+ * Reads the observations written by CborObservationEncoder, for the ingest side. Keys which are
+ * not known are skipped together with their values, so older decoders keep working when fields
+ * are added. Any well formed CBOR value is accepted for skipped keys, except indefinite length
+ * items which the encoder never writes.
+ *
+ * A decoder keeps no state between messages and can be shared between threads.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public class CborObservationDecoder {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Cursor
+     * Position in the message being decoded.
+     */
+    private static class Cursor {
+        final byte[] buffer;
+        int position;
+        final int end;
+
+        Cursor(byte[] buffer, int offset, int length) {
+            this.buffer = buffer;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        int readByte() {
+            if (position >= end) {
+                throw new IllegalArgumentException("truncated observation");
+            }
+            return buffer[position++] & 0xff;
+        }
+
+        long readBytes(int count) {
+            long value = 0;
+            for (int i = 0; i < count; i++) {
+                value = value << 8 | readByte();
+            }
+            return value;
+        }
+    }
+
+    /**
+     * decode
+     * Decodes one observation into the given object. Fields missing from the message keep
+     * their previous value.
+     *
+     * @param buffer       The buffer holding the message
+     * @param offset       The index of the first byte of the message
+     * @param length       The number of bytes in the message
+     * @param observation  The object the fields are written to
+     * @return Observation The given object
+     * @throws IllegalArgumentException If the message is not a well formed observation
+     */
+    public Observation decode(byte[] buffer, int offset, int length, Observation observation) {
+        Cursor in = new Cursor(buffer, offset, length);
+        int initial = in.readByte();
+        if (initial >>> 5 != MAJOR_MAP) {
+            throw new IllegalArgumentException("observation is not a map");
+        }
+        long fields = readArgument(in, initial);
+        for (long i = 0; i < fields; i++) {
+            int keyByte = in.readByte();
+            if (keyByte >>> 5 != MAJOR_UNSIGNED) {
+                skipValue(in, keyByte);     // not one of ours
+                skip(in);
+                continue;
+            }
+            long key = readArgument(in, keyByte);
+            if (key == KEY_SERIAL_NR) {
+                observation.serialNr = readText(in);
+            } else if (key == KEY_VALUE) {
+                observation.value = readDouble(in);
+            } else if (key == KEY_COORDINATES) {
+                int header = in.readByte();
+                if (header >>> 5 != MAJOR_ARRAY || readArgument(in, header) != 2) {
+                    throw new IllegalArgumentException("coordinates are not a pair");
+                }
+                observation.latitude = readDouble(in);
+                observation.longitude = readDouble(in);
+            } else if (key == KEY_PHENOMENON_START) {
+                observation.phenomenonStart = readLong(in);
+            } else if (key == KEY_RESULT_TIME) {
+                observation.resultTime = readLong(in);
+            } else if (key == KEY_PHENOMENON_END) {
+                observation.phenomenonEnd = readLong(in);
+            } else {
+                skip(in);
+            }
+        }
+        if (in.position != in.end) {
+            throw new IllegalArgumentException("trailing bytes after observation");
+        }
+        return observation;
+    }
+
+    /**
+     * decode
+     * Decodes one observation into a new object.
+     *
+     * @param message The message
+     * @return Observation The decoded observation
+     * @throws IllegalArgumentException If the message is not a well formed observation
+     */
+    public Observation decode(byte[] message) {
+        return decode(message, 0, message.length, new Observation());
+    }
+
+    private static long readArgument(Cursor in, int initial) {
+        int info = initial & 0x1f;
+        if (info < 24) {
+            return info;
+        }
+        switch (info) {
+            case 24: return in.readBytes(1);
+            case 25: return in.readBytes(2);
+            case 26: return in.readBytes(4);
+            case 27: return in.readBytes(8);
+            default: throw new IllegalArgumentException("unsupported additional information " + info);
+        }
+    }
+
+    private static String readText(Cursor in) {
+        int initial = in.readByte();
+        if (initial >>> 5 != MAJOR_TEXT) {
+            throw new IllegalArgumentException("expected a text string");
+        }
+        long length = readArgument(in, initial);
+        if (length < 0 || length > in.end - in.position) {
+            throw new IllegalArgumentException("truncated observation");
+        }
+        String text = new String(in.buffer, in.position, (int) length, UTF_8);
+        in.position += (int) length;
+        return text;
+    }
+
+    private static long readLong(Cursor in) {
+        int initial = in.readByte();
+        long argument = readArgument(in, initial);
+        switch (initial >>> 5) {
+            case MAJOR_UNSIGNED:
+                if (argument < 0) {
+                    throw new IllegalArgumentException("integer out of range");
+                }
+                return argument;
+            case MAJOR_NEGATIVE:
+                if (argument < 0) {
+                    throw new IllegalArgumentException("integer out of range");
+                }
+                return -1 - argument;
+            default:
+                throw new IllegalArgumentException("expected an integer");
+        }
+    }
+
+    private static double readDouble(Cursor in) {
+        int initial = in.readByte();
+        switch (initial) {
+            case MAJOR_SIMPLE << 5 | HALF_FLOAT:
+                return halfToDouble((int) in.readBytes(2));
+            case MAJOR_SIMPLE << 5 | SINGLE_FLOAT:
+                return Float.intBitsToFloat((int) in.readBytes(4));
+            case MAJOR_SIMPLE << 5 | DOUBLE_FLOAT:
+                return Double.longBitsToDouble(in.readBytes(8));
+            default:
+                in.position--;
+                return readLong(in);    // integers are accepted where a number is expected
+        }
+    }
+
+    private static double halfToDouble(int half) {
+        int exponent = (half >>> 10) & 0x1f;
+        int mantissa = half & 0x3ff;
+        double value;
+        if (exponent == 0) {
+            value = mantissa * Math.pow(2, -24);
+        } else if (exponent == 31) {
+            value = mantissa == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+        } else {
+            value = (mantissa + 1024) * Math.pow(2, exponent - 25);
+        }
+        return (half & 0x8000) != 0 ? -value : value;
+    }
+
+    /**
+     * skip
+     * Skips over the next value, including nested arrays, maps and tags.
+     */
+    private static void skip(Cursor in) {
+        skipValue(in, in.readByte());
+    }
+
+    private static void skipValue(Cursor in, int initial) {
+        int major = initial >>> 5;
+        if (major == MAJOR_SIMPLE) {
+            int info = initial & 0x1f;
+            if (info >= 24 && info <= 27) {
+                in.readBytes(1 << (info - 24));
+            } else if (info > 27) {
+                throw new IllegalArgumentException("unsupported additional information " + info);
+            }
+            return;
+        }
+        long argument = readArgument(in, initial);
+        switch (major) {
+            case MAJOR_BYTES:
+            case MAJOR_TEXT:
+                if (argument < 0 || argument > in.end - in.position) {
+                    throw new IllegalArgumentException("truncated observation");
+                }
+                in.position += (int) argument;
+                break;
+            case MAJOR_ARRAY:
+                for (long i = 0; i < argument; i++) {
+                    skip(in);
+                }
+                break;
+            case MAJOR_MAP:
+                for (long i = 0; i < argument; i++) {
+                    skip(in);
+                    skip(in);
+                }
+                break;
+            case MAJOR_TAG:
+                skip(in);
+                break;
+            default:
+                break;  // integers carry their value in the argument
+        }
+    }
+}
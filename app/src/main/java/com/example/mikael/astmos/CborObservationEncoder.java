@@ -0,0 +1,194 @@
+package com.example.mikael.astmos;
+
+/**
+ * CborObservationEncoder
+ * Writes observations in a compact binary format, as a CBOR (RFC 7049) map with small integer
+ * keys instead of the json field names, timestamps as milliseconds since the epoch and no
+ * selflink, which the receiver can derive from the serial number. An observation takes about a
+ * sixth of the bytes of the json format. The map is
+ *  {
+ *      0: serialNr,
+ *      1: value,
+ *      2: [latitude, longitude],
+ *      3: phenomenonStart,
+ *      4: resultTime,
+ *      5: phenomenonEnd
+ *  }
+ * Numbers which can be represented exactly as a single precision float are written as one,
+ * others as doubles. Decoders must skip keys they do not know, so fields can be added later.
+ *
+ * An encoder is not thread safe, the content of the buffer is valid until the next call to encode.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public class CborObservationEncoder {
+
+    /* keys of the fields in the map */
+    static final int KEY_SERIAL_NR = 0;
+    static final int KEY_VALUE = 1;
+    static final int KEY_COORDINATES = 2;
+    static final int KEY_PHENOMENON_START = 3;
+    static final int KEY_RESULT_TIME = 4;
+    static final int KEY_PHENOMENON_END = 5;
+    static final int FIELD_COUNT = 6;
+
+    /* major types */
+    static final int MAJOR_UNSIGNED = 0;
+    static final int MAJOR_NEGATIVE = 1;
+    static final int MAJOR_BYTES = 2;
+    static final int MAJOR_TEXT = 3;
+    static final int MAJOR_ARRAY = 4;
+    static final int MAJOR_MAP = 5;
+    static final int MAJOR_TAG = 6;
+    static final int MAJOR_SIMPLE = 7;
+
+    /* additional information of major type 7 */
+    static final int HALF_FLOAT = 25;
+    static final int SINGLE_FLOAT = 26;
+    static final int DOUBLE_FLOAT = 27;
+
+    private final Utf8Buffer out = new Utf8Buffer(128);
+
+    /**
+     * encode
+     * Encodes an observation into the buffer of the encoder, replacing the previous one.
+     *
+     * @param value           The average sensor value of the observation
+     * @param coord           The location of the measurements
+     * @param phenomenonStart The time of the first measurement in milliseconds since the epoch
+     * @param phenomenonEnd   The time of the last measurement in milliseconds since the epoch
+     * @param resultTime      The time the observation was made in milliseconds since the epoch
+     * @param serialNr        The unique serial number of the sensor used
+     * @return int The length of the encoded observation
+     */
+    public int encode(double value, Coordinate coord, long phenomenonStart, long phenomenonEnd, long resultTime,
+                      String serialNr) {
+        out.clear();
+        writeHeader(MAJOR_MAP, FIELD_COUNT);
+
+        writeHeader(MAJOR_UNSIGNED, KEY_SERIAL_NR);
+        writeText(serialNr);
+
+        writeHeader(MAJOR_UNSIGNED, KEY_VALUE);
+        writeDouble(value);
+
+        writeHeader(MAJOR_UNSIGNED, KEY_COORDINATES);
+        writeHeader(MAJOR_ARRAY, 2);
+        writeDouble(coord.latitude);
+        writeDouble(coord.longitude);
+
+        writeHeader(MAJOR_UNSIGNED, KEY_PHENOMENON_START);
+        writeLong(phenomenonStart);
+
+        writeHeader(MAJOR_UNSIGNED, KEY_RESULT_TIME);
+        writeLong(resultTime);
+
+        writeHeader(MAJOR_UNSIGNED, KEY_PHENOMENON_END);
+        writeLong(phenomenonEnd);
+        return out.length();
+    }
+
+    /**
+     * getBuffer
+     *
+     * @return byte[] The buffer holding the last encoded observation, starting at index 0
+     */
+    public byte[] getBuffer() {
+        return out.buffer();
+    }
+
+    /**
+     * getLength
+     *
+     * @return int The length of the last encoded observation
+     */
+    public int getLength() {
+        return out.length();
+    }
+
+    /**
+     * toByteArray
+     *
+     * @return byte[] A copy of the last encoded observation
+     */
+    public byte[] toByteArray() {
+        return out.toByteArray();
+    }
+
+    private void writeText(String text) {
+        int length = 0;
+        for (int i = 0, n = text.length(); i < n; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length += 1;    // written as '?'
+            } else {
+                length += 3;
+            }
+        }
+        writeHeader(MAJOR_TEXT, length);
+        out.writeUtf8(text);
+    }
+
+    private void writeLong(long value) {
+        if (value >= 0) {
+            writeHeader(MAJOR_UNSIGNED, value);
+        } else {
+            writeHeader(MAJOR_NEGATIVE, -1 - value);
+        }
+    }
+
+    private void writeDouble(double value) {
+        float single = (float) value;
+        if (single == value || Double.isNaN(value)) {
+            int bits = Float.floatToIntBits(single);
+            out.writeByte(MAJOR_SIMPLE << 5 | SINGLE_FLOAT);
+            out.writeByte(bits >>> 24);
+            out.writeByte(bits >>> 16);
+            out.writeByte(bits >>> 8);
+            out.writeByte(bits);
+        } else {
+            long bits = Double.doubleToLongBits(value);
+            out.writeByte(MAJOR_SIMPLE << 5 | DOUBLE_FLOAT);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out.writeByte((int) (bits >>> shift));
+            }
+        }
+    }
+
+    /**
+     * writeHeader
+     * Writes the initial byte of a data item and its argument in the shortest form.
+     */
+    private void writeHeader(int major, long argument) {
+        int type = major << 5;
+        if (argument < 24) {
+            out.writeByte(type | (int) argument);
+        } else if (argument < 0x100) {
+            out.writeByte(type | 24);
+            out.writeByte((int) argument);
+        } else if (argument < 0x10000) {
+            out.writeByte(type | 25);
+            out.writeByte((int) (argument >>> 8));
+            out.writeByte((int) argument);
+        } else if (argument < 0x100000000L) {
+            out.writeByte(type | 26);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                out.writeByte((int) (argument >>> shift));
+            }
+        } else {
+            out.writeByte(type | 27);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out.writeByte((int) (argument >>> shift));
+            }
+        }
+    }
+}
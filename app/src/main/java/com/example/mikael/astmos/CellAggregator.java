@@ -0,0 +1,356 @@
+package com.example.mikael.astmos;
+
+/**
+ * CellAggregator
+ * Aggregates samples by where and when they were taken instead of by their number. Every sample
+ * is assigned to the geohash cell of its position and the time bucket of its time, and one
+ * observation is made per cell and bucket, with the number of samples, their mean and their
+ * maximum. At motorway speed a cell of precision 7 (about 150 m) is crossed in a few seconds,
+ * when parked a bucket holds every sample of its minute, so the observations cover comparable
+ * areas and times however the device moves.
+ *
+ * Time is event time, the time the sample was taken. The watermark trails the newest sample
+ * seen by the allowed lateness, a bucket is closed and its cells emitted once the watermark has
+ * passed its end. Samples arriving for a closed bucket are late, they are dropped and counted.
+ *
+ * The open cells are kept in an open-addressing table of primitive arrays keyed by cell and
+ * bucket, from which emitted cells are removed, so the memory used depends on how many cells are
+ * open at once and not on the length of the drive, and adding a sample allocates nothing.
+ *
+ * Not thread safe, meant to be used by the pipeline thread of one sensor head.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public class CellAggregator {
+
+    /**
+     * Sink
+     * Receives the cells which are complete.
+     */
+    public interface Sink {
+        /**
+         * emit
+         * Called for every complete cell, in no particular order within a bucket. The cell is
+         * only valid during the call, which must not add samples to the aggregator.
+         *
+         * @param cell The cell
+         */
+        void emit(Cell cell);
+    }
+
+    /**
+     * Cell
+     * The samples of one geohash cell in one time bucket. Reused for every emitted cell.
+     */
+    public static class Cell {
+        String serialNr;        // serial number of the sensor, set by the pipeline
+        String gas;             // name of the gas, set by the pipeline
+        long geohash;           // the bits of the geohash of the cell
+        int precision;          // the number of characters of the geohash
+        long bucketStart;       // start of the time bucket in milliseconds since the epoch
+        long bucketEnd;         // end of the time bucket, exclusive
+        long firstTime;         // time of the first sample in the cell
+        long lastTime;          // time of the last sample in the cell
+        int count;
+        double mean;
+        double max;
+        double latitude;        // mean position of the samples
+        double longitude;
+
+        @Override
+        public String toString() {
+            return Geohash.toString(geohash, precision) + "@" + bucketStart + ": " + count + " samples, mean "
+                    + mean + ", max " + max;
+        }
+    }
+
+    /* default settings */
+    public static final int DEFAULT_PRECISION = 7;              // cells of about 150 x 150 m
+    public static final long DEFAULT_BUCKET_SIZE = 60000;       // milliseconds
+    public static final long DEFAULT_ALLOWED_LATENESS = 5000;   // milliseconds
+    static final int INITIAL_CAPACITY = 16;
+
+    private final int precision;
+    private final long bucketSize;
+    private final long allowedLateness;
+
+    /* the open cells, a slot is empty when its count is 0 */
+    private long[] hashes;
+    private long[] buckets;
+    private int[] counts;
+    private double[] sums;
+    private double[] maxima;
+    private double[] latitudes;     // sums of the positions
+    private double[] longitudes;
+    private long[] firstTimes;
+    private long[] lastTimes;
+    private int mask;
+    private int size = 0;
+
+    private long newest = Long.MIN_VALUE;           // time of the newest sample
+    private long closedBefore = Long.MIN_VALUE;     // buckets before this one are closed
+    private long late = 0;
+
+    private final Cell cell = new Cell();
+
+    /**
+     * CellAggregator
+     * Constructor creating an aggregator with the given cells and buckets.
+     *
+     * @param precision       The number of characters of the geohash of the cells, 1 to Geohash.MAX_PRECISION
+     * @param bucketSize      The length of the time buckets in milliseconds
+     * @param allowedLateness How far in milliseconds the watermark trails the newest sample
+     */
+    public CellAggregator(int precision, long bucketSize, long allowedLateness) {
+        if (precision < 1 || precision > Geohash.MAX_PRECISION || bucketSize < 1 || allowedLateness < 0) {
+            throw new IllegalArgumentException("invalid cell settings " + precision + ", " + bucketSize + ", "
+                    + allowedLateness);
+        }
+        this.precision = precision;
+        this.bucketSize = bucketSize;
+        this.allowedLateness = allowedLateness;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * CellAggregator
+     * Constructor creating an aggregator with the default cells and buckets.
+     */
+    public CellAggregator() {
+        this(DEFAULT_PRECISION, DEFAULT_BUCKET_SIZE, DEFAULT_ALLOWED_LATENESS);
+    }
+
+    private void allocate(int capacity) {
+        hashes = new long[capacity];
+        buckets = new long[capacity];
+        counts = new int[capacity];
+        sums = new double[capacity];
+        maxima = new double[capacity];
+        latitudes = new double[capacity];
+        longitudes = new double[capacity];
+        firstTimes = new long[capacity];
+        lastTimes = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * add
+     * Adds a sample to the cell of its position and time, and emits the cells of the buckets the
+     * watermark passes because of it.
+     *
+     * @param value     The value of the sample
+     * @param time      The time the sample was taken in milliseconds since the epoch
+     * @param latitude  The latitude where the sample was taken
+     * @param longitude The longitude where the sample was taken
+     * @param sink      The sink receiving the complete cells
+     * @return boolean True if the sample was added, false if its bucket was already closed
+     */
+    public boolean add(double value, long time, double latitude, double longitude, Sink sink) {
+        long bucket = floorDiv(time, bucketSize);
+        if (bucket < closedBefore) {
+            late++;
+            return false;
+        }
+        long hash = Geohash.encode(latitude, longitude, precision);
+        int slot = slotOf(hash, bucket);
+        while (counts[slot] != 0 && (hashes[slot] != hash || buckets[slot] != bucket)) {
+            slot = (slot + 1) & mask;
+        }
+        if (counts[slot] == 0) {
+            hashes[slot] = hash;
+            buckets[slot] = bucket;
+            counts[slot] = 1;
+            sums[slot] = value;
+            maxima[slot] = value;
+            latitudes[slot] = latitude;
+            longitudes[slot] = longitude;
+            firstTimes[slot] = time;
+            lastTimes[slot] = time;
+            if (++size * 2 > counts.length) {
+                grow();
+            }
+        } else {
+            counts[slot]++;
+            sums[slot] += value;
+            maxima[slot] = Math.max(maxima[slot], value);
+            latitudes[slot] += latitude;
+            longitudes[slot] += longitude;
+            firstTimes[slot] = Math.min(firstTimes[slot], time);
+            lastTimes[slot] = Math.max(lastTimes[slot], time);
+        }
+
+        if (time > newest) {
+            newest = time;
+            long watermark = floorDiv(newest - allowedLateness, bucketSize);
+            if (watermark > closedBefore) {
+                closedBefore = watermark;
+                emitBefore(watermark, sink);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * flush
+     * Emits every open cell, e.g. when the stream of samples ends. The watermark is kept, so
+     * samples for the buckets already closed are still late.
+     *
+     * @param sink The sink receiving the cells
+     * @return int The number of cells emitted
+     */
+    public int flush(Sink sink) {
+        return emitBefore(Long.MAX_VALUE, sink);
+    }
+
+    /**
+     * clear
+     * Forgets the open cells and the watermark.
+     */
+    public void clear() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+        }
+        size = 0;
+        newest = Long.MIN_VALUE;
+        closedBefore = Long.MIN_VALUE;
+    }
+
+    /* emits and removes the cells of the buckets before the given one */
+    private int emitBefore(long bucket, Sink sink) {
+        int emitted = 0;
+        for (int slot = 0; slot < counts.length; slot++) {
+            while (counts[slot] != 0 && buckets[slot] < bucket) {    // removing may shift another cell here
+                int count = counts[slot];
+                cell.geohash = hashes[slot];
+                cell.precision = precision;
+                cell.bucketStart = buckets[slot] * bucketSize;
+                cell.bucketEnd = cell.bucketStart + bucketSize;
+                cell.firstTime = firstTimes[slot];
+                cell.lastTime = lastTimes[slot];
+                cell.count = count;
+                cell.mean = sums[slot] / count;
+                cell.max = maxima[slot];
+                cell.latitude = latitudes[slot] / count;
+                cell.longitude = longitudes[slot] / count;
+                remove(slot);
+                sink.emit(cell);
+                emitted++;
+            }
+        }
+        return emitted;
+    }
+
+    /* empties a slot, moving the cells after it back so every cell stays reachable from its home slot */
+    private void remove(int hole) {
+        int slot = hole;
+        while (true) {
+            slot = (slot + 1) & mask;
+            if (counts[slot] == 0) {
+                break;
+            }
+            int home = slotOf(hashes[slot], buckets[slot]);
+            /* the cell can fill the hole unless its home lies cyclically after the hole, up to its slot */
+            boolean stays = hole <= slot ? hole < home && home <= slot : hole < home || home <= slot;
+            if (!stays) {
+                move(slot, hole);
+                hole = slot;
+            }
+        }
+        counts[hole] = 0;
+        size--;
+    }
+
+    private void move(int from, int to) {
+        hashes[to] = hashes[from];
+        buckets[to] = buckets[from];
+        counts[to] = counts[from];
+        sums[to] = sums[from];
+        maxima[to] = maxima[from];
+        latitudes[to] = latitudes[from];
+        longitudes[to] = longitudes[from];
+        firstTimes[to] = firstTimes[from];
+        lastTimes[to] = lastTimes[from];
+    }
+
+    /* doubles the table, only while more cells are open at once than ever before */
+    private void grow() {
+        long[] oldHashes = hashes;
+        long[] oldBuckets = buckets;
+        int[] oldCounts = counts;
+        double[] oldSums = sums;
+        double[] oldMaxima = maxima;
+        double[] oldLatitudes = latitudes;
+        double[] oldLongitudes = longitudes;
+        long[] oldFirstTimes = firstTimes;
+        long[] oldLastTimes = lastTimes;
+        allocate(oldCounts.length * 2);
+        for (int i = 0; i < oldCounts.length; i++) {
+            if (oldCounts[i] == 0) {
+                continue;
+            }
+            int slot = slotOf(oldHashes[i], oldBuckets[i]);
+            while (counts[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            hashes[slot] = oldHashes[i];
+            buckets[slot] = oldBuckets[i];
+            counts[slot] = oldCounts[i];
+            sums[slot] = oldSums[i];
+            maxima[slot] = oldMaxima[i];
+            latitudes[slot] = oldLatitudes[i];
+            longitudes[slot] = oldLongitudes[i];
+            firstTimes[slot] = oldFirstTimes[i];
+            lastTimes[slot] = oldLastTimes[i];
+        }
+    }
+
+    /* the home slot of a cell, neighbouring cells and buckets are spread over the table */
+    private int slotOf(long hash, long bucket) {
+        long mixed = hash * 0x9E3779B97F4A7C15L ^ bucket * 0xC2B2AE3D27D4EB4FL;
+        mixed ^= mixed >>> 29;
+        return (int) (mixed ^ mixed >>> 32) & mask;
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y != 0 && (x < 0) != (y < 0)) ? q - 1 : q;
+    }
+
+    /**
+     * getOpenCount
+     *
+     * @return int The number of cells which have not been emitted
+     */
+    public int getOpenCount() {
+        return size;
+    }
+
+    /**
+     * getCapacity
+     *
+     * @return int The number of slots of the table of open cells
+     */
+    public int getCapacity() {
+        return counts.length;
+    }
+
+    /**
+     * getLateCount
+     *
+     * @return long The number of samples dropped because their bucket was closed
+     */
+    public long getLateCount() {
+        return late;
+    }
+
+    /**
+     * getWatermark
+     *
+     * @return long The end of the newest closed bucket in milliseconds since the epoch, Long.MIN_VALUE if none is
+     */
+    public long getWatermark() {
+        return closedBefore == Long.MIN_VALUE ? Long.MIN_VALUE : closedBefore * bucketSize;
+    }
+}
@@ -0,0 +1,50 @@
+package com.example.mikael.astmos;
+
+/**
+ * Gas
+ * The gases measured by the sensor units, with the molar masses used to convert their levels
+ * from parts per billion to micrograms/cubic meter.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public enum Gas {
+    O3(47.997),
+    SO2(64.064),
+    NO2(46.0055),
+    CO(28.010);
+
+    private static final Gas[] ALL = values();
+
+    private final double molarMass;     // g/mol
+
+    Gas(double molarMass) {
+        this.molarMass = molarMass;
+    }
+
+    /**
+     * getMolarMass
+     *
+     * @return double The molar mass in grams/mole
+     */
+    public double getMolarMass() {
+        return molarMass;
+    }
+
+    /**
+     * forName
+     * Looks up a gas by the name sent by the sensor unit, e.g. "O3".
+     *
+     * @param name The name of the gas
+     * @return Gas The gas, or null if the name is not known
+     */
+    public static Gas forName(String name) {
+        for (Gas gas : ALL) {
+            if (gas.name().equals(name)) {
+                return gas;
+            }
+        }
+        return null;
+    }
+}
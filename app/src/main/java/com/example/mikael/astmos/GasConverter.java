@@ -0,0 +1,128 @@
+package com.example.mikael.astmos;
+
+/**
+ * GasConverter
+ * Converts the levels of one sensor head from parts per billion to micrograms/cubic meter at the
+ * measured temperature, applying the calibration of the head in the same pass. A gas occupies
+ * the molar volume R * T / P, so
+ *  ug/m3 = ppb * M * P / (R * T) / 1000
+ * with the molar mass M in g/mol, the pressure P in pascal and the temperature T in kelvin.
+ *
+ * Everything except the temperature is folded into three coefficients when the converter is
+ * created, so a conversion costs two multiplications, an addition and a division. Heads
+ * measuring a gas which is not known are only calibrated and stay in ppb.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public final class GasConverter {
+
+    public static final double GAS_CONSTANT = 8.314462618;     // J/(mol K)
+    public static final double STANDARD_PRESSURE = 101325;     // Pa
+    public static final double ZERO_CELSIUS = 273.15;          // K
+
+    private final Gas gas;
+    private final boolean convert;  // false for unknown gases
+
+    /* result = (scale * ppb + intercept) / T - slope, or the same without the division by T */
+    private final double scale;
+    private final double intercept;
+    private final double slope;
+
+    /**
+     * GasConverter
+     * Constructor creating a converter for one sensor head.
+     *
+     * @param gas         The gas measured by the head, null if it is not known
+     * @param pressure    The air pressure in pascal
+     * @param calibration The calibration of the head
+     */
+    public GasConverter(Gas gas, double pressure, CalibrationProfile calibration) {
+        this.gas = gas;
+        this.convert = gas != null;
+        double factor = convert ? gas.getMolarMass() * pressure / GAS_CONSTANT / 1000 : 1;
+        double gain = calibration.gain * factor;
+        scale = gain;
+        intercept = gain * (calibration.crossSensitivity * CalibrationProfile.REFERENCE_TEMPERATURE - calibration.offset);
+        slope = gain * calibration.crossSensitivity;
+    }
+
+    /**
+     * GasConverter
+     * Constructor creating a converter for an uncalibrated head at standard pressure.
+     *
+     * @param gas The gas measured by the head, null if it is not known
+     */
+    public GasConverter(Gas gas) {
+        this(gas, STANDARD_PRESSURE, CalibrationProfile.IDENTITY);
+    }
+
+    /**
+     * getGas
+     *
+     * @return Gas The gas being converted, null if it is not known
+     */
+    public Gas getGas() {
+        return gas;
+    }
+
+    /**
+     * convert
+     *
+     * @param ppb         The raw gas level in parts per billion
+     * @param temperature The temperature in kelvin
+     * @return double The calibrated level in micrograms/cubic meter, or in ppb for unknown gases
+     */
+    public double convert(double ppb, double temperature) {
+        if (convert) {
+            return (scale * ppb + intercept) / temperature - slope;
+        }
+        return scale * ppb + intercept - slope * temperature;
+    }
+
+    /**
+     * convert
+     * Converts a range of levels, the output may be the same array as the input.
+     *
+     * @param ppb          The raw gas levels in parts per billion
+     * @param temperature  The temperatures of the levels in kelvin
+     * @param out          The array the converted levels are written to
+     * @param offset       The index of the first level to convert
+     * @param length       The number of levels to convert
+     */
+    public void convert(double[] ppb, double[] temperature, double[] out, int offset, int length) {
+        int end = offset + length;
+        if (convert) {
+            for (int i = offset; i < end; i++) {
+                out[i] = (scale * ppb[i] + intercept) / temperature[i] - slope;
+            }
+        } else {
+            for (int i = offset; i < end; i++) {
+                out[i] = scale * ppb[i] + intercept - slope * temperature[i];
+            }
+        }
+    }
+
+    /**
+     * convert
+     * Converts all levels, the output may be the same array as the input.
+     *
+     * @param ppb         The raw gas levels in parts per billion
+     * @param temperature The temperatures of the levels in kelvin
+     * @param out         The array the converted levels are written to
+     */
+    public void convert(double[] ppb, double[] temperature, double[] out) {
+        convert(ppb, temperature, out, 0, ppb.length);
+    }
+
+    /**
+     * toKelvin
+     *
+     * @param celsius The temperature in degrees celsius, as reported by the sensor units
+     * @return double The temperature in kelvin
+     */
+    public static double toKelvin(double celsius) {
+        return celsius + ZERO_CELSIUS;
+    }
+}
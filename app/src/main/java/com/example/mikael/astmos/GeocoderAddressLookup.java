@@ -0,0 +1,41 @@
+package com.example.mikael.astmos;
+
+import android.content.Context;
+import android.location.Address;
+import android.location.Geocoder;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * GeocoderAddressLookup
+ * Looks up addresses with the geocoder of the platform, in the language of the device.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public class GeocoderAddressLookup implements AddressLookup {
+
+    private final Geocoder geocoder;
+
+    /**
+     * GeocoderAddressLookup
+     * Constructor creating a lookup using the geocoder of the platform.
+     *
+     * @param context The context of the application
+     */
+    public GeocoderAddressLookup(Context context) {
+        this.geocoder = new Geocoder(context, Locale.getDefault());
+    }
+
+    @Override
+    public String lookup(double latitude, double longitude) throws IOException {
+        List<Address> addresses = geocoder.getFromLocation(latitude, longitude, 1);
+        if (addresses == null || addresses.isEmpty()) {
+            return null;
+        }
+        return addresses.get(0).getAddressLine(0);
+    }
+}
@@ -0,0 +1,79 @@
+package com.example.mikael.astmos;
+
+/**
+ * Geohash
+ * Encodes coordinates as geohashes, which name the cells of a grid laid over the earth. Every
+ * character halves the cell five times, alternating between longitude and latitude, so nearby
+ * coordinates share a prefix and a hash of n characters names a cell of roughly
+ *  5000 km, 1250 km, 156 km, 39 km, 4.9 km, 1.2 km, 153 m, 38 m, 4.8 m
+ * for n = 1..9. The hashes are kept as longs holding 5 bits per character, so cells can be used
+ * as keys without creating strings.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public final class Geohash {
+
+    /* longest hash which fits in a long */
+    public static final int MAX_PRECISION = 12;
+
+    private static final char[] BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+
+    private Geohash() {
+    }
+
+    /**
+     * encode
+     *
+     * @param latitude  The latitude in degrees
+     * @param longitude The longitude in degrees
+     * @param precision The number of characters of the hash, 1 to MAX_PRECISION
+     * @return long The bits of the hash, the first character in the highest bits
+     */
+    public static long encode(double latitude, double longitude, int precision) {
+        if (precision < 1 || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException("precision must be 1 to " + MAX_PRECISION + ": " + precision);
+        }
+        double minLat = -90, maxLat = 90;
+        double minLon = -180, maxLon = 180;
+        long hash = 0;
+        for (int bit = 0, bits = precision * 5; bit < bits; bit++) {
+            hash <<= 1;
+            if ((bit & 1) == 0) {
+                double mid = (minLon + maxLon) / 2;
+                if (longitude >= mid) {
+                    hash |= 1;
+                    minLon = mid;
+                } else {
+                    maxLon = mid;
+                }
+            } else {
+                double mid = (minLat + maxLat) / 2;
+                if (latitude >= mid) {
+                    hash |= 1;
+                    minLat = mid;
+                } else {
+                    maxLat = mid;
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * toString
+     *
+     * @param hash      The bits of a hash, as returned by encode
+     * @param precision The number of characters of the hash
+     * @return String The hash in its usual base 32 form, e.g. "u4pruyd"
+     */
+    public static String toString(long hash, int precision) {
+        char[] chars = new char[precision];
+        for (int i = precision - 1; i >= 0; i--) {
+            chars[i] = BASE32[(int) (hash & 31)];
+            hash >>>= 5;
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,164 @@
+package com.example.mikael.astmos;
+
+/**
+ * IsoTimeFormatter
+ * Formats times in milliseconds since the epoch as ISO-8601 in utc, e.g.
+ * "2018-04-16T12:00:05.000Z", and intervals as "start/end". The date and hour of the last
+ * formatted time are kept, so consecutive times within the same hour only need the minutes,
+ * seconds and milliseconds computed. Nothing is allocated when the hour is the same and the
+ * digits are written straight into the output buffer. The formatter is shared and thread safe,
+ * the cached prefix is an immutable object which is replaced as a whole.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public final class IsoTimeFormatter {
+
+    private static final long MILLIS_PER_HOUR = 3600000L;
+    private static final long MILLIS_PER_DAY = 24 * MILLIS_PER_HOUR;
+
+    /* length of a formatted time between years 0 and 9999 */
+    public static final int LENGTH = 24;
+
+    /**
+     * HourPrefix
+     * The formatted date and hour of one hour, "yyyy-MM-ddTHH:".
+     */
+    private static final class HourPrefix {
+        final long hourStart;
+        final byte[] bytes;
+
+        HourPrefix(long hourStart, byte[] bytes) {
+            this.hourStart = hourStart;
+            this.bytes = bytes;
+        }
+    }
+
+    private static volatile HourPrefix cached = prefixOf(0);
+
+    private IsoTimeFormatter() {
+    }
+
+    /**
+     * write
+     * Writes a time to the buffer.
+     *
+     * @param buffer The buffer to write to
+     * @param time   The time in milliseconds since the epoch
+     */
+    public static void write(Utf8Buffer buffer, long time) {
+        long hourStart = floorDiv(time, MILLIS_PER_HOUR) * MILLIS_PER_HOUR;
+        HourPrefix prefix = cached;
+        if (prefix.hourStart != hourStart) {
+            prefix = prefixOf(hourStart);
+            cached = prefix;
+        }
+        buffer.writeBytes(prefix.bytes);
+
+        int millisOfHour = (int) (time - hourStart);
+        int minute = millisOfHour / 60000;
+        int second = millisOfHour / 1000 % 60;
+        int milli = millisOfHour % 1000;
+        buffer.writeByte('0' + minute / 10);
+        buffer.writeByte('0' + minute % 10);
+        buffer.writeByte(':');
+        buffer.writeByte('0' + second / 10);
+        buffer.writeByte('0' + second % 10);
+        buffer.writeByte('.');
+        buffer.writeByte('0' + milli / 100);
+        buffer.writeByte('0' + milli / 10 % 10);
+        buffer.writeByte('0' + milli % 10);
+        buffer.writeByte('Z');
+    }
+
+    /**
+     * writeInterval
+     * Writes an interval as "start/end" to the buffer.
+     *
+     * @param buffer The buffer to write to
+     * @param start  The start of the interval in milliseconds since the epoch
+     * @param end    The end of the interval in milliseconds since the epoch
+     */
+    public static void writeInterval(Utf8Buffer buffer, long start, long end) {
+        write(buffer, start);
+        buffer.writeByte('/');
+        write(buffer, end);
+    }
+
+    /**
+     * format
+     *
+     * @param time The time in milliseconds since the epoch
+     * @return String The formatted time
+     */
+    public static String format(long time) {
+        Utf8Buffer buffer = new Utf8Buffer(LENGTH);
+        write(buffer, time);
+        return new String(buffer.buffer(), 0, buffer.length());
+    }
+
+    /**
+     * formatInterval
+     *
+     * @param start The start of the interval in milliseconds since the epoch
+     * @param end   The end of the interval in milliseconds since the epoch
+     * @return String The formatted interval
+     */
+    public static String formatInterval(long start, long end) {
+        Utf8Buffer buffer = new Utf8Buffer(2 * LENGTH + 1);
+        writeInterval(buffer, start, end);
+        return new String(buffer.buffer(), 0, buffer.length());
+    }
+
+    /**
+     * prefixOf
+     * Formats the date and hour of the hour starting at the given time, using the conversion
+     * from days to civil dates of the proleptic gregorian calendar.
+     */
+    private static HourPrefix prefixOf(long hourStart) {
+        long days = floorDiv(hourStart, MILLIS_PER_DAY);
+        int hour = (int) ((hourStart - days * MILLIS_PER_DAY) / MILLIS_PER_HOUR);
+
+        long z = days + 719468;
+        long era = floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        StringBuilder text = new StringBuilder(16);
+        if (year < 0) {
+            text.append('-');
+            year = -year;
+        }
+        for (long pad = 1000; pad > 1 && year < pad; pad /= 10) {
+            text.append('0');
+        }
+        text.append(year).append('-');
+        appendTwoDigits(text, month);
+        text.append('-');
+        appendTwoDigits(text, day);
+        text.append('T');
+        appendTwoDigits(text, hour);
+        text.append(':');
+
+        byte[] bytes = new byte[text.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) text.charAt(i);
+        }
+        return new HourPrefix(hourStart, bytes);
+    }
+
+    private static void appendTwoDigits(StringBuilder text, int value) {
+        text.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y != 0 && (x < 0) != (y < 0)) ? q - 1 : q;
+    }
+}
@@ -4,9 +4,6 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
-
 /**
  * JSonMessage
  * This class can be used to construct the json formatted message which is used as payload to
@@ -27,7 +24,7 @@ import java.util.Date;
  *           "Datastream": {
  *               "@iot.id": serialNr
  *           },
- *          "phenomenonTime": timestamp,
+ *          "phenomenonTime": "start/end",
  *           "resultTime"   : timestamp,
  *           "result"       : {
  *               "Value": sensorValue
@@ -54,6 +51,40 @@ public class JSonMessage {
      * @param serialNr  The unique serial number of the sensor used which is used to identify who measured
      */
     public JSonMessage(double value, Coordinate coord, String time, String serialNr) {
+        this(value, coord, time, IsoTimeFormatter.format(System.currentTimeMillis()), serialNr);
+    }
+
+    /**
+     * JSonMessage
+     * Constructor for the class which creates a JSONObject with the defined structure from times
+     * in milliseconds since the epoch. The times are written as ISO-8601 in utc, the phenomenon
+     * time as the interval from the first to the last measurement.
+     *
+     * @param value           The average sensor value fo the last X measurements
+     * @param coord           The location of the measurements
+     * @param phenomenonStart The time of the first measurement
+     * @param phenomenonEnd   The time of the last measurement
+     * @param resultTime      The time the result was produced
+     * @param serialNr        The unique serial number of the sensor used which is used to identify who measured
+     */
+    public JSonMessage(double value, Coordinate coord, long phenomenonStart, long phenomenonEnd, long resultTime,
+                       String serialNr) {
+        this(value, coord, IsoTimeFormatter.formatInterval(phenomenonStart, phenomenonEnd),
+                IsoTimeFormatter.format(resultTime), serialNr);
+    }
+
+    /**
+     * JSonMessage
+     * Constructor for the class which creates a JSONObject with the defined structure and a given
+     * result time instead of the current time.
+     *
+     * @param value      The average sensor value fo the last X measurements
+     * @param coord      The location of the measurements
+     * @param time       The time of the measurements
+     * @param resultTime The time the result was produced
+     * @param serialNr   The unique serial number of the sensor used which is used to identify who measured
+     */
+    public JSonMessage(double value, Coordinate coord, String time, String resultTime, String serialNr) {
         JSONObject json = new JSONObject();
         try {
             json.put("@iot.id", serialNr);
@@ -74,7 +105,7 @@ public class JSonMessage {
                     .put("feature", feature)
                     .put("DataStream", ds)
                     .put("phenomenonTime", time)
-                    .put("resultTime", new SimpleDateFormat("yyyy-MM-dd_HH:mm:ss").format(new Date()))
+                    .put("resultTime", resultTime)
                     .put("result", res);
             json.put("FeatureOfInterest", foi);
         } catch (JSONException ex) {
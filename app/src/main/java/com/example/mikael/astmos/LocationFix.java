@@ -0,0 +1,48 @@
+package com.example.mikael.astmos;
+
+/**
+ * LocationFix
+ * One accepted location update of the device, as passed on the observation bus. The object is
+ * mutable and meant to be reused.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public class LocationFix {
+    long time;          // time of the fix in milliseconds since the epoch
+    double latitude;
+    double longitude;
+    float speed;        // meters per second, 0 if not known
+
+    /**
+     * set
+     * Overwrites all fields of the fix.
+     *
+     * @param time      The time of the fix in milliseconds since the epoch
+     * @param latitude  The latitude of the fix
+     * @param longitude The longitude of the fix
+     * @param speed     The speed in meters per second
+     */
+    public void set(long time, double latitude, double longitude, float speed) {
+        this.time = time;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.speed = speed;
+    }
+
+    /**
+     * copyFrom
+     * Overwrites all fields of the fix with the fields of another fix.
+     *
+     * @param other The fix to copy
+     */
+    public void copyFrom(LocationFix other) {
+        set(other.time, other.latitude, other.longitude, other.speed);
+    }
+
+    @Override
+    public String toString() {
+        return latitude + "," + longitude + " at " + speed + " m/s @" + time;
+    }
+}
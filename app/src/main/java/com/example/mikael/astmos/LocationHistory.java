@@ -0,0 +1,289 @@
+package com.example.mikael.astmos;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LocationHistory
+ * The recent location fixes of the device, so every sample can be placed where the device was
+ * when the sample was received instead of where it is when the window is published. Between two
+ * fixes the position is interpolated linearly, after the newest fix it stays at the newest fix
+ * for at most maxAge milliseconds. The provider is asked for fixes less often when the device
+ * moves slowly, so the max age follows the interval between the fixes, see setFixInterval.
+ *
+ * The fixes are kept in a ring of primitive arrays, written by one thread (the location
+ * callback) and read by any number of others (the pipelines) without locks. A fix is never
+ * changed once it is in the ring. The writer fills the slot of a fix and then publishes it by
+ * advancing the count, a reader checks after reading a slot that the count has not advanced so
+ * far that the slot could have been reused, and reads again if it has.
+ *
+ * Fixes are checked for plausibility as they arrive. A fix further from the previous one than
+ * the device could have moved, at the speeds it reported plus some slack, is rejected. After
+ * MAX_REJECTED rejections in a row the fix is accepted anyway, so a bad first fix does not
+ * block all the following ones.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public class LocationHistory {
+
+    /* default settings */
+    public static final int DEFAULT_CAPACITY = 256;             // about four minutes of fixes at 1 Hz
+    public static final long DEFAULT_MAX_AGE = 10000;           // milliseconds
+    static final int MAX_AGE_INTERVALS = 3;                     // a fix or two may come late or be rejected
+
+    /* plausibility check */
+    static final double SLACK_SECONDS = 10.0;                   // added to the time between fixes
+    static final double SPEED_MARGIN = 5.0;                     // m/s added to the reported speed
+    static final int MAX_REJECTED = 3;
+    private static final double METERS_PER_DEGREE = 111195.0;  // along a great circle
+
+    private final int capacity;
+    private final int mask;
+    private final long minMaxAge;
+    private volatile long maxAge;
+    private final AtomicLongArray times;
+    private final AtomicLongArray latitudes;                    // raw bits of the doubles
+    private final AtomicLongArray longitudes;
+    private volatile long count = 0;                            // fixes written, the newest is count - 1
+
+    /* state of the writer */
+    private long lastTime;
+    private double lastLatitude;
+    private double lastLongitude;
+    private float lastSpeed;
+    private int rejected = 0;
+    private long rejectedCount = 0;
+
+    /**
+     * LocationHistory
+     * Constructor creating a history of at least the given number of fixes, rounded up to the
+     * next power of two.
+     *
+     * @param capacity The number of fixes kept
+     * @param maxAge   The longest time in milliseconds the newest fix is used for later samples,
+     *                 when the fixes come at least this often
+     */
+    public LocationHistory(int capacity, long maxAge) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("capacity must be at least 2: " + capacity);
+        }
+        this.capacity = Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = this.capacity - 1;
+        this.minMaxAge = maxAge;
+        this.maxAge = maxAge;
+        times = new AtomicLongArray(this.capacity);
+        latitudes = new AtomicLongArray(this.capacity);
+        longitudes = new AtomicLongArray(this.capacity);
+    }
+
+    /**
+     * LocationHistory
+     * Constructor creating a history with the default settings.
+     */
+    public LocationHistory() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_AGE);
+    }
+
+    /**
+     * add
+     * Adds a fix if it is plausible. Must only be called from one thread. Fixes older than the
+     * newest fix are ignored.
+     *
+     * @param time      The time of the fix in milliseconds since the epoch
+     * @param latitude  The latitude in degrees
+     * @param longitude The longitude in degrees
+     * @param speed     The speed reported with the fix in meters/second, 0 if none was
+     * @return boolean True if the fix was added, false if it was rejected
+     */
+    public boolean add(long time, double latitude, double longitude, float speed) {
+        long n = count;
+        if (n > 0) {
+            if (time < lastTime) {
+                return false;
+            }
+            if (!isPlausible(time, latitude, longitude, speed) && ++rejected <= MAX_REJECTED) {
+                rejectedCount++;
+                return false;
+            }
+        }
+        rejected = 0;
+        int slot = (int) (n & mask);
+        times.set(slot, time);
+        latitudes.set(slot, Double.doubleToRawLongBits(latitude));
+        longitudes.set(slot, Double.doubleToRawLongBits(longitude));
+        count = n + 1;      // publishes the fix
+
+        lastTime = time;
+        lastLatitude = latitude;
+        lastLongitude = longitude;
+        lastSpeed = speed;
+        return true;
+    }
+
+    /**
+     * setFixInterval
+     * Tells how often fixes are asked for, so the newest fix is used for the samples until
+     * MAX_AGE_INTERVALS fixes have been missed, and never for less than the max age given to the
+     * constructor. Safe to call from any thread.
+     *
+     * @param fixInterval The time between two fixes in milliseconds
+     */
+    public void setFixInterval(long fixInterval) {
+        maxAge = Math.max(minMaxAge, fixInterval * MAX_AGE_INTERVALS);
+    }
+
+    /* whether the device could have moved from the newest fix to the given one */
+    private boolean isPlausible(long time, double latitude, double longitude, float speed) {
+        double seconds = (time - lastTime) / 1000.0;
+        double reach = ((speed + lastSpeed) / 2 + SPEED_MARGIN) * (seconds + SLACK_SECONDS);
+        return distance(lastLatitude, lastLongitude, latitude, longitude) <= reach;
+    }
+
+    /**
+     * distance
+     * The distance between two coordinates using the equirectangular approximation, which is
+     * accurate to well below a percent over the few kilometers between two fixes.
+     *
+     * @return double The distance in meters
+     */
+    static double distance(double lat1, double lon1, double lat2, double lon2) {
+        double dLon = lon2 - lon1;
+        if (dLon > 180) {
+            dLon -= 360;
+        } else if (dLon < -180) {
+            dLon += 360;
+        }
+        double x = dLon * Math.cos(Math.toRadians((lat1 + lat2) / 2));
+        double y = lat2 - lat1;
+        return Math.sqrt(x * x + y * y) * METERS_PER_DEGREE;
+    }
+
+    /**
+     * positionAt
+     * Finds the position of the device at a given time. Safe to call from any thread.
+     *
+     * @param time The time in milliseconds since the epoch
+     * @param out  The coordinate the position is written to
+     * @return boolean True if the position is known, false if the time is before the oldest kept
+     *                 fix or more than maxAge after the newest
+     */
+    public boolean positionAt(long time, Coordinate out) {
+        while (true) {
+            long end = count;
+            long begin = Math.max(0, end - capacity + 1);   // the slot of end - capacity may be being written
+            if (begin >= end) {
+                return false;
+            }
+
+            /* the last fix at or before the time */
+            long low = begin;
+            long high = end - 1;
+            if (time < times.get((int) (low & mask))) {
+                if (isOverwritten(low)) {
+                    continue;
+                }
+                return false;
+            }
+            while (low < high) {
+                long mid = (low + high + 1) >>> 1;
+                if (times.get((int) (mid & mask)) <= time) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+
+            int slot = (int) (low & mask);
+            long t0 = times.get(slot);
+            double lat0 = Double.longBitsToDouble(latitudes.get(slot));
+            double lon0 = Double.longBitsToDouble(longitudes.get(slot));
+            boolean newest = low == end - 1;
+            long t1 = 0;
+            double lat1 = 0;
+            double lon1 = 0;
+            if (!newest) {
+                slot = (int) ((low + 1) & mask);
+                t1 = times.get(slot);
+                lat1 = Double.longBitsToDouble(latitudes.get(slot));
+                lon1 = Double.longBitsToDouble(longitudes.get(slot));
+            }
+            if (isOverwritten(begin)) {
+                continue;   // the writer lapped us, the values may be of different fixes
+            }
+
+            if (newest || t1 == t0) {
+                if (time - t0 > maxAge) {
+                    return false;
+                }
+                out.latitude = lat0;
+                out.longitude = lon0;
+            } else {
+                double f = (double) (time - t0) / (t1 - t0);
+                out.latitude = lat0 + (lat1 - lat0) * f;
+                out.longitude = lon0 + (lon1 - lon0) * f;
+            }
+            return true;
+        }
+    }
+
+    /* whether the slot of the given fix may have been reused since it was read */
+    private boolean isOverwritten(long index) {
+        return index + capacity <= count;
+    }
+
+    /**
+     * centroid
+     * Places every sample of a window at its own time and averages the positions. Samples
+     * whose position is not known are left out. Safe to call from any thread.
+     *
+     * @param window The window of samples
+     * @param out    The coordinate the centroid is written to
+     * @return int The number of samples which were placed, 0 if the centroid is not known
+     */
+    public int centroid(WindowAggregator window, Coordinate out) {
+        Coordinate position = new Coordinate();
+        double latitude = 0;
+        double longitude = 0;
+        int placed = 0;
+        for (int i = 0; i < window.getCount(); i++) {
+            if (positionAt(window.getTime(i), position)) {
+                latitude += position.latitude;
+                longitude += position.longitude;
+                placed++;
+            }
+        }
+        if (placed > 0) {
+            out.latitude = latitude / placed;
+            out.longitude = longitude / placed;
+        }
+        return placed;
+    }
+
+    /**
+     * getCount
+     *
+     * @return long The number of fixes added so far
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * getMaxAge
+     *
+     * @return long The longest time in milliseconds the newest fix is used for later samples
+     */
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * getRejectedCount
+     *
+     * @return long The number of fixes rejected as implausible so far
+     */
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+}
@@ -0,0 +1,144 @@
+package com.example.mikael.astmos;
+
+/**
+ * LocationPolicy
+ * Decides how often the location provider is asked for fixes. Samples are placed between the
+ * fixes around them, so fixes are only needed often enough to place the samples at the wanted
+ * spacing along the track:
+ *  - standing still, one fix per window,
+ *  - moving, a fix every spacing meters at the current speed,
+ *  - never more than one fix per sample, and never less than one per window.
+ *
+ * No distance limit is ever registered, the provider would then send no fixes to a parked
+ * device, the location history would stop placing its samples and nothing would be published.
+ * A device which stops also keeps getting fixes this way and is seen to stand still.
+ *
+ * The speed reported with the fixes is smoothed, and the registration is only changed when the
+ * wanted interval differs by CHANGE_RATIO from the current one and the current one has been
+ * kept for MIN_HOLD milliseconds, since registering again restarts the provider. Starting to
+ * move or stopping changes the registration at once.
+ *
+ * The policy holds no clock and calls nothing, the caller passes the time of every fix and
+ * registers again when update returns true.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public class LocationPolicy {
+
+    /* default settings */
+    public static final double DEFAULT_SPACING = 25.0;      // meters between fixes when moving
+    public static final double STATIONARY_SPEED = 0.5;      // m/s, slower is standing still
+
+    static final double CHANGE_RATIO = 1.5;
+    static final long MIN_HOLD = 10000;                     // milliseconds
+    static final double SMOOTHING = 0.3;                    // weight of a new speed
+
+    private final int windowSize;
+    private final double spacing;
+    private long sampleInterval;
+
+    private double speed = 0;           // smoothed, m/s
+    private boolean registered = false;
+    private boolean stationary = false;
+    private long minTime;
+    private long changedAt;
+
+    /**
+     * LocationPolicy
+     * Constructor creating a policy for the given sample rate and window size. Until the first
+     * fix it asks for a fix per sample.
+     *
+     * @param sampleInterval The time between two samples of a sensor unit in milliseconds
+     * @param windowSize     The number of samples aggregated into one observation
+     * @param spacing        The wanted distance between two fixes when moving in meters
+     */
+    public LocationPolicy(long sampleInterval, int windowSize, double spacing) {
+        if (sampleInterval <= 0 || windowSize <= 0 || !(spacing > 0)) {
+            throw new IllegalArgumentException("sampleInterval, windowSize and spacing must be positive");
+        }
+        this.sampleInterval = sampleInterval;
+        this.windowSize = windowSize;
+        this.spacing = spacing;
+        this.minTime = sampleInterval;
+    }
+
+    /**
+     * setSampleInterval
+     * Changes the time between two samples, e.g. to the rate measured from the windows. Takes
+     * effect with the next change of the registration.
+     *
+     * @param sampleInterval The time between two samples of a sensor unit in milliseconds
+     */
+    public void setSampleInterval(long sampleInterval) {
+        if (sampleInterval > 0) {
+            this.sampleInterval = sampleInterval;
+        }
+    }
+
+    /**
+     * update
+     * Takes the speed of a new fix into account.
+     *
+     * @param now   The time of the fix in milliseconds
+     * @param speed The speed reported with the fix in meters/second, 0 if none was
+     * @return boolean True if the location updates should be registered again with the new
+     *                 getMinTime and getMinDistance
+     */
+    public boolean update(long now, float speed) {
+        this.speed = registered ? this.speed + SMOOTHING * (speed - this.speed) : speed;
+
+        boolean nowStationary = this.speed < STATIONARY_SPEED;
+        long floor = sampleInterval;
+        long ceiling = sampleInterval * windowSize;
+        long wantedTime;
+        if (nowStationary) {
+            wantedTime = ceiling;
+        } else {
+            wantedTime = Math.max(floor, Math.min(ceiling, Math.round(spacing / this.speed * 1000)));
+        }
+
+        boolean change;
+        if (!registered || nowStationary != stationary) {
+            change = true;
+        } else {
+            double ratio = (double) Math.max(wantedTime, minTime) / Math.min(wantedTime, minTime);
+            change = ratio >= CHANGE_RATIO && now - changedAt >= MIN_HOLD;
+        }
+        if (change) {
+            registered = true;
+            stationary = nowStationary;
+            minTime = wantedTime;
+            changedAt = now;
+        }
+        return change;
+    }
+
+    /**
+     * getMinTime
+     *
+     * @return long The shortest time between two fixes to register, in milliseconds
+     */
+    public long getMinTime() {
+        return minTime;
+    }
+
+    /**
+     * getMinDistance
+     *
+     * @return float The shortest distance between two fixes to register, in meters, always 0
+     */
+    public float getMinDistance() {
+        return 0;
+    }
+
+    /**
+     * isStationary
+     *
+     * @return boolean True if the device is considered to be standing still
+     */
+    public boolean isStationary() {
+        return stationary;
+    }
+}
@@ -4,16 +4,13 @@ import android.app.Activity;
 import android.app.AlertDialog;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
-import android.location.Address;
 import android.location.Criteria;
-import android.location.Geocoder;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
@@ -22,6 +19,7 @@ import android.os.Handler;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.View;
 import android.widget.Button;
 import android.widget.TextView;
@@ -31,25 +29,34 @@ import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.text.SimpleDateFormat;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
-import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * MainActivity
  * The "main" view of the application which displays what is seen when launching it.
  * Contains a button and a number of textviews which displays information about sensor
  * values and location. When the button is pressed a rfcomm-socket is established between
- * the device and a paired bluetooth device (raspberry pi) which starts to send sensor
- * data on a regular interval. When a buffer is filled with data, and average is
- * calculated and sent to a mqtt broker from the (this) device running the app.
+ * the device and every paired bluetooth device (raspberry pi) named like a sensor unit,
+ * which starts to send sensor data on a regular interval. When a buffer is filled with
+ * data, and average is calculated and sent to a mqtt broker from the (this) device running
+ * the app.
  *
  * @author      Mikael Mölder
  * @version     1.0
@@ -58,15 +65,18 @@ import java.util.UUID;
 public class MainActivity extends Activity implements LocationListener {
 
     /* object definitions */
-    BluetoothSocket mmSocket;
-    BluetoothDevice mmDevice = null;
     MqttHelper mqttHelper;
     LocationManager locationManager;
-    Thread btThread;
-    Coordinate currentLocation;
-    Location oldLocation;
-    Location oldTwo;
+    final LocationHistory locationHistory = new LocationHistory();  // written on the ui thread, read by the pipelines
+    final LocationPolicy locationPolicy = new LocationPolicy(1000, WindowAggregator.DEFAULT_WINDOW_SIZE,
+            LocationPolicy.DEFAULT_SPACING);   // how often fixes are asked for, used on the ui thread
+    volatile long sampleInterval = 0;   // time between samples measured from the windows, 0 until known
     Handler handler;
+    ReverseGeocoder reverseGeocoder;
+    volatile TimeSeriesStore history;   // every window with a known position, opened on the store thread,
+                                        // null until then or if it can not be opened
+    final AtomicBoolean historyClosed = new AtomicBoolean(false);  // a history opened late is closed at once
+    final ViewState viewState = new ViewState(ViewState.DEFAULT_MIN_INTERVAL);  // what the text views show
 
     /* textview and button definitions */
     TextView locationText;
@@ -81,94 +91,173 @@ public class MainActivity extends Activity implements LocationListener {
 
     /* list and variable definitions */
     Set<BluetoothDevice> pairedDevices = null;
-    ArrayList<Double> recentValues = new ArrayList<>();
-    ArrayList<String> timeStamps = new ArrayList<>();
-    final byte delimiter = 33;
-    int readBufferPosition = 0;
+    List<BluetoothDevice> sensorDevices = new ArrayList<>();    // paired sensor units
+    Map<String, BluetoothSensorSource> sources = new LinkedHashMap<>();  // connected units by name
+    SensorConnectionManager connectionManager;
+    ObservationEncoder encoder = new ObservationEncoder();  // shared by the pipelines, guarded by itself
+    CborObservationEncoder cborEncoder = new CborObservationEncoder();  // shared by the pipelines, guarded by encoder
+    final WireFormat wireFormat = WireFormat.JSON;              // format(s) observations are published in
+    final String sensorName = "AirPollutionPi";                 // sensor units are named this, optionally with a suffix
+    final int maxSensors = SensorConnectionManager.DEFAULT_MAX_CONNECTIONS;
+    final int queueCapacity = 256;
+    final SampleQueue.OverflowPolicy overflowPolicy = SampleQueue.OverflowPolicy.DROP_OLDEST;
+    final String calibrationFile = "calibration.csv";          // calibration profiles in the files dir
+
+    /* batching of published observations, off by default since it changes the payload to an array */
+    final boolean batchPublishing = false;
+    final int batchSize = 10;           // observations per message
+    final long batchMaxAge = 60000;     // longest time an observation is held back in milliseconds
+
+    /* aggregation by geohash cell and minute instead of by a number of samples, off by default since
+       observations then come per cell, which receivers may not expect */
+    final boolean aggregateByCell = false;
+    final int cellPrecision = CellAggregator.DEFAULT_PRECISION;                 // cells of about 150 x 150 m
+    final long cellBucketSize = CellAggregator.DEFAULT_BUCKET_SIZE;             // milliseconds
+    final long cellLateness = CellAggregator.DEFAULT_ALLOWED_LATENESS;          // milliseconds
+
+    /* messages wait in the outbox for the radio and go out in bursts, along with other traffic
+       when there is some, so the cellular radio is not kept awake by every window */
+    final boolean scheduleUploads = true;
+    final long uploadLatencyBudget = UploadScheduler.DEFAULT_LATENCY_BUDGET;      // milliseconds
+    final long piggybackWindow = UploadScheduler.DEFAULT_PIGGYBACK_WINDOW;        // milliseconds
+    final int maxHeldMessages = UploadScheduler.DEFAULT_MAX_PENDING;
+
+    /* compression of published observations, off by default since receivers then have to
+       interpolate between the observations to restore the ones left out */
+    final boolean compressObservations = false;
+    final double deadBand = ObservationCompressor.DEFAULT_DEAD_BAND;            // µg/m3
+    final double deadBandDistance = ObservationCompressor.DEFAULT_DISTANCE;     // meters
+    final long heartbeatInterval = ObservationCompressor.DEFAULT_MAX_INTERVAL;  // milliseconds
+
+    /* snapshots of the metrics of every sensor unit and of the mqtt client are published this often */
+    final long metricsInterval = 60000;  // milliseconds
+
+    /* the windows, samples and fixes are passed on through the bus, the publisher and the history
+       each have a thread and a buffer of their own so a stalled broker does not hold back the history */
+    final ObservationBus bus = new ObservationBus();
+    final int subscriberBuffer = 1024;  // windows buffered per subscriber, the oldest are dropped
+    final LocationFix fix = new LocationFix();  // the fix published to the bus, only used on the ui thread
+    ExecutorService publisherExecutor;
+    ExecutorService storeExecutor;      // opens the history, then stores the windows
+    windowPublisher publisher;
 
     /* tag used for logging */
     private final String TAG = "MainActivity";
 
-    /**
-     * openConnection
-     * When called upon, create a rfcomm-socket between this deice and a paired bluetooth
-     * device with the matching uuid (same on both devices). Only call if a paired device
-     * exists, otherwise will result in an exception.
-     */
-    public void openConnection() {
-        UUID uuid = UUID.fromString("94f39d29-7d6d-437d-973b-fba39e49d4ee"); //Standard SerialPortService ID
-        try {
-            mmSocket = mmDevice.createRfcommSocketToServiceRecord(uuid);
-            if (!mmSocket.isConnected()){
-                mmSocket.connect();
+    /* publishes the metrics snapshots and posts itself again, runs on the ui thread */
+    private final Runnable metricsPublisher = new Runnable() {
+        private final StringBuilder json = new StringBuilder();
+
+        @Override
+        public void run() {
+            long now = System.currentTimeMillis();
+            for (SensorConnectionManager.Connection connection : connectionManager.getConnections()) {
+                publishMetrics(connection.getMetrics(), "/metrics/" + connection.getName(), now);
             }
+            publishMetrics(mqttHelper.getMetrics(), "/metrics/" + mqttHelper.clientId, now);
+            handler.postDelayed(this, metricsInterval);
+        }
 
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+        private void publishMetrics(Metrics metrics, String topic, long now) {
+            json.setLength(0);
+            metrics.writeSnapshot(json, now);
+            try {
+                byte[] payload = json.toString().getBytes("UTF-8");
+                mqttHelper.publishUnbatched(payload, 0, payload.length, topic);
+            } catch (UnsupportedEncodingException e) {
+                e.printStackTrace();
+            }
         }
-    }
+    };
 
-    public void sendCommand(String command) {
-        try {
-            btThread.interrupt();                       // terminate the bluetooth thread
-            recentValues.clear();                       // flush the buffer
-
-            OutputStream outputStream = mmSocket.getOutputStream();
-            outputStream.write(command.getBytes());
-            Log.d(TAG, "sendCommand: send shutdown command to rpi");
-            stopValueBtn.setVisibility(View.GONE);          // hide the stop button
-            startValueBtn.setVisibility(View.VISIBLE);      // make start button visible
-        } catch (IOException e) {
-            Log.d(TAG, "sendCommand: failed to send command to rpi");
-            e.printStackTrace();
+    /* asks for a render on a display frame, once the minimum interval since the last render has
+       passed, runs on the ui thread when the view state says one is needed */
+    private final Runnable scheduleRender = new Runnable() {
+        public void run() {
+            long delay = viewState.getDelay(TimeUnit.NANOSECONDS.toMillis(System.nanoTime()));
+            Choreographer.getInstance().postFrameCallbackDelayed(renderFrame, delay);
         }
-    }
+    };
+
+    /* renders the changed views, the frame time is of the same clock as System.nanoTime */
+    private final Choreographer.FrameCallback renderFrame = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            viewState.render(viewRenderer, TimeUnit.NANOSECONDS.toMillis(frameTimeNanos));
+        }
+    };
+
+    /* shows the texts of the view state, the text views keep the arrays instead of copying them */
+    private final ViewState.Renderer viewRenderer = new ViewState.Renderer() {
+        @Override
+        public void show(int view, char[] text, int length) {
+            switch (view) {
+                case ViewState.SENSOR_TYPE:
+                    sensorType.setText(text, 0, length);
+                    break;
+                case ViewState.SENSOR_VALUE:
+                    sensorValue.setText(text, 0, length);
+                    break;
+                case ViewState.LOCATION:
+                    locationText.setText(text, 0, length);
+                    break;
+                case ViewState.DEBUG:
+                    debug.setText(text, 0, length);
+                    break;
+                case ViewState.LATEST_MESSAGE:
+                    latestMsg.setText(text, 0, length);
+                    break;
+            }
+        }
+    };
 
     /**
-     * parseResult
-     * The data transmitted from the connected bluetooth devices is in the form of a comma
-     * separated string. This method splits the fields and returns a list with individual
-     * parameters as elements.
-     *
-     * @param res The resulting data string communicated from the connected device
-     * @return String[] The list with the individual parameters separated
+     * connectSensors
+     * Opens a connection to every paired sensor unit, each on its own rfcomm-socket. Only
+     * units which are not already connected are connected.
      */
-    public String[] parseResult(String res) {
-        return res.split(",");
+    public void connectSensors() {
+        for (BluetoothDevice device : sensorDevices) {
+            String name = device.getName();
+            if (sources.containsKey(name)) {
+                continue;
+            }
+            BluetoothSensorSource source = new BluetoothSensorSource(device);
+            pipelineListener listener = new pipelineListener();
+            try {
+                listener.connection = connectionManager.connect(source, listener, aggregateByCell ? listener : null);
+                listener.unplacedSamples = listener.connection.getMetrics().counter("unplacedSamples");
+                listener.unplacedWindows = listener.connection.getMetrics().counter("unplacedWindows");
+                sources.put(name, source);
+            } catch (IllegalStateException e) {
+                Log.d(TAG, "connectSensors: " + name + " not connected, " + e.getMessage());
+            }
+        }
     }
 
     /**
-     * ppbToMicroGram
-     * Convert the current gas level from parts per billion to micrograms/cubic meters
-     *
-     * @param   gas     The current gas being measured by the connected device
-     * @param   ppb     The ppb level of the gas being measured (sensor data)
-     * @param   temp    Current temperature being measured by the connected sensor
-     * @return  double  The gas level in micrograms/cubic meter
+     * disconnectSensors
+     * Closes the connections to all sensor units and flushes their buffers.
      */
-    public double ppbToMicroGram(String gas, int ppb, int temp) {
-
-        double M;
-
-        switch (gas) {
-            case "O3":
-                M = 2.00;
-                break;
-            case "SO2":
-                M = 2.62;
-                break;
-            case "NO2":
-                M = 1.88;
-                break;
-            case "CO":
-                M = 1.145;
-                break;
-            default:
-                M = 1.00;
-                break;
-        }
-        return ppb/M;
+    public void disconnectSensors() {
+        connectionManager.resetAll();               // flush the buffers
+        connectionManager.disconnectAll();          // close the rfcomm-sockets
+        sources.clear();
+    }
+
+    public void sendCommand(String command) {
+        for (BluetoothSensorSource source : sources.values()) {
+            try {
+                source.sendCommand(command);
+                Log.d(TAG, "sendCommand: send " + command + " command to " + source.getName());
+            } catch (IOException e) {
+                Log.d(TAG, "sendCommand: failed to send command to " + source.getName());
+                e.printStackTrace();
+            }
+        }
+        disconnectSensors();
+        stopValueBtn.setVisibility(View.GONE);          // hide the stop button
+        startValueBtn.setVisibility(View.VISIBLE);      // make start button visible
     }
 
     /**
@@ -179,6 +268,12 @@ public class MainActivity extends Activity implements LocationListener {
      */
     private void initializeMqtt() {
         mqttHelper = new MqttHelper(this);
+        if (batchPublishing) {
+            mqttHelper.enableBatching(batchSize, batchMaxAge);
+        }
+        if (scheduleUploads) {
+            mqttHelper.enableUploadScheduling(uploadLatencyBudget, piggybackWindow, maxHeldMessages);
+        }
         mqttHelper.setCallback(new MqttCallbackExtended() {
             @Override
             public void connectComplete(boolean reconnect, String serverURI) {
@@ -202,35 +297,72 @@ public class MainActivity extends Activity implements LocationListener {
         });
     }
 
+    /**
+     * loadCalibrations
+     * Reads the calibration profiles of the sensor heads, once when the activity is created.
+     * Heads are left uncalibrated if the file does not exist or can not be read.
+     *
+     * @return Map The calibration profiles by serial number
+     */
+    private Map<String, CalibrationProfile> loadCalibrations() {
+        File file = new File(getFilesDir(), calibrationFile);
+        if (!file.exists()) {
+            return Collections.emptyMap();
+        }
+        Reader reader = null;
+        try {
+            reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+            Map<String, CalibrationProfile> calibrations = CalibrationProfile.load(reader);
+            Log.d(TAG, "loaded " + calibrations.size() + " calibration profiles");
+            return calibrations;
+        } catch (IOException e) {
+            Log.d(TAG, "could not load calibration profiles, " + e.toString());
+            return Collections.emptyMap();
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Log.d(TAG, "could not close calibration profiles, " + e.toString());
+                }
+            }
+        }
+    }
+
     /**
      * sendData
-     * When the buffer of values received from the connected sensor device is full, calculate
-     * an average of the values, construct a json message and publish it to a given topic.
+     * When the window of values received from the connected sensor device is complete, or the
+     * compressor lets one through, construct a json message and publish it to a given topic.
+     * Depending on the wire format the observation is also, or only, published in binary form
+     * to the cbor subtopic. Called on the publisher thread, the encoders are guarded by a lock
+     * all the same, which is cheap at the rate windows are published.
      *
-     * @param values The buffer containing values from the connected sensor
-     * @param coord The current position of the device running this application
-     * @param time The time of the measurements
+     * @param average The average of the values in the window
+     * @param coord The position where the values were measured
+     * @param phenomenonStart The time of the first value in milliseconds since the epoch
+     * @param phenomenonEnd The time of the last value in milliseconds since the epoch
      * @param serialNr The serial number of the sensor used (used for unique sensor data message)
      */
-    private void sendData(ArrayList<Double> values, Coordinate coord, ArrayList<String> times, String serialNr) {
+    private void sendData(double average, Coordinate coord, long phenomenonStart, long phenomenonEnd, String serialNr) {
         // create JSon formatted message with all the data
-        double average = 0.0;
-        if (!values.isEmpty()) {
-            for (double value : values) {
-                average += value;
-            }
-            average = average/values.size();
-            String topic = "/observations/" + serialNr;
+        String topic = "/observations/" + serialNr;
 
-            String medianTime = times.get(times.size()/2);
-
-            mqttHelper.publish(new JSonMessage(average, coord, medianTime, serialNr).msg, topic);
-
-            latestMsg.setText("Latest message sent to topic: " + topic + ", with content;\nValue: " + average + "\nLat:" + coord.latitude
-             + "\nLon: " + coord.longitude);
+        long resultTime = System.currentTimeMillis();
 
+        synchronized (encoder) {
+            if (wireFormat.json) {
+                int length = encoder.encode(average, coord, phenomenonStart, phenomenonEnd, resultTime, serialNr);
+                mqttHelper.publish(encoder.getBuffer(), 0, length, topic);
+            }
+            if (wireFormat.cbor) {
+                int length = cborEncoder.encode(average, coord, phenomenonStart, phenomenonEnd, resultTime, serialNr);
+                mqttHelper.publishUnbatched(cborEncoder.getBuffer(), 0, length, topic + WireFormat.CBOR_SUBTOPIC);
+            }
         }
 
+        if (viewState.setLatestMessage(serialNr, average, coord.latitude, coord.longitude)) {
+            handler.post(scheduleRender);
+        }
     }
 
     /**
@@ -280,7 +412,33 @@ public class MainActivity extends Activity implements LocationListener {
         latestMsg       = findViewById(R.id.latestSent);
         debug           = findViewById(R.id.debug);
 
-        currentLocation = new Coordinate();
+        /* addresses are looked up off the ui thread and cached per cell of about 150 x 150 m, a lookup
+           has just woken the radio so the messages held for it go along */
+        final AddressLookup geocoder = new GeocoderAddressLookup(this);
+        reverseGeocoder = new ReverseGeocoder(new AddressLookup() {
+            @Override
+            public String lookup(double latitude, double longitude) throws IOException {
+                String found = geocoder.lookup(latitude, longitude);
+                MqttHelper helper = mqttHelper;
+                if (helper != null) {
+                    helper.onNetworkActivity();
+                }
+                return found;
+            }
+        }, ReverseGeocoder.DEFAULT_PRECISION, ReverseGeocoder.DEFAULT_CACHE_SIZE, new addressListener());
+
+        /* the history is kept on the device, so it can be shown or uploaded again later, it is
+           opened on the store thread since recovering what the last run left can take a while */
+        storeExecutor = newSubscriberExecutor("WindowStore");
+        storeExecutor.execute(new openHistory(new File(getFilesDir(), "history")));
+
+        /* every sensor unit gets a reader and a pipeline on the threads of the connection manager */
+        connectionManager = new SensorConnectionManager(maxSensors, queueCapacity, overflowPolicy,
+                WindowAggregator.DEFAULT_WINDOW_SIZE, loadCalibrations(), new connectionListener());
+        connectionManager.enableReconnect(Backoff.DEFAULT_INITIAL_DELAY, Backoff.DEFAULT_MAX_DELAY);  // e.g. while a unit reboots
+        if (aggregateByCell) {
+            connectionManager.enableCellAggregation(locationHistory, cellPrecision, cellBucketSize, cellLateness);
+        }
 
         /* obtain the device's bluetooth adapter */
         final BluetoothAdapter mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
@@ -289,8 +447,19 @@ public class MainActivity extends Activity implements LocationListener {
 
         initializeMqtt();               // initialize the mqtt connection and connect to a broker
 
+        /* the windows are published and stored by subscribers of the bus, each on a thread of its own */
+        publisherExecutor = newSubscriberExecutor("WindowPublisher");
+        publisher = new windowPublisher();
+        bus.subscribe(ObservationBus.WINDOWS, subscriberBuffer, ObservationBus.Policy.DROP_OLDEST, publisherExecutor,
+                publisher);
+        bus.subscribe(ObservationBus.WINDOWS, subscriberBuffer, ObservationBus.Policy.DROP_OLDEST, storeExecutor,
+                new windowStore());    // delivered after the history has been opened
+        connectionManager.publishSamples(bus);
+
         getLocation();                  // register location updates when the device moves
 
+        handler.postDelayed(metricsPublisher, metricsInterval);
+
         /* register onClick listener to the start receiving values button */
         startValueBtn.setOnClickListener(new View.OnClickListener() {
             public void onClick(View v) {
@@ -298,8 +467,7 @@ public class MainActivity extends Activity implements LocationListener {
                 // Start receiving values from sensor
                 startValueBtn.setVisibility(View.GONE);         // hide the start button
                 stopValueBtn.setVisibility(View.VISIBLE);       // make stop button visible
-                btThread = (new Thread(new bluetoothThread())); // create bluetooth thread
-                btThread.start();                               // start it
+                connectSensors();                               // start reading from every sensor unit
 
             }
         });
@@ -311,13 +479,7 @@ public class MainActivity extends Activity implements LocationListener {
                 Log.d(TAG, "onClick: stop receiving values clicked");
                 stopValueBtn.setVisibility(View.GONE);          // hide the stop button
                 startValueBtn.setVisibility(View.VISIBLE);      // make start button visible
-                try {
-                    btThread.interrupt();                       // terminate the bluetooth thread
-                    mmSocket.close();                           // close the rfcomm-socket
-                    recentValues.clear();                       // flush the buffer
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                disconnectSensors();                            // close the sockets and flush the buffers
             }
         });
 
@@ -360,23 +522,26 @@ public class MainActivity extends Activity implements LocationListener {
                     .show();
         }
 
-        /* if paired devices are available, find the device matching the one we are looking for */
+        /* if paired devices are available, find the sensor units among them */
         if (pairedDevices.size() > 0)
         {
+            StringBuilder names = new StringBuilder();
             for (BluetoothDevice device : pairedDevices)
             {
-                /* the device we are after will have the following name */
-                if (device.getName().equals("AirPollutionPi"))
+                /* the devices we are after will have names starting with the following */
+                if (device.getName() != null && device.getName().startsWith(sensorName)
+                        && sensorDevices.size() < maxSensors)
                 {
-                    Log.d(TAG, "AirPollutionPi found paired to device");
-                    mmDevice = device;  // This is the device we will use to connect to via rfcomm-socket
-                    connDevice.setText("Connected device: " + device.getName());
-                    break;  // done
-                }
-                else {
-                    connDevice.setText("No connected device found");
+                    Log.d(TAG, device.getName() + " found paired to device");
+                    sensorDevices.add(device);  // connected to via rfcomm-socket when started
+                    names.append(names.length() == 0 ? "" : ", ").append(device.getName());
                 }
             }
+            if (sensorDevices.isEmpty()) {
+                connDevice.setText("No connected device found");
+            } else {
+                connDevice.setText("Connected device: " + names);
+            }
         }
 
         /*
@@ -388,6 +553,67 @@ public class MainActivity extends Activity implements LocationListener {
         */
     }
 
+    /**
+     * onDestroy
+     * Called when the activity is finished, stops publishing metrics, closes the sensor
+     * connections, lets the subscribers of the bus finish what they were handed, sends what is
+     * left in the publish batches and closes the history, so a relaunched activity can open it.
+     */
+    @Override
+    protected void onDestroy() {
+        handler.removeCallbacks(metricsPublisher);
+        handler.removeCallbacks(scheduleRender);
+        Choreographer.getInstance().removeFrameCallback(renderFrame);
+        connectionManager.shutdown();
+        reverseGeocoder.shutdown();
+        awaitSubscriber(publisherExecutor);
+        awaitSubscriber(storeExecutor);
+        mqttHelper.disableBatching();
+        mqttHelper.disableUploadScheduling();   // sends what is held for the radio
+
+        /* a store thread left behind can no longer append once the history is closed */
+        historyClosed.set(true);
+        TimeSeriesStore store = history;
+        if (store != null) {
+            store.close();
+        }
+        super.onDestroy();
+    }
+
+    /**
+     * newSubscriberExecutor
+     * Creates the thread a subscriber of the bus is called on.
+     *
+     * @param name The name of the thread
+     * @return ExecutorService The executor running on the thread
+     */
+    private static ExecutorService newSubscriberExecutor(final String name) {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, name);
+            }
+        });
+    }
+
+    /**
+     * awaitSubscriber
+     * Shuts the thread of a subscriber of the bus down, after it has delivered what it was
+     * handed, waiting a short while for it.
+     *
+     * @param executor The executor of the subscriber
+     */
+    private void awaitSubscriber(ExecutorService executor) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(500, TimeUnit.MILLISECONDS)) {
+                Log.d(TAG, "awaitSubscriber: subscriber still busy, left behind");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     //The BroadcastReceiver that listens for bluetooth broadcasts
     private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
         @Override
@@ -414,12 +640,14 @@ public class MainActivity extends Activity implements LocationListener {
     /**
      * getLocation
      * When called upon, this method will prompt the location service of the device to document its
-     * current position.
+     * current position, as often as the location policy asks for. Called again when the policy
+     * changes, which replaces the previous registration.
      */
     void getLocation() {
         try {
             locationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
-            locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 0, 1, this);
+            locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, locationPolicy.getMinTime(),
+                    locationPolicy.getMinDistance(), this);
             //locationManager.requestLocationUpdates(LocationManager.NETWORK_PROVIDER, 0, 0, this);
         }
         catch(SecurityException e) {
@@ -428,85 +656,212 @@ public class MainActivity extends Activity implements LocationListener {
     }
 
     /**
-     * bluetoothThread
-     * The communication between the device running this application and the bluetooth device is
-     * put in a separate thread in order to be non-blocking for the other services and methods used
-     * throughout the application.
+     * connectionListener
+     * Told when the connection to a sensor unit changes state or ends, on the reader thread of
+     * the connection.
      */
-    private class bluetoothThread implements Runnable {
-        public void run() {
-            openConnection();   // open rcomm socket to bt device
+    private class connectionListener implements SensorConnectionManager.ConnectionListener {
+        /* shows the units and which of them are reconnecting, on the ui thread */
+        private final Runnable showConnections = new Runnable() {
+            public void run() {
+                StringBuilder names = new StringBuilder();
+                for (SensorConnectionManager.Connection connection : connectionManager.getConnections()) {
+                    names.append(names.length() == 0 ? "" : ", ").append(connection.getName());
+                    if (connection.getState() != SensorConnectionManager.State.STREAMING) {
+                        names.append(" (reconnecting)");
+                    }
+                }
+                connDevice.setText("Connected device: " + names);
+            }
+        };
 
-            /* run as long the thread lives */
-            while (!Thread.currentThread().isInterrupted()) {
-                int bytesAvailable;
+        @Override
+        public void onStateChanged(SensorConnectionManager.Connection connection, SensorConnectionManager.State state) {
+            Log.d(TAG, "connectionListener: " + connection.getName() + " " + state);
+            if (state == SensorConnectionManager.State.STREAMING || state == SensorConnectionManager.State.BACKOFF) {
+                handler.post(showConnections);
+            }
+        }
 
-                try {
-                    InputStream mmInputStream;                      // inputstream used to read data
-                    mmInputStream = mmSocket.getInputStream();      // receive the incoming data
-                    bytesAvailable = mmInputStream.available();     // check how much is available to read
-
-                    /* if there is something to read */
-                    if (bytesAvailable > 0) {
-                        byte[] packetBytes = new byte[bytesAvailable];       // buffer for the incoming data
-                        Log.d(TAG, "bluetoothThread: received value");
-                        byte[] readBuffer = new byte[1024];                  // buffer for the final result
-                        mmInputStream.read(packetBytes);                     // read the incoming data to the buffer
-
-                        /* read one byte at a time in order to check for delimiter '!' */
-                        for (int i=0;i<bytesAvailable;i++) {
-                            byte b = packetBytes[i];        // current byte
-                            /* check for delimiter */
-                            if (b == delimiter) {
-                                byte[] encodedBytes = new byte[readBufferPosition];     // as many positions as we just read until the delimiter
-                                System.arraycopy(readBuffer, 0, encodedBytes, 0, encodedBytes.length);
-                                final String data = new String(encodedBytes, "US-ASCII");   // decode the bytes to be readable
-                                readBufferPosition = 0;
-                                final String [] res = parseResult(data);    // parse the result into individual fields
-                                final double level = Math.round(ppbToMicroGram(res[0], Integer.parseInt(res[1]), Integer.parseInt(res[2]))*100.0)/100.0;
-
-                                /* use handler here to be able to change things outside the thread such as textviews etc */
-                                handler.post(new Runnable() {
-                                    public void run() {
-                                        sensorType.setText("Connected sensor: " + res[0]);
-
-                                        sensorValue.setText("Sensor value: " + level + " µg/m3");
-                                        //sensorValue.setText("Sensor value: " + res[1] + " ppb");
-
-                                        /*if (recentValues.size() == 5) {
-                                            // at half time check the current location
-                                            getLocation();
-                                        }*/
-
-                                        if (recentValues.size() == 10) {
-                                            // only send of we have a location and if the new is not the same as previous
-                                            if (currentLocation.latitude != 0.0 && currentLocation.longitude != 0.0) {
-                                                //if (currentLocation.latitude != oldTwo.getLatitude() && currentLocation.longitude != oldTwo.getLongitude()) {
-                                                    sendData(recentValues, currentLocation, timeStamps, res[4]);
-                                                //}
-                                            }
-                                            recentValues.clear();
-                                            timeStamps.clear();
-                                        }
-                                        else {
-                                            recentValues.add(level);
-                                            timeStamps.add(new SimpleDateFormat("yyyy-MM-dd_HH:mm:ss").format(new Date()));
-                                        }
-                                        //recentValues.add(Double.parseDouble(res[1]));
-                                    }
-                                });
-                                break;
-                            }
-                            else {
-                                readBuffer[readBufferPosition++] = b;
-                            }
-                        }
-                    }
-                } catch (IOException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
+        @Override
+        public void onDisconnected(final SensorConnectionManager.Connection connection, IOException cause) {
+            Log.d(TAG, "connectionListener: connection to " + connection.getName() + " closed");
+            if (cause != null) {
+                cause.printStackTrace();
+            }
+            handler.post(new Runnable() {
+                public void run() {
+                    sources.remove(connection.getName());    // can be connected again
                 }
+            });
+        }
+    }
 
+    /**
+     * pipelineListener
+     * Receives the results of the pipeline of one sensor unit. Windows with a known position, or
+     * the cells when aggregating by cell, are handed to the bus on the pipeline thread, the ui is
+     * only asked to show the latest value when it has shown the previous one. Windows and samples
+     * which could not be placed are counted in the metrics of the connection.
+     */
+    private class pipelineListener implements SensorPipeline.Listener, CellAggregator.Sink {
+        private final SensorPipeline.Snapshot snapshot = new SensorPipeline.Snapshot();
+        SensorConnectionManager.Connection connection;  // set on the ui thread before showLatest runs
+        volatile Metrics.Counter unplacedWindows;       // set with the connection, null until then
+        volatile Metrics.Counter unplacedSamples;
+        private final Coordinate position = new Coordinate();   // where the samples of a window were taken
+        private final Observation observation = new Observation();  // the window published to the bus
+
+        /* hands the latest value to the view state, at most one of these is waiting in the handler queue */
+        private final Runnable showLatest = new Runnable() {
+            public void run() {
+                connection.getPipeline().readLatest(snapshot);
+                if (viewState.setSensor(snapshot.gas, snapshot.level)) {
+                    scheduleRender.run();
+                }
+            }
+        };
+
+        @Override
+        public void onLatestAvailable() {
+            /* use handler here to be able to change things outside the thread such as textviews etc */
+            handler.post(showLatest);
+        }
+
+        @Override
+        public void onWindow(String serialNr, String gas, WindowAggregator window) {
+            // only pass on if we know where the samples were taken
+            if (!aggregateByCell) {
+                int placed = locationHistory.centroid(window, position);
+                if (placed > 0) {
+                    observation.serialNr = serialNr;
+                    observation.value = window.getMean();
+                    observation.latitude = position.latitude;
+                    observation.longitude = position.longitude;
+                    observation.phenomenonStart = window.getFirstTime();
+                    observation.phenomenonEnd = window.getLastTime();
+                    bus.publish(ObservationBus.WINDOWS, observation);
+                }
+                countUnplaced(placed == 0 ? 1 : 0, window.getCount() - placed);
+            }
+            if (window.getCount() > 1) {
+                sampleInterval = (window.getLastTime() - window.getFirstTime()) / (window.getCount() - 1);
+            }
+        }
+
+        private void countUnplaced(int windows, int samples) {
+            if (unplacedWindows != null) {
+                unplacedWindows.add(windows);
+                unplacedSamples.add(samples);
+            }
+        }
+
+        @Override
+        public void emit(CellAggregator.Cell cell) {
+            observation.serialNr = cell.serialNr;
+            observation.value = cell.mean;
+            observation.latitude = cell.latitude;
+            observation.longitude = cell.longitude;
+            observation.phenomenonStart = cell.firstTime;
+            observation.phenomenonEnd = cell.lastTime;
+            bus.publish(ObservationBus.WINDOWS, observation);
+        }
+
+        @Override
+        public void onStopped() {
+            /* after the windows of the unit already handed to the publisher, its thread runs tasks in order */
+            try {
+                publisherExecutor.execute(publisher.flush);
+            } catch (RejectedExecutionException e) {
+                Log.d(TAG, "pipelineListener: publisher already stopped");
+            }
+        }
+    }
+
+    /**
+     * windowPublisher
+     * Publishes the windows handed to it by the bus, through the compressor if compression is
+     * on, on the publisher thread.
+     */
+    private class windowPublisher implements ObservationBus.Subscriber<Observation>, ObservationCompressor.Sink {
+        private final Coordinate position = new Coordinate();
+        private final ObservationCompressor compressor = compressObservations
+                ? new ObservationCompressor(deadBand, deadBandDistance, heartbeatInterval) : null;
+
+        /* publishes the held windows when a stream ends, the stream will not close their doors */
+        final Runnable flush = new Runnable() {
+            public void run() {
+                if (compressor != null) {
+                    compressor.flush(windowPublisher.this);
+                    Log.d(TAG, "windowPublisher: published " + compressor.getEmittedCount() + " of "
+                            + compressor.getOfferedCount() + " windows");
+                }
+            }
+        };
+
+        @Override
+        public void onEvent(Observation observation) {
+            if (compressor == null) {
+                emit(observation);
+            } else {
+                compressor.offer(observation, this);
+            }
+        }
+
+        @Override
+        public void emit(Observation observation) {
+            position.latitude = observation.latitude;
+            position.longitude = observation.longitude;
+            sendData(observation.value, position, observation.phenomenonStart, observation.phenomenonEnd,
+                    observation.serialNr);
+        }
+    }
+
+    /**
+     * openHistory
+     * Opens the history on the store thread, before any window is handed to the store.
+     */
+    private class openHistory implements Runnable {
+        private final File directory;
+
+        openHistory(File directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        public void run() {
+            TimeSeriesStore store;
+            try {
+                store = new TimeSeriesStore(directory);
+            } catch (IOException e) {
+                Log.d(TAG, "could not open history, " + e.toString());
+                return;
+            }
+            Log.d(TAG, "history opened with " + store.getRowCount() + " observations");
+            history = store;
+            if (historyClosed.get()) {
+                store.close();      // the activity was destroyed while it was opened
+            }
+        }
+    }
+
+    /**
+     * windowStore
+     * Keeps the windows handed to it by the bus in the history, whether they are published or
+     * not, on the store thread. Windows are dropped if the history could not be opened.
+     */
+    private class windowStore implements ObservationBus.Subscriber<Observation> {
+        @Override
+        public void onEvent(Observation observation) {
+            TimeSeriesStore store = history;
+            if (store == null) {
+                return;
+            }
+            try {
+                store.append(observation.phenomenonEnd, observation.value, observation.latitude,
+                        observation.longitude, observation.serialNr);
+            } catch (IOException e) {
+                Log.d(TAG, "windowStore: could not store window, " + e.toString());
             }
         }
     }
@@ -520,29 +875,50 @@ public class MainActivity extends Activity implements LocationListener {
     @Override
     public void onLocationChanged(Location location) {
 
-        /* check if the new location is theoretically possible */
-        /*
-        if(oldLocation != null) {
-            if (!isValidCoordinate(location, oldLocation)) {
-                oldTwo = location;
-                debug.setText("DEBUG: Location update skipped");
-                return;
+        /* check if the new location is theoretically possible, the samples are timed by the clock of
+           the device when they arrive so the fixes are too */
+        long now = System.currentTimeMillis();
+        if (!locationHistory.add(now, location.getLatitude(), location.getLongitude(), location.getSpeed())) {
+            if (viewState.setLocationSkipped()) {
+                scheduleRender.run();
             }
+            return;
+        }
+        fix.set(now, location.getLatitude(), location.getLongitude(), location.getSpeed());
+        bus.publish(ObservationBus.FIXES, fix);
+
+        /* ask for fixes as often as the speed and the sample rate call for */
+        locationPolicy.setSampleInterval(sampleInterval);
+        if (locationPolicy.update(System.currentTimeMillis(), location.getSpeed())) {
+            Log.d(TAG, "onLocationChanged: fixes every " + locationPolicy.getMinTime() + " ms, "
+                    + locationPolicy.getMinDistance() + " m");
+            locationHistory.setFixInterval(locationPolicy.getMinTime());
+            getLocation();
         }
-        */
-        debug.setText("DEBUG\nSpeed: " + location.getSpeed());
-        locationText.setText("Latitude: " + location.getLatitude() + "\nLongitude: " + location.getLongitude());
-        currentLocation.latitude = location.getLatitude();
-        currentLocation.longitude = location.getLongitude();
-        oldTwo = location;
-        oldLocation = location;
 
-        try {
-            Geocoder geocoder = new Geocoder(this, Locale.getDefault());
-            List<Address> addresses = geocoder.getFromLocation(location.getLatitude(), location.getLongitude(), 1);
-            locationText.setText(locationText.getText() + "\n"+addresses.get(0).getAddressLine(0));
-        }catch(Exception e) {
+        if (viewState.setLocation(location.getLatitude(), location.getLongitude(), location.getSpeed())) {
+            scheduleRender.run();
+        }
 
+        reverseGeocoder.request(location.getLatitude(), location.getLongitude());
+    }
+
+    /**
+     * addressListener
+     * Receives the addresses of the location updates, on the lookup thread or, when the address
+     * was cached, on the ui thread.
+     */
+    private class addressListener implements ReverseGeocoder.Listener {
+        @Override
+        public void onAddress(double latitude, double longitude, String found) {
+            if (viewState.setAddress(found)) {
+                handler.post(scheduleRender);
+            }
+        }
+
+        @Override
+        public void onLookupFailed(double latitude, double longitude, IOException cause) {
+            Log.d(TAG, "addressListener: no address for " + latitude + ", " + longitude + ", " + cause.toString());
         }
     }
 
@@ -556,16 +932,4 @@ public class MainActivity extends Activity implements LocationListener {
 
     @Override
     public void onProviderEnabled(String provider) {}
-
-    private boolean isValidCoordinate(Location current, Location old) {
-        float distance = current.distanceTo(old);
-        double time = (double)(current.getElapsedRealtimeNanos() - old.getElapsedRealtimeNanos())/1000000000.0;
-        float speed = (current.getSpeed()+old.getSpeed())/2;
-        float theoreticTime = distance/speed;
-        // give some slack
-        if(time + 10.0 < theoreticTime) {
-            return false;
-        }
-        return true;
-    }
 }
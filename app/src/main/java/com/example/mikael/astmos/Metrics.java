@@ -0,0 +1,284 @@
+package com.example.mikael.astmos;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Metrics
+ * Counters, gauges and histograms of one part of the application, e.g. one sensor unit, which
+ * are written as a json snapshot now and then and published for monitoring. Recording is lock
+ * free, the threads doing the work hold on to their counters and histograms and only touch
+ * atomics. Registering and taking snapshots lock the registry, they are rare.
+ *
+ *  - a counter only grows, the snapshot gives its total and its rate since the last snapshot,
+ *  - a gauge is read when the snapshot is taken, e.g. the depth of a queue,
+ *  - a histogram counts values, e.g. latencies in milliseconds, in buckets which are a power
+ *    of two wide split into SUB_BUCKETS, so a value is known to within 1 / SUB_BUCKETS of
+ *    itself. The snapshot gives the count, mean, percentiles and max of the values recorded
+ *    since the last snapshot and empties the histogram.
+ *
+ * Names are written into the json as they are and should be plain identifiers.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public class Metrics {
+
+    /**
+     * Gauge
+     * A value read when a snapshot is taken. Called on the thread taking the snapshot.
+     */
+    public interface Gauge {
+        /**
+         * read
+         *
+         * @return long The current value
+         */
+        long read();
+    }
+
+    /**
+     * Counter
+     * A count which only grows.
+     */
+    public static class Counter {
+        private final AtomicLong value = new AtomicLong();
+        private long snapshotValue = 0;     // at the last snapshot, guarded by the registry
+
+        /**
+         * increment
+         * Adds one to the count.
+         */
+        public void increment() {
+            value.incrementAndGet();
+        }
+
+        /**
+         * add
+         * Adds to the count.
+         *
+         * @param delta The number to add
+         */
+        public void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        /**
+         * get
+         *
+         * @return long The count
+         */
+        public long get() {
+            return value.get();
+        }
+    }
+
+    /**
+     * Histogram
+     * Counts of values in logarithmic buckets.
+     */
+    public static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong sum = new AtomicLong();
+
+        /**
+         * record
+         * Counts a value, negative values are counted as 0.
+         *
+         * @param value The value
+         */
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            buckets.incrementAndGet(bucketOf(value));
+            sum.addAndGet(value);
+        }
+
+        /* empties the histogram into the given array of counts and returns the sum */
+        long drain(long[] counts) {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                counts[i] = buckets.getAndSet(i, 0);
+            }
+            return sum.getAndSet(0);
+        }
+    }
+
+    /* layout of the histograms */
+    static final int SUB_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+    static final int BUCKET_COUNT = (64 - SUB_BITS) * SUB_BUCKETS;
+    static final double[] PERCENTILES = {50, 90, 99};
+
+    private final Map<String, Counter> counters = new LinkedHashMap<>();
+    private final Map<String, Gauge> gauges = new LinkedHashMap<>();
+    private final Map<String, Histogram> histograms = new LinkedHashMap<>();
+    private final long[] counts = new long[BUCKET_COUNT];   // scratch of the snapshots
+    private long snapshotTime;
+
+    /**
+     * Metrics
+     * Constructor creating an empty registry, the first snapshot covers the time from now.
+     */
+    public Metrics() {
+        snapshotTime = System.currentTimeMillis();
+    }
+
+    /**
+     * counter
+     * Finds or registers a counter.
+     *
+     * @param name The name of the counter
+     * @return Counter The counter of the name
+     */
+    public synchronized Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            counter = new Counter();
+            counters.put(name, counter);
+        }
+        return counter;
+    }
+
+    /**
+     * histogram
+     * Finds or registers a histogram.
+     *
+     * @param name The name of the histogram
+     * @return Histogram The histogram of the name
+     */
+    public synchronized Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histogram = new Histogram();
+            histograms.put(name, histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * gauge
+     * Registers a gauge, replacing one of the same name.
+     *
+     * @param name  The name of the gauge
+     * @param gauge The gauge
+     */
+    public synchronized void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * bucketOf
+     * The bucket counting a value. Values below SUB_BUCKETS have a bucket each, above that every
+     * power of two is split into SUB_BUCKETS buckets.
+     *
+     * @param value The value, not negative
+     * @return int The index of the bucket
+     */
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * upperBoundOf
+     * The largest value counted by a bucket.
+     *
+     * @param bucket The index of the bucket
+     * @return long The largest value
+     */
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    /**
+     * writeSnapshot
+     * Writes the metrics as a json object and starts the next interval of the counters and
+     * histograms.
+     *
+     * @param out The builder the json is appended to
+     * @param now The time of the snapshot in milliseconds since the epoch
+     */
+    public synchronized void writeSnapshot(StringBuilder out, long now) {
+        long interval = Math.max(1, now - snapshotTime);
+        snapshotTime = now;
+        out.append("{\"time\":\"").append(IsoTimeFormatter.format(now)).append("\",\"interval\":").append(interval);
+
+        out.append(",\"counters\":{");
+        boolean first = true;
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            Counter counter = entry.getValue();
+            long total = counter.get();
+            double rate = (total - counter.snapshotValue) * 1000.0 / interval;
+            counter.snapshotValue = total;
+            name(out, entry.getKey(), first).append("{\"total\":").append(total)
+                    .append(",\"rate\":").append(String.format(Locale.US, "%.3f", rate)).append('}');
+            first = false;
+        }
+
+        out.append("},\"gauges\":{");
+        first = true;
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            name(out, entry.getKey(), first).append(entry.getValue().read());
+            first = false;
+        }
+
+        out.append("},\"histograms\":{");
+        first = true;
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            long sum = entry.getValue().drain(counts);
+            long count = 0;
+            int highest = -1;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                if (counts[i] > 0) {
+                    count += counts[i];
+                    highest = i;
+                }
+            }
+            name(out, entry.getKey(), first).append("{\"count\":").append(count);
+            first = false;
+            if (count > 0) {
+                out.append(",\"mean\":").append(String.format(Locale.US, "%.1f", (double) sum / count));
+                for (double percentile : PERCENTILES) {
+                    out.append(",\"p").append((int) percentile).append("\":").append(valueAt(count, percentile));
+                }
+                out.append(",\"max\":").append(upperBoundOf(highest));
+            }
+            out.append('}');
+        }
+        out.append("}}");
+    }
+
+    private static StringBuilder name(StringBuilder out, String name, boolean first) {
+        if (!first) {
+            out.append(',');
+        }
+        return out.append('"').append(name).append("\":");
+    }
+
+    /* the upper bound of the bucket holding the given percentile of the drained counts */
+    private long valueAt(long count, double percentile) {
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) {
+                return upperBoundOf(i);
+            }
+        }
+        return 0;
+    }
+}
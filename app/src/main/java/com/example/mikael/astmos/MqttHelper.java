@@ -14,13 +14,34 @@ import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * MqttHelper
  * Helper class which exposes the functionality of the paho mqtt library and makes the
  * use of the methods cleaner when used in activities of the application.
  *
+ * Messages are handed to the client through a PublishWindow, which keeps no more of them in
+ * flight than the measured latency of the acknowledgements calls for and holds back the rest,
+ * in the outbox or in a queue of its own. Every message is tagged with its sequence number,
+ * which deliveryComplete gives back, and the publish methods return a Delivery completed once
+ * the broker has acknowledged the message, or the batch holding the observation.
+ *
+ * When upload scheduling is enabled, messages appended to the outbox are held back there and
+ * sent in bursts, as the UploadScheduler decides, so the cellular radio is woken as rarely as
+ * possible. Without an outbox messages are always sent straight away.
+ *
+ * Keeps metrics of the messages published and delivered, the time from publishing a message
+ * to its deliveryComplete and the messages waiting for the broker.
+ *
  * @author Mikael Mölder
  * @version 1.0
  * @since 2018-04-16
@@ -35,34 +56,163 @@ public class MqttHelper {
 
     public final String TAG = "MqttHelper";
 
+    volatile int qos = 1;                       // quality of service of published messages
+    volatile PublishBatcher batcher = null;     // gathers observations when batching is enabled
+    ScheduledExecutorService batchTimer = null; // flushes batches which have reached their max age
+    Outbox outbox;                              // messages not yet received by the broker
+    volatile UploadScheduler scheduler = null;  // holds messages back for the radio when enabled, guarded by itself
+    ScheduledExecutorService uploadTimer = null;    // sends held messages which have used up their budget
+    private long heldFrom = Long.MAX_VALUE;     // outbox messages from this sequence are held, guarded by outbox
+    volatile MqttCallbackExtended callback = null;
+
+    /* metrics of the messages, see getMetrics */
+    final Metrics metrics = new Metrics();
+    private final Metrics.Counter published = metrics.counter("published");
+    private final Metrics.Counter delivered = metrics.counter("delivered");
+    private final Metrics.Counter connectionsLost = metrics.counter("connectionsLost");
+    private final Metrics.Histogram deliveryLatency = metrics.histogram("deliveryLatency");
+
+    /* hands messages to the client, tagged with their sequence number */
+    private final PublishWindow.Transport transport = new PublishWindow.Transport() {
+        @Override
+        public boolean publish(long id, String topic, byte[] payload, int offset, int length) {
+            try {
+                MqttMessage message = new MqttMessage(Arrays.copyOfRange(payload, offset, offset + length));
+                message.setQos(qos);
+                mqttAndroidClient.publish(topic, message, id, null);
+                published.increment();
+                return true;
+            } catch (MqttException ex) {
+                // e.g. too many messages in flight, the rest is sent as deliveries complete
+                Log.d(TAG, "publish deferred, " + ex.getMessage());
+                return false;
+            }
+        }
+    };
+
+    /* the messages in flight, and those waiting for room when there is no outbox */
+    final PublishWindow window = new PublishWindow(transport);
+
+    /* the deliveries of the batches being gathered by topic, guarded by itself */
+    private final Map<String, PublishWindow.Delivery> batchDeliveries = new HashMap<>();
+
+    /* hands messages from the outbox to the window while it has room */
+    private final Outbox.Sender outboxSender = new Outbox.Sender() {
+        @Override
+        public boolean send(long sequence, String topic, byte[] payload, int offset, int length) {
+            if (sequence >= heldFrom) {
+                return false;   // called by drain, which holds the outbox lock
+            }
+            return window.send(sequence, topic, payload, offset, length, System.currentTimeMillis());
+        }
+    };
+
     /**
      * MqttHelper
      * Constructor that creates a mqtt android client and registers callback methods before it
-     * connects ot the broker.
+     * connects ot the broker. Messages are kept in an outbox on disk until the broker has
+     * received them, if the outbox can not be opened the in memory buffer of paho is used.
      *
      * @param context The context of the application calling on the method
      */
     public MqttHelper(Context context) {
+        try {
+            outbox = new Outbox(new File(context.getFilesDir(), "outbox"));
+            Log.d(TAG, "outbox opened with " + outbox.getPendingCount() + " pending messages");
+        } catch (IOException ex) {
+            Log.d(TAG, "could not open outbox, " + ex.toString());
+            outbox = null;
+        }
+        metrics.gauge("bufferedMessages", new Metrics.Gauge() {
+            @Override
+            public long read() {
+                return getBufferedCount();
+            }
+        });
+        metrics.gauge("inFlight", new Metrics.Gauge() {
+            @Override
+            public long read() {
+                return window.getInFlightCount();
+            }
+        });
+        metrics.gauge("publishWindow", new Metrics.Gauge() {
+            @Override
+            public long read() {
+                return window.getSize();
+            }
+        });
+        metrics.gauge("heldMessages", new Metrics.Gauge() {
+            @Override
+            public long read() {
+                UploadScheduler current = scheduler;
+                if (current == null) {
+                    return 0;
+                }
+                synchronized (current) {
+                    return current.getPendingCount();
+                }
+            }
+        });
+
         mqttAndroidClient = new MqttAndroidClient(context, serverURI, clientId);
         mqttAndroidClient.setCallback(new MqttCallbackExtended() {
             @Override
             public void connectComplete(boolean reconnect, String serverURI) {
                 Log.d(TAG, "connectComplete: mqtt");
+                window.reset(System.currentTimeMillis());  // messages in flight on the old connection may be lost
+                onNetworkActivity();    // the radio is up for the handshake
+                if (outbox != null) {
+                    outbox.rewind();    // messages in flight on the old connection may be lost
+                    drainOutbox();
+                }
+                MqttCallbackExtended listener = callback;
+                if (listener != null) {
+                    listener.connectComplete(reconnect, serverURI);
+                }
             }
 
             @Override
             public void connectionLost(Throwable cause) {
                 Log.d(TAG, "connectionLost: mqtt");
+                connectionsLost.increment();
+                MqttCallbackExtended listener = callback;
+                if (listener != null) {
+                    listener.connectionLost(cause);
+                }
             }
 
             @Override
             public void messageArrived(String topic, MqttMessage message) throws Exception {
                 Log.d(TAG, "messageArrived: mqtt");
+                onNetworkActivity();
+                MqttCallbackExtended listener = callback;
+                if (listener != null) {
+                    listener.messageArrived(topic, message);
+                }
             }
 
             @Override
             public void deliveryComplete(IMqttDeliveryToken token) {
                 Log.d(TAG, "deliveryComplete: mqtt");
+                onNetworkActivity();    // the acknowledgement came over the radio
+                Object sequence = token.getUserContext();
+                if (sequence instanceof Long) {
+                    delivered.increment();
+                    long latency = window.delivered((Long) sequence, System.currentTimeMillis());
+                    if (latency >= 0) {
+                        deliveryLatency.record(latency);
+                    }
+                    if (outbox != null) {
+                        if ((Long) sequence >= 0) {
+                            outbox.acknowledge((Long) sequence);   // advances the commit cursor
+                        }
+                        drainOutbox();  // the window has room again
+                    }
+                }
+                MqttCallbackExtended listener = callback;
+                if (listener != null) {
+                    listener.deliveryComplete(token);
+                }
             }
         });
         connect();
@@ -70,12 +220,12 @@ public class MqttHelper {
 
     /**
      * setCallback
-     * Helper method which calls the method with the same name in the paho mqtt library
+     * Registers callback methods which are called after the helper has handled the event
      *
      * @param callback
      */
     public void setCallback(MqttCallbackExtended callback) {
-        mqttAndroidClient.setCallback(callback);
+        this.callback = callback;
     }
 
     /**
@@ -86,6 +236,7 @@ public class MqttHelper {
         MqttConnectOptions mqttConnectOptions = new MqttConnectOptions();
         mqttConnectOptions.setAutomaticReconnect(true);
         mqttConnectOptions.setCleanSession(false);
+        mqttConnectOptions.setMaxInflight(PublishWindow.DEFAULT_MAX_SIZE);    // the window keeps below this
         //mqttConnectOptions.setUserName("");
         //mqttConnectOptions.setPassword("");
 
@@ -93,12 +244,16 @@ public class MqttHelper {
             mqttAndroidClient.connect(mqttConnectOptions, null, new IMqttActionListener() {
                 @Override
                 public void onSuccess(IMqttToken asyncActionToken) {
-                    DisconnectedBufferOptions disconnectedBufferOptions = new DisconnectedBufferOptions();
-                    disconnectedBufferOptions.setBufferEnabled(true);
-                    disconnectedBufferOptions.setBufferSize(100);
-                    disconnectedBufferOptions.setPersistBuffer(false);
-                    disconnectedBufferOptions.setDeleteOldestMessages(false);
-                    mqttAndroidClient.setBufferOpts(disconnectedBufferOptions);
+                    if (outbox == null) {
+                        DisconnectedBufferOptions disconnectedBufferOptions = new DisconnectedBufferOptions();
+                        disconnectedBufferOptions.setBufferEnabled(true);
+                        disconnectedBufferOptions.setBufferSize(100);
+                        disconnectedBufferOptions.setPersistBuffer(false);
+                        disconnectedBufferOptions.setDeleteOldestMessages(false);
+                        mqttAndroidClient.setBufferOpts(disconnectedBufferOptions);
+                    } else {
+                        drainOutbox();  // replay what was left by the previous run
+                    }
                     subscribeToTopic();
                 }
 
@@ -134,23 +289,331 @@ public class MqttHelper {
         }
     }
 
+    /**
+     * getMetrics
+     *
+     * @return Metrics The metrics of the messages published through the helper
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * getBufferedCount
+     * The number of messages waiting for the broker, in the outbox or in the queue of the
+     * window and the disconnected buffer of paho.
+     *
+     * @return long The number of messages
+     */
+    public long getBufferedCount() {
+        if (outbox != null) {
+            return outbox.getPendingCount();
+        }
+        try {
+            return window.getQueuedCount() + mqttAndroidClient.getBufferedMessageCount();
+        } catch (RuntimeException ex) {
+            return window.getQueuedCount();   // the service is not bound yet
+        }
+    }
+
+    /**
+     * setQos
+     * Sets the quality of service used for published messages, 1 by default.
+     *
+     * @param qos The quality of service, 0, 1 or 2
+     */
+    public void setQos(int qos) {
+        if (qos < 0 || qos > 2) {
+            throw new IllegalArgumentException("invalid qos " + qos);
+        }
+        this.qos = qos;
+    }
+
+    /**
+     * enableBatching
+     * Makes publish gather observations per topic and send them as one json array per topic,
+     * once maxCount observations are gathered or the oldest one is maxAge milliseconds old.
+     * Call flush before shutting down to send what is still gathered.
+     *
+     * @param maxCount The number of observations sent in one message
+     * @param maxAge The longest time in milliseconds an observation is held back
+     */
+    public synchronized void enableBatching(int maxCount, long maxAge) {
+        disableBatching();
+        final PublishBatcher created = new PublishBatcher(maxCount, maxAge, new PublishBatcher.Sink() {
+            @Override
+            public void publishBatch(String topic, byte[] payload, int length, int count) {
+                Log.d(TAG, "publishBatch: " + count + " observations to " + topic);
+                PublishWindow.Delivery delivery;
+                synchronized (batchDeliveries) {
+                    delivery = batchDeliveries.remove(topic);
+                }
+                send(topic, payload, 0, length, delivery);
+            }
+        });
+
+        /* check the age of the batches a few times per maxAge */
+        batchTimer = Executors.newSingleThreadScheduledExecutor();
+        long period = Math.max(100, maxAge / 4);
+        batchTimer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                created.flushExpired(System.currentTimeMillis());
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+        batcher = created;
+    }
+
+    /**
+     * disableBatching
+     * Sends what is gathered and makes publish send every observation directly again.
+     */
+    public synchronized void disableBatching() {
+        PublishBatcher current = batcher;
+        if (current != null) {
+            batcher = null;
+            batchTimer.shutdown();
+            batchTimer = null;
+            current.flush();
+        }
+    }
+
+    /**
+     * flush
+     * Sends the observations gathered in batches and the messages held for the radio right away,
+     * e.g. on shutdown.
+     */
+    public void flush() {
+        PublishBatcher current = batcher;
+        if (current != null) {
+            current.flush();
+        }
+        release();
+    }
+
+    /**
+     * enableUploadScheduling
+     * Makes the messages appended to the outbox wait there until the scheduler sends them in a
+     * burst, see UploadScheduler. Has no effect without an outbox. Call flush or
+     * disableUploadScheduling before shutting down to send what is held.
+     *
+     * @param latencyBudget   The longest time in milliseconds a message is held
+     * @param piggybackWindow The time in milliseconds after other traffic the held messages go along
+     * @param maxPending      The number of held messages which makes them go out straight away
+     */
+    public synchronized void enableUploadScheduling(long latencyBudget, long piggybackWindow, int maxPending) {
+        disableUploadScheduling();
+        if (outbox == null) {
+            Log.d(TAG, "enableUploadScheduling: no outbox, messages are sent straight away");
+            return;
+        }
+        final UploadScheduler created = new UploadScheduler(latencyBudget, piggybackWindow, maxPending);
+
+        /* check the budget of the held messages a few times per budget, the timer only wakes the cpu */
+        uploadTimer = Executors.newSingleThreadScheduledExecutor();
+        long period = Math.max(100, latencyBudget / 10);
+        uploadTimer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                boolean due;
+                synchronized (outbox) {
+                    synchronized (created) {
+                        due = created.poll(System.currentTimeMillis());
+                    }
+                    if (due) {
+                        releaseLocked(created);
+                    }
+                }
+                if (due) {
+                    drainOutbox();
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+        scheduler = created;
+    }
+
+    /**
+     * disableUploadScheduling
+     * Sends what is held and makes every message go out straight away again.
+     */
+    public synchronized void disableUploadScheduling() {
+        UploadScheduler current = scheduler;
+        if (current != null) {
+            scheduler = null;
+            uploadTimer.shutdown();
+            uploadTimer = null;
+            release();
+        }
+    }
+
+    /**
+     * onNetworkActivity
+     * Tells that the radio has just been used by something else, e.g. a geocoder lookup, so the
+     * held messages can go along if it was recent enough. Safe to call from any thread.
+     */
+    public void onNetworkActivity() {
+        UploadScheduler current = scheduler;
+        if (current == null || outbox == null) {
+            return;
+        }
+        boolean due;
+        synchronized (outbox) {
+            synchronized (current) {
+                due = current.onTraffic(System.currentTimeMillis());
+            }
+            if (due) {
+                releaseLocked(current);
+            }
+        }
+        if (due) {
+            drainOutbox();
+        }
+    }
+
+    /* sends the held messages, whatever the scheduler says */
+    private void release() {
+        if (outbox == null) {
+            return;
+        }
+        synchronized (outbox) {
+            UploadScheduler current = scheduler;
+            if (current != null) {
+                releaseLocked(current);
+            } else {
+                heldFrom = Long.MAX_VALUE;
+            }
+        }
+        drainOutbox();
+    }
+
+    /* lets the held messages go, called with the outbox locked */
+    private void releaseLocked(UploadScheduler current) {
+        synchronized (current) {
+            current.flushed(System.currentTimeMillis());
+        }
+        heldFrom = Long.MAX_VALUE;
+    }
+
     /**
      * publish
      * Attempts to publish a payload to the specified topic.
      *
      * @param payload The message to be published
      * @param topic The topic to publish the message to
+     * @return PublishWindow.Delivery Completed once the broker has the message
      */
-    public void publish(JSONObject payload, String topic) {
+    public PublishWindow.Delivery publish(JSONObject payload, String topic) {
         byte[] encodedPayload = new byte[0];
         try {
             String msg = payload.toString();
             encodedPayload = msg.getBytes("UTF-8");
-            MqttMessage message = new MqttMessage(encodedPayload);
-            mqttAndroidClient.publish(topic, message);
+            return publish(encodedPayload, 0, encodedPayload.length, topic);
 
-        } catch (UnsupportedEncodingException | MqttException ex) {
+        } catch (UnsupportedEncodingException ex) {
             ex.printStackTrace();
+            PublishWindow.Delivery failed = new PublishWindow.Delivery();
+            failed.fail(ex);
+            return failed;
+        }
+    }
+
+    /**
+     * publish
+     * Attempts to publish an already encoded payload to the specified topic, or adds it to the
+     * batch of the topic when batching is enabled. The bytes are copied, so the buffer can be
+     * reused as soon as the method returns.
+     *
+     * @param payload The buffer holding the encoded message
+     * @param offset The index of the first byte of the message
+     * @param length The number of bytes in the message
+     * @param topic The topic to publish the message to
+     * @return PublishWindow.Delivery Completed once the broker has the message, or the batch
+     *                                holding it when batching is enabled
+     */
+    public PublishWindow.Delivery publish(byte[] payload, int offset, int length, String topic) {
+        PublishBatcher current = batcher;
+        if (current == null) {
+            return send(topic, payload, offset, length, null);
+        }
+        synchronized (current) {    // the batch may be flushed by add, which hands on its delivery
+            PublishWindow.Delivery delivery;
+            synchronized (batchDeliveries) {
+                delivery = batchDeliveries.get(topic);
+                if (delivery == null) {
+                    delivery = new PublishWindow.Delivery();
+                    batchDeliveries.put(topic, delivery);
+                }
+            }
+            current.add(topic, payload, offset, length, System.currentTimeMillis());
+            return delivery;
+        }
+    }
+
+    /**
+     * publishUnbatched
+     * Attempts to publish an already encoded payload to the specified topic, bypassing the
+     * batcher. Used for binary payloads which can not be gathered into a json array.
+     *
+     * @param payload The buffer holding the encoded message
+     * @param offset The index of the first byte of the message
+     * @param length The number of bytes in the message
+     * @param topic The topic to publish the message to
+     * @return PublishWindow.Delivery Completed once the broker has the message
+     */
+    public PublishWindow.Delivery publishUnbatched(byte[] payload, int offset, int length, String topic) {
+        return send(topic, payload, offset, length, null);
+    }
+
+    /**
+     * send
+     * Hands a message to the window, through the outbox if there is one. The outbox is locked
+     * while the delivery is registered, so that drain can not send the message before, and while
+     * the scheduler decides whether it is held.
+     */
+    private PublishWindow.Delivery send(String topic, byte[] payload, int offset, int length,
+                                        PublishWindow.Delivery delivery) {
+        if (outbox != null) {
+            try {
+                boolean held = false;
+                synchronized (outbox) {
+                    long dropped = outbox.getDroppedCount();
+                    long sequence = outbox.append(topic, payload, offset, length);
+                    delivery = window.expect(sequence, delivery);
+                    if (outbox.getDroppedCount() != dropped) {
+                        window.abandon(outbox.getCommitted(), new IOException("dropped from a full outbox"));
+                    }
+                    UploadScheduler current = scheduler;
+                    if (current != null) {
+                        boolean due;
+                        synchronized (current) {
+                            due = current.add(System.currentTimeMillis());
+                        }
+                        if (due) {
+                            releaseLocked(current);
+                        } else {
+                            heldFrom = Math.min(heldFrom, sequence);
+                            held = true;
+                        }
+                    }
+                }
+                if (!held) {
+                    drainOutbox();
+                }
+                return delivery;
+            } catch (IOException | IllegalArgumentException ex) {
+                Log.d(TAG, "outbox: could not store message, sending directly, " + ex.toString());
+            }
+        }
+        return window.submit(topic, payload, offset, length, delivery, System.currentTimeMillis());
+    }
+
+    /**
+     * drainOutbox
+     * Sends the messages waiting in the outbox while the client is connected.
+     */
+    private void drainOutbox() {
+        if (mqttAndroidClient.isConnected()) {
+            outbox.drain(outboxSender);
         }
     }
 }
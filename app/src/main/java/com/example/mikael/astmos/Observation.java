@@ -0,0 +1,41 @@
+package com.example.mikael.astmos;
+
+/**
+ * Observation
+ * The content of one published observation, as read back by a decoder or held back before it
+ * is published. The object is mutable and meant to be reused for every message.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public class Observation {
+    String serialNr;        // serial number of the sensor
+    double value;           // average sensor value of the window
+    double latitude;        // location of the measurements
+    double longitude;
+    long phenomenonStart;   // time of the first measurement in milliseconds since the epoch
+    long phenomenonEnd;     // time of the last measurement in milliseconds since the epoch
+    long resultTime;        // time the observation was made in milliseconds since the epoch
+
+    /**
+     * copyFrom
+     * Overwrites all fields of the observation with the fields of another observation.
+     *
+     * @param other The observation to copy
+     */
+    public void copyFrom(Observation other) {
+        serialNr = other.serialNr;
+        value = other.value;
+        latitude = other.latitude;
+        longitude = other.longitude;
+        phenomenonStart = other.phenomenonStart;
+        phenomenonEnd = other.phenomenonEnd;
+        resultTime = other.resultTime;
+    }
+
+    @Override
+    public String toString() {
+        return serialNr + ": " + value + " at " + latitude + "," + longitude + " (" + phenomenonStart + "/" + phenomenonEnd + ", " + resultTime + ")";
+    }
+}
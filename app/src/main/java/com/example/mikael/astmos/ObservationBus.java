@@ -0,0 +1,380 @@
+package com.example.mikael.astmos;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * ObservationBus
+ * Hands the raw samples, the aggregated windows and the location fixes to every part of the app
+ * which wants them, the ui, the mqtt publisher, the local history and whatever is added later.
+ *
+ * Every subscriber has its own bounded buffer and is called on its own executor, so a slow one,
+ * e.g. a publisher stuck on a stalled broker connection, only ever fills its own buffer and never
+ * holds back the publisher or the other subscribers. What happens when a buffer is full is
+ * decided by the policy of the subscription. Events are copied into preallocated slots, so
+ * publishing allocates nothing, and publishing to a topic without subscribers costs a lookup.
+ *
+ * A subscriber which throws only loses the event it threw on, the failure is counted and the
+ * following events are delivered as usual.
+ *
+ * Thread safe, events can be published and subscriptions made or cancelled from any thread.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public class ObservationBus {
+
+    /**
+     * Subscriber
+     * Receives the events of a topic, on the executor of its subscription, one at a time and in
+     * the order they were published. The event is reused after the call returns.
+     */
+    public interface Subscriber<T> {
+        /**
+         * onEvent
+         *
+         * @param event The event, only valid during the call
+         */
+        void onEvent(T event);
+    }
+
+    /**
+     * Policy
+     * What happens to an event published to a subscription with a full buffer.
+     */
+    public enum Policy {
+        DROP_OLDEST,    // discard the oldest buffered event to make room for the new one
+        DROP_NEWEST,    // discard the new event
+        CONFLATE        // keep only the latest event, the buffer holds one whatever its capacity
+    }
+
+    /**
+     * Topic
+     * A kind of event, knows how to make the slots the events are copied into.
+     */
+    public static abstract class Topic<T> {
+        private final String name;
+
+        /**
+         * Topic
+         * Constructor creating a topic with the given name.
+         *
+         * @param name The name of the topic, used in logs
+         */
+        protected Topic(String name) {
+            this.name = name;
+        }
+
+        /**
+         * create
+         *
+         * @return T A new empty event to copy events into
+         */
+        protected abstract T create();
+
+        /**
+         * copy
+         * Overwrites one event with another.
+         *
+         * @param from The event to copy
+         * @param to   The event to overwrite
+         */
+        protected abstract void copy(T from, T to);
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /* every sample parsed from a sensor unit, before calibration */
+    public static final Topic<SensorRecord> SAMPLES = new Topic<SensorRecord>("samples") {
+        @Override
+        protected SensorRecord create() {
+            return new SensorRecord();
+        }
+
+        @Override
+        protected void copy(SensorRecord from, SensorRecord to) {
+            to.copyFrom(from);
+        }
+    };
+
+    /* every window with a known position, before compression */
+    public static final Topic<Observation> WINDOWS = new Topic<Observation>("windows") {
+        @Override
+        protected Observation create() {
+            return new Observation();
+        }
+
+        @Override
+        protected void copy(Observation from, Observation to) {
+            to.copyFrom(from);
+        }
+    };
+
+    /* every accepted location fix */
+    public static final Topic<LocationFix> FIXES = new Topic<LocationFix>("fixes") {
+        @Override
+        protected LocationFix create() {
+            return new LocationFix();
+        }
+
+        @Override
+        protected void copy(LocationFix from, LocationFix to) {
+            to.copyFrom(from);
+        }
+    };
+
+    /**
+     * Subscription
+     * The buffer of one subscriber. At most one drain of it is waiting on or running in the
+     * executor at a time, which is what keeps the events in order.
+     */
+    public class Subscription<T> implements Runnable {
+        private final Topic<T> topic;
+        private final Policy policy;
+        private final Executor executor;
+        private final Subscriber<T> subscriber;
+
+        /* a ring of preallocated events, guarded by this */
+        private final T[] slots;
+        private int head = 0;               // slot of the oldest buffered event
+        private int count = 0;              // number of buffered events
+        private boolean scheduled = false;  // a drain is waiting on or running in the executor
+        private boolean cancelled = false;
+        private long dropped = 0;
+        private long delivered = 0;
+        private long failed = 0;
+
+        private final T current;    // the event being delivered, only used by the drain
+
+        @SuppressWarnings("unchecked")
+        Subscription(Topic<T> topic, int capacity, Policy policy, Executor executor, Subscriber<T> subscriber) {
+            this.topic = topic;
+            this.policy = policy;
+            this.executor = executor;
+            this.subscriber = subscriber;
+            int size = policy == Policy.CONFLATE ? 1 : capacity;
+            slots = (T[]) new Object[size];
+            for (int i = 0; i < size; i++) {
+                slots[i] = topic.create();
+            }
+            current = topic.create();
+        }
+
+        /* copies an event into the buffer and schedules a drain if none is */
+        void offer(T event) {
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                if (count == slots.length) {
+                    dropped++;
+                    if (policy == Policy.DROP_NEWEST) {
+                        return;
+                    }
+                    head = (head + 1) % slots.length;   // the oldest is overwritten
+                    count--;
+                }
+                topic.copy(event, slots[(head + count) % slots.length]);
+                count++;
+                if (scheduled) {
+                    return;
+                }
+                scheduled = true;
+            }
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                cancel();   // the executor is shut down, nobody is left to deliver to
+            }
+        }
+
+        /**
+         * run
+         * Delivers the buffered events, one at a time, outside the lock so the publisher never
+         * waits on the subscriber. Keeps draining when the subscriber throws, a drain which ended
+         * without clearing scheduled would leave the subscription without one for good.
+         */
+        @Override
+        public void run() {
+            while (true) {
+                synchronized (this) {
+                    if (count == 0 || cancelled) {
+                        scheduled = false;
+                        return;
+                    }
+                    topic.copy(slots[head], current);
+                    head = (head + 1) % slots.length;
+                    count--;
+                }
+                try {
+                    subscriber.onEvent(current);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    synchronized (this) {
+                        failed++;
+                    }
+                    continue;
+                }
+                synchronized (this) {
+                    delivered++;
+                }
+            }
+        }
+
+        /**
+         * cancel
+         * Stops the deliveries, buffered events are discarded. An event being delivered is
+         * delivered.
+         */
+        public void cancel() {
+            synchronized (this) {
+                cancelled = true;
+                count = 0;
+            }
+            unsubscribe(this);
+        }
+
+        /**
+         * getTopic
+         *
+         * @return Topic The topic subscribed to
+         */
+        public Topic<T> getTopic() {
+            return topic;
+        }
+
+        /**
+         * getPendingCount
+         *
+         * @return int The number of buffered events
+         */
+        public synchronized int getPendingCount() {
+            return count;
+        }
+
+        /**
+         * getDroppedCount
+         *
+         * @return long The number of events dropped or conflated since the subscription was made
+         */
+        public synchronized long getDroppedCount() {
+            return dropped;
+        }
+
+        /**
+         * getDeliveredCount
+         *
+         * @return long The number of events delivered since the subscription was made
+         */
+        public synchronized long getDeliveredCount() {
+            return delivered;
+        }
+
+        /**
+         * getFailedCount
+         *
+         * @return long The number of events the subscriber threw on since the subscription was made
+         */
+        public synchronized long getFailedCount() {
+            return failed;
+        }
+    }
+
+    private static final Subscription<?>[] NONE = new Subscription<?>[0];
+
+    /* the subscriptions of every topic, replaced as a whole when they change, written under this */
+    private volatile Map<Topic<?>, Subscription<?>[]> subscriptions = Collections.emptyMap();
+
+    /**
+     * subscribe
+     * Starts delivering the events of a topic to a subscriber.
+     *
+     * @param topic      The topic to subscribe to
+     * @param capacity   The number of events buffered for the subscriber
+     * @param policy     What happens to events published while the buffer is full
+     * @param executor   The executor the subscriber is called on, e.g. a thread of its own
+     * @param subscriber The subscriber
+     * @return Subscription The subscription, to be cancelled when the events are no longer wanted
+     */
+    public synchronized <T> Subscription<T> subscribe(Topic<T> topic, int capacity, Policy policy, Executor executor,
+                                                      Subscriber<T> subscriber) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        Subscription<T> subscription = new Subscription<>(topic, capacity, policy, executor, subscriber);
+        Subscription<?>[] previous = subscriptions.get(topic);
+        if (previous == null) {
+            previous = NONE;
+        }
+        Subscription<?>[] next = new Subscription<?>[previous.length + 1];
+        System.arraycopy(previous, 0, next, 0, previous.length);
+        next[previous.length] = subscription;
+        Map<Topic<?>, Subscription<?>[]> map = new IdentityHashMap<>(subscriptions);
+        map.put(topic, next);
+        subscriptions = map;
+        return subscription;
+    }
+
+    /* removes a cancelled subscription */
+    private synchronized void unsubscribe(Subscription<?> subscription) {
+        Subscription<?>[] previous = subscriptions.get(subscription.getTopic());
+        if (previous == null) {
+            return;
+        }
+        int index = -1;
+        for (int i = 0; i < previous.length; i++) {
+            if (previous[i] == subscription) {
+                index = i;
+            }
+        }
+        if (index < 0) {
+            return;
+        }
+        Map<Topic<?>, Subscription<?>[]> map = new IdentityHashMap<>(subscriptions);
+        if (previous.length == 1) {
+            map.remove(subscription.getTopic());
+        } else {
+            Subscription<?>[] next = new Subscription<?>[previous.length - 1];
+            System.arraycopy(previous, 0, next, 0, index);
+            System.arraycopy(previous, index + 1, next, index, previous.length - index - 1);
+            map.put(subscription.getTopic(), next);
+        }
+        subscriptions = map;
+    }
+
+    /**
+     * publish
+     * Copies an event into the buffer of every subscriber of its topic. Never waits on a
+     * subscriber, an event which does not fit is dropped by the policy of the subscription.
+     *
+     * @param topic The topic of the event
+     * @param event The event, can be reused as soon as the call returns
+     */
+    @SuppressWarnings("unchecked")
+    public <T> void publish(Topic<T> topic, T event) {
+        Subscription<?>[] subscribers = subscriptions.get(topic);
+        if (subscribers == null) {
+            return;
+        }
+        for (Subscription<?> subscription : subscribers) {
+            ((Subscription<T>) subscription).offer(event);
+        }
+    }
+
+    /**
+     * hasSubscribers
+     *
+     * @param topic The topic
+     * @return boolean True if anyone is subscribed to the topic, so the event is worth making
+     */
+    public boolean hasSubscribers(Topic<?> topic) {
+        return subscriptions.containsKey(topic);
+    }
+}
@@ -0,0 +1,203 @@
+package com.example.mikael.astmos;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ObservationCompressor
+ * Decides which observations are worth publishing, by swinging door trending on the value and a
+ * distance threshold on the position, per serial number. An observation is only published when
+ * the straight line from the last published observation to the newest one no longer passes
+ * within deadBand of every observation since, or when the device has moved more than distance
+ * meters from where the last published observation was taken. The observations left out can
+ * thus be restored within deadBand by interpolating linearly between the published ones.
+ *
+ * Each new observation narrows two doors hinged at the last published value, one deadBand above
+ * and one below it. The newest observation is held back while the line to it passes between the
+ * doors; when the line to a new one does not, the held one is published and the doors are
+ * hinged there instead. Unlike plain swinging door trending, which only checks that the doors
+ * have not crossed, this bounds the error by deadBand rather than twice that. The observation
+ * where the value turns, e.g. the first one after a step, is published one window late. A held
+ * observation is also published when maxInterval has passed since the last published one, as a
+ * heartbeat, and by flush when the stream ends.
+ *
+ * Not thread safe, meant to be used by one thread, e.g. the thread publishing the windows of
+ * all units.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public class ObservationCompressor {
+
+    /**
+     * Sink
+     * Receives the observations to publish.
+     */
+    public interface Sink {
+        /**
+         * emit
+         * Called for every observation to publish. The observation is only valid during the call.
+         *
+         * @param observation The observation to publish
+         */
+        void emit(Observation observation);
+    }
+
+    /* default settings */
+    public static final double DEFAULT_DEAD_BAND = 2.0;        // µg/m3
+    public static final double DEFAULT_DISTANCE = 25.0;         // meters
+    public static final long DEFAULT_MAX_INTERVAL = 600000;     // milliseconds
+
+    /**
+     * Door
+     * The state kept for one serial number.
+     */
+    private static class Door {
+        final Observation published = new Observation();   // the hinge of the doors
+        final Observation held = new Observation();
+        boolean holding = false;
+        double upper;       // slope of the upper door, per millisecond
+        double lower;       // slope of the lower door
+    }
+
+    private final double deadBand;
+    private final double distance;
+    private final long maxInterval;
+    private final Map<String, Door> doors = new HashMap<>();   // by serial number
+    private long offeredCount = 0;
+    private long emittedCount = 0;
+
+    /**
+     * ObservationCompressor
+     * Constructor creating a compressor with the given thresholds.
+     *
+     * @param deadBand    The largest error of an interpolated value, in the unit of the values
+     * @param distance    The largest distance in meters the device may move without publishing
+     * @param maxInterval The longest time in milliseconds between two published observations
+     *                    of a serial number, as long as observations arrive
+     */
+    public ObservationCompressor(double deadBand, double distance, long maxInterval) {
+        if (!(deadBand >= 0) || !(distance >= 0) || maxInterval <= 0) {
+            throw new IllegalArgumentException("deadBand and distance must not be negative, maxInterval must be positive");
+        }
+        this.deadBand = deadBand;
+        this.distance = distance;
+        this.maxInterval = maxInterval;
+    }
+
+    /**
+     * ObservationCompressor
+     * Constructor creating a compressor with the default settings.
+     */
+    public ObservationCompressor() {
+        this(DEFAULT_DEAD_BAND, DEFAULT_DISTANCE, DEFAULT_MAX_INTERVAL);
+    }
+
+    /**
+     * offer
+     * Takes a new observation into account and passes the sink the observations which have to be
+     * published because of it, which are the held one, the new one, both or none.
+     *
+     * @param observation The new observation, copied so it can be reused by the caller
+     * @param sink        The sink receiving the observations to publish
+     */
+    public void offer(Observation observation, Sink sink) {
+        offeredCount++;
+        Door door = doors.get(observation.serialNr);
+        if (door == null) {
+            door = new Door();
+            doors.put(observation.serialNr, door);
+            publish(door, observation, sink);   // the first one is always published
+            return;
+        }
+
+        if (door.holding) {
+            long dt = timeOf(observation) - timeOf(door.published);
+            boolean closed = dt <= 0 || hasMoved(door.published, observation);
+            if (!closed) {
+                double upper = Math.min(door.upper, (observation.value + deadBand - door.published.value) / dt);
+                double lower = Math.max(door.lower, (observation.value - deadBand - door.published.value) / dt);
+                double slope = (observation.value - door.published.value) / dt;
+                if (lower <= slope && slope <= upper) {
+                    door.upper = upper;
+                    door.lower = lower;
+                    door.held.copyFrom(observation);
+                    heartbeat(door, sink);
+                    return;
+                }
+            }
+            door.holding = false;
+            publish(door, door.held, sink);     // the last one the line can reach
+        }
+
+        /* open the doors from the last published observation */
+        long dt = timeOf(observation) - timeOf(door.published);
+        if (dt <= 0 || hasMoved(door.published, observation)) {
+            publish(door, observation, sink);
+            return;
+        }
+        door.upper = (observation.value + deadBand - door.published.value) / dt;
+        door.lower = (observation.value - deadBand - door.published.value) / dt;
+        door.held.copyFrom(observation);
+        door.holding = true;
+        heartbeat(door, sink);
+    }
+
+    /* publishes the held observation if the last one was published maxInterval ago */
+    private void heartbeat(Door door, Sink sink) {
+        if (timeOf(door.held) - timeOf(door.published) >= maxInterval) {
+            door.holding = false;
+            publish(door, door.held, sink);
+        }
+    }
+
+    private void publish(Door door, Observation observation, Sink sink) {
+        door.published.copyFrom(observation);
+        emittedCount++;
+        sink.emit(door.published);
+    }
+
+    /* the time the observation is placed at on the line, the middle of its window */
+    private static long timeOf(Observation observation) {
+        return observation.phenomenonStart + (observation.phenomenonEnd - observation.phenomenonStart) / 2;
+    }
+
+    private boolean hasMoved(Observation from, Observation to) {
+        return LocationHistory.distance(from.latitude, from.longitude, to.latitude, to.longitude) > distance;
+    }
+
+    /**
+     * flush
+     * Publishes the held observations of all serial numbers, e.g. when the stream has ended. The
+     * doors stay hinged at the published observations.
+     *
+     * @param sink The sink receiving the observations to publish
+     */
+    public void flush(Sink sink) {
+        for (Door door : doors.values()) {
+            if (door.holding) {
+                door.holding = false;
+                publish(door, door.held, sink);
+            }
+        }
+    }
+
+    /**
+     * getOfferedCount
+     *
+     * @return long The number of observations offered so far
+     */
+    public long getOfferedCount() {
+        return offeredCount;
+    }
+
+    /**
+     * getEmittedCount
+     *
+     * @return long The number of observations passed to the sink so far
+     */
+    public long getEmittedCount() {
+        return emittedCount;
+    }
+}
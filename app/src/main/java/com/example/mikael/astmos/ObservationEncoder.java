@@ -0,0 +1,212 @@
+package com.example.mikael.astmos;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ObservationEncoder
+ * Writes observations in the same json format as JSonMessage, but straight into a reusable utf-8
+ * byte buffer instead of building a tree of JSONObjects and converting it to a String and then to
+ * bytes. The parts of the message which only depend on the serial number are encoded once per
+ * serial number and copied in as they are. The output is byte for byte the same as
+ * JSonMessage.msg.toString() encoded as utf-8, which means strings are escaped and numbers are
+ * formatted the way android's org.json does it. Times are written as ISO-8601 in utc by the
+ * IsoTimeFormatter, the phenomenon time as the interval covered by the window.
+ *
+ * An encoder is not thread safe, the content of the buffer is valid until the next call to encode.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public class ObservationEncoder {
+
+    static final String SELF_LINK = "http://storagemanager.linksmartcnet.se/Observations(";
+
+    /* number of serial numbers to keep precomputed fragments for */
+    private static final int MAX_CACHED_SERIALS = 64;
+
+    /**
+     * Fragments
+     * The constant parts of a message for one serial number.
+     */
+    private static class Fragments {
+        byte[] head;    // everything up to the first coordinate
+        byte[] middle;  // from after the last coordinate up to the phenomenon time
+    }
+
+    private final Map<String, Fragments> fragments = new HashMap<>();
+    private final Utf8Buffer scratch = new Utf8Buffer(256);
+    private final Utf8Buffer out = new Utf8Buffer(512);
+
+    /* used to format numbers without creating intermediate strings */
+    private final StringBuilder number = new StringBuilder(32);
+
+    /**
+     * encode
+     * Encodes an observation into the buffer of the encoder, replacing the previous one.
+     *
+     * @param value           The average sensor value of the observation, must be finite
+     * @param coord           The location of the measurements
+     * @param phenomenonStart The time of the first measurement in milliseconds since the epoch
+     * @param phenomenonEnd   The time of the last measurement in milliseconds since the epoch
+     * @param resultTime      The time the observation was made in milliseconds since the epoch
+     * @param serialNr        The unique serial number of the sensor used
+     * @return int The length of the encoded observation
+     */
+    public int encode(double value, Coordinate coord, long phenomenonStart, long phenomenonEnd, long resultTime,
+                      String serialNr) {
+        if (Double.isNaN(value) || Double.isInfinite(value)
+                || Double.isNaN(coord.latitude) || Double.isInfinite(coord.latitude)
+                || Double.isNaN(coord.longitude) || Double.isInfinite(coord.longitude)) {
+            throw new IllegalArgumentException("json numbers must be finite");
+        }
+        Fragments constant = fragmentsFor(serialNr);
+
+        out.clear();
+        out.writeBytes(constant.head);
+        writeNumber(out, coord.latitude);
+        out.writeByte(',');
+        writeNumber(out, coord.longitude);
+        out.writeBytes(constant.middle);
+        out.writeByte('"');
+        IsoTimeFormatter.write(out, phenomenonStart);
+        out.writeAscii("\\/");   // org.json escapes the slash
+        IsoTimeFormatter.write(out, phenomenonEnd);
+        out.writeAscii("\",\"resultTime\":\"");
+        IsoTimeFormatter.write(out, resultTime);
+        out.writeByte('"');
+        out.writeAscii(",\"result\":{\"Value\":");
+        writeNumber(out, value);
+        out.writeAscii("}}}");
+        return out.length();
+    }
+
+    /**
+     * getBuffer
+     *
+     * @return byte[] The buffer holding the last encoded observation, starting at index 0
+     */
+    public byte[] getBuffer() {
+        return out.buffer();
+    }
+
+    /**
+     * getLength
+     *
+     * @return int The length of the last encoded observation
+     */
+    public int getLength() {
+        return out.length();
+    }
+
+    /**
+     * toByteArray
+     *
+     * @return byte[] A copy of the last encoded observation
+     */
+    public byte[] toByteArray() {
+        return out.toByteArray();
+    }
+
+    /**
+     * fragmentsFor
+     * Returns the constant fragments for a serial number, encoding them the first time.
+     */
+    private Fragments fragmentsFor(String serialNr) {
+        Fragments constant = fragments.get(serialNr);
+        if (constant != null) {
+            return constant;
+        }
+        constant = new Fragments();
+
+        scratch.clear();
+        scratch.writeAscii("{\"@iot.id\":");
+        writeString(scratch, serialNr);
+        scratch.writeAscii(",\"@iot.selflink\":");
+        writeString(scratch, SELF_LINK + serialNr + ")");
+        scratch.writeAscii(",\"FeatureOfInterest\":{\"iot.id\":");
+        writeString(scratch, serialNr);
+        scratch.writeAscii(",\"description\":\"description\",\"feature\":{\"type\":\"point\",\"coordinates\":[");
+        constant.head = scratch.toByteArray();
+
+        scratch.clear();
+        scratch.writeAscii("]},\"DataStream\":{\"@iot.id\":");
+        writeString(scratch, serialNr);
+        scratch.writeAscii("},\"phenomenonTime\":");
+        constant.middle = scratch.toByteArray();
+
+        if (fragments.size() >= MAX_CACHED_SERIALS) {
+            fragments.clear();
+        }
+        fragments.put(serialNr, constant);
+        return constant;
+    }
+
+    /**
+     * writeNumber
+     * Writes a number the way org.json's JSONObject.numberToString does, integral values are
+     * written without a fraction.
+     */
+    private void writeNumber(Utf8Buffer buffer, double value) {
+        number.setLength(0);
+        long longValue = (long) value;
+        if (value == 0.0 && 1 / value < 0) {
+            number.append("-0");
+        } else if (value == (double) longValue) {
+            number.append(longValue);
+        } else {
+            number.append(value);
+        }
+        buffer.writeAscii(number);
+    }
+
+    /**
+     * writeString
+     * Writes a json string, escaped the way org.json's JSONStringer does it.
+     */
+    static void writeString(Utf8Buffer buffer, CharSequence value) {
+        buffer.writeByte('"');
+        for (int i = 0, n = value.length(); i < n; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    buffer.writeByte('\\');
+                    buffer.writeByte(c);
+                    break;
+                case '\t':
+                    buffer.writeAscii("\\t");
+                    break;
+                case '\b':
+                    buffer.writeAscii("\\b");
+                    break;
+                case '\n':
+                    buffer.writeAscii("\\n");
+                    break;
+                case '\r':
+                    buffer.writeAscii("\\r");
+                    break;
+                case '\f':
+                    buffer.writeAscii("\\f");
+                    break;
+                default:
+                    if (c <= 0x1F) {
+                        buffer.writeAscii("\\u00");
+                        buffer.writeByte(HEX[c >> 4]);
+                        buffer.writeByte(HEX[c & 0xF]);
+                    } else if (Character.isHighSurrogate(c) && i + 1 < n
+                            && Character.isLowSurrogate(value.charAt(i + 1))) {
+                        buffer.writeCodePoint(Character.toCodePoint(c, value.charAt(++i)));
+                    } else {
+                        buffer.writeCodePoint(c);
+                    }
+                    break;
+            }
+        }
+        buffer.writeByte('"');
+    }
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+}
@@ -0,0 +1,515 @@
+package com.example.mikael.astmos;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Outbox
+ * Crash safe store for messages waiting to be delivered to the mqtt broker. Every message is
+ * appended to a log of memory mapped segment files before it is sent, and stays there until the
+ * broker has acknowledged it. Acknowledgements advance a commit cursor which is also kept on
+ * disk, so after a lost connection or a restart of the process every message after the cursor
+ * is sent again. Segments which only hold committed messages are deleted.
+ *
+ * Each record in a segment is laid out as
+ *  int length | int crc32 | long sequence number | short topic length | topic | payload
+ * where length covers everything after the crc. A length of 0 marks the end of the segment.
+ * Records which are cut short or fail the crc check, e.g. after the device lost power in the
+ * middle of a write, end the log.
+ *
+ * When the log reaches its maximum number of segments the oldest segment is dropped to make
+ * room, so disk usage is bounded and new observations are never rejected.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public class Outbox {
+
+    /**
+     * Sender
+     * Hands messages read from the log to the broker connection.
+     */
+    public interface Sender {
+        /**
+         * send
+         * Sends one message. The buffer is only valid during the call.
+         *
+         * @param sequence The sequence number to acknowledge once the message is delivered
+         * @param topic    The topic to publish the message to
+         * @param payload  The buffer holding the message
+         * @param offset   The index of the first byte of the message
+         * @param length   The number of bytes in the message
+         * @return boolean True if the message was sent, false to stop and retry it later
+         */
+        boolean send(long sequence, String topic, byte[] payload, int offset, int length);
+    }
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+    public static final int DEFAULT_MAX_SEGMENTS = 32;
+
+    static final String SEGMENT_PREFIX = "outbox-";
+    static final String SEGMENT_SUFFIX = ".log";
+    static final String CURSOR_FILE = "outbox.cursor";
+    private static final int HEADER_SIZE = 4 + 4;       // length and crc
+    private static final int FIXED_BODY_SIZE = 8 + 2;   // sequence number and topic length
+
+    /**
+     * Segment
+     * One mapped segment file and the sequence number of its first record.
+     */
+    private static class Segment {
+        final File file;
+        final long firstSequence;
+        final MappedByteBuffer buffer;
+        int end = 0;            // position after the last record
+
+        Segment(File file, long firstSequence, int size) throws IOException {
+            this.file = file;
+            this.firstSequence = firstSequence;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } finally {
+                raf.close();    // the mapping stays valid after the file is closed
+            }
+        }
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final List<Segment> segments = new ArrayList<>();
+    private final MappedByteBuffer cursor;
+    private final CRC32 crc = new CRC32();
+    private final AsciiInternTable topics = new AsciiInternTable();
+    private byte[] scratch = new byte[1024];
+
+    private long nextSequence;      // sequence number of the next appended message
+    private long committed;         // every message before this one has been delivered
+    private final BitSet acknowledged = new BitSet();  // bit i is sequence committed + i
+
+    /* position of the next message to send */
+    private int sendSegment = 0;
+    private int sendPosition = 0;
+    private long sendSequence;
+
+    private long droppedCount = 0;
+
+    /**
+     * Outbox
+     * Constructor opening the outbox in a directory with the default limits.
+     *
+     * @param directory The directory holding the log, created if missing
+     * @throws IOException If the log can not be opened
+     */
+    public Outbox(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+    }
+
+    /**
+     * Outbox
+     * Constructor opening the outbox in a directory, recovering what a previous process left.
+     *
+     * @param directory   The directory holding the log, created if missing
+     * @param segmentSize The size in bytes of one segment file
+     * @param maxSegments The maximum number of segment files kept on disk
+     * @throws IOException If the log can not be opened
+     */
+    public Outbox(File directory, int segmentSize, int maxSegments) throws IOException {
+        if (segmentSize < 64 || maxSegments < 2) {
+            throw new IllegalArgumentException("invalid outbox limits " + segmentSize + ", " + maxSegments);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("could not create " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+
+        RandomAccessFile raf = new RandomAccessFile(new File(directory, CURSOR_FILE), "rw");
+        try {
+            cursor = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 16);
+        } finally {
+            raf.close();
+        }
+        recover();
+    }
+
+    /**
+     * append
+     * Adds a message to the end of the log.
+     *
+     * @param topic   The topic to publish the message to, ascii
+     * @param payload The buffer holding the message
+     * @param offset  The index of the first byte of the message
+     * @param length  The number of bytes in the message
+     * @return long The sequence number of the message
+     * @throws IOException If a new segment can not be created
+     */
+    public synchronized long append(String topic, byte[] payload, int offset, int length) throws IOException {
+        int recordSize = HEADER_SIZE + FIXED_BODY_SIZE + topic.length() + length;
+        if (recordSize + 4 > segmentSize) {
+            throw new IllegalArgumentException("message of " + length + " bytes does not fit in a segment");
+        }
+        Segment segment = segments.get(segments.size() - 1);
+        if (segment.end + recordSize + 4 > segmentSize) {
+            segment = rotate();
+        }
+
+        long sequence = nextSequence++;
+        MappedByteBuffer buffer = segment.buffer;
+        int start = segment.end;
+        buffer.position(start + HEADER_SIZE);
+        buffer.putLong(sequence);
+        buffer.putShort((short) topic.length());
+        for (int i = 0; i < topic.length(); i++) {
+            buffer.put((byte) topic.charAt(i));
+        }
+        buffer.put(payload, offset, length);
+        buffer.putInt(0);   // end marker, overwritten by the next record
+
+        crc.reset();
+        updateCrc(buffer, start + HEADER_SIZE, recordSize - HEADER_SIZE);
+        buffer.putInt(start + 4, (int) crc.getValue());
+        buffer.putInt(start, recordSize - HEADER_SIZE);  // written last, makes the record visible
+        segment.end = start + recordSize;
+        return sequence;
+    }
+
+    /**
+     * drain
+     * Hands the messages which have not been sent since the last rewind to the sender, until the
+     * log is exhausted or the sender refuses a message.
+     *
+     * @param sender The sender to hand the messages to
+     * @return int The number of messages sent
+     */
+    public synchronized int drain(Sender sender) {
+        int sent = 0;
+        while (sendSegment < segments.size()) {
+            Segment segment = segments.get(sendSegment);
+            if (sendPosition >= segment.end) {
+                if (sendSegment == segments.size() - 1) {
+                    break;  // nothing more to send
+                }
+                sendSegment++;
+                sendPosition = 0;
+                continue;
+            }
+            MappedByteBuffer buffer = segment.buffer;
+            int bodyLength = buffer.getInt(sendPosition);
+            long sequence = buffer.getLong(sendPosition + HEADER_SIZE);
+            int topicLength = buffer.getShort(sendPosition + HEADER_SIZE + 8);
+            int payloadLength = bodyLength - FIXED_BODY_SIZE - topicLength;
+            int next = sendPosition + HEADER_SIZE + bodyLength;
+
+            if (sequence < committed || isAcknowledged(sequence)) {
+                sendPosition = next;    // delivered before the last rewind
+                continue;
+            }
+            int bodyStart = sendPosition + HEADER_SIZE + FIXED_BODY_SIZE;
+            if (scratch.length < topicLength + payloadLength) {
+                scratch = new byte[Math.max(scratch.length * 2, topicLength + payloadLength)];
+            }
+            buffer.position(bodyStart);
+            buffer.get(scratch, 0, topicLength + payloadLength);
+            String topic = topics.intern(scratch, 0, topicLength);
+
+            if (!sender.send(sequence, topic, scratch, topicLength, payloadLength)) {
+                break;
+            }
+            sendPosition = next;
+            sendSequence = sequence + 1;
+            sent++;
+        }
+        return sent;
+    }
+
+    /**
+     * rewind
+     * Makes the next drain start over from the oldest message which has not been acknowledged,
+     * e.g. after reconnecting to the broker, since messages in flight may have been lost.
+     */
+    public synchronized void rewind() {
+        sendSegment = 0;
+        sendPosition = 0;
+        sendSequence = committed;
+    }
+
+    /**
+     * acknowledge
+     * Marks a message as delivered. The commit cursor advances over every message at its start
+     * which has been acknowledged, and segments left with only committed messages are deleted.
+     *
+     * @param sequence The sequence number of the delivered message
+     */
+    public synchronized void acknowledge(long sequence) {
+        if (sequence < committed || sequence >= nextSequence) {
+            return;     // already committed or unknown
+        }
+        long offset = sequence - committed;
+        if (offset > Integer.MAX_VALUE - 1) {
+            return;
+        }
+        acknowledged.set((int) offset);
+        int advance = acknowledged.nextClearBit(0);
+        if (advance > 0) {
+            commit(committed + advance);
+        }
+    }
+
+    /**
+     * getPendingCount
+     *
+     * @return long The number of messages in the log which have not been acknowledged
+     */
+    public synchronized long getPendingCount() {
+        return nextSequence - committed - acknowledged.cardinality();
+    }
+
+    /**
+     * getUnsentCount
+     *
+     * @return long The number of messages appended after the last message handed to a sender
+     */
+    public synchronized long getUnsentCount() {
+        return nextSequence - Math.max(sendSequence, committed);
+    }
+
+    /**
+     * getCommitted
+     *
+     * @return long The sequence number of the oldest message which has not been acknowledged
+     */
+    public synchronized long getCommitted() {
+        return committed;
+    }
+
+    /**
+     * getDroppedCount
+     *
+     * @return long The number of messages dropped because the log was full
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * getSegmentCount
+     *
+     * @return int The number of segment files on disk
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * sync
+     * Forces the log and the cursor to the storage device. Writes already survive a crash of the
+     * process without this, it only matters if the device itself loses power.
+     */
+    public synchronized void sync() {
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+        cursor.force();
+    }
+
+    private boolean isAcknowledged(long sequence) {
+        long offset = sequence - committed;
+        return offset >= 0 && offset < Integer.MAX_VALUE && acknowledged.get((int) offset);
+    }
+
+    /**
+     * commit
+     * Moves the commit cursor to the given sequence number and deletes fully committed segments.
+     */
+    private void commit(long sequence) {
+        int advance = (int) (sequence - committed);
+        BitSet remaining = acknowledged.get(advance, Math.max(advance, acknowledged.length()));
+        acknowledged.clear();
+        acknowledged.or(remaining);
+        committed = sequence;
+        if (sendSequence < committed) {
+            sendSequence = committed;
+        }
+        writeCursor();
+
+        /* a segment is fully committed once the next one starts at or before the cursor */
+        while (segments.size() > 1 && segments.get(1).firstSequence <= committed) {
+            deleteOldest();
+        }
+    }
+
+    /**
+     * rotate
+     * Starts a new segment, dropping the oldest one if the log is full.
+     */
+    private Segment rotate() throws IOException {
+        if (segments.size() >= maxSegments) {
+            /* give up on the oldest segment, what was not delivered from it is lost */
+            long end = segments.get(1).firstSequence;
+            if (committed < end) {
+                int span = (int) (end - committed);
+                droppedCount += span - acknowledged.get(0, span).cardinality();
+                commit(end);
+            }
+        }
+        Segment segment = new Segment(segmentFile(nextSequence), nextSequence, segmentSize);
+        segment.buffer.putInt(0, 0);
+        segments.add(segment);
+        return segment;
+    }
+
+    private void deleteOldest() {
+        Segment oldest = segments.remove(0);
+        if (!oldest.file.delete()) {
+            oldest.file.deleteOnExit();
+        }
+        if (sendSegment > 0) {
+            sendSegment--;
+        } else {
+            sendPosition = 0;   // the segment being sent was dropped, continue with the next one
+        }
+    }
+
+    private void writeCursor() {
+        cursor.putLong(0, committed);
+        cursor.putLong(8, ~committed);  // check value, a torn write is detected and ignored
+    }
+
+    private File segmentFile(long firstSequence) {
+        return new File(directory, String.format(Locale.US, "%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX));
+    }
+
+    private void updateCrc(MappedByteBuffer buffer, int position, int length) {
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(scratch.length * 2, length)];
+        }
+        buffer.position(position);
+        buffer.get(scratch, 0, length);
+        crc.update(scratch, 0, length);
+    }
+
+    /**
+     * recover
+     * Opens the segments left by a previous process, finds the end of the log and reads the
+     * commit cursor.
+     */
+    private void recover() throws IOException {
+        long stored = cursor.getLong(0);
+        committed = cursor.getLong(8) == ~stored ? stored : 0;
+
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            throw new IOException("could not list " + directory);
+        }
+        Arrays.sort(files);     // zero padded sequence numbers sort in order
+
+        nextSequence = committed;
+        for (File file : files) {
+            long firstSequence;
+            try {
+                firstSequence = Long.parseLong(file.getName().substring(
+                        SEGMENT_PREFIX.length(), file.getName().length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (file.length() != segmentSize || !segments.isEmpty() && firstSequence != nextSequence) {
+                // written with another segment size or not contiguous, what follows can not be trusted
+                break;
+            }
+            Segment segment = new Segment(file, firstSequence, segmentSize);
+            segment.end = scan(segment);
+            segments.add(segment);
+            nextSequence = firstSequence + countRecords(segment);
+        }
+
+        /* drop segments which were not part of the recovered log */
+        for (File file : files) {
+            boolean used = false;
+            for (Segment segment : segments) {
+                used |= segment.file.equals(file);
+            }
+            if (!used && !file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+
+        if (segments.isEmpty()) {
+            Segment segment = new Segment(segmentFile(committed), committed, segmentSize);
+            segment.buffer.putInt(0, 0);
+            segments.add(segment);
+            nextSequence = committed;
+        }
+        if (committed > nextSequence) {
+            committed = nextSequence;
+        }
+        Segment first = segments.get(0);
+        if (committed < first.firstSequence) {
+            committed = first.firstSequence;
+        }
+        writeCursor();
+        while (segments.size() > 1 && segments.get(1).firstSequence <= committed) {
+            deleteOldest();
+        }
+        rewind();
+    }
+
+    /**
+     * scan
+     * Walks the records of a segment and returns the position after the last valid one. A torn
+     * record is erased so new records are appended in its place.
+     */
+    private int scan(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        int position = 0;
+        long expected = segment.firstSequence;
+        while (position + HEADER_SIZE + FIXED_BODY_SIZE <= segmentSize) {
+            int bodyLength = buffer.getInt(position);
+            if (bodyLength < FIXED_BODY_SIZE || position + HEADER_SIZE + bodyLength + 4 > segmentSize) {
+                break;
+            }
+            int topicLength = buffer.getShort(position + HEADER_SIZE + 8);
+            if (topicLength < 0 || topicLength > bodyLength - FIXED_BODY_SIZE
+                    || buffer.getLong(position + HEADER_SIZE) != expected) {
+                break;
+            }
+            crc.reset();
+            updateCrc(buffer, position + HEADER_SIZE, bodyLength);
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                break;
+            }
+            position += HEADER_SIZE + bodyLength;
+            expected++;
+        }
+        buffer.putInt(position, 0);
+        return position;
+    }
+
+    private int countRecords(Segment segment) {
+        int count = 0;
+        int position = 0;
+        while (position < segment.end) {
+            position += HEADER_SIZE + segment.buffer.getInt(position);
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,160 @@
+package com.example.mikael.astmos;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * PublishBatcher
+ * Gathers encoded observations per topic and hands them on as one json array per topic, instead
+ * of one message per observation. A batch is flushed when it holds maxCount observations or when
+ * its oldest observation is maxAge milliseconds old, whichever comes first. The age is checked
+ * whenever an observation is added and by calling flushExpired regularly, e.g. from a timer.
+ *
+ * The batcher is thread safe, the sink is called while holding the lock of the batcher.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public class PublishBatcher {
+
+    /**
+     * Sink
+     * Receives the batches, typically publishes them to the broker.
+     */
+    public interface Sink {
+        /**
+         * publishBatch
+         * Called with a complete batch. The buffer is only valid during the call.
+         *
+         * @param topic   The topic of the observations in the batch
+         * @param payload The buffer holding the json array
+         * @param length  The number of bytes in the json array
+         * @param count   The number of observations in the batch
+         */
+        void publishBatch(String topic, byte[] payload, int length, int count);
+    }
+
+    /**
+     * Batch
+     * The observations gathered for one topic.
+     */
+    private static class Batch {
+        final Utf8Buffer buffer = new Utf8Buffer(4096);
+        int count = 0;
+        long firstTime = 0;
+    }
+
+    private final int maxCount;
+    private final long maxAge;
+    private final Sink sink;
+    private final Map<String, Batch> batches = new HashMap<>();
+
+    /**
+     * PublishBatcher
+     * Constructor creating a batcher with the given thresholds.
+     *
+     * @param maxCount The number of observations which makes a batch complete
+     * @param maxAge   The age in milliseconds of the oldest observation which makes a batch complete
+     * @param sink     The sink receiving the complete batches
+     */
+    public PublishBatcher(int maxCount, long maxAge, Sink sink) {
+        if (maxCount < 1 || maxAge < 0) {
+            throw new IllegalArgumentException("invalid batch limits " + maxCount + ", " + maxAge);
+        }
+        this.maxCount = maxCount;
+        this.maxAge = maxAge;
+        this.sink = sink;
+    }
+
+    /**
+     * add
+     * Adds an encoded json observation to the batch of a topic. The bytes are copied.
+     *
+     * @param topic   The topic to publish the observation to
+     * @param payload The buffer holding the observation
+     * @param offset  The index of the first byte of the observation
+     * @param length  The number of bytes in the observation
+     * @param now     The current time in milliseconds
+     */
+    public synchronized void add(String topic, byte[] payload, int offset, int length, long now) {
+        Batch batch = batches.get(topic);
+        if (batch == null) {
+            batch = new Batch();
+            batches.put(topic, batch);
+        }
+        if (batch.count == 0) {
+            batch.buffer.clear();
+            batch.buffer.writeByte('[');
+            batch.firstTime = now;
+        } else {
+            batch.buffer.writeByte(',');
+        }
+        batch.buffer.writeBytes(payload, offset, length);
+        batch.count++;
+
+        if (batch.count >= maxCount || now - batch.firstTime >= maxAge) {
+            flush(topic, batch);
+        }
+    }
+
+    /**
+     * flushExpired
+     * Flushes every batch whose oldest observation has reached the maximum age.
+     *
+     * @param now The current time in milliseconds
+     * @return int The number of batches flushed
+     */
+    public synchronized int flushExpired(long now) {
+        int flushed = 0;
+        for (Map.Entry<String, Batch> entry : batches.entrySet()) {
+            Batch batch = entry.getValue();
+            if (batch.count > 0 && now - batch.firstTime >= maxAge) {
+                flush(entry.getKey(), batch);
+                flushed++;
+            }
+        }
+        return flushed;
+    }
+
+    /**
+     * flush
+     * Flushes every batch regardless of its size or age, e.g. on shutdown.
+     *
+     * @return int The number of batches flushed
+     */
+    public synchronized int flush() {
+        int flushed = 0;
+        Iterator<Map.Entry<String, Batch>> it = batches.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Batch> entry = it.next();
+            if (entry.getValue().count > 0) {
+                flush(entry.getKey(), entry.getValue());
+                flushed++;
+            }
+            it.remove();    // release the buffers of topics which may not be used again
+        }
+        return flushed;
+    }
+
+    /**
+     * getPendingCount
+     *
+     * @return int The number of observations waiting in batches
+     */
+    public synchronized int getPendingCount() {
+        int pending = 0;
+        for (Batch batch : batches.values()) {
+            pending += batch.count;
+        }
+        return pending;
+    }
+
+    private void flush(String topic, Batch batch) {
+        batch.buffer.writeByte(']');
+        int count = batch.count;
+        batch.count = 0;
+        sink.publishBatch(topic, batch.buffer.buffer(), batch.buffer.length(), count);
+    }
+}
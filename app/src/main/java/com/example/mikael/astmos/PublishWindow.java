@@ -0,0 +1,557 @@
+package com.example.mikael.astmos;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * PublishWindow
+ * Keeps track of the messages handed to the mqtt client until the broker has acknowledged them,
+ * and holds back the rest so that no more than a window of messages is in flight at once. More
+ * messages in flight hide the latency of the acknowledgements, but after a reconnect a burst of
+ * them only queues up in the client or is refused, e.g. with "too many publishes in progress".
+ *
+ * The size of the window follows the measured time to acknowledge a message, compared to the
+ * shortest time seen lately. While the two are close the window grows, doubling per round trip
+ * at first and by one per round trip once it has had to shrink. Once the messages start to wait
+ * somewhere on the way the latency rises and the window shrinks by about as many messages as
+ * are waiting, within a round trip, and when the client refuses a message the window falls back
+ * to what was in flight.
+ *
+ * Messages come either from the own queue of the window, see submit, or from an outside queue
+ * such as the Outbox, see send, which keeps them and offers them again when there is room. The
+ * identifiers of the messages in the own queue are negative, so that they can not clash with
+ * the sequence numbers of the outbox. Every message has a Delivery, a future completed when the
+ * broker acknowledges the message.
+ *
+ * The window is thread safe, the transport is called while holding the lock of the window.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public class PublishWindow {
+
+    /**
+     * Transport
+     * Hands messages to the broker connection, typically the mqtt client.
+     */
+    public interface Transport {
+        /**
+         * publish
+         * Publishes one message tagged with its identifier, which is given back to delivered
+         * once the broker has acknowledged it. The buffer is only valid during the call.
+         *
+         * @param id      The identifier of the message
+         * @param topic   The topic to publish the message to
+         * @param payload The buffer holding the message
+         * @param offset  The index of the first byte of the message
+         * @param length  The number of bytes in the message
+         * @return boolean True if the message was published, false if it was refused and should
+         *                 be tried again later
+         */
+        boolean publish(long id, String topic, byte[] payload, int offset, int length);
+    }
+
+    /**
+     * Delivery
+     * The future of a published message, or of the observations batched into one. Its value is
+     * the time in milliseconds the broker acknowledged the message. It fails if the message is
+     * dropped from a full queue, and can be cancelled while the message is still queued.
+     */
+    public static class Delivery implements Future<Long> {
+        private static final int PENDING = 0;
+        private static final int DONE = 1;
+        private static final int FAILED = 2;
+        private static final int CANCELLED = 3;
+
+        private int state = PENDING;
+        private long time;
+        private Throwable cause;
+        private PublishWindow window;   // while queued in the window
+        private long id;
+
+        /**
+         * Delivery
+         * Constructor creating a pending delivery, completed by the window it is handed to.
+         */
+        public Delivery() {
+        }
+
+        synchronized void queued(PublishWindow window, long id) {
+            this.window = window;
+            this.id = id;
+        }
+
+        synchronized boolean complete(long time) {
+            if (state != PENDING) {
+                return false;
+            }
+            this.time = time;
+            return finish(DONE);
+        }
+
+        synchronized boolean fail(Throwable cause) {
+            if (state != PENDING) {
+                return false;
+            }
+            this.cause = cause;
+            return finish(FAILED);
+        }
+
+        private boolean finish(int state) {
+            this.state = state;
+            window = null;
+            notifyAll();
+            return true;
+        }
+
+        /**
+         * cancel
+         * Takes the message out of the queue of the window if it has not been published yet.
+         *
+         * @param mayInterruptIfRunning Not used, publishing is never interrupted
+         * @return boolean True if the message will not be published
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            PublishWindow queuedIn;
+            long queuedId;
+            synchronized (this) {
+                queuedIn = window;
+                queuedId = id;
+            }
+            if (queuedIn == null || !queuedIn.cancel(queuedId)) {
+                return false;
+            }
+            synchronized (this) {
+                return state == PENDING && finish(CANCELLED);
+            }
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            return state != PENDING;
+        }
+
+        @Override
+        public synchronized Long get() throws InterruptedException, ExecutionException {
+            while (state == PENDING) {
+                wait();
+            }
+            return result();
+        }
+
+        @Override
+        public synchronized Long get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (state == PENDING) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new TimeoutException();
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return result();
+        }
+
+        private Long result() throws ExecutionException {
+            if (state == CANCELLED) {
+                throw new CancellationException();
+            }
+            if (state == FAILED) {
+                throw new ExecutionException(cause);
+            }
+            return time;
+        }
+    }
+
+    /**
+     * Entry
+     * A message of the own queue, or one from outside while it is in flight.
+     */
+    private static class Entry {
+        final long id;
+        final String topic;
+        final byte[] payload;   // null for messages from outside, which keeps them
+        final Delivery delivery;
+        boolean inFlight = false;
+        long sentTime;
+
+        Entry(long id, String topic, byte[] payload, Delivery delivery) {
+            this.id = id;
+            this.topic = topic;
+            this.payload = payload;
+            this.delivery = delivery;
+        }
+    }
+
+    public static final int DEFAULT_MIN_SIZE = 1;
+    public static final int DEFAULT_MAX_SIZE = 64;
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    static final int INITIAL_SIZE = 4;
+    static final double ALPHA = 1;          // grow while fewer messages than this wait on the way
+    static final double BETA = 3;           // shrink while more messages than this wait on the way
+    static final long EPOCH = 300000;       // milliseconds between forgetting the shortest latency
+
+    private final Transport transport;
+    private final int minSize;
+    private final int maxSize;
+    private final int queueCapacity;
+
+    private final Map<Long, Entry> entries = new HashMap<>();      // queued and in flight, by id
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();    // own messages waiting, oldest first
+    private final Map<Long, Delivery> expected = new HashMap<>();  // deliveries of outside messages not sent yet
+    private long nextId = -1;
+    private int inFlight = 0;
+
+    /* sizing of the window */
+    private double size;
+    private double threshold;           // the window grows slowly above this
+    private double smoothedLatency = 0; // milliseconds, 0 until measured
+    private long baseLatency = Long.MAX_VALUE;
+    private long epochLatency = Long.MAX_VALUE;
+    private long epochStart = Long.MIN_VALUE;
+
+    private long droppedCount = 0;
+
+    /**
+     * PublishWindow
+     * Constructor creating a window with the default limits.
+     *
+     * @param transport The transport the messages are handed to
+     */
+    public PublishWindow(Transport transport) {
+        this(transport, DEFAULT_MIN_SIZE, DEFAULT_MAX_SIZE, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * PublishWindow
+     * Constructor creating a window with the given limits.
+     *
+     * @param transport     The transport the messages are handed to
+     * @param minSize       The smallest number of messages kept in flight
+     * @param maxSize       The largest number of messages kept in flight, at most the in flight
+     *                      limit of the client
+     * @param queueCapacity The number of own messages kept waiting, the oldest is dropped beyond
+     */
+    public PublishWindow(Transport transport, int minSize, int maxSize, int queueCapacity) {
+        if (minSize < 1 || maxSize < minSize || queueCapacity < 1) {
+            throw new IllegalArgumentException("invalid window limits " + minSize + ", " + maxSize + ", " + queueCapacity);
+        }
+        this.transport = transport;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.queueCapacity = queueCapacity;
+        this.size = Math.max(minSize, Math.min(maxSize, INITIAL_SIZE));
+        this.threshold = maxSize;
+    }
+
+    /**
+     * submit
+     * Publishes a message now if the window has room, or queues it until it has. The bytes are
+     * copied. If the queue is full the oldest queued message is dropped and its delivery fails.
+     *
+     * @param topic    The topic to publish the message to
+     * @param payload  The buffer holding the message
+     * @param offset   The index of the first byte of the message
+     * @param length   The number of bytes in the message
+     * @param delivery The delivery to complete, or null for a new one
+     * @param now      The current time in milliseconds
+     * @return Delivery The delivery of the message
+     */
+    public synchronized Delivery submit(String topic, byte[] payload, int offset, int length, Delivery delivery, long now) {
+        if (delivery == null) {
+            delivery = new Delivery();
+        }
+        if (queue.size() >= queueCapacity) {
+            Entry oldest = queue.pollFirst();
+            entries.remove(oldest.id);
+            droppedCount++;
+            oldest.delivery.fail(new IOException("dropped from a full publish queue"));
+        }
+        Entry entry = new Entry(nextId--, topic, Arrays.copyOfRange(payload, offset, offset + length), delivery);
+        entries.put(entry.id, entry);
+        queue.addLast(entry);
+        delivery.queued(this, entry.id);
+        pump(now);
+        return delivery;
+    }
+
+    /**
+     * expect
+     * Registers the delivery of a message from outside, completed once the message is sent
+     * with send and acknowledged. Identifiers must not be negative.
+     *
+     * @param id       The identifier the message will be sent with
+     * @param delivery The delivery to complete, or null for a new one
+     * @return Delivery The delivery of the message
+     */
+    public synchronized Delivery expect(long id, Delivery delivery) {
+        if (id < 0) {
+            throw new IllegalArgumentException("negative id " + id);
+        }
+        if (delivery == null) {
+            delivery = new Delivery();
+        }
+        expected.put(id, delivery);
+        return delivery;
+    }
+
+    /**
+     * send
+     * Publishes a message from outside if the window has room and the own queue is empty. The
+     * caller keeps the message and offers it again later if it is not sent.
+     *
+     * @param id      The identifier of the message, not negative
+     * @param topic   The topic to publish the message to
+     * @param payload The buffer holding the message
+     * @param offset  The index of the first byte of the message
+     * @param length  The number of bytes in the message
+     * @param now     The current time in milliseconds
+     * @return boolean True if the message was published
+     */
+    public synchronized boolean send(long id, String topic, byte[] payload, int offset, int length, long now) {
+        if (!queue.isEmpty() || inFlight >= getSize()) {
+            return false;
+        }
+        Entry entry = entries.get(id);
+        if (entry != null && entry.inFlight) {
+            return true;    // sent again before it was acknowledged, e.g. after a rewind
+        }
+        if (!transport.publish(id, topic, payload, offset, length)) {
+            refused();
+            return false;
+        }
+        entry = new Entry(id, topic, null, expected.remove(id));
+        entries.put(id, entry);
+        sent(entry, now);
+        return true;
+    }
+
+    /**
+     * delivered
+     * Completes the delivery of an acknowledged message, measures the latency, resizes the
+     * window and publishes what the window has room for.
+     *
+     * @param id  The identifier of the message
+     * @param now The current time in milliseconds
+     * @return long The time in milliseconds from publishing to the acknowledgement, or -1 if the
+     *              message is not known or was not in flight
+     */
+    public synchronized long delivered(long id, long now) {
+        Entry entry = entries.remove(id);
+        if (entry == null) {
+            Delivery delivery = expected.remove(id);
+            if (delivery != null) {
+                delivery.complete(now);    // acknowledged before this window sent it, e.g. after a restart
+            }
+            return -1;
+        }
+        long latency = -1;
+        if (entry.inFlight) {
+            inFlight--;
+            latency = Math.max(0, now - entry.sentTime);
+            resize(latency, now);
+        } else {
+            queue.remove(entry);    // a copy sent before a reconnect was acknowledged after all
+        }
+        if (entry.delivery != null) {
+            entry.delivery.complete(now);
+        }
+        pump(now);
+        return latency;
+    }
+
+    /**
+     * reset
+     * Forgets what was in flight, e.g. after reconnecting to the broker, since the messages
+     * may have been lost with the old connection. Own messages are queued again in their order,
+     * messages from outside are left to their queue to offer again. Deliveries stay pending.
+     *
+     * @param now The current time in milliseconds
+     */
+    public synchronized void reset(long now) {
+        Entry[] flying = new Entry[inFlight];
+        int count = 0;
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (!entry.inFlight) {
+                continue;
+            }
+            entry.inFlight = false;
+            if (entry.payload != null) {
+                flying[count++] = entry;
+            } else {
+                it.remove();
+                if (entry.delivery != null) {
+                    expected.put(entry.id, entry.delivery);
+                }
+            }
+        }
+        inFlight = 0;
+        /* own ids count down, so the oldest has the largest */
+        Arrays.sort(flying, 0, count, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return a.id < b.id ? -1 : (a.id == b.id ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < count; i++) {
+            queue.addFirst(flying[i]);
+        }
+        pump(now);
+    }
+
+    /**
+     * abandon
+     * Fails the pending deliveries of messages from outside with identifiers below the given
+     * one, e.g. when the outbox dropped them to make room.
+     *
+     * @param below The smallest identifier still kept outside
+     * @param cause The reason given to the deliveries
+     */
+    public synchronized void abandon(long below, Throwable cause) {
+        Iterator<Map.Entry<Long, Delivery>> it = expected.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Delivery> entry = it.next();
+            if (entry.getKey() < below) {
+                entry.getValue().fail(cause);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * getSize
+     *
+     * @return int The number of messages which may be in flight at once
+     */
+    public synchronized int getSize() {
+        return (int) size;
+    }
+
+    /**
+     * getInFlightCount
+     *
+     * @return int The number of messages published and not yet acknowledged
+     */
+    public synchronized int getInFlightCount() {
+        return inFlight;
+    }
+
+    /**
+     * getQueuedCount
+     *
+     * @return int The number of own messages waiting for room in the window
+     */
+    public synchronized int getQueuedCount() {
+        return queue.size();
+    }
+
+    /**
+     * getDroppedCount
+     *
+     * @return long The number of own messages dropped because the queue was full
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * getSmoothedLatency
+     *
+     * @return double The average time to acknowledge a message in milliseconds, 0 until measured
+     */
+    public synchronized double getSmoothedLatency() {
+        return smoothedLatency;
+    }
+
+    /* takes a queued message out of the queue, for Delivery.cancel */
+    synchronized boolean cancel(long id) {
+        Entry entry = entries.get(id);
+        if (entry == null || entry.inFlight) {
+            return false;
+        }
+        entries.remove(id);
+        queue.remove(entry);
+        return true;
+    }
+
+    /* publishes queued messages while the window has room */
+    private void pump(long now) {
+        while (!queue.isEmpty() && inFlight < getSize()) {
+            Entry entry = queue.peekFirst();
+            if (!transport.publish(entry.id, entry.topic, entry.payload, 0, entry.payload.length)) {
+                refused();
+                return;
+            }
+            queue.pollFirst();
+            sent(entry, now);
+        }
+    }
+
+    private void sent(Entry entry, long now) {
+        entry.inFlight = true;
+        entry.sentTime = now;
+        inFlight++;
+        if (entry.delivery != null) {
+            entry.delivery.queued(null, 0);
+        }
+    }
+
+    /* the client holds no more than what is in flight, unless nothing is, e.g. while disconnected */
+    private void refused() {
+        if (inFlight > 0) {
+            size = Math.max(minSize, Math.min(size, inFlight));
+            threshold = size;
+        }
+    }
+
+    /**
+     * resize
+     * Estimates the number of messages waiting on the way, the window times the share of the
+     * latency above the shortest one of the last EPOCH or two, and grows the window while that
+     * is below ALPHA and shrinks it by what is above BETA, at most by half. Changes are spread
+     * over the acknowledgements of one window.
+     */
+    private void resize(long latency, long now) {
+        smoothedLatency = smoothedLatency == 0 ? latency : smoothedLatency + (latency - smoothedLatency) / 8;
+        epochLatency = Math.min(epochLatency, latency);
+        baseLatency = Math.min(baseLatency, latency);
+        if (epochStart == Long.MIN_VALUE) {
+            epochStart = now;
+        } else if (now - epochStart >= EPOCH) {
+            baseLatency = epochLatency;     // forget a shortest latency the link no longer has
+            epochLatency = Long.MAX_VALUE;
+            epochStart = now;
+        }
+
+        double waiting = smoothedLatency <= 0 ? 0 : size * (1 - Math.max(1, baseLatency) / Math.max(1, smoothedLatency));
+        if (waiting < ALPHA) {
+            if (inFlight + 1 >= (int) size) {   // only grow a window which is used
+                size += size < threshold ? 1 : 1 / size;
+            }
+        } else if (waiting > BETA) {
+            size -= Math.min(size / 2, waiting - BETA) / size;
+            threshold = Math.min(threshold, size);
+        }
+        size = Math.max(minSize, Math.min(maxSize, size));
+    }
+}
@@ -0,0 +1,167 @@
+package com.example.mikael.astmos;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * ReplaySensorSource
+ * Streams a recorded capture of '!'-delimited frames from disk, e.g. a dump of what a sensor
+ * unit sent over bluetooth. The units send a frame at a regular interval, which the replay
+ * reproduces at the original speed or faster, or without any pause at all. The capture can be
+ * replayed once or over and over.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public class ReplaySensorSource implements SensorSource {
+
+    /* replay without pauses between frames */
+    public static final double UNPACED = Double.POSITIVE_INFINITY;
+
+    private final String name;
+    private final File capture;
+    private final long frameInterval;
+    private final double speed;
+    private final boolean loop;
+    private volatile InputStream in;
+    private volatile boolean closed = false;
+
+    /**
+     * ReplaySensorSource
+     * Constructor creating a source replaying a capture.
+     *
+     * @param name          The name of the sensor unit
+     * @param capture       The file holding the recorded frames
+     * @param frameInterval The time between frames when recorded in milliseconds
+     * @param speed         How many times faster than recorded to replay, UNPACED for no pauses
+     * @param loop          True to start over at the end of the capture
+     */
+    public ReplaySensorSource(String name, File capture, long frameInterval, double speed, boolean loop) {
+        if (!(speed > 0)) {
+            throw new IllegalArgumentException("speed must be positive");
+        }
+        this.name = name;
+        this.capture = capture;
+        this.frameInterval = frameInterval;
+        this.speed = speed;
+        this.loop = loop;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public InputStream open() throws IOException {
+        InputStream created = new pacedStream();
+        in = created;
+        if (closed) {
+            created.close();
+            throw new IOException(name + " is closed");
+        }
+        return created;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        InputStream current = in;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                // nothing left to release
+            }
+        }
+    }
+
+    /**
+     * pacedStream
+     * Reads the capture and hands out at most one frame per read, each no earlier than its
+     * turn at the replay speed.
+     */
+    private class pacedStream extends InputStream {
+        private volatile InputStream file;
+        private final long start = System.nanoTime();
+        private final double nanosPerFrame = speed == UNPACED ? 0 : frameInterval * 1e6 / speed;
+        private long frames = 0;            // frames handed out so far
+        private boolean atFrameStart = true;
+        private boolean emptyPass = true;   // no byte read since the capture was last opened
+        private volatile boolean streamClosed = false;
+
+        pacedStream() throws IOException {
+            file = new BufferedInputStream(new FileInputStream(capture));
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            int count = 0;
+            while (count < length) {
+                if (streamClosed) {
+                    throw new IOException("replay closed");
+                }
+                if (atFrameStart) {
+                    if (count > 0) {
+                        break;      // the next frame waits for its own read
+                    }
+                    waitForTurn();
+                    atFrameStart = false;
+                }
+                int b = file.read();
+                if (b < 0) {
+                    if (!loop || emptyPass) {
+                        return count > 0 ? count : -1;
+                    }
+                    file.close();
+                    file = new BufferedInputStream(new FileInputStream(capture));
+                    emptyPass = true;
+                    continue;
+                }
+                emptyPass = false;
+                buffer[offset + count++] = (byte) b;
+                if (b == SensorFrameDecoder.DELIMITER) {
+                    frames++;
+                    atFrameStart = true;
+                }
+            }
+            return count;
+        }
+
+        private void waitForTurn() throws IOException {
+            if (nanosPerFrame == 0) {
+                return;
+            }
+            long due = start + (long) (frames * nanosPerFrame);
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                try {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("replay interrupted");
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            streamClosed = true;    // a reader in read stops at the next byte
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.example.mikael.astmos;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ReverseGeocoder
+ * Turns location fixes into addresses without blocking the thread asking. Addresses are cached
+ * by the geohash cell of the coordinate, so a device standing still or moving slowly reuses the
+ * address of its cell and only asks the AddressLookup when it enters a cell it has not seen
+ * recently. The cache holds a bounded number of cells and forgets the least recently used. A
+ * cell without an address, e.g. open water or a rural road, is cached as such, only failed
+ * lookups are asked again.
+ *
+ * At most one lookup is in flight. Requests made meanwhile are not queued, only the newest is
+ * kept and looked up when the running lookup is done, since the device has moved past the
+ * others. Results are passed to the listener on the lookup thread, or on the requesting thread
+ * when the address is already cached.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public class ReverseGeocoder {
+
+    /**
+     * Listener
+     * Receives the results of the requests.
+     */
+    public interface Listener {
+        /**
+         * onAddress
+         * Called when the address of a requested coordinate is known.
+         *
+         * @param latitude  The requested latitude
+         * @param longitude The requested longitude
+         * @param address   The address, null if the coordinate has none
+         */
+        void onAddress(double latitude, double longitude, String address);
+
+        /**
+         * onLookupFailed
+         * Called when the address of a requested coordinate could not be looked up.
+         *
+         * @param latitude  The requested latitude
+         * @param longitude The requested longitude
+         * @param cause     The error of the lookup
+         */
+        void onLookupFailed(double latitude, double longitude, IOException cause);
+    }
+
+    /* default settings */
+    public static final int DEFAULT_PRECISION = 7;      // cells of about 150 x 150 m
+    public static final int DEFAULT_CACHE_SIZE = 256;
+
+    private final AddressLookup lookup;
+    private final int precision;
+    private final Executor executor;
+    private final Listener listener;
+
+    /* cached for a cell the lookup found no address for, compared by identity */
+    private static final String NO_ADDRESS = new String("");
+    private final Runnable lookupTask = new lookupTask();
+
+    /* guarded by this */
+    private final Map<Long, String> cache;          // address by cell, in order of use
+    private boolean inFlight = false;
+    private boolean pending = false;                // the newest request waits for a lookup
+    private double pendingLatitude;
+    private double pendingLongitude;
+    private long pendingCell;
+    private long hitCount = 0;
+    private long lookupCount = 0;
+
+    /**
+     * ReverseGeocoder
+     * Constructor creating a geocoder running its lookups on the given executor.
+     *
+     * @param lookup    The lookup asked for addresses which are not cached
+     * @param precision The number of geohash characters of the cached cells
+     * @param cacheSize The largest number of cached cells
+     * @param executor  The executor running the lookups
+     * @param listener  The listener receiving the results
+     */
+    ReverseGeocoder(AddressLookup lookup, int precision, final int cacheSize, Executor executor, Listener listener) {
+        if (cacheSize < 1) {
+            throw new IllegalArgumentException("cacheSize must be positive: " + cacheSize);
+        }
+        Geohash.encode(0, 0, precision);    // checks the precision
+        this.lookup = lookup;
+        this.precision = precision;
+        this.executor = executor;
+        this.listener = listener;
+        this.cache = new LinkedHashMap<Long, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * ReverseGeocoder
+     * Constructor creating a geocoder with its own lookup thread, which ends when it has been
+     * idle for a while.
+     *
+     * @param lookup    The lookup asked for addresses which are not cached
+     * @param precision The number of geohash characters of the cached cells
+     * @param cacheSize The largest number of cached cells
+     * @param listener  The listener receiving the results
+     */
+    public ReverseGeocoder(AddressLookup lookup, int precision, int cacheSize, Listener listener) {
+        this(lookup, precision, cacheSize, newLookupExecutor(), listener);
+    }
+
+    private static ExecutorService newLookupExecutor() {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "ReverseGeocoder");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * request
+     * Asks for the address of a coordinate. Returns at once, the listener is called with the
+     * address when it is known unless a newer request has replaced this one.
+     *
+     * @param latitude  The latitude in degrees
+     * @param longitude The longitude in degrees
+     */
+    public void request(double latitude, double longitude) {
+        long cell = Geohash.encode(latitude, longitude, precision);
+        String address;
+        synchronized (this) {
+            address = cache.get(cell);
+            if (address == null) {
+                pending = true;
+                pendingLatitude = latitude;
+                pendingLongitude = longitude;
+                pendingCell = cell;
+                if (!inFlight) {
+                    inFlight = true;
+                    executor.execute(lookupTask);
+                }
+                return;
+            }
+            pending = false;    // an older request waiting for a lookup is out of date
+            hitCount++;
+        }
+        listener.onAddress(latitude, longitude, address == NO_ADDRESS ? null : address);
+    }
+
+    /**
+     * lookupTask
+     * Looks up the newest request until there is none left, on the lookup thread.
+     */
+    private class lookupTask implements Runnable {
+        @Override
+        public void run() {
+            boolean done = false;
+            try {
+                while (true) {
+                    double latitude;
+                    double longitude;
+                    long cell;
+                    String address;
+                    synchronized (ReverseGeocoder.this) {
+                        if (!pending) {
+                            inFlight = false;
+                            done = true;
+                            return;
+                        }
+                        pending = false;
+                        latitude = pendingLatitude;
+                        longitude = pendingLongitude;
+                        cell = pendingCell;
+                        address = cache.get(cell);
+                        if (address == null) {
+                            lookupCount++;
+                        }
+                    }
+                    if (address == null) {
+                        try {
+                            address = lookup.lookup(latitude, longitude);
+                        } catch (IOException e) {
+                            listener.onLookupFailed(latitude, longitude, e);
+                            continue;
+                        }
+                        synchronized (ReverseGeocoder.this) {
+                            cache.put(cell, address != null ? address : NO_ADDRESS);
+                        }
+                    }
+                    listener.onAddress(latitude, longitude, address == NO_ADDRESS ? null : address);
+                }
+            } finally {
+                if (!done) {
+                    synchronized (ReverseGeocoder.this) {
+                        inFlight = false;   // the lookup or listener threw, let the next request start over
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * getHitCount
+     *
+     * @return long The number of requests answered from the cache
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * getLookupCount
+     *
+     * @return long The number of lookups made
+     */
+    public synchronized long getLookupCount() {
+        return lookupCount;
+    }
+
+    /**
+     * shutdown
+     * Stops the executor running the lookups, waiting requests are dropped.
+     */
+    public void shutdown() {
+        if (executor instanceof ExecutorService) {
+            ((ExecutorService) executor).shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.example.mikael.astmos;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * SampleQueue
+ * Bounded, lock-free queue handing sensor samples from exactly one producer thread (the bluetooth
+ * reader) to exactly one consumer thread (the pipeline). The slots are preallocated SensorRecords
+ * which samples are copied in and out of, so passing a sample allocates nothing.
+ *
+ * What happens when the producer finds the queue full is decided by the overflow policy. The
+ * producer can wait for the consumer to make room, drop the oldest queued sample to make room
+ * itself, or drop the new sample. Dropped samples are counted.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public class SampleQueue {
+
+    /**
+     * OverflowPolicy
+     * What the producer does when the queue is full.
+     */
+    public enum OverflowPolicy {
+        BLOCK,          // wait until the consumer has taken a sample
+        DROP_OLDEST,    // discard the oldest queued sample to make room for the new one
+        DROP_NEWEST     // discard the new sample
+    }
+
+    /* how long a waiting thread parks before checking the queue again */
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final SensorRecord[] slots;
+    private final int mask;
+    private final OverflowPolicy policy;
+
+    /* positions only ever grow, the slot of a position is position & mask */
+    private final AtomicLong head = new AtomicLong();   // next position to take
+    private final AtomicLong tail = new AtomicLong();   // next position to put
+    private final AtomicLong dropped = new AtomicLong();
+
+    /* threads parked waiting on the queue, woken by the other side */
+    private volatile Thread waitingConsumer;
+    private volatile Thread waitingProducer;
+
+    /**
+     * SampleQueue
+     * Constructor creating a queue with room for at least the given number of samples, rounded
+     * up to the next power of two.
+     *
+     * @param capacity The number of samples the queue can hold
+     * @param policy   What to do when a sample is offered to a full queue
+     */
+    public SampleQueue(int capacity, OverflowPolicy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        slots = new SensorRecord[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new SensorRecord();
+        }
+        mask = size - 1;
+        this.policy = policy;
+    }
+
+    /**
+     * offer
+     * Copies a sample into the queue. Must only be called from the producer thread.
+     *
+     * @param record The sample to add
+     * @return boolean True if the sample was queued, false if it was dropped
+     * @throws InterruptedException If the producer was interrupted while waiting for room
+     */
+    public boolean offer(SensorRecord record) throws InterruptedException {
+        long position = tail.get();
+        while (position - head.get() >= slots.length) {
+            switch (policy) {
+                case DROP_NEWEST:
+                    dropped.incrementAndGet();
+                    return false;
+                case DROP_OLDEST:
+                    long oldest = head.get();
+                    if (position - oldest >= slots.length && head.compareAndSet(oldest, oldest + 1)) {
+                        dropped.incrementAndGet();
+                    }
+                    break;
+                default:
+                    waitingProducer = Thread.currentThread();
+                    if (position - head.get() >= slots.length) {
+                        LockSupport.parkNanos(this, PARK_NANOS);
+                    }
+                    waitingProducer = null;
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                    break;
+            }
+        }
+        slots[(int) position & mask].copyFrom(record);
+        tail.set(position + 1);
+
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /**
+     * poll
+     * Copies the oldest sample out of the queue if there is one. Must only be called from the
+     * consumer thread.
+     *
+     * @param record The record to copy the sample to
+     * @return boolean True if a sample was taken, false if the queue was empty
+     */
+    public boolean poll(SensorRecord record) {
+        while (true) {
+            long position = head.get();
+            if (position >= tail.get()) {
+                return false;
+            }
+            record.copyFrom(slots[(int) position & mask]);
+            // the producer may have dropped and overwritten this slot while it was being read
+            if (head.compareAndSet(position, position + 1)) {
+                Thread producer = waitingProducer;
+                if (producer != null) {
+                    LockSupport.unpark(producer);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * take
+     * Copies the oldest sample out of the queue, waiting for one if the queue is empty. Must only
+     * be called from the consumer thread.
+     *
+     * @param record The record to copy the sample to
+     * @throws InterruptedException If the consumer was interrupted while waiting
+     */
+    public void take(SensorRecord record) throws InterruptedException {
+        while (!poll(record)) {
+            waitingConsumer = Thread.currentThread();
+            if (head.get() >= tail.get()) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+            waitingConsumer = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * size
+     *
+     * @return int The number of samples currently queued
+     */
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, slots.length));
+    }
+
+    /**
+     * capacity
+     *
+     * @return int The number of samples the queue can hold
+     */
+    public int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * getDroppedCount
+     *
+     * @return long The number of samples dropped because the queue was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+}
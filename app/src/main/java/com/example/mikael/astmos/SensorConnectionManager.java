@@ -0,0 +1,568 @@
+package com.example.mikael.astmos;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SensorConnectionManager
+ * Runs the connections to several sensor units at once, e.g. one unit per gas carried in the
+ * same vehicle, or replayed and synthetic sources off the device. Every connection gets its own
+ * reader, frame decoder, sample queue and pipeline, the reader and the pipeline of a connection
+ * run as tasks on one executor shared by all connections. The executor is bounded by the number
+ * of connections the manager accepts and its threads are reused when sensors disconnect and
+ * connect again.
+ *
+ * When reconnecting is enabled the reader of a connection also supervises it. A connection is
+ * CONNECTING while the source is being opened and STREAMING while frames are read. When the
+ * source can not be opened or its stream fails, e.g. when the sensor unit reboots, the reader
+ * closes the stream, sleeps for a delay given by a Backoff and tries again, until the
+ * connection is closed or its stream ends. The reader is the only one opening and closing the
+ * streams of its source, closing the connection only closes the source to unblock it and wakes
+ * the reader if it is sleeping.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public class SensorConnectionManager {
+
+    /**
+     * ConnectionListener
+     * Told when connections end. Called on the reader thread of the connection.
+     */
+    public interface ConnectionListener {
+        /**
+         * onStateChanged
+         * Called when a connection starts connecting, streaming or waiting to reconnect.
+         *
+         * @param connection The connection
+         * @param state      The new state of the connection
+         */
+        void onStateChanged(Connection connection, State state);
+
+        /**
+         * onDisconnected
+         * Called when the reader of a connection has stopped.
+         *
+         * @param connection The connection which has stopped
+         * @param cause      The error which stopped it, null if it was closed or the stream ended
+         */
+        void onDisconnected(Connection connection, IOException cause);
+    }
+
+    /**
+     * State
+     * Where a connection is in its life.
+     */
+    public enum State {
+        CONNECTING,     // the source is being opened
+        STREAMING,      // frames are being read
+        BACKOFF,        // waiting to open the source again after a failure
+        CLOSED          // closed, failed for good or its stream ended
+    }
+
+    /**
+     * Connection
+     * One sensor unit with the tasks reading and processing its samples.
+     */
+    public class Connection {
+        private final SensorSource source;
+        private final SampleQueue queue;
+        private final SensorPipeline pipeline;
+        private final Metrics metrics = new Metrics();
+        private final Backoff backoff;      // null if the connection is not reopened
+        private volatile State state = State.CONNECTING;
+        private volatile boolean closed = false;
+        private Thread readerThread;        // the thread running the reader, guarded by this
+        private Future<?> pipelineTask;
+
+        Connection(SensorSource source, SensorPipeline.Listener listener, Backoff backoff) {
+            this.source = source;
+            this.backoff = backoff;
+            this.queue = new SampleQueue(queueCapacity, overflowPolicy);
+            this.pipeline = new SensorPipeline(queue, windowSize, calibrations, metrics, listener);
+            metrics.gauge("queueDepth", new Metrics.Gauge() {
+                @Override
+                public long read() {
+                    return queue.size();
+                }
+            });
+            metrics.gauge("queueDropped", new Metrics.Gauge() {
+                @Override
+                public long read() {
+                    return queue.getDroppedCount();
+                }
+            });
+        }
+
+        /**
+         * getName
+         *
+         * @return String The name of the sensor unit
+         */
+        public String getName() {
+            return source.getName();
+        }
+
+        /**
+         * getPipeline
+         *
+         * @return SensorPipeline The pipeline processing the samples of the sensor unit
+         */
+        public SensorPipeline getPipeline() {
+            return pipeline;
+        }
+
+        /**
+         * getQueue
+         *
+         * @return SampleQueue The queue between the reader and the pipeline
+         */
+        public SampleQueue getQueue() {
+            return queue;
+        }
+
+        /**
+         * getMetrics
+         *
+         * @return Metrics The metrics of the reader and the pipeline of the sensor unit
+         */
+        public Metrics getMetrics() {
+            return metrics;
+        }
+
+        /**
+         * getState
+         *
+         * @return State Where the connection is in its life
+         */
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * isClosed
+         *
+         * @return boolean True once the connection has been closed
+         */
+        public boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * close
+         * Closes the connection and stops its tasks.
+         */
+        void close() {
+            closed = true;
+            source.close();
+            synchronized (this) {
+                if (readerThread != null) {
+                    readerThread.interrupt();   // in case it waits for room in the queue
+                }
+            }
+            pipelineTask.cancel(true);
+        }
+    }
+
+    /**
+     * reader
+     * Reads the frames of one connection until it is closed, its stream ends or it fails, and
+     * hands the parsed samples to the pipeline of the connection. When the connection has a
+     * backoff, failures are waited out and the source is opened again. Counts the frames, those
+     * which could not be parsed or did not fit the decoder, and the attempts to open the source
+     * in the metrics of the connection.
+     */
+    private class reader implements Runnable, SensorFrameDecoder.FrameListener {
+        private final Connection connection;
+        private final SensorRecordParser parser = new SensorRecordParser();
+        private final SensorRecord record = new SensorRecord();
+        private final Metrics.Counter frames;
+        private final Metrics.Counter malformed;
+        private final Metrics.Counter attempts;
+        private volatile SensorFrameDecoder decoder;
+
+        reader(Connection connection) {
+            this.connection = connection;
+            frames = connection.metrics.counter("frames");
+            malformed = connection.metrics.counter("malformed");
+            attempts = connection.metrics.counter("connectAttempts");
+            connection.metrics.gauge("oversized", new Metrics.Gauge() {
+                @Override
+                public long read() {
+                    SensorFrameDecoder current = decoder;
+                    return current != null ? current.getOversizedCount() : 0;
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            IOException cause = null;
+            synchronized (connection) {
+                connection.readerThread = Thread.currentThread();
+            }
+            try {
+                while (!connection.closed) {
+                    cause = stream();
+                    if (cause == null || connection.closed || connection.backoff == null) {
+                        break;
+                    }
+                    long delay = connection.backoff.next();
+                    changeState(State.BACKOFF);
+                    try {
+                        Thread.sleep(delay);    // woken by close
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            } finally {
+                if (connection.closed) {
+                    cause = null;
+                }
+                synchronized (connection) {
+                    connection.readerThread = null;
+                }
+                Thread.interrupted();   // the pool thread is reused
+                remove(connection);
+                connection.source.close();
+                if (!connection.closed) {
+                    connection.pipeline.finish();   // the stream ended, publish what was read
+                }
+                connection.pipelineTask.cancel(true);
+                changeState(State.CLOSED);
+            }
+            if (connectionListener != null) {
+                connectionListener.onDisconnected(connection, cause);
+            }
+        }
+
+        /**
+         * stream
+         * Opens the source once and reads its stream until it ends or fails, then closes it.
+         *
+         * @return IOException The failure, null if the stream ended
+         */
+        private IOException stream() {
+            changeState(State.CONNECTING);
+            attempts.increment();
+            InputStream in = null;
+            long framesBefore = frames.get();
+            try {
+                in = connection.source.open();
+                changeState(State.STREAMING);
+                decoder = new SensorFrameDecoder(in, this);
+                decoder.run();  // blocks until the stream ends, fails or is closed
+                return null;
+            } catch (IOException e) {
+                return e;
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // closed already
+                    }
+                }
+                if (connection.backoff != null && frames.get() > framesBefore) {
+                    connection.backoff.reset();     // it streamed, so start over from a short delay
+                }
+            }
+        }
+
+        private void changeState(State state) {
+            if (connection.state == state) {
+                return;
+            }
+            connection.state = state;
+            if (connectionListener != null) {
+                connectionListener.onStateChanged(connection, state);
+            }
+        }
+
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length) {
+            frames.increment();
+            if (!parser.parse(buffer, offset, length, record)) {
+                malformed.increment();
+                return;
+            }
+            record.time = System.currentTimeMillis();  // time of the measurement
+            ObservationBus samples = bus;
+            if (samples != null) {
+                samples.publish(ObservationBus.SAMPLES, record);
+            }
+            try {
+                connection.queue.offer(record);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();     // the connection is being closed
+            }
+        }
+    }
+
+    /* default settings */
+    public static final int DEFAULT_MAX_CONNECTIONS = 4;
+    static final int TASKS_PER_CONNECTION = 2;  // a reader and a pipeline
+
+    private final int maxConnections;
+    private final ExecutorService executor;
+    private final ConnectionListener connectionListener;
+    private final Map<String, Connection> connections = new LinkedHashMap<>();
+    private final Random random = new Random();
+
+    /* reopening of failed connections, off until enabled */
+    private volatile long reconnectDelay = 0;
+    private volatile long maxReconnectDelay = 0;
+
+    /* the bus every parsed sample is also published to, null until set */
+    private volatile ObservationBus bus;
+
+    /* aggregation by cell of new connections given a cell sink, off until enabled, guarded by this */
+    private LocationHistory cellLocations = null;
+    private int cellPrecision;
+    private long cellBucketSize;
+    private long cellLateness;
+
+    /* settings of the pipelines of new connections */
+    private final int queueCapacity;
+    private final SampleQueue.OverflowPolicy overflowPolicy;
+    private final int windowSize;
+    private final Map<String, CalibrationProfile> calibrations;
+
+    /**
+     * SensorConnectionManager
+     * Constructor creating a manager for at most the given number of simultaneous connections.
+     *
+     * @param maxConnections     The largest number of sensor units connected at once
+     * @param queueCapacity      The number of samples buffered between reader and pipeline
+     * @param overflowPolicy     What a reader does when its pipeline falls behind
+     * @param windowSize         The number of samples aggregated into one observation
+     * @param calibrations       The calibration profiles of the sensor heads by serial number
+     * @param connectionListener The listener told about ended connections, may be null
+     */
+    public SensorConnectionManager(int maxConnections, int queueCapacity, SampleQueue.OverflowPolicy overflowPolicy,
+                                   int windowSize, Map<String, CalibrationProfile> calibrations,
+                                   ConnectionListener connectionListener) {
+        if (maxConnections <= 0) {
+            throw new IllegalArgumentException("maxConnections must be positive");
+        }
+        this.maxConnections = maxConnections;
+        this.queueCapacity = queueCapacity;
+        this.overflowPolicy = overflowPolicy;
+        this.windowSize = windowSize;
+        this.calibrations = calibrations;
+        this.connectionListener = connectionListener;
+
+        int threads = maxConnections * TASKS_PER_CONNECTION;
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "SensorConnection-" + count.incrementAndGet());
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);  // no idle threads while nothing is connected
+        this.executor = pool;
+    }
+
+    /**
+     * SensorConnectionManager
+     * Constructor creating a manager for uncalibrated sensor heads.
+     *
+     * @param maxConnections     The largest number of sensor units connected at once
+     * @param queueCapacity      The number of samples buffered between reader and pipeline
+     * @param overflowPolicy     What a reader does when its pipeline falls behind
+     * @param windowSize         The number of samples aggregated into one observation
+     * @param connectionListener The listener told about ended connections, may be null
+     */
+    public SensorConnectionManager(int maxConnections, int queueCapacity, SampleQueue.OverflowPolicy overflowPolicy,
+                                   int windowSize, ConnectionListener connectionListener) {
+        this(maxConnections, queueCapacity, overflowPolicy, windowSize,
+                Collections.<String, CalibrationProfile>emptyMap(), connectionListener);
+    }
+
+    /**
+     * connect
+     * Starts reading from a sensor unit.
+     *
+     * @param source    The source of the frames of the sensor unit
+     * @param listener  The listener receiving the results of the pipeline of the connection
+     * @return Connection The new connection
+     * @throws IllegalStateException If the unit is already connected, the manager is full or shut down
+     */
+    public synchronized Connection connect(SensorSource source, SensorPipeline.Listener listener) {
+        return connect(source, listener, null);
+    }
+
+    /**
+     * connect
+     * Starts reading from a sensor unit, aggregating its samples by cell as well when enabled.
+     *
+     * @param source    The source of the frames of the sensor unit
+     * @param listener  The listener receiving the results of the pipeline of the connection
+     * @param cells     The sink receiving the cells of the pipeline, null for windows only
+     * @return Connection The new connection
+     * @throws IllegalStateException If the unit is already connected, the manager is full or shut down
+     */
+    public synchronized Connection connect(SensorSource source, SensorPipeline.Listener listener,
+                                           CellAggregator.Sink cells) {
+        if (executor.isShutdown()) {
+            throw new IllegalStateException("manager is shut down");
+        }
+        if (connections.containsKey(source.getName())) {
+            throw new IllegalStateException(source.getName() + " is already connected");
+        }
+        if (connections.size() >= maxConnections) {
+            throw new IllegalStateException("at most " + maxConnections + " sensors can be connected");
+        }
+        Backoff backoff = reconnectDelay > 0 ? new Backoff(reconnectDelay, maxReconnectDelay, random) : null;
+        Connection connection = new Connection(source, listener, backoff);
+        if (cells != null && cellLocations != null) {
+            connection.pipeline.aggregateByCell(cellLocations, cellPrecision, cellBucketSize, cellLateness, cells);
+        }
+        connections.put(source.getName(), connection);
+        connection.pipelineTask = executor.submit(connection.pipeline);
+        executor.execute(new reader(connection));
+        return connection;
+    }
+
+    /**
+     * enableReconnect
+     * Makes new connections open their source again when it can not be opened or its stream
+     * fails, after a delay which doubles with every failed attempt.
+     *
+     * @param initialDelay The delay in milliseconds after the first failure, at most
+     * @param maxDelay     The longest delay in milliseconds
+     */
+    public void enableReconnect(long initialDelay, long maxDelay) {
+        if (initialDelay < 1 || maxDelay < initialDelay) {
+            throw new IllegalArgumentException("invalid reconnect delays " + initialDelay + ", " + maxDelay);
+        }
+        this.maxReconnectDelay = maxDelay;
+        this.reconnectDelay = initialDelay;
+    }
+
+    /**
+     * enableCellAggregation
+     * Makes the pipelines of new connections given a cell sink also aggregate their samples by
+     * geohash cell and time bucket, see CellAggregator.
+     *
+     * @param locations       The history placing the samples at their time
+     * @param precision       The number of characters of the geohash of the cells
+     * @param bucketSize      The length of the time buckets in milliseconds
+     * @param allowedLateness How far in milliseconds the watermark trails the newest sample
+     */
+    public synchronized void enableCellAggregation(LocationHistory locations, int precision, long bucketSize,
+                                                   long allowedLateness) {
+        if (precision < 1 || precision > Geohash.MAX_PRECISION || bucketSize < 1 || allowedLateness < 0) {
+            throw new IllegalArgumentException("invalid cell settings " + precision + ", " + bucketSize + ", "
+                    + allowedLateness);
+        }
+        this.cellLocations = locations;
+        this.cellPrecision = precision;
+        this.cellBucketSize = bucketSize;
+        this.cellLateness = allowedLateness;
+    }
+
+    /**
+     * publishSamples
+     * Publishes every sample parsed by the readers to the samples topic of a bus, as well as
+     * queueing it for its pipeline.
+     *
+     * @param bus The bus to publish to, null to stop publishing
+     */
+    public void publishSamples(ObservationBus bus) {
+        this.bus = bus;
+    }
+
+    /**
+     * disconnect
+     * Closes the connection to the named sensor unit, if there is one.
+     *
+     * @param name The name of the sensor unit
+     * @return boolean True if the unit was connected
+     */
+    public boolean disconnect(String name) {
+        Connection connection;
+        synchronized (this) {
+            connection = connections.remove(name);
+        }
+        if (connection == null) {
+            return false;
+        }
+        connection.close();
+        return true;
+    }
+
+    /**
+     * disconnectAll
+     * Closes every connection.
+     */
+    public void disconnectAll() {
+        for (Connection connection : getConnections()) {
+            disconnect(connection.getName());
+        }
+    }
+
+    /**
+     * resetAll
+     * Discards the samples of the current windows of every connection.
+     */
+    public void resetAll() {
+        for (Connection connection : getConnections()) {
+            connection.pipeline.reset();
+        }
+    }
+
+    /**
+     * shutdown
+     * Closes every connection and stops the threads of the manager. The manager can not be
+     * used afterwards.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            executor.shutdown();
+        }
+        disconnectAll();
+        executor.shutdownNow();
+    }
+
+    /**
+     * getConnections
+     *
+     * @return List The current connections, in the order they were made
+     */
+    public synchronized List<Connection> getConnections() {
+        return new ArrayList<>(connections.values());
+    }
+
+    /**
+     * getMaxConnections
+     *
+     * @return int The largest number of sensor units connected at once
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    private synchronized void remove(Connection connection) {
+        if (connections.get(connection.getName()) == connection) {
+            connections.remove(connection.getName());
+        }
+    }
+}
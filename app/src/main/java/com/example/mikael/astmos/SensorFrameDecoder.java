@@ -0,0 +1,188 @@
+package com.example.mikael.astmos;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * SensorFrameDecoder
+ * Splits the byte stream sent by the connected sensor device (raspberry pi) into frames. Each
+ * frame is terminated by the delimiter '!'. The decoder does blocking reads from the stream into
+ * a single ring buffer which is reused for the lifetime of the decoder, and every complete frame
+ * found in a read is handed to the registered listener. No objects are allocated per frame.
+ *
+ * A frame is only valid for the duration of the listener call, copy the bytes if they need to
+ * be kept around. Frames longer than the capacity of the buffer are dropped and counted, the
+ * decoder then resynchronizes on the next delimiter.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public class SensorFrameDecoder {
+
+    /**
+     * FrameListener
+     * Callback receiving the frames found by the decoder.
+     */
+    public interface FrameListener {
+        /**
+         * onFrame
+         * Called once for every complete frame, without the delimiter.
+         *
+         * @param buffer The buffer holding the frame, only valid during the call
+         * @param offset The index of the first byte of the frame
+         * @param length The number of bytes in the frame
+         */
+        void onFrame(byte[] buffer, int offset, int length);
+    }
+
+    public static final byte DELIMITER = '!';
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final InputStream inputStream;
+    private final FrameListener listener;
+
+    /* ring buffer holding bytes read but not yet consumed as a frame */
+    private final byte[] ring;
+    private final int mask;
+    private long head = 0;              // position of the first byte of the current frame
+    private long tail = 0;              // position one past the last byte read
+    private long scan = 0;              // position where the search for the next delimiter resumes
+    private boolean discarding = false; // true while skipping the rest of an oversized frame
+
+    /* scratch buffer used to hand out frames which wrap around the end of the ring */
+    private final byte[] frame;
+
+    /* statistics */
+    private long frameCount = 0;
+    private long oversizedCount = 0;
+
+    /**
+     * SensorFrameDecoder
+     * Constructor creating a decoder with the default buffer capacity.
+     *
+     * @param inputStream The stream to read frames from
+     * @param listener    The listener receiving every decoded frame
+     */
+    public SensorFrameDecoder(InputStream inputStream, FrameListener listener) {
+        this(inputStream, listener, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * SensorFrameDecoder
+     * Constructor creating a decoder with a given buffer capacity, which is rounded up to the
+     * next power of two. The capacity limits the longest frame that can be decoded.
+     *
+     * @param inputStream The stream to read frames from
+     * @param listener    The listener receiving every decoded frame
+     * @param capacity    The size of the ring buffer in bytes
+     */
+    public SensorFrameDecoder(InputStream inputStream, FrameListener listener, int capacity) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("capacity must be at least 2: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.inputStream = inputStream;
+        this.listener = listener;
+        this.ring = new byte[size];
+        this.mask = size - 1;
+        this.frame = new byte[size];
+    }
+
+    /**
+     * readFrames
+     * Does one blocking read from the stream and passes every frame completed by the read on
+     * to the listener.
+     *
+     * @return int The number of frames decoded, or -1 if the end of the stream was reached
+     * @throws IOException If reading from the stream fails
+     */
+    public int readFrames() throws IOException {
+        if (tail - head == ring.length) {
+            // the buffer is full without a delimiter, drop what we have and skip to the next one
+            oversizedCount++;
+            head = tail;
+            scan = tail;
+            discarding = true;
+        }
+
+        /* read into the free space of the ring, up to the physical end of the array */
+        int writeIndex = (int) (tail & mask);
+        int free = ring.length - (int) (tail - head);
+        int count = inputStream.read(ring, writeIndex, Math.min(free, ring.length - writeIndex));
+        if (count < 0) {
+            return -1;
+        }
+        tail += count;
+
+        int frames = 0;
+        while (scan < tail) {
+            if (ring[(int) (scan & mask)] != DELIMITER) {
+                scan++;
+                continue;
+            }
+            if (discarding) {
+                discarding = false;
+            } else {
+                emit(head, (int) (scan - head));
+                frames++;
+            }
+            scan++;
+            head = scan;
+        }
+        return frames;
+    }
+
+    /**
+     * run
+     * Reads frames until the end of the stream is reached or the calling thread is interrupted.
+     *
+     * @throws IOException If reading from the stream fails
+     */
+    public void run() throws IOException {
+        while (!Thread.currentThread().isInterrupted()) {
+            if (readFrames() < 0) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * emit
+     * Passes a frame on to the listener, directly from the ring if it is contiguous, otherwise
+     * through the scratch buffer.
+     *
+     * @param start  The position of the first byte of the frame
+     * @param length The number of bytes in the frame
+     */
+    private void emit(long start, int length) {
+        int offset = (int) (start & mask);
+        frameCount++;
+        if (offset + length <= ring.length) {
+            listener.onFrame(ring, offset, length);
+        } else {
+            int first = ring.length - offset;
+            System.arraycopy(ring, offset, frame, 0, first);
+            System.arraycopy(ring, 0, frame, first, length - first);
+            listener.onFrame(frame, 0, length);
+        }
+    }
+
+    /**
+     * getFrameCount
+     *
+     * @return long The number of frames decoded so far
+     */
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * getOversizedCount
+     *
+     * @return long The number of frames dropped because they did not fit in the buffer
+     */
+    public long getOversizedCount() {
+        return oversizedCount;
+    }
+}
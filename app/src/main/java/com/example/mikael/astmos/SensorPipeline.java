@@ -0,0 +1,394 @@
+package com.example.mikael.astmos;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * SensorPipeline
+ * The stage which turns raw samples into observations. It runs on its own thread and takes the
+ * samples put in its queue by the bluetooth reader, converts the gas level to micrograms/cubic
+ * meter, aggregates the values over a window and hands every completed window to the listener,
+ * which encodes and publishes it. All of this happens off the ui thread. Samples are aggregated
+ * per serial number, so a sensor unit carrying several sensor heads gets one window per head.
+ *
+ * The samples waiting in the queue are taken in batches of up to BATCH_SIZE, and every run of
+ * samples from the same head is calibrated and converted in one pass by the GasConverter of the
+ * head, which is created when the first sample of the head arrives.
+ *
+ * Besides the windows of a fixed number of samples, the samples can also be aggregated by where
+ * and when they were taken, see aggregateByCell. Every sample is then placed by the location
+ * history at its own time and added to the CellAggregator of its head, and the complete cells are
+ * handed to a sink of their own.
+ *
+ * The lag of every batch, from the time the oldest sample in it was read to the time it is
+ * processed, and the number of windows and cells are recorded in the metrics of the pipeline,
+ * as are the samples left out of the cells because their position was not known.
+ *
+ * The ui is only told that a new value is available, and only if it has picked up the previous
+ * one, so no matter how fast samples arrive there is at most one pending ui update. The ui then
+ * reads the latest value with readLatest.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public class SensorPipeline implements Runnable {
+
+    /**
+     * Listener
+     * Callbacks from the pipeline, called on the pipeline thread.
+     */
+    public interface Listener {
+        /**
+         * onLatestAvailable
+         * Called when a new latest value is available and the previous one has been read.
+         */
+        void onLatestAvailable();
+
+        /**
+         * onWindow
+         * Called when a window of samples is complete. The window is only valid during the call.
+         *
+         * @param serialNr The serial number of the sensor the samples came from
+         * @param gas      The gas being measured
+         * @param window   The completed window
+         */
+        void onWindow(String serialNr, String gas, WindowAggregator window);
+
+        /**
+         * onStopped
+         * Called once when the pipeline stops, after the last window. Observations held back by
+         * the listener should be published here.
+         */
+        void onStopped();
+    }
+
+    /**
+     * Snapshot
+     * The latest value seen by the pipeline, as read by the ui.
+     */
+    public static class Snapshot {
+        String gas;
+        String serialNr;
+        double level;
+        long time;
+    }
+
+    /**
+     * Channel
+     * The state kept for one sensor head, names the cells of the head before passing them on.
+     */
+    private class Channel implements CellAggregator.Sink {
+        final String serialNr;
+        final WindowAggregator window;
+        final CellAggregator cells;     // null unless aggregating by cell
+        String gas;
+        GasConverter converter;
+
+        Channel(String serialNr, int windowSize) {
+            this.serialNr = serialNr;
+            window = new WindowAggregator(windowSize);
+            cells = cellSink != null ? new CellAggregator(cellPrecision, cellBucketSize, cellLateness) : null;
+        }
+
+        @Override
+        public void emit(CellAggregator.Cell cell) {
+            cell.serialNr = serialNr;
+            cell.gas = gas;
+            cellCount.increment();
+            cellSink.emit(cell);
+        }
+    }
+
+    /* largest number of samples taken from the queue at once */
+    static final int BATCH_SIZE = 64;
+
+    private final SampleQueue queue;
+    private final int windowSize;
+    private final Map<String, CalibrationProfile> calibrations;    // by serial number
+    private final Map<String, Channel> channels = new HashMap<>();  // by serial number
+    private final Listener listener;
+    private final Metrics.Histogram lag;                            // milliseconds
+    private final Metrics.Counter windows;
+    private final Metrics.Counter cellCount;
+    private final Metrics.Counter lateSamples;
+    private final Metrics.Counter unplacedSamples;
+
+    /* aggregation by cell, off unless set before the pipeline runs */
+    private LocationHistory locations;
+    private CellAggregator.Sink cellSink;
+    private int cellPrecision;
+    private long cellBucketSize;
+    private long cellLateness;
+    private final Coordinate position = new Coordinate();   // where the sample being added was taken
+
+    /* the batch being processed */
+    private final SensorRecord[] batch = new SensorRecord[BATCH_SIZE];
+    private final double[] ppbs = new double[BATCH_SIZE];
+    private final double[] temperatures = new double[BATCH_SIZE];     // kelvin
+    private final double[] levels = new double[BATCH_SIZE];
+
+    /* latest value, written by the pipeline and read by the ui */
+    private final Snapshot latest = new Snapshot();
+    private final AtomicBoolean latestPending = new AtomicBoolean(false);
+
+    private final AtomicBoolean resetRequested = new AtomicBoolean(false);
+    private volatile boolean finishing = false;     // process what is queued before stopping
+    private volatile long sampleCount = 0;
+
+    /**
+     * SensorPipeline
+     * Constructor creating a pipeline consuming the given queue.
+     *
+     * @param queue        The queue the bluetooth reader puts samples in
+     * @param windowSize   The number of samples aggregated into one observation
+     * @param calibrations The calibration profiles by serial number, heads without one are not calibrated
+     * @param metrics      The metrics the lag and the windows are recorded in
+     * @param listener     The listener receiving the completed windows
+     */
+    public SensorPipeline(SampleQueue queue, int windowSize, Map<String, CalibrationProfile> calibrations,
+                          Metrics metrics, Listener listener) {
+        this.queue = queue;
+        this.windowSize = windowSize;
+        this.calibrations = calibrations;
+        this.listener = listener;
+        this.lag = metrics.histogram("pipelineLag");
+        this.windows = metrics.counter("windows");
+        this.cellCount = metrics.counter("cells");
+        this.lateSamples = metrics.counter("lateSamples");
+        this.unplacedSamples = metrics.counter("unplacedSamples");
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch[i] = new SensorRecord();
+        }
+    }
+
+    /**
+     * SensorPipeline
+     * Constructor creating a pipeline consuming the given queue, with metrics of its own.
+     *
+     * @param queue        The queue the bluetooth reader puts samples in
+     * @param windowSize   The number of samples aggregated into one observation
+     * @param calibrations The calibration profiles by serial number, heads without one are not calibrated
+     * @param listener     The listener receiving the completed windows
+     */
+    public SensorPipeline(SampleQueue queue, int windowSize, Map<String, CalibrationProfile> calibrations,
+                          Listener listener) {
+        this(queue, windowSize, calibrations, new Metrics(), listener);
+    }
+
+    /**
+     * SensorPipeline
+     * Constructor creating a pipeline for uncalibrated sensor heads consuming the given queue.
+     *
+     * @param queue      The queue the bluetooth reader puts samples in
+     * @param windowSize The number of samples aggregated into one observation
+     * @param listener   The listener receiving the completed windows
+     */
+    public SensorPipeline(SampleQueue queue, int windowSize, Listener listener) {
+        this(queue, windowSize, Collections.<String, CalibrationProfile>emptyMap(), listener);
+    }
+
+    /**
+     * aggregateByCell
+     * Makes the pipeline also aggregate the samples of every head by geohash cell and time
+     * bucket. Must be called before the pipeline runs. Samples whose position is not known are
+     * left out of the cells.
+     *
+     * @param locations       The history placing the samples at their time
+     * @param precision       The number of characters of the geohash of the cells
+     * @param bucketSize      The length of the time buckets in milliseconds
+     * @param allowedLateness How far in milliseconds the watermark trails the newest sample
+     * @param sink            The sink receiving the complete cells, on the pipeline thread
+     */
+    public void aggregateByCell(LocationHistory locations, int precision, long bucketSize, long allowedLateness,
+                                CellAggregator.Sink sink) {
+        if (precision < 1 || precision > Geohash.MAX_PRECISION || bucketSize < 1 || allowedLateness < 0) {
+            throw new IllegalArgumentException("invalid cell settings " + precision + ", " + bucketSize + ", "
+                    + allowedLateness);
+        }
+        this.locations = locations;
+        this.cellPrecision = precision;
+        this.cellBucketSize = bucketSize;
+        this.cellLateness = allowedLateness;
+        this.cellSink = sink;
+    }
+
+    /**
+     * run
+     * Processes samples until the thread running the pipeline is interrupted. If the pipeline
+     * is finishing, the samples left in the queue are processed before returning. The listener
+     * is told that the pipeline stopped with the interrupt cleared, so it can still publish.
+     */
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                queue.take(batch[0]);
+                processTaken(poll(1));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();  // done
+        }
+        if (finishing) {
+            int count;
+            while ((count = poll(0)) > 0) {
+                processTaken(count);
+            }
+        }
+        boolean interrupted = Thread.interrupted();
+        try {
+            for (Channel channel : channels.values()) {
+                if (channel.cells != null) {
+                    channel.cells.flush(channel);   // the stream will not move the watermark past them
+                }
+            }
+            listener.onStopped();
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /* fills the rest of the batch with the samples waiting in the queue */
+    private int poll(int count) {
+        while (count < BATCH_SIZE && queue.poll(batch[count])) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * finish
+     * Makes the pipeline process the samples left in its queue when it is stopped, e.g. when the
+     * stream of the sensor has ended. Called before interrupting the thread running the pipeline.
+     */
+    public void finish() {
+        finishing = true;
+    }
+
+    private void processTaken(int count) {
+        if (resetRequested.getAndSet(false)) {
+            channels.clear();
+        }
+        lag.record(System.currentTimeMillis() - batch[0].time);
+        process(count);
+    }
+
+    /**
+     * process
+     * Runs one sample through the pipeline.
+     *
+     * @param sample The sample to process
+     */
+    void process(SensorRecord sample) {
+        batch[0].copyFrom(sample);
+        process(1);
+    }
+
+    /**
+     * process
+     * Runs the first samples of the batch through the pipeline.
+     *
+     * @param count The number of samples in the batch
+     */
+    private void process(int count) {
+        for (int i = 0; i < count; i++) {
+            ppbs[i] = batch[i].ppb;
+            temperatures[i] = GasConverter.toKelvin(batch[i].temperature);
+        }
+
+        /* convert every run of samples from the same head in one pass */
+        for (int start = 0, end; start < count; start = end) {
+            SensorRecord first = batch[start];
+            Channel channel = channelOf(first);
+            for (end = start + 1; end < count; end++) {
+                if (!first.serialNr.equals(batch[end].serialNr) || !first.gas.equals(batch[end].gas)) {
+                    break;
+                }
+            }
+            channel.converter.convert(ppbs, temperatures, levels, start, end - start);
+            for (int i = start; i < end; i++) {
+                double level = Math.round(levels[i]*100.0)/100.0;
+                levels[i] = level;
+                if (channel.window.add(level, batch[i].time)) {
+                    windows.increment();
+                    listener.onWindow(batch[i].serialNr, batch[i].gas, channel.window);
+                }
+                if (channel.cells == null) {
+                    continue;
+                }
+                if (!locations.positionAt(batch[i].time, position)) {
+                    unplacedSamples.increment();
+                } else if (!channel.cells.add(level, batch[i].time, position.latitude, position.longitude, channel)) {
+                    lateSamples.increment();
+                }
+            }
+        }
+
+        SensorRecord last = batch[count - 1];
+        synchronized (latest) {
+            latest.gas = last.gas;
+            latest.serialNr = last.serialNr;
+            latest.level = levels[count - 1];
+            latest.time = last.time;
+        }
+        sampleCount += count;
+        if (latestPending.compareAndSet(false, true)) {
+            listener.onLatestAvailable();
+        }
+    }
+
+    /* the channel of the head of a sample, with a converter for the gas of the sample */
+    private Channel channelOf(SensorRecord sample) {
+        Channel channel = channels.get(sample.serialNr);
+        if (channel == null) {
+            channel = new Channel(sample.serialNr, windowSize);
+            channels.put(sample.serialNr, channel);
+        }
+        if (!sample.gas.equals(channel.gas)) {
+            CalibrationProfile calibration = calibrations.get(sample.serialNr);
+            channel.gas = sample.gas;
+            channel.converter = new GasConverter(Gas.forName(sample.gas), GasConverter.STANDARD_PRESSURE,
+                    calibration != null ? calibration : CalibrationProfile.IDENTITY);
+        }
+        return channel;
+    }
+
+    /**
+     * readLatest
+     * Copies the latest value into the given snapshot and allows the next onLatestAvailable
+     * callback. Safe to call from any thread.
+     *
+     * @param snapshot The snapshot to copy the latest value to
+     */
+    public void readLatest(Snapshot snapshot) {
+        latestPending.set(false);
+        synchronized (latest) {
+            snapshot.gas = latest.gas;
+            snapshot.serialNr = latest.serialNr;
+            snapshot.level = latest.level;
+            snapshot.time = latest.time;
+        }
+    }
+
+    /**
+     * reset
+     * Discards the samples of the current windows, e.g. when the sensor is stopped. Safe to call
+     * from any thread, the windows are cleared before the next sample is processed.
+     */
+    public void reset() {
+        resetRequested.set(true);
+    }
+
+    /**
+     * getSampleCount
+     *
+     * @return long The number of samples processed so far
+     */
+    public long getSampleCount() {
+        return sampleCount;
+    }
+}
@@ -0,0 +1,50 @@
+package com.example.mikael.astmos;
+
+/**
+ * SensorRecord
+ * Holds the fields of one sample sent by the connected sensor device. The record is mutable and
+ * meant to be reused, the parser overwrites it with every frame it decodes.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public class SensorRecord {
+    String gas;         // name of the gas being measured, e.g. "O3"
+    int ppb;            // gas level in parts per billion
+    int temperature;    // temperature measured by the sensor
+    String serialNr;    // serial number of the sensor
+    long time;          // time the frame was received in milliseconds since the epoch
+
+    /**
+     * set
+     * Overwrites all fields of the record.
+     *
+     * @param gas         The name of the gas being measured
+     * @param ppb         The gas level in parts per billion
+     * @param temperature The temperature measured by the sensor
+     * @param serialNr    The serial number of the sensor
+     */
+    public void set(String gas, int ppb, int temperature, String serialNr) {
+        this.gas = gas;
+        this.ppb = ppb;
+        this.temperature = temperature;
+        this.serialNr = serialNr;
+    }
+
+    /**
+     * copyFrom
+     * Overwrites all fields of the record with the fields of another record.
+     *
+     * @param other The record to copy
+     */
+    public void copyFrom(SensorRecord other) {
+        set(other.gas, other.ppb, other.temperature, other.serialNr);
+        time = other.time;
+    }
+
+    @Override
+    public String toString() {
+        return gas + "," + ppb + "," + temperature + "," + serialNr + "@" + time;
+    }
+}
@@ -0,0 +1,152 @@
+package com.example.mikael.astmos;
+
+/**
+ * SensorRecordParser
+ * Parses the comma separated frames sent by the connected sensor device directly from the bytes
+ * handed out by the SensorFrameDecoder. A frame has the fields
+ *  gas,ppb,temperature,reserved,serialNr
+ * where ppb and temperature are integers. The fields are written into a reusable SensorRecord,
+ * the gas and serial number strings are looked up in intern tables so repeated values do not
+ * allocate. Frames which can not be parsed are counted and leave the record untouched.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public class SensorRecordParser {
+
+    static final byte SEPARATOR = ',';
+    static final int FIELD_COUNT = 5;
+
+    /* returned by parseInt for fields which are not a valid int */
+    private static final long INVALID = Long.MIN_VALUE;
+
+    private final AsciiInternTable gasNames = new AsciiInternTable(16);
+    private final AsciiInternTable serialNrs = new AsciiInternTable();
+
+    /* start and end index of each field of the frame being parsed */
+    private final int[] starts = new int[FIELD_COUNT];
+    private final int[] ends = new int[FIELD_COUNT];
+
+    private long malformedCount = 0;
+
+    /**
+     * parse
+     * Parses one frame into the given record.
+     *
+     * @param buffer The buffer holding the frame
+     * @param offset The index of the first byte of the frame
+     * @param length The number of bytes in the frame
+     * @param record The record to write the fields to
+     * @return boolean True if the frame was valid and the record was written, otherwise false
+     */
+    public boolean parse(byte[] buffer, int offset, int length, SensorRecord record) {
+        /* locate the fields, trailing fields added by newer sensor software are ignored */
+        int end = offset + length;
+        int field = 0;
+        starts[0] = offset;
+        ends[FIELD_COUNT - 1] = end;
+        for (int i = offset; i < end; i++) {
+            if (buffer[i] == SEPARATOR) {
+                if (field == FIELD_COUNT - 1) {
+                    ends[field] = i;
+                    break;
+                }
+                ends[field++] = i;
+                starts[field] = i + 1;
+            }
+        }
+        if (field < FIELD_COUNT - 1) {
+            malformedCount++;
+            return false;
+        }
+
+        long ppb = parseInt(buffer, starts[1], ends[1]);
+        long temperature = parseInt(buffer, starts[2], ends[2]);
+        int gasStart = trimmedStart(buffer, starts[0], ends[0]);
+        int gasEnd = trimmedEnd(buffer, gasStart, ends[0]);
+        int serialStart = trimmedStart(buffer, starts[4], ends[4]);
+        int serialEnd = trimmedEnd(buffer, serialStart, ends[4]);
+        if (ppb == INVALID || temperature == INVALID || gasStart == gasEnd || serialStart == serialEnd) {
+            malformedCount++;
+            return false;
+        }
+
+        record.set(gasNames.intern(buffer, gasStart, gasEnd - gasStart),
+                (int) ppb,
+                (int) temperature,
+                serialNrs.intern(buffer, serialStart, serialEnd - serialStart));
+        return true;
+    }
+
+    /**
+     * getMalformedCount
+     *
+     * @return long The number of frames which could not be parsed
+     */
+    public long getMalformedCount() {
+        return malformedCount;
+    }
+
+    /**
+     * parseInt
+     * Parses a decimal int with an optional sign from a byte range.
+     *
+     * @param buffer The buffer holding the digits
+     * @param start  The index of the first byte
+     * @param end    The index one past the last byte
+     * @return long The parsed value, or INVALID if the range is not a valid int
+     */
+    private static long parseInt(byte[] buffer, int start, int end) {
+        start = trimmedStart(buffer, start, end);
+        end = trimmedEnd(buffer, start, end);
+        if (start == end) {
+            return INVALID;
+        }
+        boolean negative = false;
+        if (buffer[start] == '-' || buffer[start] == '+') {
+            negative = buffer[start] == '-';
+            if (++start == end) {
+                return INVALID;
+            }
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return INVALID;
+            }
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                return INVALID;
+            }
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE) {
+            return INVALID;
+        }
+        return value;
+    }
+
+    /**
+     * trimmedStart
+     * Skips leading white space such as line breaks at the start of a field.
+     */
+    private static int trimmedStart(byte[] buffer, int start, int end) {
+        while (start < end && (buffer[start] & 0xff) <= ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    /**
+     * trimmedEnd
+     * Skips trailing white space such as line breaks at the end of a field.
+     */
+    private static int trimmedEnd(byte[] buffer, int start, int end) {
+        while (end > start && (buffer[end - 1] & 0xff) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.mikael.astmos;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * SensorSource
+ * Where the '!'-delimited frames of one sensor unit come from. On the device this is the
+ * bluetooth socket of the unit, off the device a recorded capture or a synthetic generator,
+ * so the whole pipeline can be run and load-tested on a plain jvm.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public interface SensorSource {
+
+    /**
+     * getName
+     *
+     * @return String The name of the sensor unit, unique among the connections of a manager
+     */
+    String getName();
+
+    /**
+     * open
+     * Opens the source, called on the reader thread.
+     *
+     * @return InputStream The stream of frames sent by the sensor unit
+     * @throws IOException If the source could not be opened
+     */
+    InputStream open() throws IOException;
+
+    /**
+     * close
+     * Closes the source, unblocking a reader waiting for data. Called from any thread and
+     * possibly more than once.
+     */
+    void close();
+}
@@ -0,0 +1,240 @@
+package com.example.mikael.astmos;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Random;
+
+/**
+ * SyntheticSensorSource
+ * Generates frames in the format of the sensor units, for load tests of the pipeline off the
+ * device. The gas level follows a slow wave with some noise, the frames cycle through the given
+ * serial numbers like a unit carrying several sensor heads. Frames are written straight into
+ * the buffer of the reader, so the generator itself does not limit the rate, which can be
+ * bounded to a number of frames per second or left unpaced.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public class SyntheticSensorSource implements SensorSource {
+
+    /* generate frames as fast as they are read */
+    public static final double UNPACED = Double.POSITIVE_INFINITY;
+
+    /* shape of the generated gas level in ppb */
+    static final int BASE_PPB = 40;
+    static final int WAVE_PPB = 20;
+    static final int NOISE_PPB = 5;
+    static final int WAVE_FRAMES = 600;     // frames per period of the wave
+    static final int TEMPERATURE = 20;
+
+    private final String name;
+    private final String gas;
+    private final String[] serialNrs;
+    private final double framesPerSecond;
+    private final long frameCount;
+    private final long seed;
+    private volatile generatorStream in;
+    private volatile boolean closed = false;
+
+    /**
+     * SyntheticSensorSource
+     * Constructor creating a generator.
+     *
+     * @param name            The name of the sensor unit
+     * @param gas             The gas reported in the frames
+     * @param serialNrs       The serial numbers the frames cycle through
+     * @param framesPerSecond The rate of the frames, UNPACED for as fast as they are read
+     * @param frameCount      The number of frames before the stream ends, negative for no end
+     * @param seed            The seed of the noise, the same seed gives the same frames
+     */
+    public SyntheticSensorSource(String name, String gas, String[] serialNrs, double framesPerSecond,
+                                 long frameCount, long seed) {
+        if (serialNrs.length == 0) {
+            throw new IllegalArgumentException("at least one serial number is needed");
+        }
+        if (!(framesPerSecond > 0)) {
+            throw new IllegalArgumentException("framesPerSecond must be positive");
+        }
+        this.name = name;
+        this.gas = gas;
+        this.serialNrs = serialNrs.clone();
+        this.framesPerSecond = framesPerSecond;
+        this.frameCount = frameCount;
+        this.seed = seed;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public InputStream open() throws IOException {
+        generatorStream created = new generatorStream();
+        in = created;
+        if (closed) {
+            created.close();
+            throw new IOException(name + " is closed");
+        }
+        return created;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        generatorStream current = in;
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    /**
+     * getGeneratedCount
+     *
+     * @return long The number of frames generated by the last opened stream
+     */
+    public long getGeneratedCount() {
+        generatorStream current = in;
+        return current == null ? 0 : current.frames;
+    }
+
+    /**
+     * ppbOf
+     * The gas level of a frame, the same for every stream of a generator with the same seed.
+     *
+     * @param frame The index of the frame
+     * @param noise The noise of the frame in the range [0, 1)
+     * @return int The gas level in ppb
+     */
+    static int ppbOf(long frame, double noise) {
+        double wave = Math.sin(2 * Math.PI * (frame % WAVE_FRAMES) / WAVE_FRAMES);
+        return (int) Math.round(BASE_PPB + WAVE_PPB * wave + NOISE_PPB * (2 * noise - 1));
+    }
+
+    /**
+     * generatorStream
+     * Hands out as many whole frames as fit in each read, waiting when ahead of the rate.
+     */
+    private class generatorStream extends InputStream {
+        private final Random random = new Random(seed);
+        private final byte[] prefix = ascii(gas + ",");
+        private final byte[][] suffixes = new byte[serialNrs.length][];  // ",temperature,0,serial!" per head
+        private final byte[] frame = new byte[128];
+        private int framePosition = 0;
+        private int frameLength = 0;
+        private final long start = System.nanoTime();
+        private final double nanosPerFrame = framesPerSecond == UNPACED ? 0 : 1e9 / framesPerSecond;
+        volatile long frames = 0;
+        private volatile boolean streamClosed = false;
+
+        generatorStream() {
+            for (int i = 0; i < serialNrs.length; i++) {
+                suffixes[i] = ascii("," + TEMPERATURE + ",0," + serialNrs[i] + (char) SensorFrameDecoder.DELIMITER);
+                if (prefix.length + 11 + suffixes[i].length > frame.length) {
+                    throw new IllegalArgumentException("serial number too long: " + serialNrs[i]);
+                }
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+            if (streamClosed) {
+                throw new IOException("generator closed");
+            }
+            int count = 0;
+            while (count < length) {
+                if (framePosition == frameLength) {
+                    if (frameCount >= 0 && frames >= frameCount) {
+                        break;
+                    }
+                    if (nanosPerFrame > 0 && !due()) {
+                        if (count > 0) {
+                            break;  // hand out what is ready before waiting
+                        }
+                        waitUntilDue();
+                    }
+                    nextFrame();
+                }
+                int n = Math.min(length - count, frameLength - framePosition);
+                System.arraycopy(frame, framePosition, buffer, offset + count, n);
+                framePosition += n;
+                count += n;
+            }
+            return count == 0 && length > 0 ? -1 : count;
+        }
+
+        private boolean due() {
+            return System.nanoTime() - start >= (long) (frames * nanosPerFrame);
+        }
+
+        private void waitUntilDue() throws IOException {
+            long wait;
+            while ((wait = start + (long) (frames * nanosPerFrame) - System.nanoTime()) > 0) {
+                if (streamClosed) {
+                    throw new IOException("generator closed");
+                }
+                try {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("generator interrupted");
+                }
+            }
+        }
+
+        private void nextFrame() {
+            int head = (int) (frames % serialNrs.length);
+            System.arraycopy(prefix, 0, frame, 0, prefix.length);
+            int length = prefix.length;
+            length = writeInt(ppbOf(frames, random.nextDouble()), frame, length);
+            System.arraycopy(suffixes[head], 0, frame, length, suffixes[head].length);
+            length += suffixes[head].length;
+            framePosition = 0;
+            frameLength = length;
+            frames++;
+        }
+
+        @Override
+        public void close() {
+            streamClosed = true;
+        }
+    }
+
+    private static byte[] ascii(String text) {
+        byte[] bytes = new byte[text.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) text.charAt(i);
+        }
+        return bytes;
+    }
+
+    /**
+     * writeInt
+     * Writes the decimal digits of a value without creating a string.
+     *
+     * @return int The index after the last digit
+     */
+    private static int writeInt(int value, byte[] buffer, int position) {
+        if (value < 0) {
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (int rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = position + digits - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return position + digits;
+    }
+}
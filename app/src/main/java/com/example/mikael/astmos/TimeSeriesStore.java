@@ -0,0 +1,940 @@
+package com.example.mikael.astmos;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * TimeSeriesStore
+ * Local history of the observations, kept on the device so it can be shown or uploaded again
+ * later. Observations are appended to partitions of memory mapped column files, one file per
+ * field, so a query only reads the fields it needs and the rows of a partition are read
+ * sequentially. A partition holds at most one utc day and partitionCapacity rows, partitions
+ * are numbered in the order they were started.
+ *
+ * Each partition also keeps two rollups, the count, sum, min, max and summed position of the
+ * values of every serial number per minute and per hour. Downsampled queries read the coarsest
+ * rollup the resolution is a multiple of, so a month at hourly resolution reads a few thousand
+ * rows instead of a few hundred thousand. A rollup row is written when the next value of the
+ * serial number falls in a later bucket, or when the partition is sealed. Rows of the same
+ * bucket are merged by the queries, so values arriving out of order only cost an extra row.
+ *
+ * A partition directory holds
+ *  meta                                            version, sealed flag, row counts, time range, day
+ *  time, value, latitude, longitude, serial        one row per observation
+ *  minute.*, hour.*                                start, serial, count, sum, min, max,
+ *                                                  latitude and longitude sums per bucket
+ * and the serial numbers are numbered in the serials file, one per line. The files of the
+ * partition being written are mapped at full capacity, the row count in meta is written after
+ * the row and makes it visible. When the partition is full or the day ends it is sealed, its
+ * rollups are completed and its files cut to the rows used. Rollups of the partition being
+ * written are rebuilt from its rows when the store is opened, so a crash loses nothing which
+ * was counted in meta.
+ *
+ * A store must be closed before another one is opened on the same directory, e.g. by a
+ * relaunched activity, since two stores would write the same partition.
+ *
+ * Whole partitions are evicted, oldest first, when their newest row is older than the retention
+ * or the files on disk take more than maxBytes.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public class TimeSeriesStore {
+
+    /**
+     * RowVisitor
+     * Receives the rows found by a query.
+     */
+    public interface RowVisitor {
+        /**
+         * visit
+         * Called for every row in the range, in the order the rows were appended.
+         *
+         * @param time      The time of the observation in milliseconds since the epoch
+         * @param value     The value of the observation
+         * @param latitude  Where the observation was made
+         * @param longitude
+         * @param serialNr  The serial number of the sensor
+         */
+        void visit(long time, double value, double latitude, double longitude, String serialNr);
+    }
+
+    /**
+     * BucketVisitor
+     * Receives the buckets of a downsampled query.
+     */
+    public interface BucketVisitor {
+        /**
+         * visit
+         * Called for every bucket holding values, in time order. The aggregate is only valid
+         * during the call.
+         *
+         * @param aggregate The values of the bucket
+         */
+        void visit(Aggregate aggregate);
+    }
+
+    /**
+     * Aggregate
+     * The values of one bucket of time.
+     */
+    public static class Aggregate {
+        long start;             // start of the bucket in milliseconds since the epoch
+        int count;
+        double sum;
+        double min;
+        double max;
+        double latitudeSum;
+        double longitudeSum;
+
+        void reset(long start) {
+            this.start = start;
+            count = 0;
+            sum = 0;
+            min = Double.POSITIVE_INFINITY;
+            max = Double.NEGATIVE_INFINITY;
+            latitudeSum = 0;
+            longitudeSum = 0;
+        }
+
+        void add(double value, double latitude, double longitude) {
+            count++;
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            latitudeSum += latitude;
+            longitudeSum += longitude;
+        }
+
+        /**
+         * getMean
+         *
+         * @return double The average of the values in the bucket
+         */
+        public double getMean() {
+            return sum / count;
+        }
+
+        /**
+         * getLatitude
+         *
+         * @return double The average latitude of the values in the bucket
+         */
+        public double getLatitude() {
+            return latitudeSum / count;
+        }
+
+        /**
+         * getLongitude
+         *
+         * @return double The average longitude of the values in the bucket
+         */
+        public double getLongitude() {
+            return longitudeSum / count;
+        }
+    }
+
+    /* resolutions of the rollups */
+    public static final long MINUTE = 60000;
+    public static final long HOUR = 60 * MINUTE;
+    public static final long DAY = 24 * HOUR;
+
+    /* default settings */
+    public static final int DEFAULT_PARTITION_CAPACITY = 1 << 16;  // a day of 10 s windows from 7 heads
+    public static final long DEFAULT_RETENTION = 92 * DAY;
+    public static final long DEFAULT_MAX_BYTES = 256L << 20;
+
+    static final String PARTITION_PREFIX = "p-";
+    static final String SERIALS_FILE = "serials";
+    static final String META_FILE = "meta";
+    private static final int VERSION = 1;
+    private static final int META_SIZE = 64;
+    private static final int ROW_BYTES = 8 + 8 + 8 + 8 + 4;
+    private static final int ROLLUP_ROW_BYTES = 8 + 4 + 4 + 8 * 5;
+
+    /* positions in meta */
+    private static final int META_VERSION = 0;
+    private static final int META_SEALED = 4;
+    private static final int META_ROWS = 8;
+    private static final int META_ROWS_CHECK = 16;
+    private static final int META_MINUTE_ROWS = 24;
+    private static final int META_HOUR_ROWS = 32;
+    private static final int META_MIN_TIME = 40;
+    private static final int META_MAX_TIME = 48;
+    private static final int META_ORDERED = 56;
+    private static final int META_DAY = 60;
+
+    /**
+     * Column
+     * One mapped column file of fixed width values.
+     */
+    private static class Column {
+        final File file;
+        final int width;
+        MappedByteBuffer buffer;
+
+        /* maps the column for writing at the given capacity, or as it is for reading */
+        Column(File file, int width, int capacity, boolean writable) throws IOException {
+            this.file = file;
+            this.width = width;
+            RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r");
+            try {
+                buffer = writable
+                        ? raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) capacity * width)
+                        : raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            } finally {
+                raf.close();    // the mapping stays valid after the file is closed
+            }
+        }
+
+        int rows() {
+            return buffer.capacity() / width;
+        }
+
+        /* cuts the file to the given number of rows and maps it for reading */
+        void seal(int rows) throws IOException {
+            buffer.force();
+            buffer = null;      // never touched again, the pages past the end are gone
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength((long) rows * width);
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, (long) rows * width);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * Rollup
+     * The buckets of one resolution in a partition, and the buckets still being filled.
+     */
+    private static class Rollup {
+        final long resolution;
+        final Column start;
+        final Column serial;
+        final Column count;
+        final Column sum;
+        final Column min;
+        final Column max;
+        final Column latitude;
+        final Column longitude;
+        final Column[] columns;
+        int rows = 0;
+        final Map<Integer, Aggregate> open = new HashMap<>();  // by serial id
+
+        Rollup(File directory, String prefix, long resolution, int capacity, boolean writable) throws IOException {
+            this.resolution = resolution;
+            start = new Column(new File(directory, prefix + ".start"), 8, capacity, writable);
+            serial = new Column(new File(directory, prefix + ".serial"), 4, capacity, writable);
+            count = new Column(new File(directory, prefix + ".count"), 4, capacity, writable);
+            sum = new Column(new File(directory, prefix + ".sum"), 8, capacity, writable);
+            min = new Column(new File(directory, prefix + ".min"), 8, capacity, writable);
+            max = new Column(new File(directory, prefix + ".max"), 8, capacity, writable);
+            latitude = new Column(new File(directory, prefix + ".latitude"), 8, capacity, writable);
+            longitude = new Column(new File(directory, prefix + ".longitude"), 8, capacity, writable);
+            columns = new Column[]{start, serial, count, sum, min, max, latitude, longitude};
+        }
+
+        void add(long time, double value, double lat, double lon, int id) {
+            long bucket = time - (time % resolution + resolution) % resolution;
+            Aggregate aggregate = open.get(id);
+            if (aggregate == null) {
+                aggregate = new Aggregate();
+                aggregate.reset(bucket);
+                open.put(id, aggregate);
+            } else if (aggregate.start != bucket) {
+                write(id, aggregate);
+                aggregate.reset(bucket);
+            }
+            aggregate.add(value, lat, lon);
+        }
+
+        /* there is at most one rollup row per row of the partition, so there is always room */
+        private void write(int id, Aggregate aggregate) {
+            int row = rows;
+            start.buffer.putLong(row * 8, aggregate.start);
+            serial.buffer.putInt(row * 4, id);
+            count.buffer.putInt(row * 4, aggregate.count);
+            sum.buffer.putDouble(row * 8, aggregate.sum);
+            min.buffer.putDouble(row * 8, aggregate.min);
+            max.buffer.putDouble(row * 8, aggregate.max);
+            latitude.buffer.putDouble(row * 8, aggregate.latitudeSum);
+            longitude.buffer.putDouble(row * 8, aggregate.longitudeSum);
+            rows = row + 1;
+        }
+
+        void flush() {
+            for (Map.Entry<Integer, Aggregate> entry : open.entrySet()) {
+                write(entry.getKey(), entry.getValue());
+            }
+            open.clear();
+        }
+
+        void merge(int row, Aggregate into) {
+            into.count += count.buffer.getInt(row * 4);
+            into.sum += sum.buffer.getDouble(row * 8);
+            into.min = Math.min(into.min, min.buffer.getDouble(row * 8));
+            into.max = Math.max(into.max, max.buffer.getDouble(row * 8));
+            into.latitudeSum += latitude.buffer.getDouble(row * 8);
+            into.longitudeSum += longitude.buffer.getDouble(row * 8);
+        }
+
+        static void merge(Aggregate from, Aggregate into) {
+            into.count += from.count;
+            into.sum += from.sum;
+            into.min = Math.min(into.min, from.min);
+            into.max = Math.max(into.max, from.max);
+            into.latitudeSum += from.latitudeSum;
+            into.longitudeSum += from.longitudeSum;
+        }
+    }
+
+    /**
+     * Partition
+     * The columns and rollups of one partition directory.
+     */
+    private static class Partition {
+        final File directory;
+        final long number;
+        final MappedByteBuffer meta;
+        Column time;
+        Column value;
+        Column latitude;
+        Column longitude;
+        Column serial;
+        Column[] columns;
+        Rollup minutes;
+        Rollup hours;
+        boolean sealed;
+        int rows = 0;
+        long minTime = Long.MAX_VALUE;
+        long maxTime = Long.MIN_VALUE;
+        boolean ordered = true;         // every row is at or after the one before
+        long day;                       // the utc day the partition was started on
+
+        Partition(File directory, long number) throws IOException {
+            this.directory = directory;
+            this.number = number;
+            RandomAccessFile raf = new RandomAccessFile(new File(directory, META_FILE), "rw");
+            try {
+                meta = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, META_SIZE);
+            } finally {
+                raf.close();
+            }
+        }
+
+        void open(int capacity, boolean writable) throws IOException {
+            time = new Column(new File(directory, "time"), 8, capacity, writable);
+            value = new Column(new File(directory, "value"), 8, capacity, writable);
+            latitude = new Column(new File(directory, "latitude"), 8, capacity, writable);
+            longitude = new Column(new File(directory, "longitude"), 8, capacity, writable);
+            serial = new Column(new File(directory, "serial"), 4, capacity, writable);
+            columns = new Column[]{time, value, latitude, longitude, serial};
+            minutes = new Rollup(directory, "minute", MINUTE, capacity, writable);
+            hours = new Rollup(directory, "hour", HOUR, capacity, writable);
+        }
+
+        long time(int row) {
+            return time.buffer.getLong(row * 8);
+        }
+
+        void add(long t, double v, double lat, double lon, int id) {
+            int row = rows;
+            time.buffer.putLong(row * 8, t);
+            value.buffer.putDouble(row * 8, v);
+            latitude.buffer.putDouble(row * 8, lat);
+            longitude.buffer.putDouble(row * 8, lon);
+            serial.buffer.putInt(row * 4, id);
+            count(row, t, v, lat, lon, id);
+        }
+
+        /* counts a row which is in the columns */
+        void count(int row, long t, double v, double lat, double lon, int id) {
+            rows = row + 1;
+            if (t < maxTime) {
+                ordered = false;
+            }
+            minTime = Math.min(minTime, t);
+            maxTime = Math.max(maxTime, t);
+            minutes.add(t, v, lat, lon, id);
+            hours.add(t, v, lat, lon, id);
+        }
+
+        void writeMeta() {
+            meta.putInt(META_VERSION, VERSION);
+            meta.putInt(META_SEALED, sealed ? 1 : 0);
+            meta.putLong(META_MINUTE_ROWS, minutes.rows);
+            meta.putLong(META_HOUR_ROWS, hours.rows);
+            meta.putLong(META_MIN_TIME, minTime);
+            meta.putLong(META_MAX_TIME, maxTime);
+            meta.putInt(META_ORDERED, ordered ? 1 : 0);
+            meta.putInt(META_DAY, (int) day);
+            writeRows();
+        }
+
+        void writeRows() {
+            meta.putLong(META_ROWS, rows);
+            meta.putLong(META_ROWS_CHECK, ~rows);  // check value, a torn write is detected
+        }
+
+        /* the first row at or after the given time, for ordered partitions */
+        int lowerBound(long t) {
+            int low = 0;
+            int high = rows;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (time(mid) < t) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        long bytes() {
+            long bytes = META_SIZE;
+            for (Column column : columns) {
+                bytes += column.buffer.capacity();
+            }
+            for (Column column : minutes.columns) {
+                bytes += column.buffer.capacity();
+            }
+            for (Column column : hours.columns) {
+                bytes += column.buffer.capacity();
+            }
+            return bytes;
+        }
+    }
+
+    private final File directory;
+    private final int partitionCapacity;
+    private final long retention;
+    private final long maxBytes;
+    private final List<Partition> partitions = new ArrayList<>();  // oldest first, the last may be written
+    private final List<String> serials = new ArrayList<>();        // by id
+    private final Map<String, Integer> ids = new HashMap<>();
+    private long nextNumber = 0;
+    private long bytes = 0;             // of the sealed partitions
+    private long evictedCount = 0;
+    private boolean closed = false;
+
+    /**
+     * TimeSeriesStore
+     * Constructor opening the store in a directory with the default limits.
+     *
+     * @param directory The directory holding the store, created if missing
+     * @throws IOException If the store can not be opened
+     */
+    public TimeSeriesStore(File directory) throws IOException {
+        this(directory, DEFAULT_PARTITION_CAPACITY, DEFAULT_RETENTION, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * TimeSeriesStore
+     * Constructor opening the store in a directory, recovering what a previous process left.
+     *
+     * @param directory         The directory holding the store, created if missing
+     * @param partitionCapacity The largest number of rows in one partition
+     * @param retention         How long rows are kept in milliseconds, counted back from the newest
+     * @param maxBytes          The largest number of bytes of all partitions together, at least
+     *                          twice the size of a partition being written
+     * @throws IOException If the store can not be opened
+     */
+    public TimeSeriesStore(File directory, int partitionCapacity, long retention, long maxBytes) throws IOException {
+        if (partitionCapacity < 16 || partitionCapacity > 1 << 24 || retention <= 0
+                || maxBytes < 2 * (long) partitionCapacity * (ROW_BYTES + 2 * ROLLUP_ROW_BYTES)) {
+            throw new IllegalArgumentException("invalid store limits " + partitionCapacity + ", " + retention + ", " + maxBytes);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("could not create " + directory);
+        }
+        this.directory = directory;
+        this.partitionCapacity = partitionCapacity;
+        this.retention = retention;
+        this.maxBytes = maxBytes;
+        recover();
+    }
+
+    /**
+     * append
+     * Adds an observation to the store. Observations are expected in about the order of their
+     * times, but need not be.
+     *
+     * @param time      The time of the observation in milliseconds since the epoch
+     * @param value     The value of the observation
+     * @param latitude  Where the observation was made
+     * @param longitude
+     * @param serialNr  The serial number of the sensor
+     * @throws IOException If a new partition or serial number can not be written
+     */
+    public synchronized void append(long time, double value, double latitude, double longitude, String serialNr)
+            throws IOException {
+        if (closed) {
+            throw new IOException("store closed");
+        }
+        int id = idOf(serialNr);
+        Partition partition = partitions.isEmpty() ? null : partitions.get(partitions.size() - 1);
+        if (partition == null || partition.sealed || partition.rows == partitionCapacity
+                || dayOf(time) > partition.day) {
+            if (partition != null && !partition.sealed) {
+                seal(partition);
+            }
+            partition = create(time);
+            evict();
+        }
+        partition.add(time, value, latitude, longitude, id);
+        partition.writeRows();    // makes the row visible
+    }
+
+    /**
+     * query
+     * Finds the rows in a range of time.
+     *
+     * @param from     The start of the range in milliseconds since the epoch, inclusive
+     * @param to       The end of the range, exclusive
+     * @param serialNr The serial number of the sensor, null for all sensors
+     * @param visitor  The visitor receiving the rows
+     * @return int The number of rows found
+     */
+    public synchronized int query(long from, long to, String serialNr, RowVisitor visitor) {
+        int id = -1;
+        if (serialNr != null) {
+            Integer known = ids.get(serialNr);
+            if (known == null) {
+                return 0;
+            }
+            id = known;
+        }
+        int found = 0;
+        for (Partition partition : partitions) {
+            if (partition.rows == 0 || partition.maxTime < from || partition.minTime >= to) {
+                continue;
+            }
+            int start = 0;
+            int end = partition.rows;
+            if (partition.ordered) {
+                start = partition.lowerBound(from);
+                end = partition.lowerBound(to);
+            }
+            for (int row = start; row < end; row++) {
+                long time = partition.time(row);
+                if (time < from || time >= to) {
+                    continue;
+                }
+                int serial = partition.serial.buffer.getInt(row * 4);
+                if (id >= 0 && serial != id || serial >= serials.size()) {
+                    continue;
+                }
+                visitor.visit(time, partition.value.buffer.getDouble(row * 8),
+                        partition.latitude.buffer.getDouble(row * 8), partition.longitude.buffer.getDouble(row * 8),
+                        serials.get(serial));
+                found++;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * downsample
+     * Aggregates the values of one sensor in a range of time into buckets of the given length,
+     * starting at multiples of the length since the epoch. The range is widened to whole
+     * buckets. The hour or minute rollups are read if the length is a multiple of theirs,
+     * otherwise the rows.
+     *
+     * @param from       The start of the range in milliseconds since the epoch, inclusive
+     * @param to         The end of the range, exclusive
+     * @param serialNr   The serial number of the sensor
+     * @param resolution The length of a bucket in milliseconds
+     * @param visitor    The visitor receiving the buckets
+     * @return int The number of buckets holding values
+     */
+    public synchronized int downsample(long from, long to, String serialNr, long resolution, BucketVisitor visitor) {
+        if (resolution <= 0) {
+            throw new IllegalArgumentException("resolution must be positive: " + resolution);
+        }
+        Integer id = ids.get(serialNr);
+        if (id == null) {
+            return 0;
+        }
+        from = floor(from, resolution);
+        to = -floor(-to, resolution);
+        TreeMap<Long, Aggregate> buckets = new TreeMap<>();
+
+        for (Partition partition : partitions) {
+            if (partition.rows == 0 || partition.maxTime < from || partition.minTime >= to) {
+                continue;
+            }
+            Rollup rollup = resolution % HOUR == 0 ? partition.hours
+                    : resolution % MINUTE == 0 ? partition.minutes : null;
+            if (rollup == null) {
+                for (int row = 0; row < partition.rows; row++) {
+                    long time = partition.time(row);
+                    if (time >= from && time < to && partition.serial.buffer.getInt(row * 4) == id) {
+                        bucketOf(buckets, floor(time, resolution)).add(partition.value.buffer.getDouble(row * 8),
+                                partition.latitude.buffer.getDouble(row * 8), partition.longitude.buffer.getDouble(row * 8));
+                    }
+                }
+                continue;
+            }
+            for (int row = 0; row < rollup.rows; row++) {
+                long start = rollup.start.buffer.getLong(row * 8);
+                if (start >= from && start < to && rollup.serial.buffer.getInt(row * 4) == id) {
+                    rollup.merge(row, bucketOf(buckets, floor(start, resolution)));
+                }
+            }
+            Aggregate open = rollup.open.get(id);
+            if (open != null && open.start >= from && open.start < to) {
+                Rollup.merge(open, bucketOf(buckets, floor(open.start, resolution)));
+            }
+        }
+
+        for (Aggregate aggregate : buckets.values()) {
+            visitor.visit(aggregate);
+        }
+        return buckets.size();
+    }
+
+    private static Aggregate bucketOf(TreeMap<Long, Aggregate> buckets, long start) {
+        Aggregate aggregate = buckets.get(start);
+        if (aggregate == null) {
+            aggregate = new Aggregate();
+            aggregate.reset(start);
+            buckets.put(start, aggregate);
+        }
+        return aggregate;
+    }
+
+    private static long floor(long time, long resolution) {
+        return time - (time % resolution + resolution) % resolution;
+    }
+
+    private static long dayOf(long time) {
+        return floor(time, DAY) / DAY;
+    }
+
+    /**
+     * getRowCount
+     *
+     * @return long The number of rows in the store
+     */
+    public synchronized long getRowCount() {
+        long rows = 0;
+        for (Partition partition : partitions) {
+            rows += partition.rows;
+        }
+        return rows;
+    }
+
+    /**
+     * getPartitionCount
+     *
+     * @return int The number of partitions on disk
+     */
+    public synchronized int getPartitionCount() {
+        return partitions.size();
+    }
+
+    /**
+     * getDiskUsage
+     *
+     * @return long The number of bytes taken by the files of the partitions
+     */
+    public synchronized long getDiskUsage() {
+        Partition last = partitions.isEmpty() ? null : partitions.get(partitions.size() - 1);
+        return bytes + (last != null && !last.sealed ? last.bytes() : 0);
+    }
+
+    /**
+     * getEvictedCount
+     *
+     * @return long The number of partitions evicted so far
+     */
+    public synchronized long getEvictedCount() {
+        return evictedCount;
+    }
+
+    /**
+     * sync
+     * Forces the partition being written to the storage device. Rows already survive a crash of
+     * the process without this, it only matters if the device itself loses power.
+     */
+    public synchronized void sync() {
+        Partition last = partitions.isEmpty() ? null : partitions.get(partitions.size() - 1);
+        if (last == null || last.sealed) {
+            return;
+        }
+        for (Column column : last.columns) {
+            column.buffer.force();
+        }
+        last.meta.force();
+    }
+
+    /**
+     * close
+     * Forces the partition being written to the storage device and lets go of the mappings of
+     * all partitions. The partition is left unsealed, the next store opened continues it.
+     * Appending afterwards fails, queries find nothing. Closing again does nothing.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        sync();
+        closed = true;
+        partitions.clear();     // the mappings go with the buffers, java can not unmap them itself
+        serials.clear();
+        ids.clear();
+        bytes = 0;
+    }
+
+    /* the id of a serial number, numbering it if it is new */
+    private int idOf(String serialNr) throws IOException {
+        Integer id = ids.get(serialNr);
+        if (id != null) {
+            return id;
+        }
+        if (serialNr.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException("serial number with a line break");
+        }
+        FileOutputStream out = new FileOutputStream(new File(directory, SERIALS_FILE), true);
+        try {
+            out.write((serialNr + "\n").getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        serials.add(serialNr);
+        ids.put(serialNr, serials.size() - 1);
+        return serials.size() - 1;
+    }
+
+    private Partition create(long time) throws IOException {
+        File file = new File(directory, String.format(Locale.US, "%s%020d", PARTITION_PREFIX, nextNumber));
+        if (!file.isDirectory() && !file.mkdir()) {
+            throw new IOException("could not create " + file);
+        }
+        Partition partition = new Partition(file, nextNumber++);
+        partition.open(partitionCapacity, true);
+        partition.day = dayOf(time);
+        partition.writeMeta();
+        partitions.add(partition);
+        return partition;
+    }
+
+    /**
+     * seal
+     * Completes the rollups of a partition and cuts its files to the rows used.
+     */
+    private void seal(Partition partition) throws IOException {
+        partition.minutes.flush();
+        partition.hours.flush();
+        for (Column column : partition.columns) {
+            column.seal(partition.rows);
+        }
+        for (Column column : partition.minutes.columns) {
+            column.seal(partition.minutes.rows);
+        }
+        for (Column column : partition.hours.columns) {
+            column.seal(partition.hours.rows);
+        }
+        partition.sealed = true;
+        partition.writeMeta();
+        partition.meta.force();
+        bytes += partition.bytes();
+    }
+
+    /**
+     * evict
+     * Deletes the oldest sealed partitions while they are past the retention or the store takes
+     * more than maxBytes.
+     */
+    private void evict() {
+        long newest = Long.MIN_VALUE;
+        for (Partition partition : partitions) {
+            newest = Math.max(newest, partition.maxTime);
+        }
+        while (partitions.size() > 1) {
+            Partition oldest = partitions.get(0);
+            if (!oldest.sealed || oldest.maxTime >= newest - retention && getDiskUsage() <= maxBytes) {
+                break;
+            }
+            partitions.remove(0);
+            bytes -= oldest.bytes();
+            delete(oldest.directory);
+            evictedCount++;
+        }
+    }
+
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    file.deleteOnExit();
+                }
+            }
+        }
+        if (!directory.delete()) {
+            directory.deleteOnExit();
+        }
+    }
+
+    /**
+     * recover
+     * Reads the serial numbers and opens the partitions left by a previous process. Partitions
+     * left unsealed are sealed, except the newest which is written on.
+     */
+    private void recover() throws IOException {
+        readSerials();
+
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isDirectory() && file.getName().startsWith(PARTITION_PREFIX);
+            }
+        });
+        if (files == null) {
+            throw new IOException("could not list " + directory);
+        }
+        Arrays.sort(files);     // zero padded partition numbers sort in order
+
+        for (File file : files) {
+            long number;
+            try {
+                number = Long.parseLong(file.getName().substring(PARTITION_PREFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            nextNumber = Math.max(nextNumber, number + 1);
+            Partition partition = new Partition(file, number);
+            MappedByteBuffer meta = partition.meta;
+            if (meta.getInt(META_VERSION) != VERSION) {
+                delete(file);   // written by another version or never completed
+                continue;
+            }
+            if (meta.getInt(META_SEALED) != 0) {
+                try {
+                    partition.open(0, false);
+                } catch (IOException e) {
+                    delete(file);   // a column is missing
+                    continue;
+                }
+                partition.sealed = true;
+                partition.rows = (int) meta.getLong(META_ROWS);
+                partition.minutes.rows = (int) meta.getLong(META_MINUTE_ROWS);
+                partition.hours.rows = (int) meta.getLong(META_HOUR_ROWS);
+                partition.minTime = meta.getLong(META_MIN_TIME);
+                partition.maxTime = meta.getLong(META_MAX_TIME);
+                partition.ordered = meta.getInt(META_ORDERED) != 0;
+                partition.day = meta.getInt(META_DAY);
+                if (!isComplete(partition)) {
+                    delete(file);
+                    continue;
+                }
+            } else {
+                partition.open(partitionCapacity, true);
+                partition.day = meta.getInt(META_DAY);
+                recount(partition);
+            }
+            partitions.add(partition);
+        }
+
+        /* only the newest partition may be written on */
+        for (int i = 0; i < partitions.size() - 1; i++) {
+            if (!partitions.get(i).sealed) {
+                seal(partitions.get(i));
+            }
+        }
+        for (Partition partition : partitions) {
+            if (partition.sealed) {
+                bytes += partition.bytes();
+            }
+        }
+        evict();
+    }
+
+    /* whether the files of a sealed partition hold the rows its meta counts */
+    private static boolean isComplete(Partition partition) {
+        for (Column column : partition.columns) {
+            if (column.rows() != partition.rows) {
+                return false;
+            }
+        }
+        for (Column column : partition.minutes.columns) {
+            if (column.rows() != partition.minutes.rows) {
+                return false;
+            }
+        }
+        for (Column column : partition.hours.columns) {
+            if (column.rows() != partition.hours.rows) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * recount
+     * Counts the rows of an unsealed partition again and rebuilds its rollups, which were only
+     * complete up to the buckets still being filled.
+     */
+    private void recount(Partition partition) {
+        MappedByteBuffer meta = partition.meta;
+        long stored = meta.getLong(META_ROWS);
+        int rows;
+        if (meta.getLong(META_ROWS_CHECK) == ~stored && stored >= 0 && stored <= partitionCapacity) {
+            rows = (int) stored;
+        } else {
+            /* torn count, the columns were zero before the rows were written */
+            rows = 0;
+            while (rows < partitionCapacity && partition.time(rows) != 0) {
+                rows++;
+            }
+        }
+        for (int row = 0; row < rows; row++) {
+            int id = partition.serial.buffer.getInt(row * 4);
+            partition.count(row, partition.time(row), partition.value.buffer.getDouble(row * 8),
+                    partition.latitude.buffer.getDouble(row * 8), partition.longitude.buffer.getDouble(row * 8), id);
+        }
+        partition.writeMeta();
+    }
+
+    /* reads the serial numbers, a line cut short by a crash is dropped */
+    private void readSerials() throws IOException {
+        File file = new File(directory, SERIALS_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            int start = 0;
+            for (int i = 0; i < bytes.length; i++) {
+                if (bytes[i] == '\n') {
+                    String serialNr = new String(bytes, start, i - start, "UTF-8");
+                    ids.put(serialNr, serials.size());
+                    serials.add(serialNr);
+                    start = i + 1;
+                }
+            }
+            raf.setLength(start);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.example.mikael.astmos;
+
+/**
+ * UploadScheduler
+ * Decides when the messages held back for the broker are sent, so that the cellular radio is
+ * woken as rarely as possible. Every transmission keeps the radio in its high power state for a
+ * tail of several seconds after it, so sending each observation the moment it is made keeps the
+ * radio up for most of a drive, while sending them in bursts pays the tail once per burst.
+ *
+ * Messages are held for at most the latency budget, counted from the oldest one held. They go
+ * out earlier when other traffic has just woken the radio anyway, e.g. a geocoder lookup or an
+ * acknowledgement from the broker, as long as that was within the piggyback window, since the
+ * radio is then known to be up and sending extends its tail by no more than that. They also go
+ * out straight away when maxPending messages are held.
+ *
+ * Only decides, the caller holds the messages, sends them when told to and calls flushed when
+ * it does. Not thread safe, the times are in milliseconds of any clock which does not go back.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public class UploadScheduler {
+
+    /* default settings */
+    public static final long DEFAULT_LATENCY_BUDGET = 30000;     // milliseconds
+    public static final long DEFAULT_PIGGYBACK_WINDOW = 2000;    // milliseconds, well inside the radio tail
+    public static final int DEFAULT_MAX_PENDING = 256;
+
+    private final long latencyBudget;
+    private final long piggybackWindow;
+    private final int maxPending;
+
+    private int pending = 0;
+    private long oldest;                        // time the oldest held message was added
+    private long lastTraffic = Long.MIN_VALUE / 2;
+
+    /* why the messages went out, see flushed */
+    private long flushes = 0;
+    private long piggybacked = 0;
+    private long expired = 0;
+    private long pressured = 0;
+
+    /**
+     * UploadScheduler
+     * Constructor creating a scheduler with the given limits.
+     *
+     * @param latencyBudget   The longest time in milliseconds a message is held
+     * @param piggybackWindow The time in milliseconds after other traffic the held messages go along
+     * @param maxPending      The number of held messages which makes them go out straight away
+     */
+    public UploadScheduler(long latencyBudget, long piggybackWindow, int maxPending) {
+        if (latencyBudget < 0 || piggybackWindow < 0 || maxPending < 1) {
+            throw new IllegalArgumentException("invalid upload limits " + latencyBudget + ", " + piggybackWindow
+                    + ", " + maxPending);
+        }
+        this.latencyBudget = latencyBudget;
+        this.piggybackWindow = piggybackWindow;
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * UploadScheduler
+     * Constructor creating a scheduler with the default limits.
+     */
+    public UploadScheduler() {
+        this(DEFAULT_LATENCY_BUDGET, DEFAULT_PIGGYBACK_WINDOW, DEFAULT_MAX_PENDING);
+    }
+
+    /**
+     * add
+     * Counts a message which is to be held.
+     *
+     * @param now The current time
+     * @return boolean True if the held messages should be sent now
+     */
+    public boolean add(long now) {
+        if (pending == 0) {
+            oldest = now;
+        }
+        pending++;
+        return isDue(now) || now - lastTraffic <= piggybackWindow;
+    }
+
+    /**
+     * onTraffic
+     * Tells that the radio has just sent or received something else, e.g. a geocoder lookup or
+     * a message from the broker.
+     *
+     * @param now The current time
+     * @return boolean True if the held messages should be sent now, along with the traffic
+     */
+    public boolean onTraffic(long now) {
+        lastTraffic = now;
+        return pending > 0;
+    }
+
+    /**
+     * poll
+     * Checks whether the oldest held message has used up the latency budget, called regularly,
+     * e.g. from a timer.
+     *
+     * @param now The current time
+     * @return boolean True if the held messages should be sent now
+     */
+    public boolean poll(long now) {
+        return isDue(now);
+    }
+
+    /* the budget of the oldest message is used up or too many are held */
+    private boolean isDue(long now) {
+        return pending > 0 && (now - oldest >= latencyBudget || pending >= maxPending);
+    }
+
+    /**
+     * flushed
+     * Tells that the held messages have been sent, whether the scheduler asked for it or not,
+     * e.g. on shutdown.
+     *
+     * @param now The current time
+     */
+    public void flushed(long now) {
+        if (pending == 0) {
+            return;
+        }
+        flushes++;
+        if (pending >= maxPending) {
+            pressured++;
+        } else if (now - oldest >= latencyBudget) {
+            expired++;
+        } else {
+            piggybacked++;
+        }
+        pending = 0;
+    }
+
+    /**
+     * getDeadline
+     *
+     * @return long The time the held messages are sent at the latest, Long.MAX_VALUE if none are
+     */
+    public long getDeadline() {
+        return pending == 0 ? Long.MAX_VALUE : oldest + latencyBudget;
+    }
+
+    /**
+     * getLatencyBudget
+     *
+     * @return long The longest time in milliseconds a message is held
+     */
+    public long getLatencyBudget() {
+        return latencyBudget;
+    }
+
+    /**
+     * getPendingCount
+     *
+     * @return int The number of messages held
+     */
+    public int getPendingCount() {
+        return pending;
+    }
+
+    /**
+     * getFlushCount
+     *
+     * @return long The number of times held messages were sent
+     */
+    public long getFlushCount() {
+        return flushes;
+    }
+
+    /**
+     * getPiggybackCount
+     *
+     * @return long The number of flushes before the budget was used up, along with other traffic or on shutdown
+     */
+    public long getPiggybackCount() {
+        return piggybacked;
+    }
+
+    /**
+     * getExpiredCount
+     *
+     * @return long The number of flushes because the budget of the oldest message was used up
+     */
+    public long getExpiredCount() {
+        return expired;
+    }
+
+    /**
+     * getPressureCount
+     *
+     * @return long The number of flushes because too many messages were held
+     */
+    public long getPressureCount() {
+        return pressured;
+    }
+}
@@ -0,0 +1,169 @@
+package com.example.mikael.astmos;
+
+import java.util.Arrays;
+
+/**
+ * Utf8Buffer
+ * A growable byte buffer used to build message payloads in place. Characters are written as
+ * utf-8, the same way String.getBytes("UTF-8") encodes them. The buffer is meant to be cleared
+ * and reused for every message.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public class Utf8Buffer {
+
+    private byte[] bytes;
+    private int length = 0;
+
+    /**
+     * Utf8Buffer
+     * Constructor creating an empty buffer.
+     *
+     * @param capacity The initial capacity in bytes, the buffer grows when needed
+     */
+    public Utf8Buffer(int capacity) {
+        bytes = new byte[Math.max(16, capacity)];
+    }
+
+    /**
+     * clear
+     * Empties the buffer, keeping its capacity.
+     */
+    public void clear() {
+        length = 0;
+    }
+
+    /**
+     * writeByte
+     * Appends a single byte.
+     *
+     * @param b The byte to append
+     */
+    public void writeByte(int b) {
+        if (length == bytes.length) {
+            grow(1);
+        }
+        bytes[length++] = (byte) b;
+    }
+
+    /**
+     * writeBytes
+     * Appends all bytes of an array.
+     *
+     * @param source The bytes to append
+     */
+    public void writeBytes(byte[] source) {
+        writeBytes(source, 0, source.length);
+    }
+
+    /**
+     * writeBytes
+     * Appends a range of bytes.
+     *
+     * @param source The array holding the bytes
+     * @param offset The index of the first byte
+     * @param count  The number of bytes
+     */
+    public void writeBytes(byte[] source, int offset, int count) {
+        if (length + count > bytes.length) {
+            grow(count);
+        }
+        System.arraycopy(source, offset, bytes, length, count);
+        length += count;
+    }
+
+    /**
+     * writeAscii
+     * Appends characters which are known to be ascii, one byte per character.
+     *
+     * @param text The characters to append
+     */
+    public void writeAscii(CharSequence text) {
+        int count = text.length();
+        if (length + count > bytes.length) {
+            grow(count);
+        }
+        for (int i = 0; i < count; i++) {
+            bytes[length++] = (byte) text.charAt(i);
+        }
+    }
+
+    /**
+     * writeCodePoint
+     * Appends a unicode code point encoded as utf-8. Unpaired surrogates are written as '?'.
+     *
+     * @param codePoint The code point to append
+     */
+    public void writeCodePoint(int codePoint) {
+        if (length + 4 > bytes.length) {
+            grow(4);
+        }
+        if (codePoint < 0x80) {
+            bytes[length++] = (byte) codePoint;
+        } else if (codePoint < 0x800) {
+            bytes[length++] = (byte) (0xC0 | (codePoint >> 6));
+            bytes[length++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else if (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE) {
+            bytes[length++] = '?';
+        } else if (codePoint < 0x10000) {
+            bytes[length++] = (byte) (0xE0 | (codePoint >> 12));
+            bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            bytes[length++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else {
+            bytes[length++] = (byte) (0xF0 | (codePoint >> 18));
+            bytes[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+            bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            bytes[length++] = (byte) (0x80 | (codePoint & 0x3F));
+        }
+    }
+
+    /**
+     * writeUtf8
+     * Appends characters encoded as utf-8.
+     *
+     * @param text The characters to append
+     */
+    public void writeUtf8(CharSequence text) {
+        for (int i = 0, n = text.length(); i < n; i++) {
+            char c = text.charAt(i);
+            if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(text.charAt(i + 1))) {
+                writeCodePoint(Character.toCodePoint(c, text.charAt(++i)));
+            } else {
+                writeCodePoint(c);
+            }
+        }
+    }
+
+    /**
+     * buffer
+     *
+     * @return byte[] The array backing the buffer, the content starts at index 0
+     */
+    public byte[] buffer() {
+        return bytes;
+    }
+
+    /**
+     * length
+     *
+     * @return int The number of bytes written since the buffer was last cleared
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * toByteArray
+     *
+     * @return byte[] A copy of the content of the buffer
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(bytes, length);
+    }
+
+    private void grow(int needed) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + needed));
+    }
+}
@@ -0,0 +1,305 @@
+package com.example.mikael.astmos;
+
+/**
+ * ViewState
+ * Holds what the text views of the main view show, so updates can come as fast as samples and
+ * location fixes do while the views are only rendered on a display frame, and at most once per
+ * minimum interval. Updates are conflated, a value updated many times between two renders is
+ * rendered once, and a view whose value did not change is not rendered at all.
+ *
+ * The texts are formatted into a reused StringBuilder per view and handed to the renderer as a
+ * reused char array, which a TextView can show without copying, so rendering allocates nothing
+ * once the arrays have grown to fit.
+ *
+ * The setters can be called from any thread, they return true when the update is the first since
+ * the last render, so the caller knows to schedule one. Rendering is meant for the ui thread.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public class ViewState {
+
+    /**
+     * Renderer
+     * Shows a text in a view, on the ui thread.
+     */
+    public interface Renderer {
+        /**
+         * show
+         * Called for every view whose text changed. The array is reused for the next text of the
+         * view, it is only changed right before the view is shown again.
+         *
+         * @param view   The view, one of the view constants
+         * @param text   The text to show
+         * @param length The length of the text
+         */
+        void show(int view, char[] text, int length);
+    }
+
+    /* the views */
+    public static final int SENSOR_TYPE = 0;
+    public static final int SENSOR_VALUE = 1;
+    public static final int LOCATION = 2;
+    public static final int DEBUG = 3;
+    public static final int LATEST_MESSAGE = 4;
+    static final int VIEWS = 5;
+
+    /* default settings */
+    public static final long DEFAULT_MIN_INTERVAL = 250;   // milliseconds, 4 renders a second
+
+    private final long minInterval;
+
+    /* the values shown, guarded by this */
+    private String gas;
+    private double level;
+    private double latitude;
+    private double longitude;
+    private String address;
+    private boolean located = false;
+    private float speed;
+    private boolean skipped = false;
+    private String messageSerialNr;
+    private double messageValue;
+    private double messageLatitude;
+    private double messageLongitude;
+
+    private int dirty = 0;              // a bit per view to render
+    private boolean scheduled = false;  // a render has been asked for since the last one
+    private long lastRender = Long.MIN_VALUE / 2;
+    private long updates = 0;
+    private long renders = 0;
+
+    /* the texts, only used while rendering */
+    private final StringBuilder[] texts = new StringBuilder[VIEWS];
+    private final char[][] chars = new char[VIEWS][];
+
+    /**
+     * ViewState
+     * Constructor creating a view state rendered at most once per the given interval.
+     *
+     * @param minInterval The shortest time between two renders in milliseconds, 0 for every frame
+     */
+    public ViewState(long minInterval) {
+        if (minInterval < 0) {
+            throw new IllegalArgumentException("minInterval must not be negative: " + minInterval);
+        }
+        this.minInterval = minInterval;
+        for (int i = 0; i < VIEWS; i++) {
+            texts[i] = new StringBuilder(64);
+            chars[i] = new char[64];
+        }
+    }
+
+    /**
+     * setSensor
+     * Updates the latest value of the sensor.
+     *
+     * @param gas   The gas being measured
+     * @param level The level in µg/m3
+     * @return boolean True if a render should be scheduled
+     */
+    public synchronized boolean setSensor(String gas, double level) {
+        int changed = 0;
+        boolean first = this.gas == null;
+        if (gas != null && !gas.equals(this.gas)) {
+            this.gas = gas;
+            changed |= 1 << SENSOR_TYPE;
+        }
+        if (first || Double.compare(level, this.level) != 0) {
+            this.level = level;
+            changed |= 1 << SENSOR_VALUE;
+        }
+        return update(changed);
+    }
+
+    /**
+     * setLocation
+     * Updates the location of the device, from an accepted fix.
+     *
+     * @param latitude  The latitude of the fix
+     * @param longitude The longitude of the fix
+     * @param speed     The speed in meters per second
+     * @return boolean True if a render should be scheduled
+     */
+    public synchronized boolean setLocation(double latitude, double longitude, float speed) {
+        int changed = 0;
+        boolean first = !located;
+        if (first || Double.compare(latitude, this.latitude) != 0 || Double.compare(longitude, this.longitude) != 0) {
+            located = true;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            changed |= 1 << LOCATION;
+        }
+        if (first || skipped || Float.compare(speed, this.speed) != 0) {
+            skipped = false;
+            this.speed = speed;
+            changed |= 1 << DEBUG;
+        }
+        return update(changed);
+    }
+
+    /**
+     * setLocationSkipped
+     * Tells that the latest fix was not accepted.
+     *
+     * @return boolean True if a render should be scheduled
+     */
+    public synchronized boolean setLocationSkipped() {
+        if (skipped) {
+            return update(0);
+        }
+        skipped = true;
+        return update(1 << DEBUG);
+    }
+
+    /**
+     * setAddress
+     * Updates the address shown with the location.
+     *
+     * @param address The address of the latest location, null if not known
+     * @return boolean True if a render should be scheduled
+     */
+    public synchronized boolean setAddress(String address) {
+        if (address == null ? this.address == null : address.equals(this.address)) {
+            return update(0);
+        }
+        this.address = address;
+        return update(1 << LOCATION);
+    }
+
+    /**
+     * setLatestMessage
+     * Updates the latest published observation.
+     *
+     * @param serialNr  The serial number of the sensor of the observation
+     * @param value     The value of the observation
+     * @param latitude  The latitude of the observation
+     * @param longitude The longitude of the observation
+     * @return boolean True if a render should be scheduled
+     */
+    public synchronized boolean setLatestMessage(String serialNr, double value, double latitude, double longitude) {
+        messageSerialNr = serialNr;
+        messageValue = value;
+        messageLatitude = latitude;
+        messageLongitude = longitude;
+        return update(1 << LATEST_MESSAGE);
+    }
+
+    /* marks the changed views, true if a render has to be asked for */
+    private boolean update(int changed) {
+        updates++;
+        if (changed == 0) {
+            return false;
+        }
+        dirty |= changed;
+        if (scheduled) {
+            return false;
+        }
+        scheduled = true;
+        return true;
+    }
+
+    /**
+     * getDelay
+     *
+     * @param now The current time in milliseconds of a monotonic clock
+     * @return long The time in milliseconds until the next render is allowed, 0 if it is now
+     */
+    public synchronized long getDelay(long now) {
+        return Math.max(0, lastRender + minInterval - now);
+    }
+
+    /**
+     * render
+     * Shows the text of every view which changed since the last render. Must only be called
+     * from one thread, the ui thread.
+     *
+     * @param renderer The renderer showing the texts
+     * @param now      The current time in milliseconds of the same clock as getDelay
+     * @return int The number of views shown
+     */
+    public int render(Renderer renderer, long now) {
+        int views;
+        synchronized (this) {
+            views = dirty;
+            dirty = 0;
+            scheduled = false;
+            if (views == 0) {
+                return 0;
+            }
+            lastRender = now;
+            renders++;
+            for (int view = 0; view < VIEWS; view++) {
+                if ((views & 1 << view) != 0) {
+                    format(view, texts[view]);
+                }
+            }
+        }
+        int shown = 0;
+        for (int view = 0; view < VIEWS; view++) {
+            if ((views & 1 << view) == 0) {
+                continue;
+            }
+            StringBuilder text = texts[view];
+            int length = text.length();
+            if (chars[view].length < length) {
+                chars[view] = new char[Math.max(length, chars[view].length * 2)];
+            }
+            text.getChars(0, length, chars[view], 0);
+            renderer.show(view, chars[view], length);
+            shown++;
+        }
+        return shown;
+    }
+
+    /* formats the text of a view, called under the lock */
+    private void format(int view, StringBuilder text) {
+        text.setLength(0);
+        switch (view) {
+            case SENSOR_TYPE:
+                text.append("Connected sensor: ").append(gas);
+                break;
+            case SENSOR_VALUE:
+                text.append("Sensor value: ").append(level).append(" µg/m3");
+                break;
+            case LOCATION:
+                text.append("Latitude: ").append(latitude).append("\nLongitude: ").append(longitude);
+                if (address != null) {
+                    text.append('\n').append(address);
+                }
+                break;
+            case DEBUG:
+                if (skipped) {
+                    text.append("DEBUG: Location update skipped");
+                } else {
+                    text.append("DEBUG\nSpeed: ").append(speed);
+                }
+                break;
+            case LATEST_MESSAGE:
+                text.append("Latest message sent to topic: /observations/").append(messageSerialNr)
+                        .append(", with content;\nValue: ").append(messageValue)
+                        .append("\nLat:").append(messageLatitude)
+                        .append("\nLon: ").append(messageLongitude);
+                break;
+        }
+    }
+
+    /**
+     * getUpdateCount
+     *
+     * @return long The number of updates since the view state was created
+     */
+    public synchronized long getUpdateCount() {
+        return updates;
+    }
+
+    /**
+     * getRenderCount
+     *
+     * @return long The number of renders which showed at least one view
+     */
+    public synchronized long getRenderCount() {
+        return renders;
+    }
+}
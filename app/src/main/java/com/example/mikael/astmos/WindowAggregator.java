@@ -0,0 +1,292 @@
+package com.example.mikael.astmos;
+
+/**
+ * WindowAggregator
+ * Aggregates the most recent sensor values over a window of a fixed number of samples. Values
+ * and their timestamps are kept in primitive ring buffers, and the sum, sum of squares, minimum
+ * and maximum are maintained as samples come in, so no values are boxed and nothing is
+ * recomputed from scratch when a window is complete.
+ *
+ * A window is reported complete every step samples once the buffer is full. With the step equal
+ * to the window size (the default) the windows do not overlap and every sample belongs to exactly
+ * one window. The statistics of a completed window can be read until the next sample is added.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public class WindowAggregator {
+
+    public static final int DEFAULT_WINDOW_SIZE = 10;
+
+    private final int windowSize;
+    private final int step;
+
+    /* ring buffers with the values and timestamps of the samples in the window */
+    private final double[] values;
+    private final long[] times;
+    private int start = 0;      // index of the oldest sample
+    private int count = 0;      // number of samples in the window
+    private int sinceEmit = 0;  // samples added since the last completed window
+
+    /* running sums, relative to a shift value to keep the variance numerically stable */
+    private double shift = 0.0;
+    private double sum = 0.0;
+    private double sumOfSquares = 0.0;
+    private int addsSinceRecompute = 0;
+
+    /* monotonic queues of ring indices, the front holds the index of the minimum/maximum */
+    private final int[] minQueue;
+    private final int[] maxQueue;
+    private int minHead = 0, minSize = 0;
+    private int maxHead = 0, maxSize = 0;
+
+    /**
+     * WindowAggregator
+     * Constructor creating an aggregator with the default window size and non overlapping windows.
+     */
+    public WindowAggregator() {
+        this(DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * WindowAggregator
+     * Constructor creating an aggregator with non overlapping windows of the given size.
+     *
+     * @param windowSize The number of samples in a window
+     */
+    public WindowAggregator(int windowSize) {
+        this(windowSize, windowSize);
+    }
+
+    /**
+     * WindowAggregator
+     * Constructor creating an aggregator which reports a window of windowSize samples every step
+     * samples. A step smaller than the window size gives overlapping (sliding) windows.
+     *
+     * @param windowSize The number of samples in a window
+     * @param step       The number of samples between two completed windows
+     */
+    public WindowAggregator(int windowSize, int step) {
+        if (windowSize < 1 || step < 1 || step > windowSize) {
+            throw new IllegalArgumentException("invalid window size " + windowSize + " or step " + step);
+        }
+        this.windowSize = windowSize;
+        this.step = step;
+        values = new double[windowSize];
+        times = new long[windowSize];
+        minQueue = new int[windowSize];
+        maxQueue = new int[windowSize];
+    }
+
+    /**
+     * add
+     * Adds a sample to the window, evicting the oldest sample if the window is full.
+     *
+     * @param value The value of the sample
+     * @param time  The time of the sample in milliseconds since the epoch
+     * @return boolean True if this sample completed a window, otherwise false
+     */
+    public boolean add(double value, long time) {
+        int index;
+        if (count == windowSize) {
+            index = start;
+            evictFront(index);
+            double old = values[index] - shift;
+            sum -= old;
+            sumOfSquares -= old * old;
+            start = next(start);
+        } else {
+            if (count == 0) {
+                shift = value;
+            }
+            index = wrap(start + count);
+            count++;
+        }
+        values[index] = value;
+        times[index] = time;
+
+        double shifted = value - shift;
+        sum += shifted;
+        sumOfSquares += shifted * shifted;
+        pushBack(index, value);
+
+        /* the removals accumulate rounding errors, so recompute the sums once per lap */
+        if (++addsSinceRecompute >= windowSize) {
+            recomputeSums();
+        }
+
+        sinceEmit++;
+        if (count == windowSize && sinceEmit >= step) {
+            sinceEmit = 0;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * clear
+     * Removes all samples from the window.
+     */
+    public void clear() {
+        start = 0;
+        count = 0;
+        sinceEmit = 0;
+        sum = 0.0;
+        sumOfSquares = 0.0;
+        addsSinceRecompute = 0;
+        minHead = minSize = 0;
+        maxHead = maxSize = 0;
+    }
+
+    /**
+     * getWindowSize
+     *
+     * @return int The number of samples in a complete window
+     */
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * getCount
+     *
+     * @return int The number of samples currently in the window
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * getMean
+     *
+     * @return double The average of the values in the window, NaN if it is empty
+     */
+    public double getMean() {
+        return count == 0 ? Double.NaN : shift + sum / count;
+    }
+
+    /**
+     * getMin
+     *
+     * @return double The smallest value in the window, NaN if it is empty
+     */
+    public double getMin() {
+        return count == 0 ? Double.NaN : values[minQueue[minHead]];
+    }
+
+    /**
+     * getMax
+     *
+     * @return double The largest value in the window, NaN if it is empty
+     */
+    public double getMax() {
+        return count == 0 ? Double.NaN : values[maxQueue[maxHead]];
+    }
+
+    /**
+     * getStdDev
+     *
+     * @return double The (population) standard deviation of the values in the window, NaN if it is empty
+     */
+    public double getStdDev() {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        double mean = sum / count;
+        double variance = sumOfSquares / count - mean * mean;
+        return variance > 0.0 ? Math.sqrt(variance) : 0.0;
+    }
+
+    /**
+     * getMedianTime
+     * The timestamp of the middle sample of the window, used as the time of the whole window.
+     *
+     * @return long The median timestamp in milliseconds since the epoch, 0 if the window is empty
+     */
+    public long getMedianTime() {
+        return count == 0 ? 0L : times[wrap(start + count / 2)];
+    }
+
+    /**
+     * getFirstTime
+     *
+     * @return long The timestamp of the oldest sample in the window, 0 if it is empty
+     */
+    public long getFirstTime() {
+        return count == 0 ? 0L : times[start];
+    }
+
+    /**
+     * getLastTime
+     *
+     * @return long The timestamp of the newest sample in the window, 0 if it is empty
+     */
+    public long getLastTime() {
+        return count == 0 ? 0L : times[wrap(start + count - 1)];
+    }
+
+    /**
+     * getTime
+     *
+     * @param index The index of a sample in the window, 0 for the oldest
+     * @return long The timestamp of the sample in milliseconds since the epoch
+     */
+    public long getTime(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("index " + index + " of " + count);
+        }
+        return times[wrap(start + index)];
+    }
+
+    private void recomputeSums() {
+        addsSinceRecompute = 0;
+        shift = getMean();
+        sum = 0.0;
+        sumOfSquares = 0.0;
+        for (int i = 0; i < count; i++) {
+            double shifted = values[wrap(start + i)] - shift;
+            sum += shifted;
+            sumOfSquares += shifted * shifted;
+        }
+    }
+
+    /**
+     * evictFront
+     * Removes the oldest sample from the front of the min/max queues if it is there.
+     */
+    private void evictFront(int index) {
+        if (minSize > 0 && minQueue[minHead] == index) {
+            minHead = next(minHead);
+            minSize--;
+        }
+        if (maxSize > 0 && maxQueue[maxHead] == index) {
+            maxHead = next(maxHead);
+            maxSize--;
+        }
+    }
+
+    /**
+     * pushBack
+     * Adds the newest sample to the back of the min/max queues, dropping every sample it dominates.
+     */
+    private void pushBack(int index, double value) {
+        while (minSize > 0 && values[minQueue[wrap(minHead + minSize - 1)]] >= value) {
+            minSize--;
+        }
+        minQueue[wrap(minHead + minSize++)] = index;
+
+        while (maxSize > 0 && values[maxQueue[wrap(maxHead + maxSize - 1)]] <= value) {
+            maxSize--;
+        }
+        maxQueue[wrap(maxHead + maxSize++)] = index;
+    }
+
+    private int next(int index) {
+        return index + 1 == windowSize ? 0 : index + 1;
+    }
+
+    private int wrap(int index) {
+        return index >= windowSize ? index - windowSize : index;
+    }
+}
@@ -0,0 +1,28 @@
+package com.example.mikael.astmos;
+
+/**
+ * WireFormat
+ * The formats observations are published in. Json goes to /observations/<serial> as before,
+ * the compact binary form written by CborObservationEncoder to the parallel topic
+ * /observations/<serial>/cbor.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+public enum WireFormat {
+    JSON(true, false),
+    CBOR(false, true),
+    BOTH(true, true);
+
+    /* suffix of the topic the binary observations are published to */
+    public static final String CBOR_SUBTOPIC = "/cbor";
+
+    final boolean json;     // publish the SensorThings json
+    final boolean cbor;     // publish the binary form
+
+    WireFormat(boolean json, boolean cbor) {
+        this.json = json;
+        this.cbor = cbor;
+    }
+}
@@ -0,0 +1,48 @@
+package com.example.mikael.astmos;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the Backoff, run on the development machine.
+ */
+public class BackoffTest {
+
+    @Test
+    public void doublesUpToTheMaximum() {
+        Backoff backoff = new Backoff(500, 8000, new Random(1));
+        long[] ceilings = {500, 1000, 2000, 4000, 8000, 8000, 8000};
+        for (long ceiling : ceilings) {
+            long delay = backoff.next();
+            assertTrue(delay + " below " + ceiling, delay >= ceiling / 2 && delay <= ceiling);
+        }
+        assertEquals(ceilings.length, backoff.getAttempt());
+    }
+
+    @Test
+    public void spreadsTheDelays() {
+        Backoff backoff = new Backoff(1000, 1000, new Random(2));
+        long smallest = Long.MAX_VALUE;
+        long largest = 0;
+        for (int i = 0; i < 1000; i++) {
+            long delay = backoff.next();
+            smallest = Math.min(smallest, delay);
+            largest = Math.max(largest, delay);
+        }
+        assertTrue(smallest < 550);
+        assertTrue(largest > 950);
+    }
+
+    @Test
+    public void startsOverAfterAReset() {
+        Backoff backoff = new Backoff(100, 60000, new Random(3));
+        for (int i = 0; i < 100; i++) {
+            assertTrue(backoff.next() <= 60000);    // no overflow of the doubling
+        }
+        backoff.reset();
+        assertTrue(backoff.next() <= 100);
+    }
+}
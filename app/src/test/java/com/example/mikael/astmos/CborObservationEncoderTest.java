@@ -0,0 +1,102 @@
+package com.example.mikael.astmos;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the CborObservationEncoder and CborObservationDecoder, run on the development machine.
+ */
+public class CborObservationEncoderTest {
+
+    private static final long PHENOMENON_START = 1523880000000L;   // 2018-04-16 12:00:00 UTC
+    private static final long PHENOMENON_END = 1523880005000L;     // 2018-04-16 12:00:05 UTC
+    private static final long RESULT_TIME = 1523880010000L;        // 2018-04-16 12:00:10 UTC
+
+    private final CborObservationEncoder encoder = new CborObservationEncoder();
+    private final CborObservationDecoder decoder = new CborObservationDecoder();
+
+    private static byte[] bytes(int... values) {
+        byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = (byte) values[i];
+        }
+        return result;
+    }
+
+    @Test
+    public void roundTrips() {
+        int length = encoder.encode(12.345, new Coordinate(65.584816, 22.154751), PHENOMENON_START, PHENOMENON_END, RESULT_TIME, "AB12");
+        Observation observation = decoder.decode(Arrays.copyOf(encoder.getBuffer(), length));
+        assertEquals("AB12", observation.serialNr);
+        assertEquals(12.345, observation.value, 0.0);
+        assertEquals(65.584816, observation.latitude, 0.0);
+        assertEquals(22.154751, observation.longitude, 0.0);
+        assertEquals(PHENOMENON_START, observation.phenomenonStart);
+        assertEquals(PHENOMENON_END, observation.phenomenonEnd);
+        assertEquals(RESULT_TIME, observation.resultTime);
+    }
+
+    @Test
+    public void roundTripsEdgeValues() {
+        Observation observation = new Observation();
+        double[] values = {0.0, -0.0, 1.5, -3.25, 1e-7, Double.MAX_VALUE, Double.MIN_VALUE};
+        for (double value : values) {
+            int length = encoder.encode(value, new Coordinate(-90, 180), -1, 0, Long.MAX_VALUE, "å€😀");
+            decoder.decode(encoder.getBuffer(), 0, length, observation);
+            assertEquals(Double.doubleToLongBits(value), Double.doubleToLongBits(observation.value));
+            assertEquals(-90.0, observation.latitude, 0.0);
+            assertEquals(-1, observation.phenomenonStart);
+            assertEquals(0, observation.phenomenonEnd);
+            assertEquals(Long.MAX_VALUE, observation.resultTime);
+            assertEquals("å€😀", observation.serialNr);
+        }
+    }
+
+    @Test
+    public void writesTheShortestForms() {
+        int length = encoder.encode(1.5, new Coordinate(0.5, 2), 0, 24, 23, "A");
+        byte[] expected = bytes(
+                0xa6,                                   // map of 6
+                0x00, 0x61, 'A',                        // 0: "A"
+                0x01, 0xfa, 0x3f, 0xc0, 0x00, 0x00,     // 1: 1.5f
+                0x02, 0x82,                             // 2: [
+                0xfa, 0x3f, 0x00, 0x00, 0x00,           //     0.5f,
+                0xfa, 0x40, 0x00, 0x00, 0x00,           //     2.0f]
+                0x03, 0x00,                             // 3: 0
+                0x04, 0x17,                             // 4: 23
+                0x05, 0x18, 0x18);                      // 5: 24
+        assertArrayEquals(expected, Arrays.copyOf(encoder.getBuffer(), length));
+    }
+
+    @Test
+    public void isMuchSmallerThanJson() {
+        ObservationEncoder json = new ObservationEncoder();
+        Coordinate coord = new Coordinate(65.584816, 22.154751);
+        int jsonLength = json.encode(12.345, coord, PHENOMENON_START, PHENOMENON_END, RESULT_TIME, "AB12");
+        int cborLength = encoder.encode(12.345, coord, PHENOMENON_START, PHENOMENON_END, RESULT_TIME, "AB12");
+        assertTrue(jsonLength + " vs " + cborLength, cborLength * 5 <= jsonLength);
+    }
+
+    @Test
+    public void skipsUnknownKeys() {
+        byte[] message = bytes(
+                0xa4,                                   // map of 4
+                0x18, 0x64, 0x82, 0x01, 0xa1, 0x61, 'x', 0xf6,  // 100: [1, {"x": null}]
+                0x61, 'k', 0xc1, 0x1a, 0, 0, 0, 0,      // "k": 1(0)
+                0x01, 0xf9, 0x3e, 0x00,                 // 1: 1.5 as a half float
+                0x03, 0x39, 0x01, 0x00);                // 3: -257
+        Observation observation = decoder.decode(message);
+        assertEquals(1.5, observation.value, 0.0);
+        assertEquals(-257, observation.phenomenonStart);
+        assertNull(observation.serialNr);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTruncatedMessages() {
+        int length = encoder.encode(12.345, new Coordinate(1, 2), PHENOMENON_START, PHENOMENON_END, RESULT_TIME, "AB12");
+        decoder.decode(Arrays.copyOf(encoder.getBuffer(), length - 1));
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.mikael.astmos;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the CellAggregator, run on the development machine.
+ */
+public class CellAggregatorTest {
+
+    /* keeps a description of every emitted cell */
+    private static class Cells implements CellAggregator.Sink {
+        final List<String> emitted = new ArrayList<>();
+        final List<Integer> counts = new ArrayList<>();
+        long samples = 0;
+
+        @Override
+        public void emit(CellAggregator.Cell cell) {
+            emitted.add(Geohash.toString(cell.geohash, cell.precision) + "@" + cell.bucketStart + " " + cell.count
+                    + " " + cell.mean + " " + cell.max);
+            counts.add(cell.count);
+            samples += cell.count;
+        }
+    }
+
+    private static String cell(double latitude, double longitude) {
+        return Geohash.toString(Geohash.encode(latitude, longitude, 7), 7);
+    }
+
+    @Test
+    public void emitsACellOnceTheWatermarkPassesItsBucket() {
+        CellAggregator aggregator = new CellAggregator(7, 60000, 5000);
+        Cells cells = new Cells();
+        assertTrue(aggregator.add(10, 1000, 57.70001, 11.90001, cells));
+        assertTrue(aggregator.add(30, 2000, 57.70002, 11.90002, cells));
+        assertTrue(aggregator.add(20, 59000, 57.70003, 11.90003, cells));
+        assertTrue(aggregator.add(40, 64000, 57.70004, 11.90004, cells));   // watermark at 59 s
+        assertEquals(0, cells.emitted.size());
+        assertTrue(aggregator.add(50, 65000, 57.70005, 11.90005, cells));   // and at 60 s
+        assertEquals("[" + cell(57.7, 11.9) + "@0 3 20.0 30.0]", cells.emitted.toString());
+        assertEquals(1, aggregator.getOpenCount());
+        assertEquals(60000, aggregator.getWatermark());
+    }
+
+    @Test
+    public void keepsCellsApartWithinABucket() {
+        CellAggregator aggregator = new CellAggregator(7, 60000, 0);
+        Cells cells = new Cells();
+        aggregator.add(10, 1000, 57.7, 11.9, cells);
+        aggregator.add(20, 2000, 57.71, 11.9, cells);   // about a kilometer north
+        aggregator.add(30, 3000, 57.7, 11.9, cells);
+        assertEquals(2, aggregator.getOpenCount());
+        assertEquals(2, aggregator.flush(cells));
+        assertTrue(cells.emitted.contains(cell(57.7, 11.9) + "@0 2 20.0 30.0"));
+        assertTrue(cells.emitted.contains(cell(57.71, 11.9) + "@0 1 20.0 20.0"));
+        assertEquals(0, aggregator.getOpenCount());
+    }
+
+    @Test
+    public void dropsSamplesOfClosedBuckets() {
+        CellAggregator aggregator = new CellAggregator(7, 60000, 5000);
+        Cells cells = new Cells();
+        aggregator.add(10, 70000, 57.7, 11.9, cells);      // closes the first minute
+        assertTrue(aggregator.add(20, 66000, 57.7, 11.9, cells));   // late, but its minute is open
+        assertFalse(aggregator.add(30, 59000, 57.7, 11.9, cells));
+        assertEquals(1, aggregator.getLateCount());
+        aggregator.flush(cells);
+        assertEquals("[" + cell(57.7, 11.9) + "@60000 2 15.0 20.0]", cells.emitted.toString());
+        assertFalse(aggregator.add(30, 59000, 57.7, 11.9, cells));  // flush keeps the watermark
+    }
+
+    @Test
+    public void keepsTheMemoryFlatOverALongDrive() {
+        CellAggregator aggregator = new CellAggregator(7, 60000, 5000);
+        Cells cells = new Cells();
+        double latitude = 57.7;
+        long samples = 0;
+        for (long time = 0; time < 24 * 3600000L; time += 1000) {  // a day at 1 Hz and 25 m/s
+            latitude += 25 / 111320.0;
+            if (latitude > 68) {
+                latitude = 55;
+            }
+            assertTrue(aggregator.add(time % 97, time, latitude, 11.9, cells));
+            samples++;
+        }
+        aggregator.flush(cells);
+        assertEquals(samples, cells.samples);
+        assertTrue(aggregator.getCapacity() + " slots", aggregator.getCapacity() <= 64);
+        assertEquals(0, aggregator.getLateCount());
+    }
+
+    @Test
+    public void agreesWithAHashMap() {
+        Random random = new Random(7);
+        CellAggregator aggregator = new CellAggregator(5, 10000, 2000);
+        final Map<String, int[]> expected = new HashMap<>();
+        final Map<String, Integer> actual = new HashMap<>();
+        CellAggregator.Sink sink = new CellAggregator.Sink() {
+            @Override
+            public void emit(CellAggregator.Cell cell) {
+                String key = cell.geohash + "@" + cell.bucketStart;
+                assertFalse(key + " emitted twice", actual.containsKey(key));
+                actual.put(key, cell.count);
+            }
+        };
+        long time = 0;
+        for (int i = 0; i < 200000; i++) {
+            time += random.nextInt(20);
+            long sampleTime = time - random.nextInt(3000);  // some of them late
+            double latitude = 57 + random.nextInt(40) * 0.05;
+            double longitude = 11 + random.nextInt(40) * 0.05;
+            if (aggregator.add(1, sampleTime, latitude, longitude, sink)) {
+                String key = Geohash.encode(latitude, longitude, 5) + "@" + (long) Math.floor(sampleTime / 10000.0) * 10000;
+                int[] count = expected.get(key);
+                if (count == null) {
+                    expected.put(key, count = new int[1]);
+                }
+                count[0]++;
+            }
+        }
+        aggregator.flush(sink);
+        assertTrue(aggregator.getLateCount() > 0);
+        assertEquals(expected.size(), actual.size());
+        for (Map.Entry<String, int[]> entry : expected.entrySet()) {
+            assertEquals(entry.getKey(), entry.getValue()[0], (int) actual.get(entry.getKey()));
+        }
+    }
+}
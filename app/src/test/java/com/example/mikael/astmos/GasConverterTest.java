@@ -0,0 +1,128 @@
+package com.example.mikael.astmos;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the GasConverter and CalibrationProfile, run on the development machine.
+ */
+public class GasConverterTest {
+
+    private static final double ROOM = GasConverter.toKelvin(25);
+
+    @Test
+    public void usesTheMolarVolume() {
+        /* at 25 C and 1 atm a mole of gas takes 24.4654 liters */
+        assertEquals(46.0055 / 24.4654, new GasConverter(Gas.NO2).convert(1, ROOM), 1e-4);
+        assertEquals(47.997 / 24.4654 * 40, new GasConverter(Gas.O3).convert(40, ROOM), 1e-3);
+
+        /* the well known factors, which the gas levels used to be divided by */
+        assertEquals(1.145, new GasConverter(Gas.CO).convert(1, ROOM), 0.005);
+        assertEquals(2.62, new GasConverter(Gas.SO2).convert(1, ROOM), 0.005);
+        assertEquals(1.88, new GasConverter(Gas.NO2).convert(1, ROOM), 0.005);
+    }
+
+    @Test
+    public void correctsForTemperatureAndPressure() {
+        GasConverter atRoom = new GasConverter(Gas.NO2);
+        double cold = atRoom.convert(100, GasConverter.toKelvin(-25));
+        assertEquals(ROOM / GasConverter.toKelvin(-25), cold / atRoom.convert(100, ROOM), 1e-12);
+
+        GasConverter high = new GasConverter(Gas.NO2, GasConverter.STANDARD_PRESSURE / 2, CalibrationProfile.IDENTITY);
+        assertEquals(atRoom.convert(100, ROOM) / 2, high.convert(100, ROOM), 1e-12);
+    }
+
+    @Test
+    public void leavesUnknownGasesInPpb() {
+        assertNull(Gas.forName("X"));
+        assertSame(Gas.O3, Gas.forName("O3"));
+        assertEquals(42, new GasConverter(null).convert(42, ROOM), 1e-12);
+    }
+
+    @Test
+    public void calibratesInTheSamePass() {
+        CalibrationProfile calibration = new CalibrationProfile(2, 1.1, 0.5);
+        GasConverter converter = new GasConverter(Gas.O3, GasConverter.STANDARD_PRESSURE, calibration);
+        GasConverter uncalibrated = new GasConverter(Gas.O3);
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            double ppb = random.nextInt(500);
+            double temperature = GasConverter.toKelvin(random.nextInt(60) - 20);
+            assertEquals(uncalibrated.convert(calibration.apply(ppb, temperature), temperature),
+                    converter.convert(ppb, temperature), 1e-9);
+        }
+        assertEquals(1.1 * (10 - 2 - 0.5 * 5), calibration.apply(10, GasConverter.toKelvin(25)), 1e-12);
+    }
+
+    @Test
+    public void convertsBatchesLikeSingleValues() {
+        GasConverter converter = new GasConverter(Gas.SO2, 99000, new CalibrationProfile(-1, 0.9, 0.2));
+        GasConverter unknown = new GasConverter(null, 99000, new CalibrationProfile(-1, 0.9, 0.2));
+        double[] ppb = new double[100];
+        double[] temperature = new double[100];
+        double[] out = new double[100];
+        for (int i = 0; i < ppb.length; i++) {
+            ppb[i] = i * 3.5;
+            temperature[i] = GasConverter.toKelvin(i % 40);
+        }
+        converter.convert(ppb, temperature, out);
+        for (int i = 0; i < ppb.length; i++) {
+            assertEquals(converter.convert(ppb[i], temperature[i]), out[i], 0.0);
+        }
+        unknown.convert(ppb, temperature, out, 10, 20);
+        for (int i = 10; i < 30; i++) {
+            assertEquals(unknown.convert(ppb[i], temperature[i]), out[i], 0.0);
+        }
+        assertEquals(converter.convert(ppb[30], temperature[30]), out[30], 0.0);    // outside the range
+    }
+
+    @Test
+    public void loadsProfiles() throws IOException {
+        Map<String, CalibrationProfile> profiles = CalibrationProfile.load(new StringReader(
+                "# serialNr,offset,gain,crossSensitivity\n\nAB12, 1.5, 1.02, 0.1\nCD34,-2,0.98,0\n"));
+        assertEquals(2, profiles.size());
+        assertEquals(1.5, profiles.get("AB12").offset, 0.0);
+        assertEquals(1.02, profiles.get("AB12").gain, 0.0);
+        assertEquals(0.1, profiles.get("AB12").crossSensitivity, 0.0);
+        assertEquals(-2, profiles.get("CD34").offset, 0.0);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsMalformedProfiles() throws IOException {
+        CalibrationProfile.load(new StringReader("AB12,1.5,x,0\n"));
+    }
+
+    @Test
+    public void pipelineAppliesTheProfileOfEveryHead() {
+        final double[] mean = new double[1];
+        SensorPipeline pipeline = new SensorPipeline(new SampleQueue(4, SampleQueue.OverflowPolicy.BLOCK), 1,
+                Collections.singletonMap("AB12", new CalibrationProfile(10, 1, 0)), new SensorPipeline.Listener() {
+                    @Override
+                    public void onLatestAvailable() {
+                    }
+
+                    @Override
+                    public void onWindow(String serialNr, String gas, WindowAggregator window) {
+                        mean[0] = window.getMean();
+                    }
+
+                    @Override
+                    public void onStopped() {
+                    }
+                });
+        SensorRecord record = new SensorRecord();
+        record.set("NO2", 110, 25, "AB12");
+        pipeline.process(record);
+        assertEquals(Math.round(new GasConverter(Gas.NO2).convert(100, ROOM) * 100) / 100.0, mean[0], 0.0);
+        record.set("NO2", 110, 25, "CD34");
+        pipeline.process(record);
+        assertEquals(Math.round(new GasConverter(Gas.NO2).convert(110, ROOM) * 100) / 100.0, mean[0], 0.0);
+    }
+}
@@ -0,0 +1,31 @@
+package com.example.mikael.astmos;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the Geohash, run on the development machine.
+ */
+public class GeohashTest {
+
+    @Test
+    public void encodesKnownHashes() {
+        assertEquals("u4pruydqqvj", Geohash.toString(Geohash.encode(57.64911, 10.40744, 11), 11));
+        assertEquals("ezs42", Geohash.toString(Geohash.encode(42.605, -5.603, 5), 5));
+        assertEquals("s0000", Geohash.toString(Geohash.encode(0, 0, 5), 5));
+    }
+
+    @Test
+    public void nearbyCoordinatesShareACell() {
+        long cell = Geohash.encode(65.584816, 22.154751, 7);
+        assertEquals(cell, Geohash.encode(65.5848, 22.1548, 7));
+        assertNotEquals(cell, Geohash.encode(65.5900, 22.1548, 7));
+        assertEquals(cell >>> 5, Geohash.encode(65.584816, 22.154751, 6));  // a prefix names the larger cell
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsHashesLongerThanALong() {
+        Geohash.encode(0, 0, Geohash.MAX_PRECISION + 1);
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.mikael.astmos;
+
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the IsoTimeFormatter, run on the development machine.
+ */
+public class IsoTimeFormatterTest {
+
+    private static SimpleDateFormat reference() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format;
+    }
+
+    @Test
+    public void formatsInUtc() {
+        assertEquals("2018-04-16T12:00:05.000Z", IsoTimeFormatter.format(1523880005000L));
+        assertEquals("1970-01-01T00:00:00.000Z", IsoTimeFormatter.format(0));
+        assertEquals("1969-12-31T23:59:59.999Z", IsoTimeFormatter.format(-1));
+        assertEquals("2000-02-29T23:59:59.999Z", IsoTimeFormatter.format(951868799999L));
+    }
+
+    @Test
+    public void matchesSimpleDateFormat() {
+        SimpleDateFormat format = reference();
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            long time = random.nextLong() % 4000000000000L;     // about 1843 to 2096
+            assertEquals(format.format(new Date(time)), IsoTimeFormatter.format(time));
+        }
+    }
+
+    @Test
+    public void matchesSimpleDateFormatAcrossHours() {
+        SimpleDateFormat format = reference();
+        for (long time = 1523876400000L - 5000; time < 1523876400000L + 3 * 3600000L; time += 997) {
+            assertEquals(format.format(new Date(time)), IsoTimeFormatter.format(time));
+        }
+    }
+
+    @Test
+    public void formatsIntervals() {
+        assertEquals("2018-04-16T12:00:00.000Z/2018-04-16T12:00:05.000Z",
+                IsoTimeFormatter.formatInterval(1523880000000L, 1523880005000L));
+    }
+
+    @Test
+    public void isThreadSafe() throws InterruptedException {
+        final AtomicReference<String> failure = new AtomicReference<>();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long base = 1523880000000L + t * 3600000L;    // every thread in its own hour
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    SimpleDateFormat format = reference();
+                    for (int i = 0; i < 20000; i++) {
+                        long time = base + i * 7;
+                        String expected = format.format(new Date(time));
+                        String actual = IsoTimeFormatter.format(time);
+                        if (!expected.equals(actual)) {
+                            failure.compareAndSet(null, expected + " != " + actual);
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.mikael.astmos;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the LocationHistory, run on the development machine.
+ */
+public class LocationHistoryTest {
+
+    private static final long T0 = 1523880000000L;
+    private static final double DEGREES_PER_METER = 1 / 111195.0;
+
+    @Test
+    public void interpolatesBetweenFixes() {
+        LocationHistory history = new LocationHistory(8, 5000);
+        assertTrue(history.add(T0, 65.0, 22.0, 10));
+        assertTrue(history.add(T0 + 1000, 65.0 + 10 * DEGREES_PER_METER, 22.0, 10));
+
+        Coordinate position = new Coordinate();
+        assertTrue(history.positionAt(T0 + 250, position));
+        assertEquals(65.0 + 2.5 * DEGREES_PER_METER, position.latitude, 1e-12);
+        assertEquals(22.0, position.longitude, 1e-12);
+
+        assertTrue(history.positionAt(T0 + 6000, position));    // stays at the newest fix for a while
+        assertEquals(65.0 + 10 * DEGREES_PER_METER, position.latitude, 1e-12);
+        assertFalse(history.positionAt(T0 + 6001, position));
+        assertFalse(history.positionAt(T0 - 1, position));
+        assertFalse(new LocationHistory().positionAt(T0, position));
+    }
+
+    @Test
+    public void keepsTheNewestFixForAFewFixIntervals() {
+        LocationHistory history = new LocationHistory(8, 10000);
+        assertTrue(history.add(T0, 65.0, 22.0, 0));
+        Coordinate position = new Coordinate();
+        assertFalse(history.positionAt(T0 + 10001, position));
+
+        history.setFixInterval(10000);      // standing still, a fix per window
+        assertEquals(30000, history.getMaxAge());
+        assertTrue(history.positionAt(T0 + 30000, position));
+        assertFalse(history.positionAt(T0 + 30001, position));
+
+        history.setFixInterval(1000);       // never shorter than given to the constructor
+        assertEquals(10000, history.getMaxAge());
+    }
+
+    @Test
+    public void forgetsTheOldestFixes() {
+        LocationHistory history = new LocationHistory(4, 5000);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(history.add(T0 + i * 1000, 65.0 + i * DEGREES_PER_METER, 22.0, 1));
+        }
+        Coordinate position = new Coordinate();
+        assertFalse(history.positionAt(T0 + 5500, position));  // only the last three can be read safely
+        assertTrue(history.positionAt(T0 + 7500, position));
+        assertEquals(65.0 + 7.5 * DEGREES_PER_METER, position.latitude, 1e-12);
+    }
+
+    @Test
+    public void rejectsImplausibleJumps() {
+        LocationHistory history = new LocationHistory();
+        assertTrue(history.add(T0, 65.0, 22.0, 0));
+        assertTrue(history.add(T0 + 1000, 65.0 + 50 * DEGREES_PER_METER, 22.0, 0));   // within the slack
+        assertFalse(history.add(T0 + 2000, 66.0, 22.0, 0));     // 111 km in a second
+        assertFalse(history.add(T0 + 500, 65.0, 22.0, 0));      // older than the newest fix
+        assertTrue(history.add(T0 + 3000, 65.0 + 1000 * DEGREES_PER_METER, 22.0, 200));   // fast but reported
+        assertEquals(1, history.getRejectedCount());
+
+        for (int i = 1; i <= LocationHistory.MAX_REJECTED; i++) {
+            assertFalse(history.add(T0 + 3000 + i, 60.0, 20.0, 0));
+        }
+        assertTrue(history.add(T0 + 4000, 60.0, 20.0, 0));      // keeps coming, so it is believed
+        assertTrue(history.add(T0 + 5000, 60.0, 20.0, 0));
+    }
+
+    @Test
+    public void placesEverySampleOfAWindow() {
+        LocationHistory history = new LocationHistory();
+        history.add(T0, 65.0, 22.0, 20);
+        history.add(T0 + 10000, 65.0 + 200 * DEGREES_PER_METER, 22.0, 20);
+        WindowAggregator window = new WindowAggregator(4);
+        window.add(1, T0 - 1000);       // before the first fix, left out
+        window.add(1, T0);
+        window.add(1, T0 + 5000);
+        window.add(1, T0 + 10000);
+
+        Coordinate centroid = new Coordinate();
+        assertEquals(3, history.centroid(window, centroid));
+        assertEquals(65.0 + 100 * DEGREES_PER_METER, centroid.latitude, 1e-12);
+        assertEquals(22.0, centroid.longitude, 1e-12);
+    }
+
+    @Test
+    public void measuresDistances() {
+        assertEquals(111195.0, LocationHistory.distance(0, 0, 1, 0), 1e-6);
+        assertEquals(111195.0 * Math.cos(Math.toRadians(60)), LocationHistory.distance(60, 0, 60, 1), 1);
+        assertEquals(111195.0 * 0.2, LocationHistory.distance(0, 179.9, 0, -179.9), 1e-3);
+    }
+
+    @Test
+    public void readersNeverSeeTornFixes() throws InterruptedException {
+        final LocationHistory history = new LocationHistory(4, Long.MAX_VALUE);
+        final int fixes = 200000;
+        final AtomicReference<String> failure = new AtomicReference<>();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 1; i <= fixes; i++) {
+                    history.add(i, i * 1e-6, -i * 1e-6, 10);  // longitude is always minus the latitude
+                }
+            }
+        });
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Coordinate position = new Coordinate();
+                while (history.getCount() < fixes) {
+                    long time = history.getCount() - 1;
+                    if (time > 0 && history.positionAt(time, position)
+                            && Math.abs(position.latitude + position.longitude) > 1e-12) {
+                        failure.compareAndSet(null, position.latitude + " " + position.longitude);
+                    }
+                }
+            }
+        });
+        reader.start();
+        writer.start();
+        writer.join();
+        reader.join();
+        assertNull(failure.get());
+    }
+}
@@ -0,0 +1,185 @@
+package com.example.mikael.astmos;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the LocationPolicy, run on the development machine against simulated tracks.
+ */
+public class LocationPolicyTest {
+
+    private static final long SAMPLE_INTERVAL = 1000;
+    private static final int WINDOW_SIZE = 10;
+    private static final long STEP = 100;      // resolution of the simulation in milliseconds
+    private static final double DEGREES_PER_METER = 1 / 111195.0;
+
+    /**
+     * Drive
+     * Moves a simulated device along a straight track in legs of constant speed, and delivers a
+     * fix whenever the registration of the policy lets the provider do so. The fixes go into a
+     * location history as they do in the app, and every sample taken after the first fix is
+     * placed by it at once, before a later fix could help.
+     */
+    private static class Drive {
+        final LocationPolicy policy;
+        final List<long[]> fixes = new ArrayList<>();  // time, position in millimeters, leg
+        long time = 0;
+        double position = 0;            // meters along the track
+        long lastFixTime = Long.MIN_VALUE / 2;
+        double lastFixPosition = 0;
+        int registrations = 1;          // the one made before the first fix
+        int leg = 0;
+        final LocationHistory history = new LocationHistory();
+        final Coordinate placed = new Coordinate();
+        int unplaced = 0;               // samples after the first fix the history could not place
+
+        Drive(LocationPolicy policy) {
+            this.policy = policy;
+        }
+
+        /* the provider delivers a fix when both the time and the distance are reached */
+        Drive leg(long duration, float speed) {
+            for (long end = time + duration; time < end; time += STEP) {
+                position += speed * STEP / 1000.0;
+                if (time - lastFixTime >= policy.getMinTime()
+                        && Math.abs(position - lastFixPosition) >= policy.getMinDistance()) {
+                    lastFixTime = time;
+                    lastFixPosition = position;
+                    fixes.add(new long[]{time, Math.round(position * 1000), leg});
+                    assertTrue(history.add(time, 57.7 + position * DEGREES_PER_METER, 11.9, speed));
+                    if (policy.update(time, speed)) {
+                        registrations++;
+                        history.setFixInterval(policy.getMinTime());
+                    }
+                }
+                if (time % SAMPLE_INTERVAL == 0 && !fixes.isEmpty() && !history.positionAt(time, placed)) {
+                    unplaced++;
+                }
+            }
+            leg++;
+            return this;
+        }
+
+        int fixesIn(int leg) {
+            int count = 0;
+            for (long[] fix : fixes) {
+                if (fix[2] == leg) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        long shortestInterval() {
+            long shortest = Long.MAX_VALUE;
+            for (int i = 1; i < fixes.size(); i++) {
+                shortest = Math.min(shortest, fixes.get(i)[0] - fixes.get(i - 1)[0]);
+            }
+            return shortest;
+        }
+    }
+
+    private static LocationPolicy policy() {
+        return new LocationPolicy(SAMPLE_INTERVAL, WINDOW_SIZE, LocationPolicy.DEFAULT_SPACING);
+    }
+
+    @Test
+    public void isCoarseWhenStandingStill() {
+        Drive drive = new Drive(policy()).leg(600000, 0);
+        assertTrue(drive.policy.isStationary());
+        assertEquals(SAMPLE_INTERVAL * WINDOW_SIZE, drive.policy.getMinTime());
+        assertTrue(drive.fixes.size() + " fixes", drive.fixes.size() <= 600000 / (SAMPLE_INTERVAL * WINDOW_SIZE) + 2);
+    }
+
+    @Test
+    public void placesEverySampleOfAParkedDevice() {
+        Drive drive = new Drive(policy()).leg(600000, 0).leg(120000, 15).leg(600000, 0);
+        assertTrue(drive.policy.isStationary());
+        assertEquals(0, drive.policy.getMinDistance(), 0);
+        assertTrue(drive.fixesIn(2) + " fixes", drive.fixesIn(2) >= 600000 / (SAMPLE_INTERVAL * WINDOW_SIZE) - 2);
+        assertEquals(0, drive.unplaced);
+    }
+
+    @Test
+    public void keepsTheSpacingWhenDriving() {
+        Drive drive = new Drive(policy()).leg(60000, 0).leg(300000, 12.5f);    // 45 km/h
+        assertFalse(drive.policy.isStationary());
+        assertEquals(2000, drive.policy.getMinTime(), 2000 * (LocationPolicy.CHANGE_RATIO - 1));
+
+        /* the interval is only changed when it is off by the change ratio */
+        double spacing = 300 * 12.5 / drive.fixesIn(1);
+        assertTrue(spacing + " m", spacing >= LocationPolicy.DEFAULT_SPACING / LocationPolicy.CHANGE_RATIO);
+        assertTrue(spacing + " m", spacing <= LocationPolicy.DEFAULT_SPACING * LocationPolicy.CHANGE_RATIO);
+    }
+
+    @Test
+    public void neverAsksForMoreThanOneFixPerSample() {
+        Drive drive = new Drive(policy()).leg(30000, 1).leg(120000, 40).leg(30000, 3);
+        assertEquals(SAMPLE_INTERVAL, drive.shortestInterval());
+        assertTrue(drive.fixesIn(1) <= 120000 / SAMPLE_INTERVAL + 1);
+    }
+
+    @Test
+    public void walkingGetsAFixPerWindow() {
+        Drive drive = new Drive(policy()).leg(300000, 1.4f);
+        assertEquals(SAMPLE_INTERVAL * WINDOW_SIZE, drive.policy.getMinTime());
+        assertEquals(300000 / (SAMPLE_INTERVAL * WINDOW_SIZE), drive.fixes.size(), 2);
+    }
+
+    @Test
+    public void switchesAtOnceWhenStartingAndStopping() {
+        Drive drive = new Drive(policy()).leg(60000, 0).leg(30000, 15);
+        assertFalse(drive.policy.isStationary());
+        long[] firstMoving = null;
+        for (long[] fix : drive.fixes) {
+            if (fix[2] == 1) {
+                firstMoving = fix;
+                break;
+            }
+        }
+        assertNotNull(firstMoving);
+        assertTrue(firstMoving[0] - 60000 <= SAMPLE_INTERVAL * WINDOW_SIZE);     // one window at most
+
+        drive.leg(120000, 0);
+        assertTrue(drive.policy.isStationary());
+    }
+
+    @Test
+    public void doesNotRegisterAgainForEveryWobbleOfTheSpeed() {
+        Drive drive = new Drive(policy());
+        for (int i = 0; i < 60; i++) {
+            drive.leg(5000, i % 2 == 0 ? 10 : 12);
+        }
+        assertTrue(drive.registrations + " registrations", drive.registrations <= 3);
+    }
+
+    @Test
+    public void usesTheMeasuredSampleRate() {
+        LocationPolicy policy = policy();
+        policy.update(0, 0);
+        policy.setSampleInterval(2000);
+        policy.update(1000, 100);
+        assertEquals(2000, policy.getMinTime());
+        policy.setSampleInterval(0);            // not measured yet, ignored
+        policy.update(20000, 100);
+        assertEquals(2000, policy.getMinTime());
+    }
+
+    @Test
+    public void savesMostFixesComparedToAskingForAll() {
+        Drive drive = new Drive(policy()).leg(300000, 0).leg(600000, 1.4f).leg(600000, 15).leg(300000, 0);
+        int baseline = 0;
+        for (double position = 0, last = 0, t = 0; t < 1800000; t += 1000) {    // 1 Hz and 1 m as before
+            position += (t < 300000 ? 0 : t < 900000 ? 1.4 : t < 1500000 ? 15 : 0);
+            if (position - last >= 1) {
+                baseline++;
+                last = position;
+            }
+        }
+        assertTrue(drive.fixes.size() + " vs " + baseline, drive.fixes.size() * 2 < baseline);
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.mikael.astmos;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the Metrics, run on the development machine.
+ */
+public class MetricsTest {
+
+    private static final long START = 1525132800000L;      // 2018-05-01T00:00:00Z
+
+    private static String snapshot(Metrics metrics, long now) {
+        StringBuilder json = new StringBuilder();
+        metrics.writeSnapshot(json, now);
+        return json.toString();
+    }
+
+    @Test
+    public void bucketsHoldTheirValues() {
+        int previous = -1;
+        for (long value = 0; value < 100000; value++) {
+            int bucket = Metrics.bucketOf(value);
+            assertTrue(bucket == previous || bucket == previous + 1);
+            assertTrue(value <= Metrics.upperBoundOf(bucket));
+            assertTrue(bucket == 0 || value > Metrics.upperBoundOf(bucket - 1));
+            previous = bucket;
+        }
+        assertEquals(Metrics.BUCKET_COUNT - 1, Metrics.bucketOf(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, Metrics.upperBoundOf(Metrics.BUCKET_COUNT - 1));
+    }
+
+    @Test
+    public void bucketsAreWithinAnEighthOfTheirValues() {
+        Random random = new Random(5);
+        for (int i = 0; i < 10000; i++) {
+            long value = (long) Math.exp(random.nextDouble() * 40);
+            long bound = Metrics.upperBoundOf(Metrics.bucketOf(value));
+            assertTrue(value + " in " + bound, bound - value <= value / Metrics.SUB_BUCKETS);
+        }
+    }
+
+    @Test
+    public void snapshotGivesRatesAndPercentiles() {
+        Metrics metrics = new Metrics();
+        Metrics.Counter frames = metrics.counter("frames");
+        Metrics.Histogram lag = metrics.histogram("lag");
+        metrics.gauge("depth", new Metrics.Gauge() {
+            @Override
+            public long read() {
+                return 7;
+            }
+        });
+        metrics.writeSnapshot(new StringBuilder(), START);
+
+        frames.add(120);
+        for (int i = 1; i <= 100; i++) {
+            lag.record(i);
+        }
+        assertEquals("{\"time\":\"2018-05-01T00:01:00.000Z\",\"interval\":60000"
+                        + ",\"counters\":{\"frames\":{\"total\":120,\"rate\":2.000}}"
+                        + ",\"gauges\":{\"depth\":7}"
+                        + ",\"histograms\":{\"lag\":{\"count\":100,\"mean\":50.5,\"p50\":51,\"p90\":95,\"p99\":103,\"max\":103}}}",
+                snapshot(metrics, START + 60000));
+
+        // the next interval starts empty, the counter keeps its total
+        frames.increment();
+        assertEquals("{\"time\":\"2018-05-01T00:01:30.000Z\",\"interval\":30000"
+                        + ",\"counters\":{\"frames\":{\"total\":121,\"rate\":0.033}}"
+                        + ",\"gauges\":{\"depth\":7}"
+                        + ",\"histograms\":{\"lag\":{\"count\":0}}}",
+                snapshot(metrics, START + 90000));
+    }
+
+    @Test
+    public void findsWhatIsRegistered() {
+        Metrics metrics = new Metrics();
+        assertSame(metrics.counter("a"), metrics.counter("a"));
+        assertNotSame(metrics.counter("a"), metrics.counter("b"));
+        assertSame(metrics.histogram("a"), metrics.histogram("a"));
+    }
+
+    @Test
+    public void countsFromManyThreads() throws InterruptedException {
+        final Metrics metrics = new Metrics();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        metrics.counter("frames").increment();
+                        metrics.histogram("lag").record(i % 100);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        String json = snapshot(metrics, System.currentTimeMillis());
+        assertEquals(40000, metrics.counter("frames").get());
+        assertTrue(json, json.contains("\"lag\":{\"count\":40000,\"mean\":49.5,"));
+    }
+}
@@ -0,0 +1,221 @@
+package com.example.mikael.astmos;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the ObservationBus, run on the development machine.
+ */
+public class ObservationBusTest {
+
+    /* runs the drains only when asked to, like a thread which is busy elsewhere */
+    private static class ManualExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+            }
+        }
+    }
+
+    /* keeps the values of the windows it is handed */
+    private static class Recorder implements ObservationBus.Subscriber<Observation> {
+        final List<Double> values = new ArrayList<>();
+
+        @Override
+        public void onEvent(Observation event) {
+            values.add(event.value);
+        }
+    }
+
+    private static Observation window(double value) {
+        Observation observation = new Observation();
+        observation.serialNr = "A1";
+        observation.value = value;
+        observation.phenomenonEnd = (long) value;
+        return observation;
+    }
+
+    @Test
+    public void deliversEveryEventInOrderWhileThereIsRoom() {
+        ObservationBus bus = new ObservationBus();
+        ManualExecutor executor = new ManualExecutor();
+        Recorder recorder = new Recorder();
+        ObservationBus.Subscription<Observation> subscription =
+                bus.subscribe(ObservationBus.WINDOWS, 8, ObservationBus.Policy.DROP_OLDEST, executor, recorder);
+        Observation reused = new Observation();
+        for (int i = 0; i < 5; i++) {
+            reused.value = i;
+            bus.publish(ObservationBus.WINDOWS, reused);    // copied, the publisher can reuse it
+        }
+        assertEquals(1, executor.tasks.size());     // one drain for all of them
+        assertEquals(5, subscription.getPendingCount());
+        executor.runAll();
+        assertEquals("[0.0, 1.0, 2.0, 3.0, 4.0]", recorder.values.toString());
+        assertEquals(5, subscription.getDeliveredCount());
+        assertEquals(0, subscription.getDroppedCount());
+    }
+
+    @Test
+    public void appliesThePolicyOfEachSubscription() {
+        ObservationBus bus = new ObservationBus();
+        ManualExecutor executor = new ManualExecutor();
+        Recorder oldest = new Recorder();
+        Recorder newest = new Recorder();
+        Recorder latest = new Recorder();
+        ObservationBus.Subscription<Observation> dropOldest =
+                bus.subscribe(ObservationBus.WINDOWS, 3, ObservationBus.Policy.DROP_OLDEST, executor, oldest);
+        ObservationBus.Subscription<Observation> dropNewest =
+                bus.subscribe(ObservationBus.WINDOWS, 3, ObservationBus.Policy.DROP_NEWEST, executor, newest);
+        ObservationBus.Subscription<Observation> conflate =
+                bus.subscribe(ObservationBus.WINDOWS, 3, ObservationBus.Policy.CONFLATE, executor, latest);
+        for (int i = 0; i < 6; i++) {
+            bus.publish(ObservationBus.WINDOWS, window(i));
+        }
+        executor.runAll();
+        assertEquals("[3.0, 4.0, 5.0]", oldest.values.toString());
+        assertEquals("[0.0, 1.0, 2.0]", newest.values.toString());
+        assertEquals("[5.0]", latest.values.toString());
+        assertEquals(3, dropOldest.getDroppedCount());
+        assertEquals(3, dropNewest.getDroppedCount());
+        assertEquals(5, conflate.getDroppedCount());
+    }
+
+    @Test
+    public void aStalledSubscriberDoesNotHoldBackTheOthers() throws Exception {
+        ObservationBus bus = new ObservationBus();
+        ExecutorService stalledThread = Executors.newSingleThreadExecutor();
+        ExecutorService storeThread = Executors.newSingleThreadExecutor();
+        final CountDownLatch brokerBack = new CountDownLatch(1);
+        final CountDownLatch stored = new CountDownLatch(1000);
+        try {
+            ObservationBus.Subscription<Observation> publisher = bus.subscribe(ObservationBus.WINDOWS, 16,
+                    ObservationBus.Policy.DROP_OLDEST, stalledThread, new ObservationBus.Subscriber<Observation>() {
+                        @Override
+                        public void onEvent(Observation event) {
+                            try {
+                                brokerBack.await();     // e.g. a stalled broker connection
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                    });
+            bus.subscribe(ObservationBus.WINDOWS, 16, ObservationBus.Policy.DROP_NEWEST, storeThread,
+                    new ObservationBus.Subscriber<Observation>() {
+                        @Override
+                        public void onEvent(Observation event) {
+                            stored.countDown();
+                        }
+                    });
+
+            Observation observation = new Observation();
+            long start = System.nanoTime();
+            for (int i = 0; i < 1000; i++) {
+                observation.value = i;
+                bus.publish(ObservationBus.WINDOWS, observation);
+                while (stored.getCount() > 999 - i) {   // the store keeps up, one at a time
+                    Thread.yield();
+                    assertTrue("store held back", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+                }
+            }
+            assertTrue(stored.await(1, TimeUnit.SECONDS));
+            assertEquals(16, publisher.getPendingCount());
+            assertTrue(publisher.getDroppedCount() >= 1000 - 16 - 1);
+        } finally {
+            brokerBack.countDown();
+            stalledThread.shutdown();
+            storeThread.shutdown();
+        }
+    }
+
+    @Test
+    public void topicsAreKeptApart() {
+        ObservationBus bus = new ObservationBus();
+        ManualExecutor executor = new ManualExecutor();
+        final List<String> fixes = new ArrayList<>();
+        Recorder windows = new Recorder();
+        bus.subscribe(ObservationBus.WINDOWS, 4, ObservationBus.Policy.DROP_OLDEST, executor, windows);
+        bus.subscribe(ObservationBus.FIXES, 4, ObservationBus.Policy.CONFLATE, executor,
+                new ObservationBus.Subscriber<LocationFix>() {
+                    @Override
+                    public void onEvent(LocationFix event) {
+                        fixes.add(event.latitude + "," + event.longitude);
+                    }
+                });
+        assertFalse(bus.hasSubscribers(ObservationBus.SAMPLES));
+        SensorRecord sample = new SensorRecord();
+        sample.set("O3", 40, 20, "A1");
+        bus.publish(ObservationBus.SAMPLES, sample);     // nobody listens
+        LocationFix fix = new LocationFix();
+        fix.set(1000, 57.7, 11.9, 3.5f);
+        bus.publish(ObservationBus.FIXES, fix);
+        bus.publish(ObservationBus.WINDOWS, window(7));
+        executor.runAll();
+        assertEquals("[57.7,11.9]", fixes.toString());
+        assertEquals("[7.0]", windows.values.toString());
+    }
+
+    @Test
+    public void aThrowingSubscriberKeepsGettingEvents() {
+        ObservationBus bus = new ObservationBus();
+        ManualExecutor executor = new ManualExecutor();
+        final Recorder recorder = new Recorder();
+        ObservationBus.Subscription<Observation> subscription = bus.subscribe(ObservationBus.WINDOWS, 16,
+                ObservationBus.Policy.DROP_OLDEST, executor, new ObservationBus.Subscriber<Observation>() {
+                    @Override
+                    public void onEvent(Observation event) {
+                        if (event.value == 2) {
+                            throw new IllegalStateException("store failed");
+                        }
+                        recorder.onEvent(event);
+                    }
+                });
+        for (int i = 0; i < 5; i++) {
+            bus.publish(ObservationBus.WINDOWS, window(i));
+        }
+        executor.runAll();
+        for (int i = 5; i < 30; i++) {
+            bus.publish(ObservationBus.WINDOWS, window(i));
+            executor.runAll();      // a drain is scheduled again after the throw
+        }
+        assertEquals(29, recorder.values.size());
+        assertFalse(recorder.values.contains(2.0));
+        assertEquals(1, subscription.getFailedCount());
+        assertEquals(29, subscription.getDeliveredCount());
+        assertEquals(0, subscription.getPendingCount());
+        assertEquals(0, subscription.getDroppedCount());
+    }
+
+    @Test
+    public void cancelledSubscriptionsReceiveNothingMore() {
+        ObservationBus bus = new ObservationBus();
+        ManualExecutor executor = new ManualExecutor();
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+        ObservationBus.Subscription<Observation> cancelled =
+                bus.subscribe(ObservationBus.WINDOWS, 4, ObservationBus.Policy.DROP_OLDEST, executor, first);
+        bus.subscribe(ObservationBus.WINDOWS, 4, ObservationBus.Policy.DROP_OLDEST, executor, second);
+        bus.publish(ObservationBus.WINDOWS, window(1));
+        cancelled.cancel();     // the buffered window is discarded
+        bus.publish(ObservationBus.WINDOWS, window(2));
+        executor.runAll();
+        assertEquals("[]", first.values.toString());
+        assertEquals("[1.0, 2.0]", second.values.toString());
+        assertTrue(bus.hasSubscribers(ObservationBus.WINDOWS));
+    }
+}
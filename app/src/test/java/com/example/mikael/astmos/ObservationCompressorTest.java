@@ -0,0 +1,172 @@
+package com.example.mikael.astmos;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the ObservationCompressor, run on the development machine against simulated
+ * series of windows.
+ */
+public class ObservationCompressorTest {
+
+    private static final long WINDOW = 10000;           // milliseconds per window
+    private static final double LATITUDE = 65.6;
+    private static final double LONGITUDE = 22.1;
+
+    /* copies everything the compressor emits */
+    private static class Recorder implements ObservationCompressor.Sink {
+        final List<Observation> emitted = new ArrayList<>();
+
+        @Override
+        public void emit(Observation observation) {
+            Observation copy = new Observation();
+            copy.copyFrom(observation);
+            emitted.add(copy);
+        }
+    }
+
+    private final ObservationCompressor compressor = new ObservationCompressor(2.0, 25.0, 600000);
+    private final Recorder recorder = new Recorder();
+    private final List<Observation> offered = new ArrayList<>();
+
+    private void offer(String serialNr, int window, double value, double metersNorth) {
+        Observation observation = new Observation();
+        observation.serialNr = serialNr;
+        observation.value = value;
+        observation.latitude = LATITUDE + metersNorth / 111195.0;
+        observation.longitude = LONGITUDE;
+        observation.phenomenonStart = window * WINDOW;
+        observation.phenomenonEnd = window * WINDOW + WINDOW - 1000;
+        offered.add(observation);
+        compressor.offer(observation, recorder);
+    }
+
+    private void offer(int window, double value) {
+        offer("A1", window, value, 0);
+    }
+
+    /* the largest error when restoring the offered values between the emitted ones */
+    private double largestError() {
+        double largest = 0;
+        int next = 0;
+        for (Observation observation : offered) {
+            long time = observation.phenomenonStart;
+            while (next < recorder.emitted.size() - 1 && recorder.emitted.get(next + 1).phenomenonStart < time) {
+                next++;
+            }
+            Observation a = recorder.emitted.get(next);
+            Observation b = recorder.emitted.get(Math.min(next + 1, recorder.emitted.size() - 1));
+            double restored = b.phenomenonStart == a.phenomenonStart ? a.value
+                    : a.value + (b.value - a.value) * (time - a.phenomenonStart) / (b.phenomenonStart - a.phenomenonStart);
+            largest = Math.max(largest, Math.abs(restored - observation.value));
+        }
+        return largest;
+    }
+
+    @Test
+    public void sendsAnOrderOfMagnitudeLessWhenParked() {
+        Random random = new Random(17);
+        for (int i = 0; i < 360; i++) {     // an hour
+            offer(i, 20 + random.nextGaussian() * 0.5);
+        }
+        compressor.flush(recorder);
+        assertEquals(360, compressor.getOfferedCount());
+        assertTrue(recorder.emitted.size() + " sent", recorder.emitted.size() * 10 <= 360);
+        assertTrue(largestError() <= 2.0 + 1e-9);
+    }
+
+    @Test
+    public void sendsAHeartbeatAtTheLongestInterval() {
+        for (int i = 0; i < 360; i++) {
+            offer(i, 20);
+        }
+        List<Observation> emitted = recorder.emitted;
+        assertEquals(0, emitted.get(0).phenomenonStart);
+        for (int i = 1; i < emitted.size(); i++) {
+            assertTrue(emitted.get(i).phenomenonStart - emitted.get(i - 1).phenomenonStart <= 600000);
+        }
+        assertTrue(359 * WINDOW - emitted.get(emitted.size() - 1).phenomenonStart < 600000);
+    }
+
+    @Test
+    public void keepsEveryStep() {
+        for (int i = 0; i < 30; i++) {
+            offer(i, 20);
+        }
+        offer(30, 45);
+        assertEquals(20, recorder.emitted.get(recorder.emitted.size() - 1).value, 0);    // the level before
+        offer(31, 45);
+        assertEquals(45, recorder.emitted.get(recorder.emitted.size() - 1).value, 0);    // one window late
+        assertEquals(30 * WINDOW, recorder.emitted.get(recorder.emitted.size() - 1).phenomenonStart);
+    }
+
+    @Test
+    public void restoresAnySignalWithinTheDeadBand() {
+        Random random = new Random(42);
+        double level = 30;
+        for (int i = 0; i < 5000; i++) {
+            level += random.nextGaussian() * 0.8;
+            if (random.nextInt(200) == 0) {
+                level += 20 * random.nextGaussian();
+            }
+            offer(i, level);
+        }
+        compressor.flush(recorder);
+        assertEquals(offered.get(offered.size() - 1).value, recorder.emitted.get(recorder.emitted.size() - 1).value, 0);
+        assertTrue(largestError() + " off", largestError() <= 2.0 + 1e-9);
+        assertTrue(recorder.emitted.size() < offered.size());
+    }
+
+    @Test
+    public void sendsEveryWindowWhenMoving() {
+        for (int i = 0; i < 20; i++) {
+            offer("A1", i, 20, i * 100.0);
+        }
+        assertEquals(20, recorder.emitted.size());
+    }
+
+    @Test
+    public void sendsWhenCreepingAwayFromTheLastSent() {
+        for (int i = 0; i < 20; i++) {
+            offer("A1", i, 20, i * 3.0);
+        }
+        assertEquals(3, recorder.emitted.size());      // at 0, 24 and 48 m, the last ones within 25 m of the one before
+        assertEquals(24.0, recorder.emitted.get(1).latitude * 111195.0 - LATITUDE * 111195.0, 1e-6);
+    }
+
+    @Test
+    public void flushSendsTheHeldWindowOnce() {
+        offer(0, 20);
+        offer(1, 20.5);
+        assertEquals(1, recorder.emitted.size());
+        compressor.flush(recorder);
+        assertEquals(2, recorder.emitted.size());
+        assertEquals(20.5, recorder.emitted.get(1).value, 0);
+        compressor.flush(recorder);
+        assertEquals(2, recorder.emitted.size());
+    }
+
+    @Test
+    public void compressesEverySerialNumberOnItsOwn() {
+        for (int i = 0; i < 10; i++) {
+            offer("A1", i, 20, 0);
+            offer("B2", i, i % 2 == 0 ? 100 : 200, 0);
+        }
+        int a = 0;
+        int b = 0;
+        for (Observation observation : recorder.emitted) {
+            if (observation.serialNr.equals("A1")) {
+                a++;
+            } else {
+                b++;
+            }
+        }
+        assertEquals(1, a);
+        assertEquals(9, b);     // all but the last, which is held until the next one or a flush
+    }
+}
@@ -0,0 +1,79 @@
+package com.example.mikael.astmos;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the ObservationEncoder, run on the development machine. The golden file holds
+ * the output of JSonMessage for the same observation on a device.
+ */
+public class ObservationEncoderTest {
+
+    private static final long PHENOMENON_START = 1523880000000L;   // 2018-04-16 12:00:00 UTC
+    private static final long PHENOMENON_END = 1523880005000L;     // 2018-04-16 12:00:05 UTC
+    private static final long RESULT_TIME = 1523880010000L;        // 2018-04-16 12:00:10 UTC
+
+    private final ObservationEncoder encoder = new ObservationEncoder();
+
+    private String encode(double value, double lat, double lon, String serialNr) throws IOException {
+        int length = encoder.encode(value, new Coordinate(lat, lon), PHENOMENON_START, PHENOMENON_END, RESULT_TIME, serialNr);
+        return new String(encoder.getBuffer(), 0, length, "UTF-8");
+    }
+
+    private static byte[] readResource(String name) throws IOException {
+        InputStream in = ObservationEncoderTest.class.getClassLoader().getResourceAsStream(name);
+        assertNotNull("missing resource " + name, in);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            out.write(buffer, 0, count);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void matchesGoldenFile() throws IOException {
+        byte[] golden = readResource("observation_golden.json");
+        int length = encoder.encode(12.345, new Coordinate(65.584816, 22.154751), PHENOMENON_START, PHENOMENON_END, RESULT_TIME, "AB12");
+        assertArrayEquals(golden, Arrays.copyOf(encoder.getBuffer(), length));
+
+        // a second message for the same serial number comes from the cached fragments
+        encoder.encode(1.5, new Coordinate(1, 2), PHENOMENON_START, PHENOMENON_END, RESULT_TIME, "CD34");
+        length = encoder.encode(12.345, new Coordinate(65.584816, 22.154751), PHENOMENON_START, PHENOMENON_END, RESULT_TIME, "AB12");
+        assertArrayEquals(golden, Arrays.copyOf(encoder.getBuffer(), length));
+    }
+
+    @Test
+    public void formatsNumbersLikeOrgJson() throws IOException {
+        assertTrue(encode(12.0, 0.0, -0.0, "A").contains("\"coordinates\":[0,-0]"));
+        assertTrue(encode(12.0, 0.0, 0.0, "A").contains("{\"Value\":12}"));
+        assertTrue(encode(-3.25, 1e20, 1e-7, "A").contains("\"coordinates\":[1.0E20,1.0E-7]"));
+        assertTrue(encode(-3.25, 0.0, 0.0, "A").contains("{\"Value\":-3.25}"));
+    }
+
+    @Test
+    public void escapesStringsLikeOrgJson() throws IOException {
+        String json = encode(1.5, 0.0, 0.0, "a\"b\\c/d\te\u0001å😀");
+        assertTrue(json, json.startsWith("{\"@iot.id\":\"a\\\"b\\\\c\\/d\\te\\u0001å😀\","));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonFiniteValues() {
+        encoder.encode(Double.NaN, new Coordinate(), PHENOMENON_START, PHENOMENON_END, RESULT_TIME, "A");
+    }
+
+    @Test
+    public void writesThePhenomenonTimeAsAnInterval() throws IOException {
+        String json = encode(1.5, 0.0, 0.0, "A");
+        assertTrue(json, json.contains("\"phenomenonTime\":\"2018-04-16T12:00:00.000Z\\/2018-04-16T12:00:05.000Z\""));
+        assertTrue(json, json.contains("\"resultTime\":\"2018-04-16T12:00:10.000Z\""));
+    }
+}
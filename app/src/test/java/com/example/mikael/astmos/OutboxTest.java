@@ -0,0 +1,200 @@
+package com.example.mikael.astmos;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the Outbox, run on the development machine against a stand-in for the broker.
+ */
+public class OutboxTest {
+
+    /**
+     * Broker
+     * Stand-in for the broker connection. Accepts messages while connected and up to a number of
+     * unacknowledged messages in flight, acknowledgements are given explicitly by the test.
+     */
+    private static class Broker implements Outbox.Sender {
+        boolean connected = true;
+        int maxInFlight = Integer.MAX_VALUE;
+        final List<Long> inFlight = new ArrayList<>();
+        final List<String> received = new ArrayList<>();
+
+        @Override
+        public boolean send(long sequence, String topic, byte[] payload, int offset, int length) {
+            if (!connected || inFlight.size() >= maxInFlight) {
+                return false;
+            }
+            inFlight.add(sequence);
+            received.add(topic + "=" + new String(payload, offset, length));
+            return true;
+        }
+
+        void acknowledgeAll(Outbox outbox) {
+            for (long sequence : inFlight) {
+                outbox.acknowledge(sequence);
+            }
+            inFlight.clear();
+        }
+
+        void disconnect() {
+            connected = false;
+            inFlight.clear();   // whatever was in flight is lost with the connection
+        }
+    }
+
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = File.createTempFile("outbox", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+    }
+
+    @After
+    public void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static void append(Outbox outbox, String topic, String payload) throws IOException {
+        byte[] bytes = payload.getBytes();
+        outbox.append(topic, bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void deliversAndCommitsInOrder() throws IOException {
+        Outbox outbox = new Outbox(directory, 256, 4);
+        Broker broker = new Broker();
+        append(outbox, "/observations/A", "1");
+        append(outbox, "/observations/B", "2");
+        assertEquals(2, outbox.drain(broker));
+        assertEquals("/observations/A=1", broker.received.get(0));
+        assertEquals("/observations/B=2", broker.received.get(1));
+        assertEquals(0, outbox.drain(broker));
+
+        outbox.acknowledge(1);  // out of order, the cursor can not move yet
+        assertEquals(0, outbox.getCommitted());
+        outbox.acknowledge(0);
+        assertEquals(2, outbox.getCommitted());
+        assertEquals(0, outbox.getPendingCount());
+    }
+
+    @Test
+    public void replaysUnacknowledgedMessagesAfterReconnect() throws IOException {
+        Outbox outbox = new Outbox(directory, 256, 4);
+        Broker broker = new Broker();
+        append(outbox, "/t", "1");
+        append(outbox, "/t", "2");
+        outbox.drain(broker);
+        outbox.acknowledge(0);
+        broker.disconnect();
+
+        append(outbox, "/t", "3");  // in a dead zone
+        assertEquals(0, outbox.drain(broker));
+
+        broker.connected = true;
+        broker.received.clear();
+        outbox.rewind();
+        assertEquals(2, outbox.drain(broker));
+        assertEquals("/t=2", broker.received.get(0));
+        assertEquals("/t=3", broker.received.get(1));
+    }
+
+    @Test
+    public void survivesAProcessRestart() throws IOException {
+        Outbox outbox = new Outbox(directory, 128, 8);
+        Broker broker = new Broker();
+        for (int i = 0; i < 20; i++) {
+            append(outbox, "/t", "message " + i);
+        }
+        broker.maxInFlight = 5;
+        outbox.drain(broker);
+        broker.acknowledgeAll(outbox);
+        assertEquals(5, outbox.getCommitted());
+
+        // a new instance on the same directory is what the next process sees
+        Outbox reopened = new Outbox(directory, 128, 8);
+        Broker next = new Broker();
+        assertEquals(5, reopened.getCommitted());
+        assertEquals(15, reopened.drain(next));
+        assertEquals("/t=message 5", next.received.get(0));
+        assertEquals("/t=message 19", next.received.get(14));
+
+        append(reopened, "/t", "after restart");
+        assertEquals(1, reopened.drain(next));
+        assertEquals("/t=after restart", next.received.get(15));
+    }
+
+    @Test
+    public void deletesCommittedSegments() throws IOException {
+        Outbox outbox = new Outbox(directory, 128, 64);
+        Broker broker = new Broker();
+        for (int i = 0; i < 50; i++) {
+            append(outbox, "/t", "message " + i);
+        }
+        assertTrue(outbox.getSegmentCount() > 5);
+        outbox.drain(broker);
+        broker.acknowledgeAll(outbox);
+        assertEquals(1, outbox.getSegmentCount());
+        assertEquals(2, directory.listFiles().length);  // the last segment and the cursor
+    }
+
+    @Test
+    public void dropsTheOldestSegmentWhenFull() throws IOException {
+        Outbox outbox = new Outbox(directory, 128, 3);
+        for (int i = 0; i < 100; i++) {
+            append(outbox, "/t", "message " + i);
+        }
+        assertEquals(3, outbox.getSegmentCount());
+        assertTrue(outbox.getDroppedCount() > 0);
+        assertEquals(100, outbox.getDroppedCount() + outbox.getPendingCount());
+
+        Broker broker = new Broker();
+        outbox.drain(broker);
+        assertEquals("/t=message 99", broker.received.get(broker.received.size() - 1));
+        assertEquals(outbox.getPendingCount(), broker.received.size());
+    }
+
+    @Test
+    public void ignoresATornRecordAtTheEnd() throws IOException {
+        Outbox outbox = new Outbox(directory, 256, 4);
+        append(outbox, "/t", "complete");
+        append(outbox, "/t", "torn");
+
+        /* corrupt the payload of the last record as if the write was cut short */
+        File[] segments = directory.listFiles();
+        for (File file : segments) {
+            if (file.getName().startsWith(Outbox.SEGMENT_PREFIX)) {
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                int first = raf.readInt();
+                raf.seek(8 + first + 8 + 10);
+                raf.write('X');
+                raf.close();
+            }
+        }
+
+        Outbox reopened = new Outbox(directory, 256, 4);
+        Broker broker = new Broker();
+        assertEquals(1, reopened.drain(broker));
+        assertEquals("/t=complete", broker.received.get(0));
+
+        append(reopened, "/t", "next");
+        assertEquals(1, reopened.drain(broker));
+        assertEquals("/t=next", broker.received.get(1));
+    }
+}
@@ -0,0 +1,70 @@
+package com.example.mikael.astmos;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the PublishBatcher, run on the development machine.
+ */
+public class PublishBatcherTest {
+
+    /* records the batches handed to the sink as "topic=payload" */
+    private final List<String> published = new ArrayList<>();
+    private final PublishBatcher.Sink sink = new PublishBatcher.Sink() {
+        @Override
+        public void publishBatch(String topic, byte[] payload, int length, int count) {
+            published.add(topic + "=" + new String(payload, 0, length));
+        }
+    };
+
+    private static void add(PublishBatcher batcher, String topic, String observation, long now) {
+        byte[] bytes = ("##" + observation).getBytes();
+        batcher.add(topic, bytes, 2, bytes.length - 2, now);
+    }
+
+    @Test
+    public void flushesWhenTheCountIsReached() {
+        PublishBatcher batcher = new PublishBatcher(3, 60000, sink);
+        add(batcher, "/a", "{\"v\":1}", 0);
+        add(batcher, "/b", "{\"v\":2}", 1);
+        add(batcher, "/a", "{\"v\":3}", 2);
+        assertTrue(published.isEmpty());
+        add(batcher, "/a", "{\"v\":4}", 3);
+
+        assertEquals(1, published.size());
+        assertEquals("/a=[{\"v\":1},{\"v\":3},{\"v\":4}]", published.get(0));
+        assertEquals(1, batcher.getPendingCount());
+    }
+
+    @Test
+    public void flushesWhenTheOldestObservationIsTooOld() {
+        PublishBatcher batcher = new PublishBatcher(100, 1000, sink);
+        add(batcher, "/a", "1", 0);
+        add(batcher, "/a", "2", 500);
+        assertEquals(0, batcher.flushExpired(999));
+        assertEquals(1, batcher.flushExpired(1000));
+        assertEquals("/a=[1,2]", published.get(0));
+
+        // the age of the next batch starts with its first observation
+        add(batcher, "/a", "3", 1200);
+        assertEquals(0, batcher.flushExpired(2100));
+        add(batcher, "/a", "4", 2200);
+        assertEquals("/a=[3,4]", published.get(1));
+    }
+
+    @Test
+    public void flushSendsEverythingOnShutdown() {
+        PublishBatcher batcher = new PublishBatcher(100, 60000, sink);
+        add(batcher, "/a", "1", 0);
+        add(batcher, "/b", "2", 0);
+        assertEquals(2, batcher.flush());
+        assertEquals(0, batcher.getPendingCount());
+        assertTrue(published.contains("/a=[1]"));
+        assertTrue(published.contains("/b=[2]"));
+        assertEquals(0, batcher.flush());
+    }
+}
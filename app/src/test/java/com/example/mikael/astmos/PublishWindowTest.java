@@ -0,0 +1,220 @@
+package com.example.mikael.astmos;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the PublishWindow, run on the development machine against a simulated client
+ * and broker.
+ */
+public class PublishWindowTest {
+
+    private static final byte[] PAYLOAD = "{\"value\":20.5}".getBytes();
+
+    /* a client refusing more than a number of messages in flight, acknowledging on request */
+    private static class Client implements PublishWindow.Transport {
+        final List<Long> published = new ArrayList<>();
+        final List<String> topics = new ArrayList<>();
+        int limit = Integer.MAX_VALUE;
+        int inFlight = 0;
+        int refused = 0;
+
+        @Override
+        public boolean publish(long id, String topic, byte[] payload, int offset, int length) {
+            if (inFlight >= limit) {
+                refused++;
+                return false;
+            }
+            inFlight++;
+            published.add(id);
+            topics.add(topic);
+            return true;
+        }
+    }
+
+    /* a broker behind a link of a fixed round trip and a bottleneck of one message per service time */
+    private static class Link implements PublishWindow.Transport {
+        final long roundTrip;
+        final long serviceTime;
+        final PriorityQueue<long[]> acknowledgements = new PriorityQueue<>(16, new java.util.Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return Long.compare(a[0], b[0]);
+            }
+        });
+        long now = 0;
+        long lastDeparture = 0;
+        int inFlight = 0;
+        int mostInFlight = 0;
+
+        Link(long roundTrip, long serviceTime) {
+            this.roundTrip = roundTrip;
+            this.serviceTime = serviceTime;
+        }
+
+        @Override
+        public boolean publish(long id, String topic, byte[] payload, int offset, int length) {
+            long departure = Math.max(now + roundTrip / 2, lastDeparture) + serviceTime;
+            lastDeparture = departure;
+            acknowledgements.add(new long[]{departure + roundTrip / 2, id});
+            inFlight++;
+            mostInFlight = Math.max(mostInFlight, inFlight);
+            return true;
+        }
+    }
+
+    @Test
+    public void queuesWhatTheClientRefuses() throws Exception {
+        Client client = new Client();
+        client.limit = 3;
+        PublishWindow window = new PublishWindow(client, 1, 10, 100);
+        List<PublishWindow.Delivery> deliveries = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            deliveries.add(window.submit("/observations/A1", PAYLOAD, 0, PAYLOAD.length, null, 0));
+        }
+        assertEquals(3, client.published.size());
+        assertEquals(3, window.getInFlightCount());
+        assertEquals(3, window.getQueuedCount());   // the window shrank to what the client holds
+        assertEquals(3, window.getSize());
+
+        for (int i = 0; i < 6; i++) {
+            client.inFlight--;
+            window.delivered(client.published.get(i), 100 + i);
+        }
+        assertEquals(6, client.published.size());
+        assertEquals(0, window.getInFlightCount());
+        for (int i = 0; i < 6; i++) {
+            assertTrue(deliveries.get(i).isDone());
+            assertEquals(100 + i, (long) deliveries.get(i).get());
+        }
+    }
+
+    @Test
+    public void settlesNearWhatTheLinkHolds() {
+        Link link = new Link(100, 10);      // holds 10 messages, the rest wait at the bottleneck
+        PublishWindow window = new PublishWindow(link, 1, 64, 5000);
+        List<PublishWindow.Delivery> deliveries = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {    // a burst after a reconnect
+            deliveries.add(window.submit("/observations/A1", PAYLOAD, 0, PAYLOAD.length, null, 0));
+        }
+        int largest = 0;
+        while (!link.acknowledgements.isEmpty()) {
+            long[] ack = link.acknowledgements.poll();
+            link.now = ack[0];
+            link.inFlight--;
+            window.delivered(ack[1], ack[0]);
+            largest = Math.max(largest, window.getSize());
+        }
+        for (PublishWindow.Delivery delivery : deliveries) {
+            assertTrue(delivery.isDone());
+        }
+        assertTrue(largest + " at most", largest >= 10);
+        assertTrue(link.mostInFlight + " in flight", link.mostInFlight <= 64);
+        assertTrue(window.getSize() + " in the end", window.getSize() >= 8 && window.getSize() <= 16);
+        assertTrue(window.getSmoothedLatency() + " ms", window.getSmoothedLatency() < 200);
+        assertEquals(3000 * 10, link.lastDeparture, 3000);  // the bottleneck was kept busy
+    }
+
+    @Test
+    public void growsWhileTheLatencyStaysFlat() {
+        Link link = new Link(100, 0);
+        PublishWindow window = new PublishWindow(link, 1, 32, 5000);
+        for (int i = 0; i < 500; i++) {
+            window.submit("/observations/A1", PAYLOAD, 0, PAYLOAD.length, null, 0);
+        }
+        while (!link.acknowledgements.isEmpty()) {
+            long[] ack = link.acknowledgements.poll();
+            link.now = ack[0];
+            window.delivered(ack[1], ack[0]);
+        }
+        assertEquals(32, window.getSize());
+    }
+
+    @Test
+    public void sendsWhatWasInFlightAgainAfterAReset() {
+        Client client = new Client();
+        PublishWindow window = new PublishWindow(client, 1, 2, 100);
+        for (int i = 0; i < 4; i++) {
+            window.submit("/observations/" + i, PAYLOAD, 0, PAYLOAD.length, null, 0);
+        }
+        assertEquals(2, client.published.size());
+        window.reset(50);
+        assertEquals("[/observations/0, /observations/1, /observations/0, /observations/1]", client.topics.toString());
+
+        // both copies may be acknowledged, the second acknowledgement is ignored
+        assertEquals(client.published.get(0), client.published.get(2));
+        assertEquals(10, window.delivered(client.published.get(0), 60));
+        assertEquals(-1, window.delivered(client.published.get(0), 70));
+        assertEquals(2, window.getInFlightCount());
+        assertEquals("/observations/2", client.topics.get(4));
+    }
+
+    @Test
+    public void completesTheDeliveriesOfAnOutsideQueue() throws Exception {
+        Client client = new Client();
+        PublishWindow window = new PublishWindow(client, 1, 2, 100);
+        PublishWindow.Delivery first = window.expect(7, null);
+        PublishWindow.Delivery second = window.expect(8, null);
+        PublishWindow.Delivery third = window.expect(9, null);
+        assertTrue(window.send(7, "/observations/A1", PAYLOAD, 0, PAYLOAD.length, 0));
+        assertTrue(window.send(8, "/observations/A1", PAYLOAD, 0, PAYLOAD.length, 0));
+        assertFalse(window.send(9, "/observations/A1", PAYLOAD, 0, PAYLOAD.length, 0));  // kept outside
+
+        assertEquals(40, window.delivered(8, 40));
+        assertTrue(second.isDone());
+        assertFalse(first.isDone());
+        assertFalse(first.cancel(true));    // in flight
+        window.abandon(8, new IOException("dropped"));
+        assertFalse(first.isDone());        // in flight, not waiting outside
+        window.abandon(10, new IOException("dropped"));
+        try {
+            third.get();
+            fail("abandoned delivery completed");
+        } catch (ExecutionException expected) {
+            assertEquals("dropped", expected.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void dropsTheOldestFromAFullQueue() throws Exception {
+        Client client = new Client();
+        client.limit = 0;
+        PublishWindow window = new PublishWindow(client, 1, 4, 2);
+        PublishWindow.Delivery first = window.submit("/observations/A1", PAYLOAD, 0, PAYLOAD.length, null, 0);
+        PublishWindow.Delivery second = window.submit("/observations/A1", PAYLOAD, 0, PAYLOAD.length, null, 0);
+        PublishWindow.Delivery third = window.submit("/observations/A1", PAYLOAD, 0, PAYLOAD.length, null, 0);
+        assertTrue(first.isDone());
+        assertEquals(1, window.getDroppedCount());
+        assertEquals(2, window.getQueuedCount());
+        assertEquals(4, window.getSize());  // nothing was in flight, so the refusals say nothing of the window
+
+        assertTrue(second.cancel(false));
+        assertTrue(second.isCancelled());
+        assertEquals(1, window.getQueuedCount());
+        try {
+            third.get(10, TimeUnit.MILLISECONDS);
+            fail("queued delivery completed");
+        } catch (TimeoutException expected) {
+            // still queued
+        }
+    }
+
+    @Test
+    public void sharesADeliveryBetweenMessages() throws Exception {
+        Client client = new Client();
+        PublishWindow window = new PublishWindow(client);
+        PublishWindow.Delivery batch = new PublishWindow.Delivery();
+        assertSame(batch, window.submit("/observations/A1", PAYLOAD, 0, PAYLOAD.length, batch, 0));
+        window.delivered(client.published.get(0), 25);
+        assertEquals(25, (long) batch.get());
+    }
+}
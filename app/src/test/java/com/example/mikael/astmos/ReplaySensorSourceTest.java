@@ -0,0 +1,93 @@
+package com.example.mikael.astmos;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the ReplaySensorSource, run on the development machine against a capture
+ * written to a temporary file.
+ */
+public class ReplaySensorSourceTest {
+
+    private static final String CAPTURE = "O3,20,20,0,A1!O3,22,20,0,A1!O3,21,21,0,A1!O3,25,21,0,A1!O3,24,21,0,A1!";
+
+    private File capture;
+
+    @Before
+    public void writeCapture() throws IOException {
+        capture = File.createTempFile("capture", ".txt");
+        FileOutputStream out = new FileOutputStream(capture);
+        out.write(CAPTURE.getBytes("US-ASCII"));
+        out.close();
+    }
+
+    @After
+    public void deleteCapture() {
+        capture.delete();
+    }
+
+    private static String readAll(InputStream in, int limit) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int count;
+        while (out.size() < limit && (count = in.read(buffer, 0, buffer.length)) > 0) {
+            out.write(buffer, 0, count);
+        }
+        return out.toString("US-ASCII");
+    }
+
+    @Test
+    public void replaysTheCaptureOneFrameAtATime() throws IOException {
+        ReplaySensorSource source = new ReplaySensorSource("replay", capture, 1000, ReplaySensorSource.UNPACED, false);
+        InputStream in = source.open();
+        byte[] buffer = new byte[1024];
+        int count = in.read(buffer, 0, buffer.length);
+        assertEquals("O3,20,20,0,A1!", new String(buffer, 0, count, "US-ASCII"));
+        assertEquals(CAPTURE.substring(count), readAll(in, Integer.MAX_VALUE));
+        assertEquals(-1, in.read(buffer, 0, buffer.length));
+    }
+
+    @Test
+    public void keepsTheRecordedPaceAtTheReplaySpeed() throws IOException {
+        // recorded every 100 ms, replayed five times faster, so 4 intervals of 20 ms
+        ReplaySensorSource source = new ReplaySensorSource("replay", capture, 100, 5, false);
+        long start = System.nanoTime();
+        assertEquals(CAPTURE, readAll(source.open(), Integer.MAX_VALUE));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("took " + elapsed + " ms", elapsed >= 75);
+        assertTrue("took " + elapsed + " ms", elapsed < 1000);
+    }
+
+    @Test
+    public void loopsOverTheCapture() throws IOException {
+        ReplaySensorSource source = new ReplaySensorSource("replay", capture, 1000, ReplaySensorSource.UNPACED, true);
+        String replayed = readAll(source.open(), CAPTURE.length() * 3);
+        assertEquals(CAPTURE + CAPTURE + CAPTURE, replayed);
+    }
+
+    @Test
+    public void anEmptyLoopingCaptureEnds() throws IOException {
+        new FileOutputStream(capture).close();
+        ReplaySensorSource source = new ReplaySensorSource("replay", capture, 1000, ReplaySensorSource.UNPACED, true);
+        assertEquals(-1, source.open().read(new byte[16], 0, 16));
+    }
+
+    @Test(expected = IOException.class)
+    public void closingStopsTheReplay() throws IOException {
+        ReplaySensorSource source = new ReplaySensorSource("replay", capture, 1000, ReplaySensorSource.UNPACED, true);
+        InputStream in = source.open();
+        assertTrue(in.read(new byte[16], 0, 16) > 0);
+        source.close();
+        in.read(new byte[16], 0, 16);
+    }
+}
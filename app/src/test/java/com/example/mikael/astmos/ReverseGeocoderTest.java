@@ -0,0 +1,166 @@
+package com.example.mikael.astmos;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the ReverseGeocoder, run on the development machine.
+ */
+public class ReverseGeocoderTest {
+
+    /* runs the lookups when the test says so */
+    private static class ManualExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+            }
+        }
+    }
+
+    /* answers with the coordinate, or fails while failing is set */
+    private static class FakeLookup implements AddressLookup {
+        final List<String> asked = new ArrayList<>();
+        boolean failing = false;
+        boolean nowhere = false;        // e.g. open water, no address to find
+
+        @Override
+        public String lookup(double latitude, double longitude) throws IOException {
+            asked.add(latitude + "," + longitude);
+            if (failing) {
+                throw new IOException("no network");
+            }
+            if (nowhere) {
+                return null;
+            }
+            return "street at " + latitude + "," + longitude;
+        }
+    }
+
+    private static class Recorder implements ReverseGeocoder.Listener {
+        final List<String> addresses = new ArrayList<>();
+        final List<IOException> failures = new ArrayList<>();
+
+        @Override
+        public void onAddress(double latitude, double longitude, String address) {
+            addresses.add(address);
+        }
+
+        @Override
+        public void onLookupFailed(double latitude, double longitude, IOException cause) {
+            failures.add(cause);
+        }
+    }
+
+    private final ManualExecutor executor = new ManualExecutor();
+    private final FakeLookup lookup = new FakeLookup();
+    private final Recorder recorder = new Recorder();
+
+    @Test
+    public void reusesTheAddressOfACell() {
+        ReverseGeocoder geocoder = new ReverseGeocoder(lookup, 7, 16, executor, recorder);
+        geocoder.request(65.584816, 22.154751);
+        assertTrue(recorder.addresses.isEmpty());   // nothing is looked up on the calling thread
+        executor.runAll();
+        assertEquals("street at 65.584816,22.154751", recorder.addresses.get(0));
+
+        geocoder.request(65.5848, 22.1548);         // moved a few meters
+        assertEquals(2, recorder.addresses.size());
+        assertEquals("street at 65.584816,22.154751", recorder.addresses.get(1));
+        assertTrue(executor.tasks.isEmpty());
+        assertEquals(1, lookup.asked.size());
+        assertEquals(1, geocoder.getHitCount());
+        assertEquals(1, geocoder.getLookupCount());
+    }
+
+    @Test
+    public void keepsOneLookupInFlightAndOnlyTheNewestRequest() {
+        ReverseGeocoder geocoder = new ReverseGeocoder(lookup, 7, 16, executor, recorder);
+        for (int i = 0; i < 10; i++) {
+            geocoder.request(65.58 + i * 0.01, 22.15);
+        }
+        assertEquals(1, executor.tasks.size());
+        executor.runAll();
+        assertEquals(1, lookup.asked.size());
+        assertEquals((65.58 + 9 * 0.01) + "," + 22.15, lookup.asked.get(0));
+    }
+
+    @Test
+    public void remembersACellWithoutAnAddress() {
+        ReverseGeocoder geocoder = new ReverseGeocoder(lookup, 7, 16, executor, recorder);
+        lookup.nowhere = true;
+        geocoder.request(65.584816, 22.154751);
+        executor.runAll();
+        geocoder.request(65.5848, 22.1548);         // the same cell
+        executor.runAll();
+        assertEquals(Arrays.asList(null, null), recorder.addresses);
+        assertEquals(1, lookup.asked.size());
+        assertEquals(1, geocoder.getHitCount());
+        assertEquals(1, geocoder.getLookupCount());
+    }
+
+    @Test
+    public void reportsFailuresAndTriesAgain() {
+        ReverseGeocoder geocoder = new ReverseGeocoder(lookup, 7, 16, executor, recorder);
+        lookup.failing = true;
+        geocoder.request(65.584816, 22.154751);
+        executor.runAll();
+        assertEquals(1, recorder.failures.size());
+        assertTrue(recorder.addresses.isEmpty());
+
+        lookup.failing = false;
+        geocoder.request(65.584816, 22.154751);     // failures are not cached
+        executor.runAll();
+        assertEquals(1, recorder.addresses.size());
+        assertEquals(2, lookup.asked.size());
+    }
+
+    @Test
+    public void forgetsTheLeastRecentlyUsedCell() {
+        ReverseGeocoder geocoder = new ReverseGeocoder(lookup, 7, 2, executor, recorder);
+        geocoder.request(10, 10);
+        executor.runAll();
+        geocoder.request(20, 20);
+        executor.runAll();
+        geocoder.request(10, 10);                   // hit, 20 is now the eldest
+        geocoder.request(30, 30);
+        executor.runAll();
+        geocoder.request(10, 10);
+        geocoder.request(20, 20);
+        executor.runAll();
+        assertEquals(4, geocoder.getLookupCount());
+        assertEquals(2, geocoder.getHitCount());
+    }
+
+    @Test
+    public void recoversWhenTheListenerThrows() {
+        ReverseGeocoder geocoder = new ReverseGeocoder(lookup, 7, 16, executor, new Recorder() {
+            @Override
+            public void onAddress(double latitude, double longitude, String address) {
+                throw new IllegalStateException("listener failed");
+            }
+        });
+        geocoder.request(10, 10);
+        try {
+            executor.runAll();
+            fail("the exception of the listener reaches the executor");
+        } catch (IllegalStateException expected) {
+            // the lookup thread would log it
+        }
+        geocoder.request(20, 20);
+        assertEquals(1, executor.tasks.size());
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.mikael.astmos;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the SampleQueue, run on the development machine.
+ */
+public class SampleQueueTest {
+
+    private static SensorRecord sample(int ppb) {
+        SensorRecord record = new SensorRecord();
+        record.set("O3", ppb, 20, "A1");
+        record.time = ppb;
+        return record;
+    }
+
+    @Test
+    public void dropNewestKeepsTheQueuedSamples() throws InterruptedException {
+        SampleQueue queue = new SampleQueue(4, SampleQueue.OverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < 6; i++) {
+            assertEquals(i < 4, queue.offer(sample(i)));
+        }
+        assertEquals(2, queue.getDroppedCount());
+
+        SensorRecord out = new SensorRecord();
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.poll(out));
+            assertEquals(i, out.ppb);
+        }
+        assertFalse(queue.poll(out));
+    }
+
+    @Test
+    public void dropOldestKeepsTheNewestSamples() throws InterruptedException {
+        SampleQueue queue = new SampleQueue(4, SampleQueue.OverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(queue.offer(sample(i)));
+        }
+        assertEquals(6, queue.getDroppedCount());
+        assertEquals(4, queue.size());
+
+        SensorRecord out = new SensorRecord();
+        for (int i = 6; i < 10; i++) {
+            assertTrue(queue.poll(out));
+            assertEquals(i, out.ppb);
+            assertEquals(i, out.time);
+        }
+        assertFalse(queue.poll(out));
+    }
+
+    @Test
+    public void blockingQueueTransfersEverySampleInOrder() throws Exception {
+        final int count = 200000;
+        final SampleQueue queue = new SampleQueue(8, SampleQueue.OverflowPolicy.BLOCK);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                SensorRecord record = sample(0);
+                try {
+                    for (int i = 0; i < count; i++) {
+                        record.ppb = i;
+                        queue.offer(record);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        producer.start();
+
+        SensorRecord out = new SensorRecord();
+        for (int i = 0; i < count; i++) {
+            queue.take(out);
+            assertEquals(i, out.ppb);
+        }
+        producer.join();
+        assertEquals(0, queue.getDroppedCount());
+    }
+
+    @Test
+    public void dropOldestUnderContentionNeverReordersSamples() throws Exception {
+        final int count = 200000;
+        final SampleQueue queue = new SampleQueue(4, SampleQueue.OverflowPolicy.DROP_OLDEST);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                SensorRecord record = sample(0);
+                try {
+                    for (int i = 1; i <= count; i++) {
+                        record.ppb = i;
+                        record.time = i;
+                        queue.offer(record);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        producer.start();
+
+        SensorRecord out = new SensorRecord();
+        int last = 0;
+        int received = 0;
+        while (last < count) {
+            if (queue.poll(out)) {
+                assertTrue(out.ppb > last);
+                assertEquals(out.ppb, out.time);    // no torn samples
+                last = out.ppb;
+                received++;
+            }
+        }
+        producer.join();
+        assertEquals(count, received + queue.getDroppedCount());
+    }
+}
@@ -0,0 +1,281 @@
+package com.example.mikael.astmos;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the SensorConnectionManager, run on the development machine against piped
+ * streams standing in for the sensor units.
+ */
+public class SensorConnectionManagerTest {
+
+    /* a sensor unit writing frames into a pipe */
+    private static class PipeSource implements SensorSource {
+        final String name;
+        final PipedOutputStream out = new PipedOutputStream();
+        final PipedInputStream in;
+        volatile boolean failOpen = false;
+
+        PipeSource(String name) throws IOException {
+            this.name = name;
+            this.in = new PipedInputStream(out, 4096);
+        }
+
+        void send(String frames) throws IOException {
+            out.write(frames.getBytes("US-ASCII"));
+            out.flush();
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            if (failOpen) {
+                throw new IOException("no route to " + name);
+            }
+            return in;
+        }
+
+        @Override
+        public void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+
+    /* a sensor unit which goes away now and then, every open plays the next of a script */
+    private static class FlakySource implements SensorSource {
+        final String[] script;      // frames followed by a failure, "fail" to fail the open, or null to end
+        int opens = 0;
+
+        FlakySource(String... script) {
+            this.script = script;
+        }
+
+        @Override
+        public String getName() {
+            return "flaky";
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            String step = opens < script.length ? script[opens] : "fail";
+            opens++;
+            if (step.equals("fail")) {
+                throw new IOException("no route to flaky");
+            }
+            final byte[] frames = step.getBytes("US-ASCII");
+            final boolean ends = opens == script.length;
+            return new InputStream() {
+                private int position = 0;
+
+                @Override
+                public int read() throws IOException {
+                    if (position < frames.length) {
+                        return frames[position++];
+                    }
+                    if (ends) {
+                        return -1;
+                    }
+                    throw new IOException("connection reset");
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /* collects "serial:mean" of every window */
+    private static class Collector implements SensorPipeline.Listener {
+        final List<String> windows = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done;
+
+        Collector(int expected) {
+            done = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void onLatestAvailable() {
+        }
+
+        @Override
+        public void onWindow(String serialNr, String gas, WindowAggregator window) {
+            windows.add(serialNr + ":" + window.getMean() + ":" + Thread.currentThread().getName().startsWith("SensorConnection"));
+            done.countDown();
+        }
+
+        @Override
+        public void onStopped() {
+        }
+    }
+
+    private final List<SensorConnectionManager.Connection> disconnected =
+            Collections.synchronizedList(new ArrayList<SensorConnectionManager.Connection>());
+    private final List<IOException> causes = Collections.synchronizedList(new ArrayList<IOException>());
+    private final CountDownLatch disconnects = new CountDownLatch(1);
+    private final List<String> states = Collections.synchronizedList(new ArrayList<String>());
+
+    private final SensorConnectionManager manager = new SensorConnectionManager(2, 64, SampleQueue.OverflowPolicy.BLOCK, 2,
+            new SensorConnectionManager.ConnectionListener() {
+                @Override
+                public void onStateChanged(SensorConnectionManager.Connection connection,
+                                           SensorConnectionManager.State state) {
+                    states.add(connection.getName() + ":" + state);
+                }
+
+                @Override
+                public void onDisconnected(SensorConnectionManager.Connection connection, IOException cause) {
+                    disconnected.add(connection);
+                    causes.add(cause);
+                    disconnects.countDown();
+                }
+            });
+
+    @After
+    public void shutdown() {
+        manager.shutdown();
+    }
+
+    @Test
+    public void runsSeveralSensorsAtOnce() throws Exception {
+        PipeSource o3 = new PipeSource("o3");
+        PipeSource no2 = new PipeSource("no2");
+        Collector o3Windows = new Collector(1);
+        Collector no2Windows = new Collector(1);
+        manager.connect(o3, o3Windows);
+        manager.connect(no2, no2Windows);
+
+        o3.send("O3,20,20,0,A1!O3,40,20,0,A1!");
+        no2.send("NO2,188,20,0,B2!NO2,376,20,0,B2!");
+        assertTrue(o3Windows.done.await(5, TimeUnit.SECONDS));
+        assertTrue(no2Windows.done.await(5, TimeUnit.SECONDS));
+
+        assertEquals("A1:59.86:true", o3Windows.windows.get(0));
+        assertEquals("B2:539.325:true", no2Windows.windows.get(0));
+        assertEquals(2, manager.getConnections().size());
+    }
+
+    @Test
+    public void countsFramesAndMalformedOnes() throws Exception {
+        PipeSource o3 = new PipeSource("o3");
+        Collector windows = new Collector(1);
+        SensorConnectionManager.Connection connection = manager.connect(o3, windows);
+
+        o3.send("O3,20,20,0,A1!O3,twenty!O3,40,20,0,A1!");
+        assertTrue(windows.done.await(5, TimeUnit.SECONDS));
+
+        Metrics metrics = connection.getMetrics();
+        assertEquals(3, metrics.counter("frames").get());
+        assertEquals(1, metrics.counter("malformed").get());
+        assertEquals(1, metrics.counter("windows").get());
+        StringBuilder json = new StringBuilder();
+        metrics.writeSnapshot(json, System.currentTimeMillis());
+        assertTrue(json.toString(), json.indexOf("\"queueDepth\":0") > 0);
+        assertTrue(json.toString(), json.indexOf("\"pipelineLag\":{\"count\":") > 0);    // once per batch taken
+        assertEquals(-1, json.indexOf("\"pipelineLag\":{\"count\":0}"));
+    }
+
+    @Test
+    public void reconnectsAfterTheSensorReboots() throws Exception {
+        manager.enableReconnect(10, 40);
+        FlakySource flaky = new FlakySource("O3,20,20,0,A1!O3,40,20,0,A1!", "fail", "fail", "fail",
+                "O3,20,20,0,A1!O3,40,20,0,A1!");
+        Collector windows = new Collector(2);
+        SensorConnectionManager.Connection connection = manager.connect(flaky, windows);
+
+        assertTrue(disconnects.await(5, TimeUnit.SECONDS));
+        assertTrue(windows.done.await(5, TimeUnit.SECONDS));
+        assertNull(causes.get(0));      // the last stream ended
+        assertEquals(5, flaky.opens);
+        assertEquals(5, connection.getMetrics().counter("connectAttempts").get());
+        assertEquals("[flaky:STREAMING, flaky:BACKOFF, flaky:CONNECTING, flaky:BACKOFF, flaky:CONNECTING, "
+                + "flaky:BACKOFF, flaky:CONNECTING, flaky:BACKOFF, flaky:CONNECTING, flaky:STREAMING, flaky:CLOSED]",
+                states.toString());
+        assertEquals(SensorConnectionManager.State.CLOSED, connection.getState());
+    }
+
+    @Test
+    public void closingWakesAReaderWaitingToReconnect() throws Exception {
+        manager.enableReconnect(60000, 60000);
+        FlakySource flaky = new FlakySource("fail");
+        SensorConnectionManager.Connection connection = manager.connect(flaky, new Collector(0));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (connection.getState() != SensorConnectionManager.State.BACKOFF && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(SensorConnectionManager.State.BACKOFF, connection.getState());
+
+        long start = System.currentTimeMillis();
+        manager.disconnect("flaky");
+        assertTrue(disconnects.await(5, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertNull(causes.get(0));
+        assertEquals(1, flaky.opens);
+    }
+
+    @Test
+    public void rejectsMoreConnectionsThanItCanRun() throws Exception {
+        manager.connect(new PipeSource("a"), new Collector(0));
+        try {
+            manager.connect(new PipeSource("a"), new Collector(0));
+            fail("connected the same sensor twice");
+        } catch (IllegalStateException expected) {
+            // fine
+        }
+        manager.connect(new PipeSource("b"), new Collector(0));
+        try {
+            manager.connect(new PipeSource("c"), new Collector(0));
+            fail("connected more sensors than the maximum");
+        } catch (IllegalStateException expected) {
+            // fine
+        }
+
+        assertTrue(manager.disconnect("a"));
+        assertFalse(manager.disconnect("a"));
+        manager.connect(new PipeSource("c"), new Collector(0));
+    }
+
+    @Test
+    public void reportsFailedConnectionsAndFreesTheirSlot() throws Exception {
+        PipeSource broken = new PipeSource("broken");
+        broken.failOpen = true;
+        manager.connect(broken, new Collector(0));
+
+        assertTrue(disconnects.await(5, TimeUnit.SECONDS));
+        assertEquals("broken", disconnected.get(0).getName());
+        assertNotNull(causes.get(0));
+        assertTrue(manager.getConnections().isEmpty());
+
+        broken.failOpen = false;
+        manager.connect(broken, new Collector(0));  // the name can be used again
+    }
+
+    @Test
+    public void closingAConnectionIsNotAnError() throws Exception {
+        manager.connect(new PipeSource("a"), new Collector(0));
+        manager.disconnect("a");
+        assertTrue(disconnects.await(5, TimeUnit.SECONDS));
+        assertNull(causes.get(0));
+        assertTrue(disconnected.get(0).isClosed());
+    }
+}
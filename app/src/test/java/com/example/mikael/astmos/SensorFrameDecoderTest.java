@@ -0,0 +1,131 @@
+package com.example.mikael.astmos;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the SensorFrameDecoder, run on the development machine.
+ */
+public class SensorFrameDecoderTest {
+
+    /* collects the frames handed out by the decoder as strings */
+    private static class Collector implements SensorFrameDecoder.FrameListener {
+        final List<String> frames = new ArrayList<>();
+
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length) {
+            frames.add(new String(buffer, offset, length));
+        }
+    }
+
+    @Test
+    public void emitsEveryFrameInOneRead() throws IOException {
+        Collector collector = new Collector();
+        SensorFrameDecoder decoder = new SensorFrameDecoder(
+                new ByteArrayInputStream("O3,12,21,0,A1!NO2,7,21,0,A2!SO2,3,20,0,A3!".getBytes()), collector);
+
+        assertEquals(3, decoder.readFrames());
+        assertEquals(-1, decoder.readFrames());
+        assertEquals(3, collector.frames.size());
+        assertEquals("O3,12,21,0,A1", collector.frames.get(0));
+        assertEquals("NO2,7,21,0,A2", collector.frames.get(1));
+        assertEquals("SO2,3,20,0,A3", collector.frames.get(2));
+    }
+
+    @Test
+    public void joinsFramesSplitAcrossReads() throws Exception {
+        PipedOutputStream out = new PipedOutputStream();
+        PipedInputStream in = new PipedInputStream(out);
+        Collector collector = new Collector();
+        SensorFrameDecoder decoder = new SensorFrameDecoder(in, collector);
+
+        out.write("O3,12,2".getBytes());
+        assertEquals(0, decoder.readFrames());
+        out.write("1,0,A1!O3,1".getBytes());
+        assertEquals(1, decoder.readFrames());
+        out.write("3,21,0,A1!".getBytes());
+        assertEquals(1, decoder.readFrames());
+        out.close();
+        assertEquals(-1, decoder.readFrames());
+
+        assertEquals("O3,12,21,0,A1", collector.frames.get(0));
+        assertEquals("O3,13,21,0,A1", collector.frames.get(1));
+    }
+
+    @Test
+    public void handlesFramesWrappingAroundTheBuffer() throws IOException {
+        StringBuilder stream = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            stream.append("CO,").append(i).append(",22,0,B7!");
+        }
+        Collector collector = new Collector();
+        SensorFrameDecoder decoder = new SensorFrameDecoder(
+                new ByteArrayInputStream(stream.toString().getBytes()), collector, 16);
+        decoder.run();
+
+        assertEquals(100, collector.frames.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("CO," + i + ",22,0,B7", collector.frames.get(i));
+        }
+    }
+
+    @Test
+    public void dropsOversizedFramesAndResynchronizes() throws IOException {
+        Collector collector = new Collector();
+        SensorFrameDecoder decoder = new SensorFrameDecoder(
+                new ByteArrayInputStream("O3,1,2,0,A1!this frame is far too long!O3,2,2,0,A1!".getBytes()),
+                collector, 16);
+        decoder.run();
+
+        assertEquals(2, collector.frames.size());
+        assertEquals("O3,1,2,0,A1", collector.frames.get(0));
+        assertEquals("O3,2,2,0,A1", collector.frames.get(1));
+        assertEquals(1, decoder.getOversizedCount());
+    }
+
+    @Test
+    public void keepsUpWithTheSensorOverAPipe() throws Exception {
+        final int frames = 10000;
+        final PipedOutputStream out = new PipedOutputStream();
+        PipedInputStream in = new PipedInputStream(out, 4096);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    byte[] frame = "NO2,42,21,0,A2!".getBytes();
+                    for (int i = 0; i < frames; i++) {
+                        out.write(frame);
+                    }
+                    out.close();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+
+        final int[] count = new int[1];
+        SensorFrameDecoder decoder = new SensorFrameDecoder(in, new SensorFrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                count[0]++;
+            }
+        });
+
+        long start = System.nanoTime();
+        writer.start();
+        decoder.run();
+        writer.join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        assertEquals(frames, count[0]);
+        assertTrue("decoded only " + (frames / seconds) + " frames/s", frames / seconds > 100);
+    }
+}
@@ -0,0 +1,157 @@
+package com.example.mikael.astmos;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the SensorPipeline, run on the development machine.
+ */
+public class SensorPipelineTest {
+
+    /* records what the pipeline reports */
+    private static class Recorder implements SensorPipeline.Listener {
+        int latestCalls = 0;
+        int stoppedCalls = 0;
+        boolean interruptedWhenStopped = false;
+        final List<Double> means = new ArrayList<>();
+        final List<String> serials = new ArrayList<>();
+
+        @Override
+        public void onLatestAvailable() {
+            latestCalls++;
+        }
+
+        @Override
+        public void onWindow(String serialNr, String gas, WindowAggregator window) {
+            means.add(window.getMean());
+            serials.add(serialNr);
+        }
+
+        @Override
+        public void onStopped() {
+            stoppedCalls++;
+            interruptedWhenStopped = Thread.currentThread().isInterrupted();
+        }
+    }
+
+    private static SensorRecord sample(int ppb, long time) {
+        return sample("A1", ppb, time);
+    }
+
+    private static SensorRecord sample(String serialNr, int ppb, long time) {
+        SensorRecord record = new SensorRecord();
+        record.set("X", ppb, 20, serialNr);
+        record.time = time;
+        return record;
+    }
+
+    @Test
+    public void coalescesUiUpdatesUntilTheLatestValueIsRead() {
+        Recorder recorder = new Recorder();
+        SensorPipeline pipeline = new SensorPipeline(new SampleQueue(4, SampleQueue.OverflowPolicy.BLOCK), 3, recorder);
+
+        pipeline.process(sample(1, 1));
+        pipeline.process(sample(2, 2));
+        pipeline.process(sample(3, 3));
+        assertEquals(1, recorder.latestCalls);
+
+        SensorPipeline.Snapshot snapshot = new SensorPipeline.Snapshot();
+        pipeline.readLatest(snapshot);
+        assertEquals(3.0, snapshot.level, 0.0);
+        assertEquals(3, snapshot.time);
+
+        pipeline.process(sample(4, 4));
+        assertEquals(2, recorder.latestCalls);
+    }
+
+    @Test
+    public void publishesEveryWindowFromThePipelineThread() throws Exception {
+        Recorder recorder = new Recorder();
+        SampleQueue queue = new SampleQueue(16, SampleQueue.OverflowPolicy.BLOCK);
+        SensorPipeline pipeline = new SensorPipeline(queue, 10, recorder);
+        Thread thread = new Thread(pipeline);
+        thread.start();
+
+        for (int i = 1; i <= 30; i++) {
+            queue.offer(sample(i, i));
+        }
+        while (pipeline.getSampleCount() < 30) {
+            Thread.sleep(1);
+        }
+        thread.interrupt();
+        thread.join();
+
+        assertEquals(3, recorder.means.size());
+        assertEquals(5.5, recorder.means.get(0), 1e-9);
+        assertEquals(15.5, recorder.means.get(1), 1e-9);
+        assertEquals(25.5, recorder.means.get(2), 1e-9);
+
+        /* told once, and able to publish what it held back */
+        assertEquals(1, recorder.stoppedCalls);
+        assertFalse(recorder.interruptedWhenStopped);
+    }
+
+    @Test
+    public void aggregatesEverySerialNumberInItsOwnWindow() {
+        Recorder recorder = new Recorder();
+        SensorPipeline pipeline = new SensorPipeline(new SampleQueue(4, SampleQueue.OverflowPolicy.BLOCK), 2, recorder);
+
+        pipeline.process(sample("A1", 1, 1));
+        pipeline.process(sample("B2", 100, 2));
+        pipeline.process(sample("A1", 3, 3));
+        pipeline.process(sample("B2", 300, 4));
+
+        assertEquals(2, recorder.means.size());
+        assertEquals("A1", recorder.serials.get(0));
+        assertEquals(2.0, recorder.means.get(0), 1e-9);
+        assertEquals("B2", recorder.serials.get(1));
+        assertEquals(200.0, recorder.means.get(1), 1e-9);
+    }
+
+    @Test
+    public void aggregatesByCellWhereTheSamplesWereTaken() {
+        Recorder recorder = new Recorder();
+        final List<CellAggregator.Cell> cells = new ArrayList<>();
+        LocationHistory locations = new LocationHistory();
+        Metrics metrics = new Metrics();
+        SensorPipeline pipeline = new SensorPipeline(new SampleQueue(4, SampleQueue.OverflowPolicy.BLOCK), 10,
+                Collections.<String, CalibrationProfile>emptyMap(), metrics, recorder);
+        pipeline.aggregateByCell(locations, 7, 60000, 5000, new CellAggregator.Sink() {
+            @Override
+            public void emit(CellAggregator.Cell cell) {
+                CellAggregator.Cell copy = new CellAggregator.Cell();
+                copy.serialNr = cell.serialNr;
+                copy.count = cell.count;
+                copy.mean = cell.mean;
+                copy.max = cell.max;
+                copy.bucketStart = cell.bucketStart;
+                cells.add(copy);
+            }
+        });
+
+        pipeline.process(sample(5, 500));      // no fix yet, left out of the cells
+        for (long time = 1000; time <= 130000; time += 1000) {
+            if (time % 5000 == 0) {
+                locations.add(time, 57.7, 11.9, 0);
+            }
+            pipeline.process(sample((int) (time / 1000), time));
+        }
+
+        assertEquals(13, recorder.means.size());    // the windows are made as before
+        assertEquals(2, cells.size());              // the third minute is still open
+        assertEquals("A1", cells.get(0).serialNr);
+        assertEquals(0, cells.get(0).bucketStart);
+        assertEquals(55, cells.get(0).count);       // from the first fix at 5 s
+        assertEquals(32.0, cells.get(0).mean, 1e-9);
+        assertEquals(59.0, cells.get(0).max, 1e-9);
+        assertEquals(60000, cells.get(1).bucketStart);
+        assertEquals(60, cells.get(1).count);
+        assertEquals(119.0, cells.get(1).max, 1e-9);
+        assertEquals(5, metrics.counter("unplacedSamples").get());
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.mikael.astmos;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the SensorRecordParser, run on the development machine.
+ */
+public class SensorRecordParserTest {
+
+    private final SensorRecordParser parser = new SensorRecordParser();
+    private final SensorRecord record = new SensorRecord();
+
+    private boolean parse(String frame) {
+        byte[] bytes = ("xx" + frame + "yy").getBytes();
+        return parser.parse(bytes, 2, bytes.length - 4, record);
+    }
+
+    @Test
+    public void parsesAllFields() {
+        assertTrue(parse("NO2,42,-3,17,AB12"));
+        assertEquals("NO2", record.gas);
+        assertEquals(42, record.ppb);
+        assertEquals(-3, record.temperature);
+        assertEquals("AB12", record.serialNr);
+    }
+
+    @Test
+    public void ignoresWhiteSpaceAndTrailingFields() {
+        assertTrue(parse("\r\nO3, 12 ,21,0,AB12\n,extra"));
+        assertEquals("O3", record.gas);
+        assertEquals(12, record.ppb);
+        assertEquals(21, record.temperature);
+        assertEquals("AB12", record.serialNr);
+    }
+
+    @Test
+    public void internsRepeatedStrings() {
+        assertTrue(parse("CO,1,20,0,AB12"));
+        String gas = record.gas;
+        String serialNr = record.serialNr;
+        assertTrue(parse("CO,2,20,0,AB12"));
+        assertSame(gas, record.gas);
+        assertSame(serialNr, record.serialNr);
+        assertEquals(2, record.ppb);
+    }
+
+    @Test
+    public void countsMalformedFramesWithoutTouchingTheRecord() {
+        assertTrue(parse("SO2,5,20,0,AB12"));
+        assertFalse(parse("SO2,5,20"));
+        assertFalse(parse("SO2,five,20,0,AB12"));
+        assertFalse(parse("SO2,5,20,0,"));
+        assertFalse(parse(",5,20,0,AB12"));
+        assertFalse(parse("SO2,99999999999,20,0,AB12"));
+        assertFalse(parse("SO2,-,20,0,AB12"));
+        assertFalse(parse(""));
+        assertEquals(7, parser.getMalformedCount());
+        assertEquals("SO2", record.gas);
+        assertEquals(5, record.ppb);
+    }
+
+    @Test
+    public void acceptsIntegerLimits() {
+        assertTrue(parse("O3,2147483647,-2147483648,0,A"));
+        assertEquals(Integer.MAX_VALUE, record.ppb);
+        assertEquals(Integer.MIN_VALUE, record.temperature);
+        assertFalse(parse("O3,2147483648,0,0,A"));
+    }
+}
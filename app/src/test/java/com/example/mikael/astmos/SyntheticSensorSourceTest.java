@@ -0,0 +1,115 @@
+package com.example.mikael.astmos;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the SyntheticSensorSource, run on the development machine. The last test runs
+ * the generated frames through the whole pipeline and reports the throughput.
+ */
+public class SyntheticSensorSourceTest {
+
+    private static List<String> readFrames(InputStream in) throws IOException {
+        final List<String> frames = new ArrayList<>();
+        new SensorFrameDecoder(in, new SensorFrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                frames.add(new String(buffer, offset, length));
+            }
+        }).run();
+        return frames;
+    }
+
+    @Test
+    public void generatesParsableFramesForEverySensorHead() throws IOException {
+        SyntheticSensorSource source = new SyntheticSensorSource("synthetic", "NO2", new String[]{"A1", "B2"},
+                SyntheticSensorSource.UNPACED, 1000, 42);
+        List<String> frames = readFrames(source.open());
+        assertEquals(1000, frames.size());
+        assertEquals(1000, source.getGeneratedCount());
+
+        SensorRecordParser parser = new SensorRecordParser();
+        SensorRecord record = new SensorRecord();
+        for (int i = 0; i < frames.size(); i++) {
+            byte[] frame = frames.get(i).getBytes();
+            assertTrue(frames.get(i), parser.parse(frame, 0, frame.length, record));
+            assertEquals("NO2", record.gas);
+            assertEquals(i % 2 == 0 ? "A1" : "B2", record.serialNr);
+            assertTrue(record.ppb >= SyntheticSensorSource.BASE_PPB - SyntheticSensorSource.WAVE_PPB - SyntheticSensorSource.NOISE_PPB);
+            assertTrue(record.ppb <= SyntheticSensorSource.BASE_PPB + SyntheticSensorSource.WAVE_PPB + SyntheticSensorSource.NOISE_PPB);
+        }
+
+        // the same seed gives the same frames
+        assertEquals(frames, readFrames(source.open()));
+    }
+
+    @Test
+    public void boundsTheRate() throws IOException {
+        SyntheticSensorSource source = new SyntheticSensorSource("synthetic", "O3", new String[]{"A1"}, 500, 51, 1);
+        long start = System.nanoTime();
+        assertEquals(51, readFrames(source.open()).size());
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("took " + elapsed + " ms", elapsed >= 90);  // 50 intervals of 2 ms
+    }
+
+    @Test(expected = IOException.class)
+    public void closingStopsTheStream() throws IOException {
+        SyntheticSensorSource source = new SyntheticSensorSource("synthetic", "O3", new String[]{"A1"},
+                SyntheticSensorSource.UNPACED, -1, 1);
+        InputStream in = source.open();
+        assertTrue(in.read(new byte[256], 0, 256) > 0);
+        source.close();
+        in.read(new byte[256], 0, 256);
+    }
+
+    @Test
+    public void runsThroughTheWholePipeline() throws Exception {
+        final int frames = 100000;
+        final int windowSize = 10;
+        final String[] heads = {"A1", "B2", "C3", "D4"};
+        final AtomicInteger windows = new AtomicInteger();
+        final AtomicLong publishedBytes = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(1);
+        final ObservationEncoder encoder = new ObservationEncoder();
+        final Coordinate coord = new Coordinate(65.584816, 22.154751);
+
+        SensorConnectionManager manager = new SensorConnectionManager(1, 1024, SampleQueue.OverflowPolicy.BLOCK,
+                windowSize, null);
+        SyntheticSensorSource source = new SyntheticSensorSource("synthetic", "SO2", heads,
+                SyntheticSensorSource.UNPACED, frames, 7);
+        manager.connect(source, new SensorPipeline.Listener() {
+            @Override
+            public void onLatestAvailable() {
+            }
+
+            @Override
+            public void onWindow(String serialNr, String gas, WindowAggregator window) {
+                int length = encoder.encode(window.getMean(), coord, window.getFirstTime(), window.getLastTime(),
+                        window.getLastTime(), serialNr);
+                publishedBytes.addAndGet(length);
+                if (windows.incrementAndGet() == frames / windowSize) {
+                    done.countDown();
+                }
+            }
+
+            @Override
+            public void onStopped() {
+            }
+        });
+        assertTrue("windows " + windows.get(), done.await(60, TimeUnit.SECONDS));
+        manager.shutdown();
+
+        assertEquals(frames / windowSize, windows.get());
+        assertTrue(publishedBytes.get() + " bytes", publishedBytes.get() >= windows.get() * 100L);
+    }
+}
@@ -0,0 +1,262 @@
+package com.example.mikael.astmos;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the TimeSeriesStore, run on the development machine in a temporary directory.
+ */
+public class TimeSeriesStoreTest {
+
+    private static final long START = 1525132800000L;      // 2018-05-01T00:00:00Z
+    private static final long DAY = TimeSeriesStore.DAY;
+
+    /* collects the rows of a query as text */
+    private static class Rows implements TimeSeriesStore.RowVisitor {
+        final List<String> rows = new ArrayList<>();
+
+        @Override
+        public void visit(long time, double value, double latitude, double longitude, String serialNr) {
+            rows.add(serialNr + "@" + (time - START) + "=" + value);
+        }
+    }
+
+    /* collects the buckets of a downsampled query as text */
+    private static class Buckets implements TimeSeriesStore.BucketVisitor {
+        final List<String> buckets = new ArrayList<>();
+
+        @Override
+        public void visit(TimeSeriesStore.Aggregate aggregate) {
+            buckets.add(text(aggregate));
+        }
+    }
+
+    private static String text(TimeSeriesStore.Aggregate aggregate) {
+        return (aggregate.start - START) + ":" + aggregate.count + "," + Math.round(aggregate.getMean() * 1e6)
+                + "," + aggregate.min + "," + aggregate.max + "," + Math.round(aggregate.getLatitude() * 1e6);
+    }
+
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = File.createTempFile("store", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+    }
+
+    @After
+    public void deleteDirectory() {
+        delete(directory);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private TimeSeriesStore open() throws IOException {
+        return new TimeSeriesStore(directory, 16384, 30 * DAY, 64L << 20);
+    }
+
+    /* the buckets the store should give, aggregated from the rows by brute force */
+    private static List<String> expected(List<long[]> rows, long from, long to, long resolution) {
+        from -= (from - START) % resolution;
+        to += (resolution - (to - START) % resolution) % resolution;
+        TreeMap<Long, TimeSeriesStore.Aggregate> buckets = new TreeMap<>();
+        for (long[] row : rows) {
+            long start = row[0] - (row[0] - START) % resolution;
+            if (start < from || start >= to) {
+                continue;
+            }
+            TimeSeriesStore.Aggregate aggregate = buckets.get(start);
+            if (aggregate == null) {
+                aggregate = new TimeSeriesStore.Aggregate();
+                aggregate.reset(start);
+                buckets.put(start, aggregate);
+            }
+            aggregate.add(row[1] / 100.0, 65 + row[1] / 1e4, 22);
+        }
+        List<String> texts = new ArrayList<>();
+        for (TimeSeriesStore.Aggregate aggregate : buckets.values()) {
+            texts.add(text(aggregate));
+        }
+        return texts;
+    }
+
+    /* a few days of one head at 10 s windows, slightly out of order now and then */
+    private static List<long[]> series(Random random, int days) {
+        List<long[]> rows = new ArrayList<>();
+        for (long time = START; time < START + days * DAY; time += 10000) {
+            long jitter = time > START && random.nextInt(50) == 0 ? -15000 : 0;
+            rows.add(new long[]{time + jitter, 2000 + random.nextInt(1000)});
+        }
+        return rows;
+    }
+
+    private static void append(TimeSeriesStore store, List<long[]> rows) throws IOException {
+        for (long[] row : rows) {
+            store.append(row[0], row[1] / 100.0, 65 + row[1] / 1e4, 22, "A1");
+        }
+    }
+
+    @Test
+    public void findsTheRowsOfARange() throws IOException {
+        TimeSeriesStore store = open();
+        for (int i = 0; i < 100; i++) {
+            store.append(START + i * 1000, i, 65.5, 22.1, i % 2 == 0 ? "A1" : "B2");
+        }
+        Rows rows = new Rows();
+        assertEquals(10, store.query(START + 10000, START + 20000, null, rows));
+        assertEquals("A1@10000=10.0", rows.rows.get(0));
+        assertEquals("B2@19000=19.0", rows.rows.get(9));
+
+        rows = new Rows();
+        assertEquals(5, store.query(START + 10000, START + 20000, "B2", rows));
+        assertEquals("B2@11000=11.0", rows.rows.get(0));
+        assertEquals(0, store.query(START, START + 100000, "C3", rows));
+    }
+
+    @Test
+    public void rollupsGiveTheSameBucketsAsTheRows() throws IOException {
+        List<long[]> series = series(new Random(7), 3);
+        TimeSeriesStore store = open();
+        append(store, series);
+
+        long from = START + DAY / 2;
+        long to = START + 2 * DAY + 7 * TimeSeriesStore.HOUR;
+        long[] resolutions = {30000, TimeSeriesStore.MINUTE, 15 * TimeSeriesStore.MINUTE,
+                TimeSeriesStore.HOUR, 6 * TimeSeriesStore.HOUR, DAY};
+        for (long resolution : resolutions) {
+            Buckets buckets = new Buckets();
+            store.downsample(from, to, "A1", resolution, buckets);
+            assertEquals("at " + resolution, expected(series, from, to, resolution), buckets.buckets);
+        }
+        assertEquals(3, store.getPartitionCount());
+    }
+
+    @Test
+    public void survivesAProcessRestart() throws IOException {
+        List<long[]> series = series(new Random(3), 2);
+        TimeSeriesStore store = open();
+        append(store, series.subList(0, series.size() / 2 + 1234));
+        store.sync();
+
+        // a new instance on the same directory is what the next process sees
+        TimeSeriesStore reopened = open();
+        assertEquals(series.size() / 2 + 1234, reopened.getRowCount());
+        append(reopened, series.subList(series.size() / 2 + 1234, series.size()));
+
+        Buckets buckets = new Buckets();
+        reopened.downsample(START, START + 2 * DAY, "A1", TimeSeriesStore.MINUTE, buckets);
+        assertEquals(expected(series, START, START + 2 * DAY, TimeSeriesStore.MINUTE), buckets.buckets);
+        Rows rows = new Rows();
+        assertEquals(series.size(), reopened.query(START - DAY, START + 3 * DAY, "A1", rows));
+    }
+
+    @Test
+    public void refusesAppendsOnceClosed() throws IOException {
+        TimeSeriesStore store = open();
+        store.append(START, 1.5, 57.7, 11.9, "A1");
+        store.close();
+        try {
+            store.append(START + 1000, 2.5, 57.7, 11.9, "A1");
+            fail("appended to a closed store");
+        } catch (IOException expected) {
+        }
+        assertEquals(0, store.getRowCount());
+        store.close();
+
+        TimeSeriesStore reopened = open();     // continues the partition the closed one wrote
+        assertEquals(1, reopened.getRowCount());
+        reopened.append(START + 2000, 3.5, 57.7, 11.9, "A1");
+        assertEquals(1, reopened.getPartitionCount());
+        Rows rows = new Rows();
+        reopened.query(START, START + DAY, "A1", rows);
+        assertEquals("[A1@0=1.5, A1@2000=3.5]", rows.rows.toString());
+    }
+
+    @Test
+    public void startsANewPartitionWhenFull() throws IOException {
+        TimeSeriesStore store = new TimeSeriesStore(directory, 100, 30 * DAY, 64L << 20);
+        for (int i = 0; i < 250; i++) {
+            store.append(START + i * 1000, i, 65.5, 22.1, "A1");
+        }
+        assertEquals(3, store.getPartitionCount());
+        Rows rows = new Rows();
+        assertEquals(250, store.query(START, START + DAY, "A1", rows));
+
+        Buckets buckets = new Buckets();
+        store.downsample(START, START + DAY, "A1", TimeSeriesStore.MINUTE, buckets);
+        assertEquals(5, buckets.buckets.size());
+        assertEquals("0:60,29500000,0.0,59.0,65500000", buckets.buckets.get(0));
+        assertEquals("60000:60,89500000,60.0,119.0,65500000", buckets.buckets.get(1));    // split by a partition
+    }
+
+    @Test
+    public void sealedPartitionsOnlyTakeTheRowsUsed() throws IOException {
+        TimeSeriesStore store = open();
+        store.append(START, 1, 65.5, 22.1, "A1");
+        long writing = store.getDiskUsage();
+        store.append(START + DAY, 2, 65.5, 22.1, "A1");
+        assertEquals(2, store.getPartitionCount());
+        assertTrue(store.getDiskUsage() < writing + writing / 100);
+    }
+
+    @Test
+    public void evictsWholeDaysPastTheRetention() throws IOException {
+        TimeSeriesStore store = new TimeSeriesStore(directory, 16384, 2 * DAY, 64L << 20);
+        append(store, series(new Random(1), 6));
+        assertEquals(4, store.getPartitionCount());     // evicted when the last day was started
+        assertEquals(2, store.getEvictedCount());
+        Rows rows = new Rows();
+        assertEquals(0, store.query(START, START + 2 * DAY - 60000, "A1", rows));
+        assertEquals(4 * 8640, store.query(START + 2 * DAY, START + 6 * DAY, "A1", rows), 10);
+    }
+
+    @Test
+    public void evictsTheOldestWhenTheDiskIsFull() throws IOException {
+        int capacity = 1000;
+        long writing = 1000L * (36 + 2 * 56) + 64;
+        TimeSeriesStore store = new TimeSeriesStore(directory, capacity, 365 * DAY, 2 * writing);
+        for (int i = 0; i < 20000; i++) {
+            store.append(START + i * 1000L, i, 65.5, 22.1, "A1");
+        }
+        assertTrue(store.getDiskUsage() <= 2 * writing);
+        assertTrue(store.getEvictedCount() > 0);
+        Rows rows = new Rows();
+        assertEquals(capacity, store.query(START + 19000 * 1000L, START + DAY, "A1", rows));
+    }
+
+    @Test
+    public void dropsASerialNumberCutShort() throws IOException {
+        TimeSeriesStore store = open();
+        store.append(START, 1, 65.5, 22.1, "A1");
+        FileOutputStream out = new FileOutputStream(new File(directory, TimeSeriesStore.SERIALS_FILE), true);
+        out.write("B".getBytes("UTF-8"));     // the process died here
+        out.close();
+
+        TimeSeriesStore reopened = open();
+        reopened.append(START + 1000, 2, 65.5, 22.1, "C3");
+        Rows rows = new Rows();
+        assertEquals(2, reopened.query(START, START + DAY, null, rows));
+        assertEquals("C3@1000=2.0", rows.rows.get(1));
+        assertEquals(2, open().query(START, START + DAY, null, new Rows()));
+    }
+}
@@ -0,0 +1,151 @@
+package com.example.mikael.astmos;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the UploadScheduler, run on the development machine against a simulated clock
+ * and a cellular radio which stays in its high power state for a tail after every transmission.
+ */
+public class UploadSchedulerTest {
+
+    private static final long TAIL = 10000;         // milliseconds, about what lte networks keep
+    private static final long TIMER_PERIOD = 1000;  // how often the budget is polled
+
+    /* adds up the time the radio spends in its high power state */
+    private static class Radio {
+        long activeUntil = Long.MIN_VALUE;
+        long activeTime = 0;
+        int wakeUps = 0;
+
+        void transmit(long now) {
+            if (now >= activeUntil) {
+                wakeUps++;
+                activeTime += TAIL;
+            } else {
+                activeTime += now + TAIL - activeUntil;
+            }
+            activeUntil = now + TAIL;
+        }
+    }
+
+    /* a drive of observations at a fixed interval and other traffic at random times */
+    private static class Drive {
+        final Radio radio = new Radio();
+        final List<Long> held = new ArrayList<>();
+        long worstLatency = 0;
+        int sent = 0;
+
+        void flush(UploadScheduler scheduler, long now) {
+            for (long added : held) {
+                worstLatency = Math.max(worstLatency, now - added);
+            }
+            sent += held.size();
+            held.clear();
+            scheduler.flushed(now);
+            radio.transmit(now);
+        }
+
+        /* the scheduler decides, or every observation is sent at once when it is null */
+        void run(UploadScheduler scheduler, long duration, long observationInterval, long meanTrafficInterval) {
+            Random random = new Random(42);
+            long nextTraffic = (long) (random.nextDouble() * 2 * meanTrafficInterval);
+            for (long now = 0; now <= duration; now += 100) {
+                if (now % observationInterval == 0) {
+                    if (scheduler == null) {
+                        sent++;
+                        radio.transmit(now);
+                    } else {
+                        held.add(now);
+                        if (scheduler.add(now)) {
+                            flush(scheduler, now);
+                        }
+                    }
+                }
+                if (now >= nextTraffic) {
+                    radio.transmit(now);    // e.g. a geocoder lookup
+                    if (scheduler != null && scheduler.onTraffic(now)) {
+                        flush(scheduler, now);
+                    }
+                    nextTraffic = now + (long) (random.nextDouble() * 2 * meanTrafficInterval);
+                }
+                if (scheduler != null && now % TIMER_PERIOD == 0 && scheduler.poll(now)) {
+                    flush(scheduler, now);
+                }
+            }
+            if (scheduler != null && !held.isEmpty()) {
+                flush(scheduler, duration);     // shutdown
+            }
+        }
+    }
+
+    @Test
+    public void keepsTheRadioIdleMostOfADrive() {
+        long hour = 3600000;
+        Drive immediate = new Drive();
+        immediate.run(null, hour, 5000, 120000);
+        UploadScheduler scheduler = new UploadScheduler(30000, 2000, 256);
+        Drive scheduled = new Drive();
+        scheduled.run(scheduler, hour, 5000, 120000);
+
+        assertEquals(immediate.sent, scheduled.sent);
+        assertTrue(immediate.radio.activeTime > hour * 9 / 10);     // the tail never runs out
+        assertTrue(scheduled.radio.activeTime < immediate.radio.activeTime / 2);
+        assertTrue(scheduled.worstLatency + " ms", scheduled.worstLatency <= 30000);
+        assertTrue(scheduler.getPiggybackCount() > 0);
+        assertEquals(0, scheduler.getPressureCount());
+    }
+
+    @Test
+    public void holdsUntilTheBudgetIsUsedUp() {
+        UploadScheduler scheduler = new UploadScheduler(30000, 2000, 256);
+        assertEquals(Long.MAX_VALUE, scheduler.getDeadline());
+        assertFalse(scheduler.add(10000));
+        assertFalse(scheduler.add(20000));
+        assertEquals(40000, scheduler.getDeadline());   // counted from the oldest
+        assertFalse(scheduler.poll(39999));
+        assertTrue(scheduler.poll(40000));
+        scheduler.flushed(40000);
+        assertEquals(1, scheduler.getExpiredCount());
+        assertEquals(0, scheduler.getPendingCount());
+        assertFalse(scheduler.poll(100000));    // nothing held
+    }
+
+    @Test
+    public void goesAlongWithOtherTraffic() {
+        UploadScheduler scheduler = new UploadScheduler(30000, 2000, 256);
+        assertFalse(scheduler.onTraffic(1000));     // nothing held, nothing to send
+        assertTrue(scheduler.add(2500));            // the radio is still up from the traffic
+        scheduler.flushed(2500);
+        assertFalse(scheduler.add(3500));           // too long after, the tail may be running out
+        assertTrue(scheduler.onTraffic(8000));
+        scheduler.flushed(8000);
+        assertEquals(2, scheduler.getPiggybackCount());
+        assertEquals(0, scheduler.getExpiredCount());
+    }
+
+    @Test
+    public void sendsAtOnceUnderBufferPressure() {
+        UploadScheduler scheduler = new UploadScheduler(30000, 2000, 3);
+        assertFalse(scheduler.add(10000));
+        assertFalse(scheduler.add(10001));
+        assertTrue(scheduler.add(10002));
+        scheduler.flushed(10002);
+        assertEquals(1, scheduler.getPressureCount());
+        assertEquals(1, scheduler.getFlushCount());
+    }
+
+    @Test
+    public void aZeroBudgetSendsEverythingAtOnce() {
+        UploadScheduler scheduler = new UploadScheduler(0, 0, 256);
+        assertTrue(scheduler.add(5000));
+        scheduler.flushed(5000);
+        scheduler.flushed(6000);    // nothing held, not counted
+        assertEquals(1, scheduler.getFlushCount());
+    }
+}
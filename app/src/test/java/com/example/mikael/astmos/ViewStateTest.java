@@ -0,0 +1,106 @@
+package com.example.mikael.astmos;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the ViewState, run on the development machine.
+ */
+public class ViewStateTest {
+
+    /* keeps what every view was shown, and the arrays it was shown from */
+    private static class Views implements ViewState.Renderer {
+        final String[] texts = new String[ViewState.VIEWS];
+        final char[][] arrays = new char[ViewState.VIEWS][];
+        final List<Integer> shown = new ArrayList<>();
+
+        @Override
+        public void show(int view, char[] text, int length) {
+            texts[view] = new String(text, 0, length);
+            arrays[view] = text;
+            shown.add(view);
+        }
+    }
+
+    @Test
+    public void conflatesUpdatesBetweenRenders() {
+        ViewState state = new ViewState(250);
+        Views views = new Views();
+        assertTrue(state.setSensor("O3", 40.5));    // the first update asks for a render
+        for (int i = 0; i < 100; i++) {
+            assertFalse(state.setSensor("O3", 41.5 + i));
+        }
+        assertEquals(2, state.render(views, 1000));
+        assertEquals("Connected sensor: O3", views.texts[ViewState.SENSOR_TYPE]);
+        assertEquals("Sensor value: 140.5 µg/m3", views.texts[ViewState.SENSOR_VALUE]);
+        assertEquals(1, state.getRenderCount());
+        assertEquals(101, state.getUpdateCount());
+    }
+
+    @Test
+    public void rendersOnlyTheViewsWhichChanged() {
+        ViewState state = new ViewState(0);
+        Views views = new Views();
+        state.setSensor("O3", 40.5);
+        state.render(views, 0);
+        views.shown.clear();
+
+        assertFalse(state.setSensor("O3", 40.5));   // nothing changed, nothing to render
+        assertEquals(0, state.render(views, 16));
+        assertTrue(state.setSensor("O3", 42.0));
+        assertEquals(1, state.render(views, 32));
+        assertEquals("[" + ViewState.SENSOR_VALUE + "]", views.shown.toString());
+    }
+
+    @Test
+    public void limitsTheRenderRate() {
+        ViewState state = new ViewState(250);
+        Views views = new Views();
+        assertEquals(0, state.getDelay(1000));
+        state.setSensor("O3", 40.5);
+        state.render(views, 1000);
+        assertTrue(state.setSensor("O3", 41.5));
+        assertEquals(250, state.getDelay(1000));
+        assertEquals(150, state.getDelay(1100));
+        assertEquals(0, state.getDelay(1300));
+    }
+
+    @Test
+    public void showsTheAddressWithTheLocation() {
+        ViewState state = new ViewState(0);
+        Views views = new Views();
+        assertTrue(state.setLocation(57.5, 11.75, 2.5f));
+        assertFalse(state.setAddress("Storgatan 1"));   // a render is already asked for
+        state.render(views, 0);
+        assertEquals("Latitude: 57.5\nLongitude: 11.75\nStorgatan 1", views.texts[ViewState.LOCATION]);
+        assertEquals("DEBUG\nSpeed: 2.5", views.texts[ViewState.DEBUG]);
+
+        assertTrue(state.setLocationSkipped());
+        assertFalse(state.setLocationSkipped());
+        state.render(views, 16);
+        assertEquals("DEBUG: Location update skipped", views.texts[ViewState.DEBUG]);
+        assertTrue(state.setLocation(57.5, 11.75, 2.5f));   // the same place, only the debug text changes
+        views.shown.clear();
+        state.render(views, 32);
+        assertEquals("[" + ViewState.DEBUG + "]", views.shown.toString());
+    }
+
+    @Test
+    public void reusesTheTextArrays() {
+        ViewState state = new ViewState(0);
+        Views views = new Views();
+        state.setLatestMessage("A1", 20.5, 57.5, 11.75);
+        state.render(views, 0);
+        char[] first = views.arrays[ViewState.LATEST_MESSAGE];
+        assertEquals("Latest message sent to topic: /observations/A1, with content;\nValue: 20.5\nLat:57.5\nLon: 11.75",
+                views.texts[ViewState.LATEST_MESSAGE]);
+        state.setLatestMessage("A2", 21.5, 57.5, 11.75);
+        state.render(views, 16);
+        assertSame(first, views.arrays[ViewState.LATEST_MESSAGE]);
+        assertTrue(views.texts[ViewState.LATEST_MESSAGE].contains("/observations/A2"));
+    }
+}
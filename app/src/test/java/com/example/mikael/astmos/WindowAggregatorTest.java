@@ -0,0 +1,90 @@
+package com.example.mikael.astmos;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the WindowAggregator, run on the development machine.
+ */
+public class WindowAggregatorTest {
+
+    @Test
+    public void completesWindowWithoutLosingSamples() {
+        WindowAggregator window = new WindowAggregator(10);
+        int completed = 0;
+        for (int i = 0; i < 30; i++) {
+            if (window.add(i, 1000L * i)) {
+                completed++;
+                assertEquals(10, window.getCount());
+                assertEquals(i - 4.5, window.getMean(), 1e-9);   // the completing sample is included
+                assertEquals(i - 9, window.getMin(), 0.0);
+                assertEquals(i, window.getMax(), 0.0);
+                assertEquals(1000L * (i - 4), window.getMedianTime());
+                assertEquals(1000L * (i - 9), window.getFirstTime());
+                assertEquals(1000L * i, window.getLastTime());
+                assertEquals(1000L * (i - 7), window.getTime(2));
+            }
+        }
+        assertEquals(3, completed);
+    }
+
+    @Test
+    public void computesStandardDeviation() {
+        WindowAggregator window = new WindowAggregator(8);
+        double[] values = {2, 4, 4, 4, 5, 5, 7, 9};
+        boolean complete = false;
+        for (double value : values) {
+            complete = window.add(value, 0L);
+        }
+        assertTrue(complete);
+        assertEquals(5.0, window.getMean(), 1e-12);
+        assertEquals(2.0, window.getStdDev(), 1e-12);
+    }
+
+    @Test
+    public void slidingWindowMatchesRecomputedStatistics() {
+        int size = 7;
+        WindowAggregator window = new WindowAggregator(size, 3);
+        Random random = new Random(42);
+        double[] history = new double[1000];
+        for (int i = 0; i < history.length; i++) {
+            history[i] = 1e6 + random.nextGaussian() * 5;   // large offset to provoke cancellation
+            if (window.add(history[i], i)) {
+                double sum = 0, min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+                for (int j = i - size + 1; j <= i; j++) {
+                    sum += history[j];
+                    min = Math.min(min, history[j]);
+                    max = Math.max(max, history[j]);
+                }
+                double mean = sum / size;
+                double squares = 0;
+                for (int j = i - size + 1; j <= i; j++) {
+                    squares += (history[j] - mean) * (history[j] - mean);
+                }
+                assertEquals(mean, window.getMean(), 1e-6);
+                assertEquals(min, window.getMin(), 0.0);
+                assertEquals(max, window.getMax(), 0.0);
+                assertEquals(Math.sqrt(squares / size), window.getStdDev(), 1e-6);
+                assertEquals(i - size + 1 + size / 2, window.getMedianTime());
+            }
+        }
+    }
+
+    @Test
+    public void clearStartsAnEmptyWindow() {
+        WindowAggregator window = new WindowAggregator(3);
+        window.add(1, 1);
+        window.add(2, 2);
+        window.clear();
+        assertEquals(0, window.getCount());
+        assertTrue(Double.isNaN(window.getMean()));
+        assertFalse(window.add(5, 5));
+        assertFalse(window.add(6, 6));
+        assertTrue(window.add(7, 7));
+        assertEquals(6.0, window.getMean(), 1e-12);
+        assertEquals(5.0, window.getMin(), 0.0);
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.mikael.astmos;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+
+/**
+ * ConversionBenchmark
+ * Conversion of the gas levels and their aggregation into windows, per sample.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+@State(Scope.Thread)
+public class ConversionBenchmark {
+
+    private static final String[] GASES = {"O3", "SO2", "NO2", "CO"};
+
+    private final SensorRecord[] samples = new SensorRecord[Frames.COUNT];
+    private final double[] levels = new double[Frames.COUNT];
+    private final GasConverter[] converters = new GasConverter[Frames.COUNT];   // by sample
+    private final GasConverter converter = new GasConverter(Gas.NO2, GasConverter.STANDARD_PRESSURE,
+            new CalibrationProfile(1.5, 1.02, 0.1));
+    private final double[] ppbs = new double[Frames.COUNT];
+    private final double[] temperatures = new double[Frames.COUNT];
+    private final double[] converted = new double[Frames.COUNT];
+    private final WindowAggregator window = new WindowAggregator(WindowAggregator.DEFAULT_WINDOW_SIZE);
+    private final ArrayList<Double> recentValues = new ArrayList<>();
+    private final ArrayList<String> timeStamps = new ArrayList<>();
+
+    public ConversionBenchmark() {
+        Frames frames = new Frames();
+        SensorRecordParser parser = new SensorRecordParser();
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = new SensorRecord();
+            parser.parse(frames.frames[i], 0, frames.frames[i].length, samples[i]);
+            samples[i].gas = GASES[i % GASES.length];
+            levels[i] = samples[i].ppb / 1.88;
+            converters[i] = new GasConverter(Gas.forName(samples[i].gas));
+            ppbs[i] = samples[i].ppb;
+            temperatures[i] = GasConverter.toKelvin(samples[i].temperature);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Frames.COUNT)
+    public void legacyPpbToMicroGram(Blackhole bh) {
+        for (SensorRecord sample : samples) {
+            bh.consume(Math.round(Legacy.ppbToMicroGram(sample.gas, sample.ppb, sample.temperature)*100.0)/100.0);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Frames.COUNT)
+    public void gasConverter(Blackhole bh) {
+        for (int i = 0; i < samples.length; i++) {
+            double level = converters[i].convert(samples[i].ppb, GasConverter.toKelvin(samples[i].temperature));
+            bh.consume(Math.round(level*100.0)/100.0);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Frames.COUNT)
+    public double[] calibratedBatch() {
+        converter.convert(ppbs, temperatures, converted);
+        return converted;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Frames.COUNT)
+    public void legacyWindow(Blackhole bh) {
+        for (double level : levels) {
+            if (recentValues.size() == 10) {
+                double average = 0.0;
+                for (double value : recentValues) {
+                    average += value;
+                }
+                bh.consume(average/recentValues.size());
+                bh.consume(timeStamps.get(timeStamps.size()/2));
+                recentValues.clear();
+                timeStamps.clear();
+            } else {
+                recentValues.add(level);
+                timeStamps.add(new SimpleDateFormat("yyyy-MM-dd_HH:mm:ss").format(new Date()));
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Frames.COUNT)
+    public void windowAggregator(Blackhole bh) {
+        long time = 0;
+        for (double level : levels) {
+            if (window.add(level, time++)) {
+                bh.consume(window.getMean());
+                bh.consume(window.getMedianTime());
+            }
+        }
+    }
+}
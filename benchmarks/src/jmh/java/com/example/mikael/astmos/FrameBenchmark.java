@@ -0,0 +1,75 @@
+package com.example.mikael.astmos;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * FrameBenchmark
+ * Delimiting and parsing of the frames sent by a sensor unit, per frame.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+@State(Scope.Thread)
+public class FrameBenchmark {
+
+    private final Frames frames = new Frames();
+    private final Legacy legacy = new Legacy();
+    private final SensorRecordParser parser = new SensorRecordParser();
+    private final SensorRecord record = new SensorRecord();
+
+    @Benchmark
+    @OperationsPerInvocation(Frames.COUNT)
+    public void legacyDelimiting(final Blackhole bh) throws IOException {
+        Legacy.FrameConsumer consumer = new Legacy.FrameConsumer() {
+            @Override
+            public void onFrame(String data) {
+                bh.consume(data);
+            }
+        };
+        for (byte[] chunk : frames.chunks) {
+            legacy.delimit(chunk, consumer);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Frames.COUNT)
+    public long frameDecoder(final Blackhole bh) throws IOException {
+        SensorFrameDecoder decoder = new SensorFrameDecoder(new ByteArrayInputStream(frames.stream),
+                new SensorFrameDecoder.FrameListener() {
+                    @Override
+                    public void onFrame(byte[] buffer, int offset, int length) {
+                        bh.consume(length);
+                    }
+                });
+        decoder.run();
+        return decoder.getFrameCount();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Frames.COUNT)
+    public void legacyParseResult(Blackhole bh) throws IOException {
+        for (byte[] frame : frames.frames) {
+            String[] res = Legacy.parseResult(new String(frame, "US-ASCII"));
+            bh.consume(res[0]);
+            bh.consume(Integer.parseInt(res[1]));
+            bh.consume(Integer.parseInt(res[2]));
+            bh.consume(res[4]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Frames.COUNT)
+    public void recordParser(Blackhole bh) {
+        for (byte[] frame : frames.frames) {
+            bh.consume(parser.parse(frame, 0, frame.length, record));
+        }
+    }
+}
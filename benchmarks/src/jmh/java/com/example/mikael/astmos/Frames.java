@@ -0,0 +1,59 @@
+package com.example.mikael.astmos;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Frames
+ * A recording of generated sensor frames held in memory, shared by the benchmarks so they all
+ * work on the same input.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+class Frames {
+
+    /* frames per benchmark invocation */
+    static final int COUNT = 1000;
+
+    final byte[] stream;        // all frames, delimiters included
+    final byte[][] frames;      // every frame on its own, without the delimiter
+    final byte[][] chunks;      // every frame on its own with the delimiter, as one bluetooth read
+
+    /**
+     * Frames
+     * Generates the frames of a unit with four sensor heads.
+     */
+    Frames() {
+        SyntheticSensorSource source = new SyntheticSensorSource("benchmark", "NO2",
+                new String[]{"A1", "B2", "C3", "D4"}, SyntheticSensorSource.UNPACED, COUNT, 1);
+        try {
+            InputStream in = source.open();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer, 0, buffer.length)) > 0) {
+                out.write(buffer, 0, count);
+            }
+            stream = out.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        frames = new byte[COUNT][];
+        chunks = new byte[COUNT][];
+        int start = 0;
+        int index = 0;
+        for (int i = 0; i < stream.length; i++) {
+            if (stream[i] == SensorFrameDecoder.DELIMITER) {
+                frames[index] = Arrays.copyOfRange(stream, start, i);
+                chunks[index] = Arrays.copyOfRange(stream, start, i + 1);
+                index++;
+                start = i + 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.example.mikael.astmos;
+
+import java.io.UnsupportedEncodingException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+
+/**
+ * Legacy
+ * The sensor path as it was before the pipeline, copied from the first version of MainActivity
+ * and MqttHelper, as the baseline of the benchmarks. Only the android calls are left out.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+class Legacy {
+
+    static final byte delimiter = 33;   // '!'
+
+    /**
+     * FrameConsumer
+     * Receives the frames found by delimit.
+     */
+    interface FrameConsumer {
+        void onFrame(String data);
+    }
+
+    private int readBufferPosition = 0;
+
+    /* the window, as kept by the ui thread */
+    final ArrayList<Double> recentValues = new ArrayList<>();
+    final ArrayList<String> timeStamps = new ArrayList<>();
+
+    /**
+     * delimit
+     * The body of the old bluetooth thread for one read of the available bytes.
+     */
+    void delimit(byte[] available, FrameConsumer consumer) throws UnsupportedEncodingException {
+        int bytesAvailable = available.length;
+        byte[] packetBytes = new byte[bytesAvailable];
+        byte[] readBuffer = new byte[1024];
+        System.arraycopy(available, 0, packetBytes, 0, bytesAvailable);
+
+        for (int i = 0; i < bytesAvailable; i++) {
+            byte b = packetBytes[i];
+            if (b == delimiter) {
+                byte[] encodedBytes = new byte[readBufferPosition];
+                System.arraycopy(readBuffer, 0, encodedBytes, 0, encodedBytes.length);
+                final String data = new String(encodedBytes, "US-ASCII");
+                readBufferPosition = 0;
+                consumer.onFrame(data);
+                break;
+            } else {
+                readBuffer[readBufferPosition++] = b;
+            }
+        }
+    }
+
+    static String[] parseResult(String res) {
+        return res.split(",");
+    }
+
+    static double ppbToMicroGram(String gas, int ppb, int temp) {
+
+        double M;
+
+        switch (gas) {
+            case "O3":
+                M = 2.00;
+                break;
+            case "SO2":
+                M = 2.62;
+                break;
+            case "NO2":
+                M = 1.88;
+                break;
+            case "CO":
+                M = 1.145;
+                break;
+            default:
+                M = 1.00;
+                break;
+        }
+        return ppb/M;
+    }
+
+    /**
+     * add
+     * The window handling of the old handler runnable.
+     *
+     * @return byte[] The published payload when the window was complete, otherwise null
+     */
+    byte[] add(double level, String serialNr, Coordinate coord) throws UnsupportedEncodingException {
+        byte[] payload = null;
+        if (recentValues.size() == 10) {
+            payload = sendData(recentValues, coord, timeStamps, serialNr);
+            recentValues.clear();
+            timeStamps.clear();
+        } else {
+            recentValues.add(level);
+            timeStamps.add(new SimpleDateFormat("yyyy-MM-dd_HH:mm:ss").format(new Date()));
+        }
+        return payload;
+    }
+
+    static byte[] sendData(ArrayList<Double> values, Coordinate coord, ArrayList<String> times, String serialNr)
+            throws UnsupportedEncodingException {
+        double average = 0.0;
+        for (double value : values) {
+            average += value;
+        }
+        average = average/values.size();
+
+        String medianTime = times.get(times.size()/2);
+        String resultTime = new SimpleDateFormat("yyyy-MM-dd_HH:mm:ss").format(new Date());
+        return payload(new JSonMessage(average, coord, medianTime, resultTime, serialNr));
+    }
+
+    static byte[] payload(JSonMessage message) throws UnsupportedEncodingException {
+        String msg = message.msg.toString();
+        return msg.getBytes("UTF-8");
+    }
+}
@@ -0,0 +1,47 @@
+package com.example.mikael.astmos;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * ObservationBenchmark
+ * Building the payload of one observation, from the values of a window to the bytes handed to
+ * the mqtt client.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+@State(Scope.Thread)
+public class ObservationBenchmark {
+
+    private static final long PHENOMENON_START = 1523880000000L;
+    private static final long PHENOMENON_END = 1523880005000L;
+    private static final long RESULT_TIME = 1523880010000L;
+
+    private final Coordinate coord = new Coordinate(65.584816, 22.154751);
+    private final ObservationEncoder encoder = new ObservationEncoder();
+    private final CborObservationEncoder cborEncoder = new CborObservationEncoder();
+    private double value = 12.345;
+
+    @Benchmark
+    public byte[] legacyJSonMessage() throws UnsupportedEncodingException {
+        value += 0.01;
+        return Legacy.payload(new JSonMessage(value, coord, "2018-04-16_12:00:05", "2018-04-16_12:00:10", "AB12"));
+    }
+
+    @Benchmark
+    public int observationEncoder() {
+        value += 0.01;
+        return encoder.encode(value, coord, PHENOMENON_START, PHENOMENON_END, RESULT_TIME, "AB12");
+    }
+
+    @Benchmark
+    public int cborObservationEncoder() {
+        value += 0.01;
+        return cborEncoder.encode(value, coord, PHENOMENON_START, PHENOMENON_END, RESULT_TIME, "AB12");
+    }
+}
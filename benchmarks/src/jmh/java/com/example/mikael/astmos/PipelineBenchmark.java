@@ -0,0 +1,90 @@
+package com.example.mikael.astmos;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * PipelineBenchmark
+ * The whole path from the bytes of the sensor unit to the published payloads, read from an
+ * in-memory stream, per frame. The pipeline runs on the benchmark thread, so the hand-over
+ * between the reader and pipeline threads is not part of the measurement.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+@State(Scope.Thread)
+public class PipelineBenchmark {
+
+    private final Frames frames = new Frames();
+    private final Coordinate coord = new Coordinate(65.584816, 22.154751);
+    private final Legacy legacy = new Legacy();
+    private final SensorRecordParser parser = new SensorRecordParser();
+    private final SensorRecord record = new SensorRecord();
+    private final ObservationEncoder encoder = new ObservationEncoder();
+    private Blackhole blackhole;
+
+    private final SensorPipeline pipeline = new SensorPipeline(new SampleQueue(16, SampleQueue.OverflowPolicy.BLOCK),
+            WindowAggregator.DEFAULT_WINDOW_SIZE, new SensorPipeline.Listener() {
+                @Override
+                public void onLatestAvailable() {
+                }
+
+                @Override
+                public void onWindow(String serialNr, String gas, WindowAggregator window) {
+                    int length = encoder.encode(window.getMean(), coord, window.getFirstTime(), window.getLastTime(),
+                            System.currentTimeMillis(), serialNr);
+                    blackhole.consume(encoder.getBuffer());
+                    blackhole.consume(length);
+                }
+
+                @Override
+                public void onStopped() {
+                }
+            });
+
+    @Benchmark
+    @OperationsPerInvocation(Frames.COUNT)
+    public void legacy(final Blackhole bh) throws IOException {
+        Legacy.FrameConsumer consumer = new Legacy.FrameConsumer() {
+            @Override
+            public void onFrame(String data) {
+                try {
+                    String[] res = Legacy.parseResult(data);
+                    double level = Math.round(Legacy.ppbToMicroGram(res[0], Integer.parseInt(res[1]), Integer.parseInt(res[2]))*100.0)/100.0;
+                    bh.consume(legacy.add(level, res[4], coord));
+                } catch (UnsupportedEncodingException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        for (byte[] chunk : frames.chunks) {
+            legacy.delimit(chunk, consumer);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Frames.COUNT)
+    public long pipeline(Blackhole bh) throws IOException {
+        blackhole = bh;
+        SensorFrameDecoder decoder = new SensorFrameDecoder(new ByteArrayInputStream(frames.stream),
+                new SensorFrameDecoder.FrameListener() {
+                    @Override
+                    public void onFrame(byte[] buffer, int offset, int length) {
+                        if (parser.parse(buffer, offset, length, record)) {
+                            record.time = System.currentTimeMillis();
+                            pipeline.process(record);
+                        }
+                    }
+                });
+        decoder.run();
+        return decoder.getFrameCount();
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.mikael.astmos;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * StoreBenchmark
+ * Queries over a quarter of history in the TimeSeriesStore, two heads publishing a window every
+ * 10 seconds, per query.
+ *
+ * @author      Mikael Mölder
+ * @version     1.0
+ * @since       2018-04-16
+ */
+@State(Scope.Thread)
+public class StoreBenchmark {
+
+    private static final long START = 1525132800000L;      // 2018-05-01T00:00:00Z
+    private static final int DAYS = 92;
+
+    private File directory;
+    private TimeSeriesStore store;
+    private Blackhole blackhole;
+
+    private final TimeSeriesStore.BucketVisitor buckets = new TimeSeriesStore.BucketVisitor() {
+        @Override
+        public void visit(TimeSeriesStore.Aggregate aggregate) {
+            blackhole.consume(aggregate.getMean());
+        }
+    };
+
+    private final TimeSeriesStore.RowVisitor rows = new TimeSeriesStore.RowVisitor() {
+        @Override
+        public void visit(long time, double value, double latitude, double longitude, String serialNr) {
+            blackhole.consume(value);
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void fill() throws IOException {
+        if (store != null) {
+            return;
+        }
+        directory = File.createTempFile("store", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("could not create " + directory);
+        }
+        store = new TimeSeriesStore(directory);
+        Random random = new Random(1);
+        for (long time = START; time < START + DAYS * TimeSeriesStore.DAY; time += 10000) {
+            store.append(time, 20 + random.nextDouble() * 10, 65.58, 22.15, "A1");
+            store.append(time + 1, 40 + random.nextDouble() * 10, 65.58, 22.15, "B2");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() {
+        File[] partitions = directory.listFiles();
+        if (partitions != null) {
+            for (File partition : partitions) {
+                File[] files = partition.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        file.delete();
+                    }
+                }
+                partition.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    public void hourlyQuarter(Blackhole bh) {
+        blackhole = bh;
+        bh.consume(store.downsample(START, START + DAYS * TimeSeriesStore.DAY, "A1", TimeSeriesStore.HOUR, buckets));
+    }
+
+    @Benchmark
+    public void dailyQuarter(Blackhole bh) {
+        blackhole = bh;
+        bh.consume(store.downsample(START, START + DAYS * TimeSeriesStore.DAY, "A1", TimeSeriesStore.DAY, buckets));
+    }
+
+    @Benchmark
+    public void minutelyDay(Blackhole bh) {
+        blackhole = bh;
+        bh.consume(store.downsample(START + 45 * TimeSeriesStore.DAY, START + 46 * TimeSeriesStore.DAY, "A1",
+                TimeSeriesStore.MINUTE, buckets));
+    }
+
+    @Benchmark
+    public void rawHour(Blackhole bh) {
+        blackhole = bh;
+        long from = START + 45 * TimeSeriesStore.DAY + 12 * TimeSeriesStore.HOUR;
+        bh.consume(store.query(from, from + TimeSeriesStore.HOUR, "A1", rows));
+    }
+}